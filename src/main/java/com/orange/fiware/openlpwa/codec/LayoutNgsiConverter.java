@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.fiware.openlpwa.iotagent.BinaryNgsiConverter;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converter decoding the payloads with the layout of the model of each message, without any code to write.
+ * The layouts are compiled once when the converter is created. The payloads of the models without layout and the
+ * commands are handled by an optional fallback converter.
+ */
+public class LayoutNgsiConverter implements BinaryNgsiConverter {
+
+    private static Logger logger = LoggerFactory.getLogger(LayoutNgsiConverter.class);
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, PayloadDecoder> decoders;
+    private final BinaryNgsiConverter fallbackConverter;
+
+    /**
+     * Constructor
+     *
+     * @param layouts           Layouts of the payloads
+     * @param fallbackConverter Converter of the models without layout and of the commands, null if none
+     * @throws IllegalArgumentException when a layout is invalid or defined twice for a model
+     */
+    public LayoutNgsiConverter(List<PayloadLayout> layouts, BinaryNgsiConverter fallbackConverter) {
+        Map<String, PayloadDecoder> compiledDecoders = new HashMap<>();
+        for (PayloadLayout layout : layouts) {
+            if (compiledDecoders.put(layout.getModel(), layout.compile()) != null) {
+                throw new IllegalArgumentException("Layout defined twice for model " + layout.getModel());
+            }
+        }
+        this.decoders = Collections.unmodifiableMap(compiledDecoders);
+        this.fallbackConverter = fallbackConverter;
+    }
+
+    /**
+     * Read the layouts from a JSON object giving the fields of each model, for instance
+     * <code>{"model": [{"name": "temperature", "type": "float", "bitOffset": 0, "bitLength": 16, "signed": true, "scale": 0.1}]}</code>
+     *
+     * @param json JSON layouts
+     * @return The layouts
+     * @throws IOException              The JSON is not valid
+     * @throws IllegalArgumentException when a layout is invalid
+     */
+    public static List<PayloadLayout> readLayouts(InputStream json) throws IOException {
+        Map<String, List<PayloadField>> fieldsByModel = objectMapper.readValue(json, new TypeReference<Map<String, List<PayloadField>>>() {
+        });
+        List<PayloadLayout> layouts = new ArrayList<>(fieldsByModel.size());
+        for (Map.Entry<String, List<PayloadField>> entry : fieldsByModel.entrySet()) {
+            layouts.add(new PayloadLayout(entry.getKey(), entry.getValue()));
+        }
+        return layouts;
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, ByteBuffer payload, DeviceIncomingMessage incomingMessage) {
+        String model = incomingMessage != null ? incomingMessage.getModel() : null;
+        PayloadDecoder decoder = model != null ? decoders.get(model) : null;
+        if (decoder != null) {
+            return decoder.decode(payload);
+        }
+        if (fallbackConverter != null) {
+            return fallbackConverter.decodeData(deviceID, payload, incomingMessage);
+        }
+        logger.warn("No payload layout for the model {}, message is not treated (ID:{})", model, deviceID);
+        return null;
+    }
+
+    @Override
+    public ByteBuffer encodeCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        if (fallbackConverter == null) {
+            logger.error("Commands are not described by the payload layouts, command {} is not sent (ID:{})", commandName, deviceID);
+            return null;
+        }
+        return fallbackConverter.encodeCommand(deviceID, commandName, attribute);
+    }
+
+    /**
+     * @param model Device model
+     * @return The decoder of the model, null if the model has no layout
+     */
+    public PayloadDecoder getDecoder(String model) {
+        return decoders.get(model);
+    }
+}
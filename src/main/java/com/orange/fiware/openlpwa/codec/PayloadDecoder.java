@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoder of the payloads of a layout, compiled into a single method handle.
+ * Each field is specialized at compile time (byte aligned reads of 1, 2 or 4 bytes, sign extension, scaling and
+ * attribute creation only when needed, constants bound) and the fields are combined into one handle returning the
+ * attribute list, so decoding a payload runs no interpretation of the layout.
+ */
+public class PayloadDecoder {
+
+    private final static MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final static int maxFields = 250;
+    private final PayloadLayout layout;
+    // (ByteBuffer)List
+    private final MethodHandle decoder;
+
+    PayloadDecoder(PayloadLayout layout) {
+        if (layout.getFields().size() > maxFields) {
+            throw new IllegalArgumentException("More than " + maxFields + " fields for model " + layout.getModel());
+        }
+        this.layout = layout;
+        try {
+            this.decoder = compile(layout.getFields());
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to compile the layout of model " + layout.getModel(), e);
+        }
+    }
+
+    /**
+     * Decode a payload
+     *
+     * @param payload Payload bytes from its position, the position is not changed
+     * @return The attributes of the fields
+     * @throws IllegalArgumentException when the payload is too short
+     */
+    @SuppressWarnings("unchecked")
+    public List<ContextAttribute> decode(ByteBuffer payload) {
+        layout.checkLength(payload);
+        try {
+            return (List<ContextAttribute>) decoder.invokeExact(payload);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Layout of the payloads
+     */
+    public PayloadLayout getLayout() {
+        return layout;
+    }
+
+    private static MethodHandle compile(List<PayloadField> fields) throws NoSuchMethodException, IllegalAccessException {
+        int fieldCount = fields.size();
+        MethodHandle[] fieldDecoders = new MethodHandle[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fieldDecoders[i] = compile(fields.get(i));
+        }
+        // (ContextAttribute...)List collecting the attributes, each one decoded from the same payload
+        MethodHandle collector = lookup.findStatic(PayloadDecoder.class, "list", MethodType.methodType(List.class, ContextAttribute[].class))
+                .asCollector(ContextAttribute[].class, fieldCount);
+        MethodHandle decoders = MethodHandles.filterArguments(collector, 0, fieldDecoders);
+        return MethodHandles.permuteArguments(decoders, MethodType.methodType(List.class, ByteBuffer.class), new int[fieldCount]);
+    }
+
+    /**
+     * @return (ByteBuffer)ContextAttribute handle decoding a field
+     */
+    private static MethodHandle compile(PayloadField field) throws NoSuchMethodException, IllegalAccessException {
+        MethodHandle raw = rawReader(field);
+        if (field.isSigned()) {
+            raw = MethodHandles.filterReturnValue(raw, MethodHandles.insertArguments(reader("signExtend", long.class, int.class), 1, field.getBitLength()));
+        }
+        MethodHandle value;
+        if (field.isBoolean()) {
+            value = MethodHandles.filterReturnValue(raw, lookup.findStatic(PayloadDecoder.class, "toBoolean", MethodType.methodType(Object.class, long.class)));
+        } else if (field.isScaled()) {
+            double divisor = divisor(field.getScale());
+            MethodHandle scaling = divisor > 0
+                    ? MethodHandles.insertArguments(lookup.findStatic(PayloadDecoder.class, "divide", MethodType.methodType(double.class, long.class, double.class, double.class)), 1, divisor, field.getValueOffset())
+                    : MethodHandles.insertArguments(lookup.findStatic(PayloadDecoder.class, "scale", MethodType.methodType(double.class, long.class, double.class, double.class)), 1, field.getScale(), field.getValueOffset());
+            value = MethodHandles.filterReturnValue(raw, scaling).asType(MethodType.methodType(Object.class, ByteBuffer.class));
+        } else {
+            value = raw.asType(MethodType.methodType(Object.class, ByteBuffer.class));
+        }
+        MethodHandle attribute = MethodHandles.insertArguments(lookup.findStatic(PayloadDecoder.class, "attribute",
+                MethodType.methodType(ContextAttribute.class, String.class, String.class, Object.class)), 0, field.getName(), field.getType());
+        return MethodHandles.filterReturnValue(value, attribute);
+    }
+
+    /**
+     * @return (ByteBuffer)long handle reading the raw value of a field
+     */
+    private static MethodHandle rawReader(PayloadField field) throws NoSuchMethodException, IllegalAccessException {
+        int bitOffset = field.getBitOffset();
+        int bitLength = field.getBitLength();
+        if ((bitOffset & 7) != 0 || (bitLength & 7) != 0) {
+            return MethodHandles.insertArguments(reader("readBits", ByteBuffer.class, int.class, int.class), 1, bitOffset, bitLength);
+        }
+        int byteOffset = bitOffset >>> 3;
+        int byteLength = bitLength >>> 3;
+        String suffix = field.isLittleEndian() && byteLength > 1 ? "LittleEndian" : "";
+        switch (byteLength) {
+            case 1:
+                return MethodHandles.insertArguments(reader("readUnsignedByte", ByteBuffer.class, int.class), 1, byteOffset);
+            case 2:
+            case 4:
+                return MethodHandles.insertArguments(reader("readUnsigned" + (byteLength == 2 ? "Short" : "Int") + suffix, ByteBuffer.class, int.class), 1, byteOffset);
+            default:
+                return MethodHandles.insertArguments(reader("readBytes" + suffix, ByteBuffer.class, int.class, int.class), 1, byteOffset, byteLength);
+        }
+    }
+
+    private static MethodHandle reader(String name, Class<?>... parameterTypes) throws NoSuchMethodException, IllegalAccessException {
+        return lookup.findStatic(PayloadDecoder.class, name, MethodType.methodType(long.class, parameterTypes));
+    }
+
+    static long readUnsignedByte(ByteBuffer payload, int index) {
+        return payload.get(payload.position() + index) & 0xFF;
+    }
+
+    static long readUnsignedShort(ByteBuffer payload, int index) {
+        int start = payload.position() + index;
+        return ((payload.get(start) & 0xFF) << 8) | (payload.get(start + 1) & 0xFF);
+    }
+
+    static long readUnsignedShortLittleEndian(ByteBuffer payload, int index) {
+        int start = payload.position() + index;
+        return (payload.get(start) & 0xFF) | ((payload.get(start + 1) & 0xFF) << 8);
+    }
+
+    static long readUnsignedInt(ByteBuffer payload, int index) {
+        int start = payload.position() + index;
+        return ((long) (payload.get(start) & 0xFF) << 24) | ((payload.get(start + 1) & 0xFF) << 16)
+                | ((payload.get(start + 2) & 0xFF) << 8) | (payload.get(start + 3) & 0xFF);
+    }
+
+    static long readUnsignedIntLittleEndian(ByteBuffer payload, int index) {
+        int start = payload.position() + index;
+        return (payload.get(start) & 0xFF) | ((payload.get(start + 1) & 0xFF) << 8)
+                | ((payload.get(start + 2) & 0xFF) << 16) | ((long) (payload.get(start + 3) & 0xFF) << 24);
+    }
+
+    static long readBytes(ByteBuffer payload, int index, int length) {
+        int start = payload.position() + index;
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (payload.get(start + i) & 0xFF);
+        }
+        return value;
+    }
+
+    static long readBytesLittleEndian(ByteBuffer payload, int index, int length) {
+        int start = payload.position() + index;
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (payload.get(start + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Read bits not aligned on bytes, big endian
+     */
+    static long readBits(ByteBuffer payload, int bitOffset, int bitLength) {
+        int lastBit = bitOffset + bitLength - 1;
+        long value = readBytes(payload, bitOffset >>> 3, (lastBit >>> 3) - (bitOffset >>> 3) + 1);
+        value >>>= 7 - (lastBit & 7);
+        return bitLength == 64 ? value : value & ((1L << bitLength) - 1);
+    }
+
+    static long signExtend(long raw, int bitLength) {
+        int shift = 64 - bitLength;
+        return (raw << shift) >> shift;
+    }
+
+    static Object toBoolean(long raw) {
+        return raw != 0;
+    }
+
+    /**
+     * @param scale Scale of a field
+     * @return The integer dividing the raw value when the scale is its inverse (0.1 for instance), 0 otherwise
+     */
+    static double divisor(double scale) {
+        double divisor = 1 / scale;
+        // Dividing by 10 is exact where multiplying by 0.1 is not
+        return Math.abs(divisor) > 1 && divisor == Math.rint(divisor) ? divisor : 0;
+    }
+
+    private static double divide(long raw, double divisor, double valueOffset) {
+        return raw / divisor + valueOffset;
+    }
+
+    private static double scale(long raw, double scale, double valueOffset) {
+        return raw * scale + valueOffset;
+    }
+
+    private static List<ContextAttribute> list(ContextAttribute[] attributes) {
+        return new ArrayList<>(Arrays.asList(attributes));
+    }
+
+    private static ContextAttribute attribute(String name, String type, Object value) {
+        return new ContextAttribute(name, type, value);
+    }
+}
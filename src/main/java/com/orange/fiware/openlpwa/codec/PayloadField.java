@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+/**
+ * Field of a payload layout, decoded into an Ngsi attribute.
+ * The bits are numbered from the most significant bit of the first byte. The raw value is an unsigned or two's
+ * complement integer, big endian unless the field is little endian (whole bytes only). A boolean attribute is true
+ * when the raw value is not 0, other attributes are integers or, when scaled, <code>raw * scale + valueOffset</code>.
+ */
+public class PayloadField {
+
+    public final static String BOOLEAN_TYPE = "boolean";
+    private String name;
+    private String type = "float";
+    private int bitOffset;
+    private int bitLength;
+    private boolean signed = false;
+    private boolean littleEndian = false;
+    private double scale = 1;
+    private double valueOffset = 0;
+
+    public PayloadField() {
+    }
+
+    public PayloadField(String name, String type, int bitOffset, int bitLength) {
+        this.name = name;
+        this.type = type;
+        this.bitOffset = bitOffset;
+        this.bitLength = bitLength;
+    }
+
+    /**
+     * Check that the field can be decoded
+     *
+     * @throws IllegalArgumentException when the field is invalid
+     */
+    public void validate() {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Field without name");
+        }
+        if (bitOffset < 0 || bitLength <= 0 || (bitOffset & 7) + bitLength > 64) {
+            throw new IllegalArgumentException("Invalid bits of field " + name + ": at most 64 bits read from 8 bytes");
+        }
+        if (littleEndian && ((bitOffset & 7) != 0 || (bitLength & 7) != 0)) {
+            throw new IllegalArgumentException("Little endian field " + name + " must be made of whole bytes");
+        }
+        if (signed && isBoolean()) {
+            throw new IllegalArgumentException("Boolean field " + name + " can't be signed");
+        }
+        if (scale == 0 || Double.isNaN(scale) || Double.isInfinite(scale) || Double.isNaN(valueOffset) || Double.isInfinite(valueOffset)) {
+            throw new IllegalArgumentException("Invalid scale or value offset of field " + name);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the attribute is a boolean
+     */
+    public boolean isBoolean() {
+        return BOOLEAN_TYPE.equals(type);
+    }
+
+    /**
+     * @return <code>true</code> if the raw value is converted to a decimal value
+     */
+    public boolean isScaled() {
+        return scale != 1 || valueOffset != 0;
+    }
+
+    /**
+     * @return Index of the byte following the field
+     */
+    public int getEndByte() {
+        return (bitOffset + bitLength + 7) >>> 3;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public int getBitOffset() {
+        return bitOffset;
+    }
+
+    public void setBitOffset(int bitOffset) {
+        this.bitOffset = bitOffset;
+    }
+
+    public int getBitLength() {
+        return bitLength;
+    }
+
+    public void setBitLength(int bitLength) {
+        this.bitLength = bitLength;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public void setSigned(boolean signed) {
+        this.signed = signed;
+    }
+
+    public boolean isLittleEndian() {
+        return littleEndian;
+    }
+
+    public void setLittleEndian(boolean littleEndian) {
+        this.littleEndian = littleEndian;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    public double getValueOffset() {
+        return valueOffset;
+    }
+
+    public void setValueOffset(double valueOffset) {
+        this.valueOffset = valueOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadField{" +
+                "name='" + name + '\'' +
+                ", type='" + type + '\'' +
+                ", bitOffset=" + bitOffset +
+                ", bitLength=" + bitLength +
+                ", signed=" + signed +
+                ", littleEndian=" + littleEndian +
+                ", scale=" + scale +
+                ", valueOffset=" + valueOffset +
+                '}';
+    }
+}
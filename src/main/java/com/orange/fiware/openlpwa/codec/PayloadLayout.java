@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of the payloads of a device model: the fields decoded into Ngsi attributes.
+ * A layout is compiled once into a {@link PayloadDecoder}, it can also be interpreted field by field.
+ */
+public class PayloadLayout {
+
+    private final String model;
+    private final List<PayloadField> fields;
+    private final int minLength;
+
+    /**
+     * Constructor
+     *
+     * @param model  Device model
+     * @param fields Fields of the payloads
+     * @throws IllegalArgumentException when a field is invalid
+     */
+    public PayloadLayout(String model, List<PayloadField> fields) {
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("Layout without fields for model " + model);
+        }
+        int length = 0;
+        for (PayloadField field : fields) {
+            field.validate();
+            length = Math.max(length, field.getEndByte());
+        }
+        this.model = model;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        this.minLength = length;
+    }
+
+    /**
+     * Compile the layout into a decoder
+     *
+     * @return The decoder of the payloads
+     */
+    public PayloadDecoder compile() {
+        return new PayloadDecoder(this);
+    }
+
+    /**
+     * Decode a payload walking through the fields, slower than a compiled decoder
+     *
+     * @param payload Payload bytes from its position
+     * @return The attributes of the fields
+     * @throws IllegalArgumentException when the payload is too short
+     */
+    public List<ContextAttribute> interpret(ByteBuffer payload) {
+        checkLength(payload);
+        List<ContextAttribute> attributes = new ArrayList<>(fields.size());
+        for (PayloadField field : fields) {
+            long raw;
+            int byteOffset = field.getBitOffset() >>> 3;
+            if ((field.getBitOffset() & 7) != 0 || (field.getBitLength() & 7) != 0) {
+                raw = PayloadDecoder.readBits(payload, field.getBitOffset(), field.getBitLength());
+            } else if (field.isLittleEndian()) {
+                raw = PayloadDecoder.readBytesLittleEndian(payload, byteOffset, field.getBitLength() >>> 3);
+            } else {
+                raw = PayloadDecoder.readBytes(payload, byteOffset, field.getBitLength() >>> 3);
+            }
+            if (field.isSigned()) {
+                raw = PayloadDecoder.signExtend(raw, field.getBitLength());
+            }
+            Object value;
+            if (field.isBoolean()) {
+                value = PayloadDecoder.toBoolean(raw);
+            } else if (field.isScaled()) {
+                double divisor = PayloadDecoder.divisor(field.getScale());
+                value = divisor > 0 ? raw / divisor + field.getValueOffset() : raw * field.getScale() + field.getValueOffset();
+            } else {
+                value = raw;
+            }
+            attributes.add(new ContextAttribute(field.getName(), field.getType(), value));
+        }
+        return attributes;
+    }
+
+    void checkLength(ByteBuffer payload) {
+        if (payload.remaining() < minLength) {
+            throw new IllegalArgumentException("Payload of " + payload.remaining() + " bytes too short for model " + model
+                    + " (" + minLength + " bytes)");
+        }
+    }
+
+    /**
+     * @return Device model
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return Fields of the payloads
+     */
+    public List<PayloadField> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Minimum length of the payloads in bytes
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.exception;
+
+/**
+ * Exception triggered when a request is not sent because the circuit breaker of its endpoint is open
+ */
+public class CircuitOpenException extends AgentException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String endpoint) {
+        super("Circuit breaker open for " + endpoint + ", request not sent");
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of an endpoint.
+ * The circuit opens after a number of consecutive failures: the requests are then rejected without being sent.
+ * Once the open duration has elapsed, a single trial request is let through (half-open state): the circuit closes
+ * if it succeeds, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+    private static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openDuration;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private final LongAdder openCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param endpoint Endpoint protected by the circuit breaker
+     * @param failureThreshold Number of consecutive failures opening the circuit
+     * @param openDuration Time during which the requests are rejected, in milliseconds
+     */
+    public CircuitBreaker(String endpoint, int failureThreshold, long openDuration) {
+        this(endpoint, failureThreshold, openDuration, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(String endpoint, int failureThreshold, long openDuration, LongSupplier clock) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    /**
+     * Ask for the permission to send a request
+     * @return <code>false</code> if the request must not be sent
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt >= openDuration) {
+                    state = State.HALF_OPEN;
+                    logger.info("Sending a trial request to {}", endpoint);
+                    return true;
+                }
+                break;
+            default:
+                // A trial request is in progress
+                break;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * The endpoint has answered, even with an error which does not come from its availability
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            logger.info("Circuit breaker of {} closed", endpoint);
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * The endpoint is not available
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            logger.warn("Circuit breaker of {} opened after {} failures, requests rejected during {} ms",
+                    endpoint, consecutiveFailures, openDuration);
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+            openCount.increment();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return Number of times the circuit has opened
+     */
+    public long getOpenCount() {
+        return openCount.sum();
+    }
+
+    /**
+     * @return Number of requests rejected while the circuit was open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.http;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking Http transport shared by the OpenLpwa provider and the context broker clients.
+ * Requests go through a pool of keep-alive connections, limited per route. The time spent waiting for a connection
+ * of the pool is measured.
+ * A route with reserved connections (a context broker) adds its own limit to the size of the pool, so that the
+ * connections held by a stalled server are never missing to the other ones.
+ * HTTP/2 is not supported by the Apache async client 4.x, connections use HTTP/1.1.
+ */
+@Service
+public class PooledHttpTransport implements DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(PooledHttpTransport.class);
+    @Value("${http.maxTotalConnections:50}")
+    private int maxTotalConnections;
+    @Value("${http.maxConnectionsPerRoute:20}")
+    private int maxConnectionsPerRoute;
+    @Value("${http.connectTimeout:2000}")
+    private int connectTimeout;
+    @Value("${http.readTimeout:5000}")
+    private int readTimeout;
+    @Value("${http.poolTimeout:1000}")
+    private int poolTimeout;
+    @Value("${http.keepAlive:30000}")
+    private long keepAlive;
+    @Value("${http.ioThreads:0}")
+    private int ioThreads;
+    private final Set<HttpRoute> reservedRoutes = new HashSet<>();
+    private TimedConnectionManager connectionManager;
+    private CloseableHttpAsyncClient httpClient;
+    private AsyncClientHttpRequestFactory requestFactory;
+
+    /**
+     * Get the Http client, started on first use
+     *
+     * @return The shared Http client
+     */
+    public synchronized CloseableHttpAsyncClient getHttpClient() {
+        if (httpClient == null) {
+            try {
+                IOReactorConfig.Builder reactorConfig = IOReactorConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSoTimeout(readTimeout)
+                        .setSoKeepAlive(true);
+                if (ioThreads > 0) {
+                    reactorConfig.setIoThreadCount(ioThreads);
+                }
+                connectionManager = new TimedConnectionManager(new DefaultConnectingIOReactor(reactorConfig.build()));
+            } catch (IOReactorException e) {
+                throw new IllegalStateException("Unable to create the Http connection pool", e);
+            }
+            connectionManager.setMaxTotal(getMaxTotalConnections());
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeout)
+                    .setSocketTimeout(readTimeout)
+                    .setConnectionRequestTimeout(poolTimeout)
+                    .build();
+            httpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(new BoundedKeepAliveStrategy(keepAlive))
+                    .build();
+            httpClient.start();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Reserve the connections of a server: the pool grows by the limit per route, the requests to the other servers
+     * can't take these connections
+     *
+     * @param url URL of the server
+     */
+    public synchronized void reserveConnections(String url) {
+        if (reservedRoutes.add(route(url))) {
+            logger.debug("{} connections reserved for {}", maxConnectionsPerRoute, url);
+            if (connectionManager != null) {
+                connectionManager.setMaxTotal(getMaxTotalConnections());
+            }
+        }
+    }
+
+    /**
+     * @return Size of the pool: the shared connections and the reserved ones
+     */
+    public synchronized int getMaxTotalConnections() {
+        return maxTotalConnections + reservedRoutes.size() * maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return Maximum number of connections to the same server
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return Request factory to use with an AsyncRestTemplate
+     */
+    public synchronized AsyncClientHttpRequestFactory getRequestFactory() {
+        if (requestFactory == null) {
+            requestFactory = new HttpComponentsAsyncClientHttpRequestFactory(getHttpClient());
+        }
+        return requestFactory;
+    }
+
+    /**
+     * Close the connections
+     */
+    public synchronized void shutdown() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close the Http client", e);
+            }
+            httpClient = null;
+            requestFactory = null;
+        }
+    }
+
+    /**
+     * Close the connections with the application context, the agent may be started again until then
+     */
+    @Override
+    public void destroy() {
+        shutdown();
+    }
+
+    /**
+     * @return Statistics of the whole pool (leased, available and pending connections)
+     */
+    public PoolStats getPoolStats() {
+        TimedConnectionManager manager = connectionManager;
+        return manager != null ? manager.getTotalStats() : new PoolStats(0, 0, 0, getMaxTotalConnections());
+    }
+
+    /**
+     * @param route Route to a server
+     * @return Statistics of the connections to a server
+     */
+    public PoolStats getPoolStats(HttpRoute route) {
+        TimedConnectionManager manager = connectionManager;
+        return manager != null ? manager.getStats(route) : new PoolStats(0, 0, 0, maxConnectionsPerRoute);
+    }
+
+    /**
+     * @param url URL of a server
+     * @return Statistics of the connections to the server of the URL
+     */
+    public PoolStats getPoolStats(String url) {
+        return getPoolStats(route(url));
+    }
+
+    private static HttpRoute route(String url) {
+        URI uri = URI.create(url);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+        return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+    }
+
+    /**
+     * @return Number of connections leased from the pool
+     */
+    public long getLeaseCount() {
+        TimedConnectionManager manager = connectionManager;
+        return manager != null ? manager.leaseCount.sum() : 0;
+    }
+
+    /**
+     * @return Average time spent waiting for a connection of the pool, in milliseconds
+     */
+    public double getAverageWaitTime() {
+        TimedConnectionManager manager = connectionManager;
+        if (manager == null) {
+            return 0;
+        }
+        long count = manager.leaseCount.sum();
+        return count == 0 ? 0 : manager.waitTime.sum() / 1e6 / count;
+    }
+
+    /**
+     * @return Longest time spent waiting for a connection of the pool, in milliseconds
+     */
+    public double getMaxWaitTime() {
+        TimedConnectionManager manager = connectionManager;
+        return manager != null ? manager.maxWaitTime.get() / 1e6 : 0;
+    }
+
+    /**
+     * @return Number of requests which have not obtained a connection before the pool timeout
+     */
+    public long getLeaseFailureCount() {
+        TimedConnectionManager manager = connectionManager;
+        return manager != null ? manager.leaseFailureCount.sum() : 0;
+    }
+
+    /**
+     * Connection manager measuring the time to lease a connection
+     */
+    private static class TimedConnectionManager extends PoolingNHttpClientConnectionManager {
+
+        private final LongAdder leaseCount = new LongAdder();
+        private final LongAdder leaseFailureCount = new LongAdder();
+        private final LongAdder waitTime = new LongAdder();
+        private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0);
+
+        TimedConnectionManager(DefaultConnectingIOReactor ioReactor) {
+            super(ioReactor);
+        }
+
+        @Override
+        public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout, long leaseTimeout,
+                                                               TimeUnit tunit, FutureCallback<NHttpClientConnection> callback) {
+            long start = System.nanoTime();
+            return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+                @Override
+                public void completed(NHttpClientConnection connection) {
+                    long elapsed = System.nanoTime() - start;
+                    leaseCount.increment();
+                    waitTime.add(elapsed);
+                    maxWaitTime.accumulate(elapsed);
+                    if (callback != null) {
+                        callback.completed(connection);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    leaseFailureCount.increment();
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps the connections alive for the duration given by the server, bounded by the configured one
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long maxKeepAlive;
+
+        BoundedKeepAliveStrategy(long maxKeepAlive) {
+            this.maxKeepAlive = maxKeepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            BasicHeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, maxKeepAlive);
+                    } catch (NumberFormatException e) {
+                        // Ignored, the configured duration is used
+                    }
+                }
+            }
+            return maxKeepAlive;
+        }
+    }
+}
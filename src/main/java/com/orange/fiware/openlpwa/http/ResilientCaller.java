@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.http;
+
+import com.orange.fiware.openlpwa.exception.CircuitOpenException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Sends the requests to the remote endpoints (context broker, OpenLpwa provider) with a common failure policy.
+ * Failures are classified: a rejected authentication leads to a new token and a single new attempt, a transient
+ * failure (connection error, timeout, server error) is retried after an exponential backoff with jitter, other
+ * failures are returned at once. A request which is not idempotent is only retried when it has failed before being
+ * sent, while connecting to the endpoint.
+ * Each endpoint has a circuit breaker counting the transient failures: while it is open, the requests fail
+ * immediately with a CircuitOpenException.
+ */
+@Service
+public class ResilientCaller {
+
+    private static Logger logger = LoggerFactory.getLogger(ResilientCaller.class);
+    @Value("${http.retry.maxAttempts:1}")
+    private int maxAttempts;
+    @Value("${http.retry.initialDelay:200}")
+    private long initialDelay;
+    @Value("${http.retry.maxDelay:5000}")
+    private long maxDelay;
+    @Value("${http.retry.multiplier:2}")
+    private double multiplier;
+    @Value("${http.circuitBreaker.failureThreshold:5}")
+    private int failureThreshold;
+    @Value("${http.circuitBreaker.openDuration:10000}")
+    private long openDuration;
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+    private final LongAdder retryCount = new LongAdder();
+
+    /**
+     * @return <code>true</code> if a request failing with a transient error is sent again
+     */
+    public boolean isRetryEnabled() {
+        return maxAttempts > 1;
+    }
+
+    /**
+     * Send a request
+     * @param endpoint Endpoint of the request, identifying its circuit breaker
+     * @param request Sends the request, called for each attempt
+     * @param <T> Type of the response
+     * @return A future for the response of the last attempt
+     */
+    public <T> ListenableFuture<T> call(String endpoint, Supplier<ListenableFuture<T>> request) {
+        return call(endpoint, request, null);
+    }
+
+    /**
+     * Send a request, sent again once with a new token when the authentication is rejected
+     * @param endpoint Endpoint of the request, identifying its circuit breaker
+     * @param request Sends the request, called for each attempt
+     * @param reauthentication Retrieves a new token, null if not supported
+     * @param <T> Type of the response
+     * @return A future for the response of the last attempt
+     */
+    public <T> ListenableFuture<T> call(String endpoint, Supplier<ListenableFuture<T>> request, Supplier<? extends ListenableFuture<?>> reauthentication) {
+        return call(endpoint, request, reauthentication, true);
+    }
+
+    /**
+     * Send a request, sent again once with a new token when the authentication is rejected
+     * @param endpoint Endpoint of the request, identifying its circuit breaker
+     * @param request Sends the request, called for each attempt
+     * @param reauthentication Retrieves a new token, null if not supported
+     * @param idempotent <code>false</code> if the request must not be received twice by the endpoint (e.g. a POST
+     *                   creating a resource), it is then only retried when the connection has failed
+     * @param <T> Type of the response
+     * @return A future for the response of the last attempt
+     */
+    public <T> ListenableFuture<T> call(String endpoint, Supplier<ListenableFuture<T>> request,
+                                        Supplier<? extends ListenableFuture<?>> reauthentication, boolean idempotent) {
+        SettableListenableFuture<T> result = new SettableListenableFuture<>();
+        attempt(new Call<>(circuitBreaker(endpoint), request, reauthentication, idempotent, result), 0, false);
+        return result;
+    }
+
+    /**
+     * Get the circuit breaker of an endpoint, created on first use
+     * @param endpoint Endpoint
+     * @return The circuit breaker
+     */
+    public CircuitBreaker circuitBreaker(String endpoint) {
+        return circuitBreakers.computeIfAbsent(endpoint, key -> new CircuitBreaker(key, failureThreshold, openDuration));
+    }
+
+    /**
+     * @return Circuit breakers of the endpoints already called
+     */
+    public Collection<CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableCollection(circuitBreakers.values());
+    }
+
+    /**
+     * @return Number of requests sent again after a transient failure
+     */
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * Stop the thread of the retries once the pending ones are sent, the next retries start a new thread
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Classify a failure
+     * @param ex Failure of a request
+     * @return The kind of failure
+     */
+    public static FailureType classify(Throwable ex) {
+        Throwable cause = ex;
+        while ((cause instanceof ExecutionException || cause instanceof CompletionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof HttpStatusCodeException) {
+            int status = ((HttpStatusCodeException) cause).getRawStatusCode();
+            if (status == 401) {
+                return FailureType.UNAUTHORIZED;
+            }
+            if (status == 408 || status == 429 || status >= 500) {
+                return FailureType.TRANSIENT;
+            }
+            return FailureType.PERMANENT;
+        }
+        if (cause instanceof ResourceAccessException || cause instanceof IOException || cause instanceof TimeoutException
+                || cause instanceof CircuitOpenException) {
+            return FailureType.TRANSIENT;
+        }
+        return FailureType.PERMANENT;
+    }
+
+    /**
+     * @param ex Failure of a request
+     * @return <code>true</code> if the request has not reached the endpoint: the connection has been refused or
+     * has timed out, or the host is unknown
+     */
+    public static boolean isNotSent(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause() != cause ? cause.getCause() : null) {
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Backoff before a new attempt
+     * @param attempt Number of the failed attempt, starting at 0
+     * @return Delay in milliseconds, randomly picked below the exponential backoff
+     */
+    long retryDelay(int attempt) {
+        double backoff = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        return (long) (ThreadLocalRandom.current().nextDouble() * backoff);
+    }
+
+    private <T> void attempt(Call<T> call, int attempt, boolean reauthenticated) {
+        CircuitBreaker circuitBreaker = call.circuitBreaker;
+        if (!circuitBreaker.tryAcquire()) {
+            call.result.setException(new CircuitOpenException(circuitBreaker.getEndpoint()));
+            return;
+        }
+
+        ListenableFuture<T> future;
+        try {
+            future = call.request.get();
+        } catch (RuntimeException e) {
+            SettableListenableFuture<T> failedFuture = new SettableListenableFuture<>();
+            failedFuture.setException(e);
+            future = failedFuture;
+        }
+        future.addCallback(
+                response -> {
+                    circuitBreaker.onSuccess();
+                    call.result.set(response);
+                },
+                ex -> {
+                    switch (classify(ex)) {
+                        case UNAUTHORIZED:
+                            circuitBreaker.onSuccess();
+                            if (reauthenticated || call.reauthentication == null) {
+                                call.result.setException(ex);
+                                return;
+                            }
+                            logger.info("Authentication rejected by {}, sending the request again with a new token", circuitBreaker.getEndpoint());
+                            call.reauthentication.get().addCallback(
+                                    token -> attempt(call, attempt, true),
+                                    e -> {
+                                        logger.error("Unable to retrieve a new token for {}", circuitBreaker.getEndpoint());
+                                        call.result.setException(ex);
+                                    });
+                            return;
+                        case TRANSIENT:
+                            circuitBreaker.onFailure();
+                            // A request which is not idempotent may have been received before the failure
+                            if (attempt + 1 < maxAttempts && circuitBreaker.getState() == CircuitBreaker.State.CLOSED
+                                    && (call.idempotent || isNotSent(ex))) {
+                                long delay = retryDelay(attempt);
+                                logger.warn("Request to {} failed, new attempt in {} ms: {}", circuitBreaker.getEndpoint(), delay, ex.getMessage());
+                                retryCount.increment();
+                                try {
+                                    scheduler().schedule(() -> attempt(call, attempt + 1, reauthenticated), delay, TimeUnit.MILLISECONDS);
+                                    return;
+                                } catch (RuntimeException e) {
+                                    // Shut down meanwhile
+                                }
+                            }
+                            call.result.setException(ex);
+                            return;
+                        default:
+                            // The endpoint is available but has rejected the request
+                            circuitBreaker.onSuccess();
+                            call.result.setException(ex);
+                    }
+                });
+    }
+
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            return currentScheduler;
+        }
+        synchronized (this) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "http-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Kind of failure of a request
+     */
+    public enum FailureType {
+        // The authentication has been rejected
+        UNAUTHORIZED,
+        // The endpoint is not available, the request may succeed later
+        TRANSIENT,
+        // The request has been rejected, sending it again would fail again
+        PERMANENT
+    }
+
+    private static class Call<T> {
+
+        private final CircuitBreaker circuitBreaker;
+        private final Supplier<ListenableFuture<T>> request;
+        private final Supplier<? extends ListenableFuture<?>> reauthentication;
+        private final boolean idempotent;
+        private final SettableListenableFuture<T> result;
+
+        Call(CircuitBreaker circuitBreaker, Supplier<ListenableFuture<T>> request,
+             Supplier<? extends ListenableFuture<?>> reauthentication, boolean idempotent, SettableListenableFuture<T> result) {
+            this.circuitBreaker = circuitBreaker;
+            this.request = request;
+            this.reauthentication = reauthentication;
+            this.idempotent = idempotent;
+            this.result = result;
+        }
+    }
+}
@@ -29,11 +29,18 @@ import org.apache.http.concurrent.FutureCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @EnableScheduling
 @Service
@@ -48,12 +55,135 @@ public class Agent {
     private NgsiManager ngsiManager;
     private OpenLpwaNgsiConverter converter;
     private AgentConnectionLostCallback connectionLostCallback;
-    private boolean reconnecting = false;
+    private final AgentLifecycle lifecycle = new AgentLifecycle();
+    @Value("${agent.reconnect.initialDelay:1000}")
+    private long reconnectInitialDelay;
+    @Value("${agent.reconnect.maxDelay:60000}")
+    private long reconnectMaxDelay;
+    @Value("${agent.reconnect.multiplier:2}")
+    private double reconnectMultiplier;
+    @Value("${agent.reconnect.maxAttempts:0}")
+    private int reconnectMaxAttempts;
+    @Value("${agent.workers:0}")
+    private int workerCount;
+    @Value("${agent.workerQueueCapacity:1000}")
+    private int workerQueueCapacity;
+    private volatile StripedExecutor messageExecutor;
+    @Value("${agent.stopTimeout:5000}")
+    private long stopTimeout;
+    @Value("${agent.deduplication.window:0}")
+    private long deduplicationWindow;
+    @Value("${agent.deduplication.maxEntries:100000}")
+    private int deduplicationMaxEntries;
+    private volatile DuplicateMessageFilter duplicateFilter;
+    @Value("${agent.spool.directory:}")
+    private String spoolDirectory;
+    @Value("${agent.spool.segmentSize:4194304}")
+    private int spoolSegmentSize;
+    @Value("${agent.spool.replayRate:50}")
+    private double spoolReplayRate;
+    @Value("${agent.spool.retryDelay:5000}")
+    private long spoolRetryDelay;
+    private volatile UpdateSpool updateSpool;
+    private volatile DeviceUpdateSequencer updateSequencer;
+    @Value("${agent.changeDetection.maxDevices:0}")
+    private int changeDetectionMaxDevices;
+    @Value("${agent.changeDetection.heartbeat:3600000}")
+    private long changeDetectionHeartbeat;
+    @Value("${agent.changeDetection.deadband:0}")
+    private double changeDetectionDeadband;
+    @Value("${agent.changeDetection.deadbands:}")
+    private String changeDetectionDeadbands;
+    private volatile ChangeDetectionCache changeDetectionCache;
+    @Value("${agent.converter.threads:0}")
+    private int converterThreads;
+    @Value("${agent.converter.queueCapacity:100}")
+    private int converterQueueCapacity;
+    @Value("${agent.converter.timeout:1000}")
+    private long converterTimeout;
+    @Value("${agent.converter.quarantine.latencyThreshold:500}")
+    private long quarantineLatencyThreshold;
+    @Value("${agent.converter.quarantine.failureRateThreshold:0.5}")
+    private double quarantineFailureRateThreshold;
+    @Value("${agent.converter.quarantine.duration:60000}")
+    private long quarantineDuration;
+    private volatile IsolatedConverter isolatedConverter;
+    @Value("${agent.decodingCache.maxEntries:0}")
+    private int decodingCacheMaxEntries;
+    private volatile DecodingCache decodingCache;
+    private DeadLetterSink deadLetterSink;
 
     public void setConnectionLostCallback(AgentConnectionLostCallback connectionLostCallback) {
         this.connectionLostCallback = connectionLostCallback;
     }
 
+    /**
+     * Set the sink of the messages which could not be converted, they are logged by default
+     * (only used when the converter is isolated, must be set before the agent is started)
+     *
+     * @param deadLetterSink Dead-letter sink
+     */
+    public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+        this.deadLetterSink = deadLetterSink;
+    }
+
+    public AgentState getState() {
+        return lifecycle.getState();
+    }
+
+    /**
+     * @return Duration of the last recovery after a connection loss in milliseconds, -1 if none
+     */
+    public long getLastRecoveryTime() {
+        return lifecycle.getLastRecoveryTime();
+    }
+
+    public long getReconnectionAttempts() {
+        return lifecycle.getReconnectionAttempts();
+    }
+
+    /**
+     * @return Filter of the redelivered messages, null if disabled or before the agent is started
+     */
+    public DuplicateMessageFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @return Spool of the updates not sent to the context broker, null if disabled or before the agent is started
+     */
+    public UpdateSpool getUpdateSpool() {
+        return updateSpool;
+    }
+
+    /**
+     * @return Sequencer of the updates of each device, null if the updates are not spooled
+     */
+    public DeviceUpdateSequencer getUpdateSequencer() {
+        return updateSequencer;
+    }
+
+    /**
+     * @return Cache of the last values sent, null if disabled or before the agent is started
+     */
+    public ChangeDetectionCache getChangeDetectionCache() {
+        return changeDetectionCache;
+    }
+
+    /**
+     * @return Converter running on its own threads, null if disabled or before the agent is started
+     */
+    public IsolatedConverter getIsolatedConverter() {
+        return isolatedConverter;
+    }
+
+    /**
+     * @return Cache of the decoded payloads, null if disabled or before the agent is started
+     */
+    public DecodingCache getDecodingCache() {
+        return decodingCache;
+    }
+
     /**
      * Start the IoT agent
      *
@@ -63,16 +193,88 @@ public class Agent {
      */
     public void start(OpenLpwaNgsiConverter converter, AgentSuccessCallback successCallback, AgentFailureCallback failureCallback) {
         logger.info("Starting the agent");
-        if (converter != null) {
-            this.converter = converter;
-        } else {
+        if (converter == null) {
             launchFailureCallback(failureCallback, new AgentException("Custom OpenLpwaNgsiConverter is missing."));
             return;
         }
 
+        if (!lifecycle.transition(AgentState.STOPPED, AgentState.CONNECTING)) {
+            launchFailureCallback(failureCallback, new AgentException("Agent is already started."));
+            return;
+        }
+
         // Initialization
+        // Wraps the converter given to this start, not the one of a previous start
+        shutdownIsolatedConverter();
+        if (converterThreads > 0) {
+            isolatedConverter = new IsolatedConverter(converter, converterThreads, converterQueueCapacity, converterTimeout,
+                    quarantineLatencyThreshold, quarantineFailureRateThreshold, quarantineDuration, deadLetterSink);
+            this.converter = isolatedConverter;
+        } else {
+            this.converter = converter;
+        }
+        lifecycle.setReconnectionPolicy(reconnectInitialDelay, reconnectMaxDelay, reconnectMultiplier, reconnectMaxAttempts);
+        if (messageExecutor == null && workerCount > 0) {
+            messageExecutor = new StripedExecutor("iotagent-worker", workerCount, workerQueueCapacity);
+        }
+        if (duplicateFilter == null && deduplicationWindow > 0) {
+            duplicateFilter = new DuplicateMessageFilter(deduplicationWindow, deduplicationMaxEntries);
+        }
+        if (changeDetectionCache == null && changeDetectionMaxDevices > 0) {
+            changeDetectionCache = new ChangeDetectionCache(changeDetectionMaxDevices, changeDetectionHeartbeat,
+                    ChangeDetectionCache.parseDeadbands(changeDetectionDeadbands), changeDetectionDeadband);
+        }
+        if (updateSpool == null && spoolDirectory != null && !spoolDirectory.isEmpty()) {
+            UpdateSpool spool = new UpdateSpool(Paths.get(spoolDirectory), spoolSegmentSize, spoolReplayRate, spoolRetryDelay,
+                    // The fan-out brokers have received the update already
+                    mqttClientCallback::replayDeviceAttributes);
+            try {
+                spool.open();
+            } catch (IOException e) {
+                lifecycle.transition(AgentState.CONNECTING, AgentState.STOPPED);
+                String errorMsg = "Unable to open the update spool";
+                logger.error(errorMsg, e);
+                launchFailureCallback(failureCallback, new AgentException(errorMsg, e));
+                return;
+            }
+            updateSpool = spool;
+        }
+        if (updateSpool == null && openLpwaMqttProvider.isManualAcks()) {
+            logger.warn("Messages acknowledged manually without spool: the messages whose update fails are lost");
+        }
+        if (updateSequencer == null && updateSpool != null) {
+            // A failed update is spooled once the more recent updates of the device are sent otherwise
+            updateSequencer = new DeviceUpdateSequencer(mqttClientCallback::sendOrSpool);
+        }
+        if (decodingCache == null && decodingCacheMaxEntries > 0) {
+            decodingCache = new DecodingCache(decodingCacheMaxEntries);
+        } else if (decodingCache != null) {
+            // The converter may have changed since the previous start
+            decodingCache.clear();
+        }
         openLpwaMqttProvider.setClientCallback(mqttClientCallback);
 
+        connectAndSubscribe(
+                () -> {
+                    lifecycle.transition(AgentState.CONNECTING, AgentState.CONNECTED);
+                    launchSuccessCallback(successCallback);
+                },
+                ex -> {
+                    releaseStartResources();
+                    lifecycle.transition(AgentState.CONNECTING, AgentState.STOPPED);
+                    if (failureCallback != null) {
+                        failureCallback.onFailure(ex);
+                    }
+                });
+    }
+
+    /**
+     * Connect to the Mqtt broker and subscribe to the Mqtt topic
+     *
+     * @param successCallback Callback called when the agent is subscribed
+     * @param failureCallback Callback called with an AgentException when an error occurs
+     */
+    void connectAndSubscribe(AgentSuccessCallback successCallback, AgentFailureCallback failureCallback) {
         // Connect to the Mqtt broker
         logger.info("Connecting to the Mqtt broker");
         openLpwaMqttProvider.connect(
@@ -106,10 +308,12 @@ public class Agent {
      * @param failureCallback Callback called when an error occurs
      */
     public void stop(AgentSuccessCallback successCallback, AgentFailureCallback failureCallback) {
+        lifecycle.stop();
         // Disconnect from the Mqtt broker
         openLpwaMqttProvider.disconnect(
                 disconnectedClientId -> {
                     logger.info("Disconnected from the Mqtt broker");
+                    releaseResources();
                     launchSuccessCallback(successCallback);
                 },
                 ex -> {
@@ -120,6 +324,69 @@ public class Agent {
         );
     }
 
+    /**
+     * Release the resources created by the start of an agent which is not stopped by {@link #stop}: a failed start
+     * or the reconnection given up
+     */
+    void releaseStartResources() {
+        releaseResources();
+        // Created again by the next start
+        duplicateFilter = null;
+        changeDetectionCache = null;
+        updateSequencer = null;
+    }
+
+    /**
+     * Stop the threads of the agent and close the spool, once the messages already received are processed
+     */
+    private void releaseResources() {
+        shutdownMessageExecutor();
+        // The pending updates are sent before the threads are stopped
+        ngsiManager.shutdown();
+        closeUpdateSpool();
+        shutdownIsolatedConverter();
+    }
+
+    /**
+     * Stop the workers processing the incoming messages, waiting for the already queued messages to be processed
+     */
+    private void shutdownMessageExecutor() {
+        StripedExecutor executor = messageExecutor;
+        if (executor != null) {
+            messageExecutor = null;
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Queued messages still processed after {} ms, their updates may be lost", stopTimeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop the replay of the spooled updates, they are replayed on the next start
+     */
+    private void closeUpdateSpool() {
+        UpdateSpool spool = updateSpool;
+        if (spool != null) {
+            updateSpool = null;
+            spool.close();
+        }
+    }
+
+    /**
+     * Stop the threads of the isolated converter, once the queued messages are processed
+     */
+    private void shutdownIsolatedConverter() {
+        IsolatedConverter isolated = isolatedConverter;
+        if (isolated != null) {
+            isolatedConverter = null;
+            isolated.shutdown();
+        }
+    }
+
     /**
      * Launch a AgentSuccessCallback if not null
      *
@@ -143,88 +410,305 @@ public class Agent {
         }
     }
 
+    /**
+     * Sends an update request through the NgsiManager
+     */
+    @FunctionalInterface
+    private interface UpdateRequest {
+        ListenableFuture<UpdateContextResponse> send() throws AgentException;
+    }
+
     /**
      * Manages Mqtt events
      */
     @Component
     class AgentMqttProviderCallback implements OpenLpwaMqttProviderCallback {
 
-        private int reconnectingDelay = 5000;
-
         @Override
         public void connectionLost(Throwable throwable) {
-            // Prevent a new connectionLost event while the reconnection
-            if (!reconnecting) {
-                logger.warn("Connection lost with the MQTT broker, waiting before reconnect", throwable);
-                try {
-                    Thread.sleep(reconnectingDelay);
-                } catch (InterruptedException e) {
+            logger.warn("Connection lost with the MQTT broker", throwable);
+            // Ignored while a reconnection is already in progress or when the agent is stopped
+            lifecycle.connectionLost(Agent.this::connectAndSubscribe, () -> {
+                releaseStartResources();
+                if (connectionLostCallback != null) {
+                    connectionLostCallback.onConnectionLost();
                 }
-                logger.debug("Reconnecting to the MQTT broker");
-                reconnecting = true;
-                start(converter,
-                        () -> {
-                            logger.info("Reconnected to the MQTT broker");
-                            reconnecting = false;
-                        },
-                        ex -> {
-                            logger.error("Reconnection failed to the MQTT broker", ex);
-                            reconnecting = false;
-                            if (connectionLostCallback != null) {
-                                connectionLostCallback.onConnectionLost();
-                            }
-                        }
-                );
-            }
+            });
         }
 
         @Override
         public void newMessageArrived(String deviceID, DeviceIncomingMessage incomingMessage) {
+            newMessageArrived(deviceID, incomingMessage, () -> { });
+        }
+
+        @Override
+        public void newMessageArrived(String deviceID, DeviceIncomingMessage incomingMessage, Runnable acknowledgement) {
+            DuplicateMessageFilter filter = duplicateFilter;
+            if (filter != null && filter.isDuplicate(incomingMessage)) {
+                logger.debug("Duplicated message ignored (ID:{}, message:{})", deviceID, incomingMessage);
+                acknowledgement.run();
+                return;
+            }
+
+            StripedExecutor executor = messageExecutor;
+            if (executor == null) {
+                processMessage(deviceID, incomingMessage, acknowledgement, filter);
+                return;
+            }
+
+            // Messages of a device are processed by the same worker to keep their order
+            try {
+                executor.execute(deviceID, () -> processMessage(deviceID, incomingMessage, acknowledgement, filter));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while queuing incoming message (ID:{}, message:{})", deviceID, incomingMessage);
+                forget(filter, incomingMessage);
+                // Releases the unacknowledged message slot, otherwise the consumption would stop once they are all leaked
+                acknowledgement.run();
+            } catch (RejectedExecutionException e) {
+                logger.error("Agent is stopped, message is not treated. (ID:{}, message:{})", deviceID, incomingMessage);
+                forget(filter, incomingMessage);
+                acknowledgement.run();
+            }
+        }
+
+        /**
+         * Decode an incoming message and update the device attributes in the context broker
+         *
+         * @param deviceID        Device identifier
+         * @param incomingMessage Incoming message
+         * @param acknowledgement Acknowledgement run once the context broker update is completed
+         * @param filter          Filter of the redelivered messages which has remembered the message, null if none
+         */
+        private void processMessage(String deviceID, DeviceIncomingMessage incomingMessage, Runnable acknowledgement,
+                                    DuplicateMessageFilter filter) {
+            ListenableFuture<UpdateContextResponse> future = null;
+            boolean sent = false;
+            try {
+                future = sendMessage(deviceID, incomingMessage);
+                sent = true;
+            } finally {
+                if (!sent) {
+                    forget(filter, incomingMessage);
+                }
+                if (future == null) {
+                    acknowledgement.run();
+                }
+            }
+            if (future == null) {
+                // Nothing to send: no payload, no attribute decoded or values unchanged
+                return;
+            }
+            // A failed update is acknowledged too, it is only kept when stored in the spool
+            future.addCallback(updateContextResponse -> acknowledgement.run(), ex -> {
+                forget(filter, incomingMessage);
+                acknowledgement.run();
+            });
+        }
+
+        /**
+         * Forget a message which has not been processed, so that its redelivery is not dropped as a duplicate
+         */
+        private void forget(DuplicateMessageFilter filter, DeviceIncomingMessage incomingMessage) {
+            if (filter != null) {
+                filter.forget(incomingMessage);
+            }
+        }
+
+        /**
+         * Decode an incoming message and send an update request to the context broker
+         *
+         * @param deviceID        Device identifier
+         * @param incomingMessage Incoming message
+         * @return A future completed once the update is sent (including a retry), null if nothing has been sent
+         */
+        private ListenableFuture<UpdateContextResponse> sendMessage(String deviceID, DeviceIncomingMessage incomingMessage) {
             String payload = null;
             if (incomingMessage != null && incomingMessage.getValue() != null && incomingMessage.getData() != null) {
                 payload = incomingMessage.getData();
             }
             if (payload == null) {
                 logger.error("Payload not found, can't treat message (ID:{})", deviceID);
-                return;
+                return null;
+            }
+
+            if (converter == null) {
+                logger.error("Converter is not defined, message is not treated. (ID:{}, message:{})", deviceID, incomingMessage);
+                return null;
             }
 
-            if (converter != null) {
-                List<ContextAttribute> decodedAttributes = converter.decodeData(deviceID, payload, incomingMessage);
+            // The tenant of a device may depend on its model, known from its messages only
+            ngsiManager.routeDevice(deviceID, incomingMessage.getModel());
+            DecodingCache memo = decodingCache;
+            // Decoded from hexadecimal once for the cache key and the binary converters
+            UplinkPayload uplinkPayload = new UplinkPayload(payload);
+            // The converter registry selects the converter from the stream and the tags too
+            OpenLpwaNgsiConverter selectedConverter = memo != null ? selectConverter(converter, incomingMessage) : null;
+            List<ContextAttribute> decodedAttributes = selectedConverter != null
+                    ? memo.decode(selectedConverter, incomingMessage.getModel(), uplinkPayload.bytes(),
+                            () -> UplinkPayload.decode(converter, deviceID, uplinkPayload, incomingMessage))
+                    : UplinkPayload.decode(converter, deviceID, uplinkPayload, incomingMessage);
+            if (decodedAttributes == null) {
+                logger.debug("No attribute decoded, no update sent (ID:{})", deviceID);
+                return null;
+            }
+            ChangeDetectionCache cache = changeDetectionCache;
+            List<ContextAttribute> attributes = cache != null ? cache.filter(deviceID, decodedAttributes) : decodedAttributes;
+            if (cache != null && attributes != null && attributes.isEmpty()) {
+                logger.debug("Values unchanged, no update sent (ID:{})", deviceID);
+                return null;
+            }
+            UpdateSpool spool = updateSpool;
+            if (spool == null || spool.isEmpty()) {
                 try {
-                    ngsiManager.updateDeviceAttributes(deviceID, decodedAttributes).addCallback(
-                            updateContextResponse -> {
-                                if (updateContextResponse == null) {
-                                    logger.error("No response received.");
-                                } else {
-                                    logger.info("Message sent successfully: reponse{}", updateContextResponse.getErrorCode().toString());
-                                }
-                            },
-                            ex -> {
-                                logger.error("An error occurred while sending the message: error{}", ex.getMessage());
-                                if (ex.getMessage().contains("401")) {
-                                    logger.info("Try sending the message again with an updated token.");
-                                    try {
-                                        ngsiManager.setAccessTokenSync();
-                                        ngsiManager.updateDeviceAttributes(deviceID, decodedAttributes).addCallback(
-                                                updateContextResponse -> {
-                                                    if (updateContextResponse == null) {
-                                                        logger.error("No response received.");
-                                                    } else {
-                                                        logger.info("Message sent successfully: reponse{}", updateContextResponse.getErrorCode().toString());
-                                                    }
-                                                },
-                                                e -> logger.error("An error occurred while sending the message: error{}", e.getMessage()));
-                                    } catch (AgentException e) {
-                                        logger.error("Unable to treat incoming message (ID:{}, message:{})", deviceID, incomingMessage, e);
-                                    }
-                                }
-                            });
-                } catch (AgentException e) {
-                    logger.error("Unable to treat incoming message (ID:{}, message:{})", deviceID, incomingMessage, e);
+                    // Slows down the consumption of the messages while the context broker is overloaded
+                    ngsiManager.awaitCapacity(deviceID);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+            }
+            DeviceUpdateSequencer sequencer = updateSequencer;
+            return sequencer != null ? sequencer.submit(deviceID, attributes) : sendOrSpool(deviceID, attributes);
+        }
+
+        /**
+         * Select the converter decoding a message, through the isolated converter and the converter registry
+         *
+         * @param converter       Converter of the agent
+         * @param incomingMessage Incoming message
+         * @return The converter decoding the message, null if none
+         */
+        private OpenLpwaNgsiConverter selectConverter(OpenLpwaNgsiConverter converter, DeviceIncomingMessage incomingMessage) {
+            if (converter instanceof IsolatedConverter) {
+                converter = ((IsolatedConverter) converter).getConverter();
+            }
+            return converter instanceof ConverterRegistry ? ((ConverterRegistry) converter).converterFor(incomingMessage) : converter;
+        }
+
+        /**
+         * Send an update request to the context broker, or store it in the spool when older updates are waiting
+         * for the context broker or when it has failed
+         *
+         * @param deviceID   Device identifier
+         * @param attributes Attributes to update
+         * @return A future completed once the update is sent or stored in the spool
+         */
+        ListenableFuture<UpdateContextResponse> sendOrSpool(String deviceID, List<ContextAttribute> attributes) {
+            UpdateSpool spool = updateSpool;
+            if (spool != null && !spool.isEmpty()) {
+                // Older updates are waiting for the context broker, this one is sent after them
+                ngsiManager.fanOutDeviceAttributes(deviceID, attributes);
+                return spoolUpdate(spool, deviceID, attributes, null);
+            }
+
+            ListenableFuture<UpdateContextResponse> future = updateDeviceAttributes(deviceID, attributes);
+            if (spool == null) {
+                return future;
+            }
+
+            SettableListenableFuture<UpdateContextResponse> result = new SettableListenableFuture<>();
+            future.addCallback(
+                    result::set,
+                    ex -> {
+                        if (!UpdateSpool.isRecoverable(ex)) {
+                            result.setException(ex);
+                            return;
+                        }
+                        spoolUpdate(spool, deviceID, attributes, ex).addCallback(result::set, result::setException);
+                    });
+            return result;
+        }
+
+        /**
+         * Store an update in the spool
+         *
+         * @param spool      Update spool
+         * @param deviceID   Device identifier
+         * @param attributes Attributes to update
+         * @param failure    Failure of the update, null if it has not been sent
+         * @return A future completed with a null response once the update is stored
+         */
+        private ListenableFuture<UpdateContextResponse> spoolUpdate(UpdateSpool spool, String deviceID, List<ContextAttribute> attributes, Throwable failure) {
+            SettableListenableFuture<UpdateContextResponse> result = new SettableListenableFuture<>();
+            try {
+                // The tenant found from the model of the device is only known until a restart
+                spool.append(deviceID, ngsiManager.tenantRouter().tenant(deviceID).getName(), attributes);
+                logger.debug("Update stored in the spool (ID:{})", deviceID);
+                result.set(null);
+            } catch (IOException e) {
+                logger.error("Unable to store the update in the spool, update is lost (ID:{})", deviceID, e);
+                result.setException(failure != null ? failure : e);
+            }
+            return result;
+        }
+
+        /**
+         * Send an update request to the context broker and a copy to the fan-out brokers, the retries are handled by
+         * the NgsiManager
+         *
+         * @param deviceID   Device identifier
+         * @param attributes Attributes to update
+         * @return A future completed once the update is sent
+         */
+        ListenableFuture<UpdateContextResponse> updateDeviceAttributes(String deviceID, List<ContextAttribute> attributes) {
+            return sendUpdate(deviceID, () -> ngsiManager.updateDeviceAttributes(deviceID, attributes));
+        }
+
+        /**
+         * Send again a stored update to the tenant it was sent to, the fan-out brokers have received it already
+         *
+         * @param deviceID   Device identifier
+         * @param tenant     Name of the tenant of the update, null for the current tenant of the device
+         * @param attributes Attributes to update
+         * @return A future completed once the update is sent
+         */
+        ListenableFuture<UpdateContextResponse> replayDeviceAttributes(String deviceID, String tenant, List<ContextAttribute> attributes) {
+            return sendUpdate(deviceID, () -> ngsiManager.updateRemoteDeviceAttributes(deviceID, tenant, attributes));
+        }
+
+        private ListenableFuture<UpdateContextResponse> sendUpdate(String deviceID, UpdateRequest request) {
+            SettableListenableFuture<UpdateContextResponse> result = new SettableListenableFuture<>();
+            try {
+                ListenableFuture<UpdateContextResponse> future = request.send();
+                future.addCallback(
+                        updateContextResponse -> {
+                            logResponse(updateContextResponse);
+                            result.set(updateContextResponse);
+                        },
+                        ex -> {
+                            logger.error("An error occurred while sending the message: error{}", ex.getMessage());
+                            forgetSentValues(deviceID);
+                            result.setException(ex);
+                        });
+            } catch (AgentException e) {
+                logger.error("Unable to send the update (ID:{})", deviceID, e);
+                forgetSentValues(deviceID);
+                result.setException(e);
+            }
+            return result;
+        }
+
+        /**
+         * The values of a failed update may not be known by the context broker, all the attributes of the device
+         * are sent on its next update
+         *
+         * @param deviceID Device identifier
+         */
+        private void forgetSentValues(String deviceID) {
+            ChangeDetectionCache cache = changeDetectionCache;
+            if (cache != null) {
+                cache.invalidate(deviceID);
+            }
+        }
+
+        private void logResponse(UpdateContextResponse updateContextResponse) {
+            if (updateContextResponse == null) {
+                logger.error("No response received.");
+            } else if (updateContextResponse.getErrorCode() != null) {
+                // Orion only sets the error code when the whole request has failed
+                logger.error("Update rejected by the context broker: error{}", updateContextResponse.getErrorCode());
             } else {
-                logger.error("Converter is not defined, message is not treated. (ID:{}, message:{})", deviceID, incomingMessage);
+                logger.debug("Message sent successfully");
             }
         }
     }
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Manages the state of the agent and its reconnections to the Mqtt broker.
+ * Reconnection attempts are scheduled with an exponential backoff and a full jitter,
+ * so that agent instances losing the broker at the same time do not reconnect together.
+ */
+public class AgentLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgentLifecycle.class);
+    private final AtomicReference<AgentState> state = new AtomicReference<>(AgentState.STOPPED);
+    private ScheduledExecutorService scheduler;
+    private long initialDelay = 1000;
+    private long maxDelay = 60000;
+    private double multiplier = 2;
+    private int maxAttempts = 0;
+    private volatile ScheduledFuture<?> pendingReconnection;
+    private volatile long connectionLostTime;
+    private volatile long lastRecoveryTime = -1;
+    private final LongAdder reconnectionAttempts = new LongAdder();
+
+    public AgentLifecycle() {
+    }
+
+    public AgentLifecycle(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Configure the reconnection backoff
+     *
+     * @param initialDelay Maximum delay before the first attempt in milliseconds
+     * @param maxDelay     Maximum delay between two attempts in milliseconds
+     * @param multiplier   Growth factor of the maximum delay after each failed attempt
+     * @param maxAttempts  Number of attempts before giving up, 0 for no limit
+     */
+    public void setReconnectionPolicy(long initialDelay, long maxDelay, double multiplier, int maxAttempts) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public AgentState getState() {
+        return state.get();
+    }
+
+    /**
+     * @return Duration of the last recovery (from the connection loss to the reconnection) in milliseconds, -1 if none
+     */
+    public long getLastRecoveryTime() {
+        return lastRecoveryTime;
+    }
+
+    public long getReconnectionAttempts() {
+        return reconnectionAttempts.sum();
+    }
+
+    /**
+     * Change the state if it is the expected one
+     *
+     * @param expected Expected current state
+     * @param next     New state
+     * @return <code>true</code> if the state has been changed
+     */
+    public boolean transition(AgentState expected, AgentState next) {
+        return state.compareAndSet(expected, next);
+    }
+
+    /**
+     * Stop the agent, a pending reconnection is cancelled
+     */
+    public void stop() {
+        state.set(AgentState.STOPPED);
+        ScheduledFuture<?> reconnection = pendingReconnection;
+        if (reconnection != null) {
+            reconnection.cancel(false);
+        }
+    }
+
+    /**
+     * Schedule the reconnection of a connected agent, ignored if the agent is not connected
+     *
+     * @param reconnector Connection to the Mqtt broker
+     * @param giveUp      Called when the maximum number of attempts is reached
+     */
+    public void connectionLost(Reconnector reconnector, Runnable giveUp) {
+        if (!state.compareAndSet(AgentState.CONNECTED, AgentState.RECONNECTING)) {
+            return;
+        }
+        connectionLostTime = System.nanoTime();
+        scheduleReconnection(reconnector, giveUp, 0);
+    }
+
+    /**
+     * Compute the delay before an attempt: a random value between 0 and the exponential backoff
+     *
+     * @param attempt Index of the attempt, starting at 0
+     * @return Delay in milliseconds
+     */
+    long reconnectionDelay(int attempt) {
+        double backoff = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        return (long) (ThreadLocalRandom.current().nextDouble() * backoff);
+    }
+
+    private void scheduleReconnection(Reconnector reconnector, Runnable giveUp, int attempt) {
+        long delay = reconnectionDelay(attempt);
+        logger.info("Reconnecting to the MQTT broker in {} ms (attempt {})", delay, attempt + 1);
+        pendingReconnection = scheduler().schedule(() -> reconnect(reconnector, giveUp, attempt), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(Reconnector reconnector, Runnable giveUp, int attempt) {
+        if (state.get() != AgentState.RECONNECTING) {
+            return;
+        }
+        reconnectionAttempts.increment();
+        reconnector.reconnect(
+                () -> {
+                    if (state.compareAndSet(AgentState.RECONNECTING, AgentState.CONNECTED)) {
+                        lastRecoveryTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectionLostTime);
+                        logger.info("Reconnected to the MQTT broker after {} ms", lastRecoveryTime);
+                    }
+                },
+                ex -> {
+                    logger.error("Reconnection failed to the MQTT broker", ex);
+                    if (state.get() != AgentState.RECONNECTING) {
+                        return;
+                    }
+                    if (maxAttempts > 0 && attempt + 1 >= maxAttempts) {
+                        if (state.compareAndSet(AgentState.RECONNECTING, AgentState.STOPPED)) {
+                            logger.error("Giving up reconnecting to the MQTT broker after {} attempts", attempt + 1);
+                            giveUp.run();
+                        }
+                    } else {
+                        scheduleReconnection(reconnector, giveUp, attempt + 1);
+                    }
+                });
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "iotagent-reconnect");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Connection to the Mqtt broker launched for each reconnection attempt
+     */
+    @FunctionalInterface
+    public interface Reconnector {
+        void reconnect(AgentSuccessCallback successCallback, AgentFailureCallback failureCallback);
+    }
+}
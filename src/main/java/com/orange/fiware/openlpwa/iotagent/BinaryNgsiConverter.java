@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Interface to convert Open LPWA payloads into Ngsi, reading and writing the payload bytes directly.
+ * The hexadecimal payload of a message is decoded once by the agent, the hexadecimal methods of
+ * {@link OpenLpwaNgsiConverter} are implemented on top of the binary ones.
+ */
+public interface BinaryNgsiConverter extends OpenLpwaNgsiConverter {
+
+    /**
+     * Decode an uplink payload
+     * @param deviceID DeviceID
+     * @param payload Read-only payload bytes, only valid during the call: copy the bytes to keep them
+     * @param incomingMessage Message of the payload, null if unknown
+     * @return List of <code>ContextAttribute</code> to update Ngsi context broker
+     */
+    List<ContextAttribute> decodeData(String deviceID, ByteBuffer payload, DeviceIncomingMessage incomingMessage);
+
+    /**
+     * Encode a downlink command
+     * @param deviceID DeviceID
+     * @param commandName Command name
+     * @param attribute Attribute which represents the command in Ngsi context broker
+     * @return Payload bytes to send, between the position and the limit of the buffer
+     */
+    ByteBuffer encodeCommand(String deviceID, String commandName, ContextAttribute attribute);
+
+    @Override
+    default List<ContextAttribute> decodeData(String deviceID, String data) {
+        return decodeData(deviceID, data, null);
+    }
+
+    @Override
+    default List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+        return decodeData(deviceID, HexCodec.decodeTransient(data), incomingMessage);
+    }
+
+    @Override
+    default String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        ByteBuffer payload = encodeCommand(deviceID, commandName, attribute);
+        return payload != null ? HexCodec.encode(payload) : null;
+    }
+
+    /**
+     * Get the binary view of a converter
+     * @param converter Converter
+     * @return The converter itself if it is binary, otherwise an adapter converting the payloads to hexadecimal
+     */
+    static BinaryNgsiConverter of(OpenLpwaNgsiConverter converter) {
+        if (converter instanceof BinaryNgsiConverter) {
+            return (BinaryNgsiConverter) converter;
+        }
+        return new HexNgsiConverterAdapter(converter);
+    }
+}
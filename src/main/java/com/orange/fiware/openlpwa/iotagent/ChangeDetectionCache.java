@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the last attribute values sent for each device, to send only the attributes which have changed.
+ * A numeric value is considered unchanged while it stays within the deadband of its attribute around the last
+ * value sent. Other values are compared for equality, the metadata are ignored.
+ * All the attributes of a device are sent again once the heartbeat period has elapsed since they have been sent.
+ * The cache is split in segments, each one evicting its least recently updated devices when it is full: an evicted
+ * device gets all its attributes sent on its next update.
+ */
+public class ChangeDetectionCache {
+
+    private final static int segmentCount = 16;
+    private final Segment[] segments = new Segment[segmentCount];
+    private final long heartbeat;
+    private final Map<String, Double> deadbands;
+    private final double defaultDeadband;
+    private final LongSupplier clock;
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder suppressedCount = new LongAdder();
+    private final LongAdder heartbeatCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param maxDevices Maximum number of devices remembered
+     * @param heartbeat Period after which all the attributes of a device are sent, in milliseconds (0 to disable)
+     * @param deadbands Deadband of the numeric attributes, by attribute name
+     * @param defaultDeadband Deadband of the numeric attributes without a specific one (0 for any change)
+     */
+    public ChangeDetectionCache(int maxDevices, long heartbeat, Map<String, Double> deadbands, double defaultDeadband) {
+        this(maxDevices, heartbeat, deadbands, defaultDeadband, System::currentTimeMillis);
+    }
+
+    ChangeDetectionCache(int maxDevices, long heartbeat, Map<String, Double> deadbands, double defaultDeadband, LongSupplier clock) {
+        if (maxDevices < segmentCount) {
+            throw new IllegalArgumentException("maxDevices is too small");
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maxDevices + segmentCount - 1) / segmentCount);
+        }
+        this.heartbeat = heartbeat;
+        this.deadbands = new HashMap<>(deadbands);
+        this.defaultDeadband = defaultDeadband;
+        this.clock = clock;
+    }
+
+    /**
+     * Parse a list of deadbands
+     * @param deadbands Deadbands formatted as <code>name:deadband</code>, separated by commas
+     * @return Deadband by attribute name
+     */
+    public static Map<String, Double> parseDeadbands(String deadbands) {
+        if (deadbands == null || deadbands.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Double> parsedDeadbands = new HashMap<>();
+        for (String deadband : deadbands.split(",")) {
+            int separator = deadband.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid deadband: " + deadband);
+            }
+            parsedDeadbands.put(deadband.substring(0, separator).trim(), Double.parseDouble(deadband.substring(separator + 1).trim()));
+        }
+        return parsedDeadbands;
+    }
+
+    /**
+     * Select the attributes to send and remember their values
+     * @param deviceID Device identifier
+     * @param attributes Attributes decoded from a message
+     * @return The attributes which have changed since they have been sent, all of them on a heartbeat
+     */
+    public List<ContextAttribute> filter(String deviceID, List<ContextAttribute> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return attributes;
+        }
+        long now = clock.getAsLong();
+        Segment segment = segment(deviceID);
+        synchronized (segment) {
+            DeviceValues deviceValues = segment.get(deviceID);
+            if (deviceValues == null || (heartbeat > 0 && now - deviceValues.refreshTime >= heartbeat)) {
+                if (deviceValues != null) {
+                    heartbeatCount.increment();
+                }
+                segment.put(deviceID, new DeviceValues(attributes, now));
+                forwardedCount.add(attributes.size());
+                return attributes;
+            }
+
+            List<ContextAttribute> changedAttributes = new ArrayList<>(attributes.size());
+            for (ContextAttribute attribute : attributes) {
+                if (deviceValues.update(attribute, this)) {
+                    changedAttributes.add(attribute);
+                }
+            }
+            forwardedCount.add(changedAttributes.size());
+            suppressedCount.add(attributes.size() - changedAttributes.size());
+            return changedAttributes;
+        }
+    }
+
+    /**
+     * Forget the values of a device, for instance when they could not be sent
+     * @param deviceID Device identifier
+     */
+    public void invalidate(String deviceID) {
+        Segment segment = segment(deviceID);
+        synchronized (segment) {
+            segment.remove(deviceID);
+        }
+    }
+
+    /**
+     * @return Number of devices remembered
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of attributes sent
+     */
+    public long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    /**
+     * @return Number of unchanged attributes not sent
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    /**
+     * @return Number of times all the attributes of a device have been sent because of the heartbeat
+     */
+    public long getHeartbeatCount() {
+        return heartbeatCount.sum();
+    }
+
+    /**
+     * @return Number of devices evicted to bound the memory
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private Segment segment(String deviceID) {
+        int hash = deviceID.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segmentCount - 1)];
+    }
+
+    private boolean isUnchanged(String name, Object previousValue, Object value) {
+        if (previousValue instanceof Double) {
+            Double number = toNumber(value);
+            if (number != null) {
+                double deadband = deadbands.getOrDefault(name, defaultDeadband);
+                return Math.abs(number - (Double) previousValue) <= deadband;
+            }
+        }
+        return Objects.equals(previousValue, value);
+    }
+
+    /**
+     * @param value Attribute value
+     * @return The value as a number, null if it is not numeric
+     */
+    private static Double toNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            String text = (String) value;
+            if (!text.isEmpty() && text.length() < 32) {
+                try {
+                    return Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object compactValue(Object value) {
+        Double number = toNumber(value);
+        return number != null ? number : value;
+    }
+
+    /**
+     * Last values sent for a device, stored in arrays indexed like the attributes
+     */
+    private static class DeviceValues {
+
+        private String[] names;
+        private Object[] values;
+        private final long refreshTime;
+
+        DeviceValues(List<ContextAttribute> attributes, long refreshTime) {
+            names = new String[attributes.size()];
+            values = new Object[attributes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = attributes.get(i).getName();
+                values[i] = compactValue(attributes.get(i).getValue());
+            }
+            this.refreshTime = refreshTime;
+        }
+
+        /**
+         * Remember the value of an attribute if it has changed
+         * @return <code>true</code> if the attribute has to be sent
+         */
+        boolean update(ContextAttribute attribute, ChangeDetectionCache cache) {
+            String name = attribute.getName();
+            for (int i = 0; i < names.length; i++) {
+                if (Objects.equals(names[i], name)) {
+                    if (cache.isUnchanged(name, values[i], attribute.getValue())) {
+                        return false;
+                    }
+                    values[i] = compactValue(attribute.getValue());
+                    return true;
+                }
+            }
+            names = Arrays.copyOf(names, names.length + 1);
+            values = Arrays.copyOf(values, values.length + 1);
+            names[names.length - 1] = name;
+            values[values.length - 1] = compactValue(attribute.getValue());
+            return true;
+        }
+    }
+
+    /**
+     * Devices of a segment, in least recently updated order
+     */
+    private class Segment extends LinkedHashMap<String, DeviceValues> {
+
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeviceValues> eldest) {
+            if (size() > capacity) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
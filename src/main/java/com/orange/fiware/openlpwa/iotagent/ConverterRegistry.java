@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Converter dispatching each message to the converter registered for its device model, otherwise for the longest
+ * prefix of its stream, otherwise for one of its tags, otherwise to the default converter.
+ * The converters are held in an immutable snapshot read without locking. Registering or removing a converter
+ * publishes a new snapshot, so converters are replaced while the agent is running, the messages being decoded keep
+ * the converter they have started with.
+ * The keys of the last message of a device matching a registered converter are remembered, so that its commands,
+ * which only give the device identifier, are encoded by the converter of its messages.
+ */
+public class ConverterRegistry implements OpenLpwaNgsiConverter {
+
+    private static Logger logger = LoggerFactory.getLogger(ConverterRegistry.class);
+    // Maximum number of streams whose prefix match is remembered by a snapshot
+    private final static int maxResolvedStreams = 100000;
+    // Marks the streams matching no prefix
+    private final static OpenLpwaNgsiConverter NO_CONVERTER = new OpenLpwaNgsiConverter() {
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data) {
+            return null;
+        }
+
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+            return null;
+        }
+
+        @Override
+        public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+            return null;
+        }
+    };
+    private volatile Snapshot snapshot = new Snapshot(new EnumMap<>(KeyType.class), null);
+    private final LongAdder unmatchedCount = new LongAdder();
+    // Model, stream and tags of the last message of the devices not handled by the default converter
+    private final Map<String, DeviceIncomingMessage> deviceKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Kind of key selecting a converter
+     */
+    public enum KeyType {
+        MODEL, STREAM_PREFIX, TAG
+    }
+
+    /**
+     * Constructor
+     *
+     * @param defaultConverter Converter of the messages matching no key, null if none
+     */
+    public ConverterRegistry(OpenLpwaNgsiConverter defaultConverter) {
+        setDefaultConverter(defaultConverter);
+    }
+
+    /**
+     * Register a converter, replacing the converter of the same key if any
+     *
+     * @param keyType   Kind of key
+     * @param key       Device model, stream prefix or tag
+     * @param converter Converter of the messages matching the key
+     * @return The replaced converter, null if none
+     */
+    public synchronized OpenLpwaNgsiConverter register(KeyType keyType, String key, OpenLpwaNgsiConverter converter) {
+        if (key == null || converter == null) {
+            throw new IllegalArgumentException("Converter and key are mandatory");
+        }
+        Map<KeyType, Map<String, OpenLpwaNgsiConverter>> converters = snapshot.copyConverters();
+        OpenLpwaNgsiConverter previous = converters.get(keyType).put(key, converter);
+        snapshot = new Snapshot(converters, snapshot.defaultConverter);
+        logger.info("Converter {} for {} {}", previous != null ? "replaced" : "registered", keyType, key);
+        return previous;
+    }
+
+    /**
+     * Remove a converter
+     *
+     * @param keyType Kind of key
+     * @param key     Device model, stream prefix or tag
+     * @return The removed converter, null if none
+     */
+    public synchronized OpenLpwaNgsiConverter unregister(KeyType keyType, String key) {
+        Map<KeyType, Map<String, OpenLpwaNgsiConverter>> converters = snapshot.copyConverters();
+        OpenLpwaNgsiConverter previous = converters.get(keyType).remove(key);
+        if (previous != null) {
+            snapshot = new Snapshot(converters, snapshot.defaultConverter);
+            logger.info("Converter removed for {} {}", keyType, key);
+        }
+        return previous;
+    }
+
+    /**
+     * Set the converter of the messages matching no key, also encoding the commands
+     *
+     * @param defaultConverter Default converter, null if none
+     */
+    public synchronized void setDefaultConverter(OpenLpwaNgsiConverter defaultConverter) {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.copyConverters(), defaultConverter);
+    }
+
+    /**
+     * Select the converter of a message
+     *
+     * @param incomingMessage Incoming message, null if unknown
+     * @return The converter of the message, null if none
+     */
+    public OpenLpwaNgsiConverter converterFor(DeviceIncomingMessage incomingMessage) {
+        return snapshot.converterFor(incomingMessage);
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data) {
+        return decodeData(deviceID, data, null);
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+        return decodeData(deviceID, new UplinkPayload(data), incomingMessage);
+    }
+
+    /**
+     * Decode a message with its converter, the payload bytes being given to a binary converter
+     */
+    List<ContextAttribute> decodeData(String deviceID, UplinkPayload payload, DeviceIncomingMessage incomingMessage) {
+        Snapshot current = snapshot;
+        OpenLpwaNgsiConverter converter = current.converterFor(incomingMessage);
+        rememberKeys(deviceID, incomingMessage, converter != null && converter != current.defaultConverter);
+        if (converter == null) {
+            unmatchedCount.increment();
+            logger.warn("No converter for the message, message is not treated (ID:{}, model:{})", deviceID,
+                    incomingMessage != null ? incomingMessage.getModel() : null);
+            return null;
+        }
+        return UplinkPayload.decode(converter, deviceID, payload, incomingMessage);
+    }
+
+    /**
+     * Encode a downlink command with the converter of the last message of the device, otherwise with the default
+     * converter
+     */
+    @Override
+    public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        DeviceIncomingMessage keys = deviceID != null && !deviceKeys.isEmpty() ? deviceKeys.get(deviceID) : null;
+        OpenLpwaNgsiConverter converter = snapshot.converterFor(keys);
+        if (converter == null) {
+            logger.error("No converter to encode the command {}, command is not sent (ID:{})", commandName, deviceID);
+            return null;
+        }
+        return converter.encodeDataForCommand(deviceID, commandName, attribute);
+    }
+
+    /**
+     * Remember the keys of the last message of a device, only when it is not handled by the default converter
+     *
+     * @param deviceID        Device identifier
+     * @param incomingMessage Message of the device
+     * @param registered      <code>true</code> if the message matches a registered converter
+     */
+    private void rememberKeys(String deviceID, DeviceIncomingMessage incomingMessage, boolean registered) {
+        if (deviceID == null) {
+            return;
+        }
+        if (!registered || incomingMessage == null) {
+            if (!deviceKeys.isEmpty()) {
+                deviceKeys.remove(deviceID);
+            }
+            return;
+        }
+        DeviceIncomingMessage keys = deviceKeys.get(deviceID);
+        if (keys == null || !Objects.equals(keys.getModel(), incomingMessage.getModel())
+                || !Objects.equals(keys.getStreamId(), incomingMessage.getStreamId())
+                || !Objects.equals(keys.getTags(), incomingMessage.getTags())) {
+            keys = new DeviceIncomingMessage();
+            keys.setModel(incomingMessage.getModel());
+            keys.setStreamId(incomingMessage.getStreamId());
+            keys.setTags(incomingMessage.getTags());
+            deviceKeys.put(deviceID, keys);
+        }
+    }
+
+    /**
+     * @param keyType Kind of key
+     * @return The registered converters by key
+     */
+    public Map<String, OpenLpwaNgsiConverter> getConverters(KeyType keyType) {
+        return snapshot.converters.get(keyType);
+    }
+
+    /**
+     * @return Number of messages matching no converter
+     */
+    public long getUnmatchedCount() {
+        return unmatchedCount.sum();
+    }
+
+    /**
+     * Immutable converters, with the prefixes sorted from the longest one
+     */
+    private static class Snapshot {
+
+        private final Map<KeyType, Map<String, OpenLpwaNgsiConverter>> converters;
+        private final Map<String, OpenLpwaNgsiConverter> modelConverters;
+        private final Map<String, OpenLpwaNgsiConverter> tagConverters;
+        private final String[] prefixes;
+        private final OpenLpwaNgsiConverter[] prefixConverters;
+        private final OpenLpwaNgsiConverter defaultConverter;
+        // Converter of each stream matching a prefix, the converter itself if none
+        private final Map<String, OpenLpwaNgsiConverter> resolvedStreams = new ConcurrentHashMap<>();
+
+        Snapshot(Map<KeyType, Map<String, OpenLpwaNgsiConverter>> converters, OpenLpwaNgsiConverter defaultConverter) {
+            Map<KeyType, Map<String, OpenLpwaNgsiConverter>> immutableConverters = new EnumMap<>(KeyType.class);
+            for (KeyType keyType : KeyType.values()) {
+                Map<String, OpenLpwaNgsiConverter> keyConverters = converters.get(keyType);
+                immutableConverters.put(keyType, keyConverters != null ? Collections.unmodifiableMap(new HashMap<>(keyConverters)) : Collections.emptyMap());
+            }
+            this.converters = Collections.unmodifiableMap(immutableConverters);
+            this.modelConverters = immutableConverters.get(KeyType.MODEL);
+            this.tagConverters = immutableConverters.get(KeyType.TAG);
+            List<String> sortedPrefixes = new ArrayList<>(immutableConverters.get(KeyType.STREAM_PREFIX).keySet());
+            sortedPrefixes.sort(Comparator.comparingInt(String::length).reversed());
+            this.prefixes = sortedPrefixes.toArray(new String[0]);
+            this.prefixConverters = new OpenLpwaNgsiConverter[prefixes.length];
+            for (int i = 0; i < prefixes.length; i++) {
+                prefixConverters[i] = immutableConverters.get(KeyType.STREAM_PREFIX).get(prefixes[i]);
+            }
+            this.defaultConverter = defaultConverter;
+        }
+
+        Map<KeyType, Map<String, OpenLpwaNgsiConverter>> copyConverters() {
+            Map<KeyType, Map<String, OpenLpwaNgsiConverter>> copy = new EnumMap<>(KeyType.class);
+            for (KeyType keyType : KeyType.values()) {
+                copy.put(keyType, new HashMap<>(converters.get(keyType)));
+            }
+            return copy;
+        }
+
+        OpenLpwaNgsiConverter converterFor(DeviceIncomingMessage incomingMessage) {
+            if (incomingMessage == null) {
+                return defaultConverter;
+            }
+            OpenLpwaNgsiConverter converter;
+            String model = incomingMessage.getModel();
+            if (model != null && !modelConverters.isEmpty()) {
+                converter = modelConverters.get(model);
+                if (converter != null) {
+                    return converter;
+                }
+            }
+            String streamId = incomingMessage.getStreamId();
+            if (streamId != null && prefixes.length > 0) {
+                converter = prefixConverter(streamId);
+                if (converter != null) {
+                    return converter;
+                }
+            }
+            List<String> tags = incomingMessage.getTags();
+            if (tags != null && !tagConverters.isEmpty()) {
+                for (String tag : tags) {
+                    converter = tagConverters.get(tag);
+                    if (converter != null) {
+                        return converter;
+                    }
+                }
+            }
+            return defaultConverter;
+        }
+
+        private OpenLpwaNgsiConverter prefixConverter(String streamId) {
+            OpenLpwaNgsiConverter converter = resolvedStreams.get(streamId);
+            if (converter == null) {
+                converter = NO_CONVERTER;
+                for (int i = 0; i < prefixes.length; i++) {
+                    if (streamId.startsWith(prefixes[i])) {
+                        converter = prefixConverters[i];
+                        break;
+                    }
+                }
+                if (resolvedStreams.size() < maxResolvedStreams) {
+                    resolvedStreams.put(streamId, converter);
+                }
+            }
+            return converter != NO_CONVERTER ? converter : null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+
+/**
+ * Receives the messages which could not be converted
+ */
+@FunctionalInterface
+public interface DeadLetterSink {
+
+    /**
+     * Take a message which could not be converted
+     * @param deviceID Device identifier
+     * @param data Hexadecimal payload
+     * @param incomingMessage Incoming message
+     * @param reason Reason why the message has not been converted
+     */
+    void accept(String deviceID, String data, DeviceIncomingMessage incomingMessage, String reason);
+}
@@ -0,0 +1,412 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the attributes decoded from the recent payloads of each converter and device model, so the byte-identical
+ * payloads (status frames, unchanged readings) are not decoded again. Only valid for the converters whose result only
+ * depends on the model and the payload bytes, not on the device or the other fields of the message. The payloads
+ * without model are not cached.
+ * The decoded lists are shared by all the messages with the same payload and can't be modified.
+ * The cache is split in segments following the W-TinyLFU policy: a new payload enters a small LRU window, and when
+ * it leaves the window it replaces the least recently used payload of the main area only if it has been seen more
+ * often recently. The frequencies are estimated by a count-min sketch whose counters are halved periodically, so a
+ * burst of one-off payloads can't flush the frequent ones.
+ */
+public class DecodingCache {
+
+    private final static int segmentCount = 16;
+    // Larger payloads are decoded without being cached
+    private final static int maxPayloadSize = 256;
+    private final Segment[] segments = new Segment[segmentCount];
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder bypassCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param maxEntries Maximum number of payloads remembered
+     */
+    public DecodingCache(int maxEntries) {
+        if (maxEntries < segmentCount) {
+            throw new IllegalArgumentException("maxEntries is too small");
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maxEntries + segmentCount - 1) / segmentCount);
+        }
+    }
+
+    /**
+     * Get the attributes decoded from a payload, decoding it if it is not remembered
+     * @param model Device model, null if unknown
+     * @param data Hexadecimal payload
+     * @param decoder Decoder of the payload, always the same converter, called outside of any lock
+     * @return The decoded attributes, null if the decoder returns null (the result is not remembered then)
+     */
+    public List<ContextAttribute> decode(String model, String data, Supplier<List<ContextAttribute>> decoder) {
+        return decode(model != null ? PayloadKey.of(null, model, data) : null, decoder);
+    }
+
+    /**
+     * Get the attributes decoded from a payload already decoded from hexadecimal, decoding it if it is not remembered
+     * @param converter Converter selected for the message, the payloads of each converter being remembered apart
+     * @param model Device model, null if unknown
+     * @param payload Payload bytes, kept by the cache: they must not be modified afterwards
+     * @param decoder Decoder of the payload with the converter, called outside of any lock
+     * @return The decoded attributes, null if the decoder returns null (the result is not remembered then)
+     */
+    public List<ContextAttribute> decode(OpenLpwaNgsiConverter converter, String model, byte[] payload,
+                                         Supplier<List<ContextAttribute>> decoder) {
+        return decode(model != null && payload != null && payload.length <= maxPayloadSize
+                ? new PayloadKey(converter, model, payload) : null, decoder);
+    }
+
+    private List<ContextAttribute> decode(PayloadKey key, Supplier<List<ContextAttribute>> decoder) {
+        if (key == null) {
+            bypassCount.increment();
+            return decoder.get();
+        }
+        Segment segment = segments[key.hash & (segmentCount - 1)];
+        List<ContextAttribute> attributes;
+        synchronized (segment) {
+            attributes = segment.get(key);
+        }
+        if (attributes != null) {
+            hitCount.increment();
+            return attributes;
+        }
+
+        missCount.increment();
+        List<ContextAttribute> decodedAttributes = decoder.get();
+        if (decodedAttributes == null) {
+            return null;
+        }
+        attributes = Collections.unmodifiableList(Arrays.asList(decodedAttributes.toArray(new ContextAttribute[0])));
+        synchronized (segment) {
+            segment.put(key, attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Forget all the payloads, for instance when the converter changes
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return Number of payloads remembered
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of payloads found in the cache, not decoded
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return Number of payloads not found in the cache, decoded
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return Number of payloads evicted or not admitted in the main area to bound the memory
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return Number of payloads decoded without the cache because they are too large, not hexadecimal or without model
+     */
+    public long getBypassCount() {
+        return bypassCount.sum();
+    }
+
+    /**
+     * Converter, model and payload bytes
+     */
+    private static class PayloadKey {
+
+        private final OpenLpwaNgsiConverter converter;
+        private final String model;
+        private final byte[] payload;
+        private final int hash;
+
+        private PayloadKey(OpenLpwaNgsiConverter converter, String model, byte[] payload) {
+            this.converter = converter;
+            this.model = model;
+            this.payload = payload;
+            this.hash = hash(System.identityHashCode(converter), model, payload);
+        }
+
+        /**
+         * 64 bits FNV-1a hash of the converter, the model and the payload, followed by the MurmurHash3 finalizer.
+         * The payloads of a device often differ by a few bytes only, which collide with {@link Arrays#hashCode(byte[])}.
+         */
+        private static int hash(int converterHash, String model, byte[] payload) {
+            long hash = (0xcbf29ce484222325L ^ converterHash) * 0x100000001b3L;
+            if (model != null) {
+                for (int i = 0; i < model.length(); i++) {
+                    hash ^= model.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+            }
+            for (byte b : payload) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return (int) hash;
+        }
+
+        /**
+         * @return The key of the payload, null if it can't be cached
+         */
+        static PayloadKey of(OpenLpwaNgsiConverter converter, String model, String data) {
+            if (data == null || data.length() > 2 * maxPayloadSize) {
+                return null;
+            }
+            byte[] payload = new byte[data.length() / 2];
+            try {
+                HexCodec.decode(data, payload, 0);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            return new PayloadKey(converter, model, payload);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PayloadKey)) {
+                return false;
+            }
+            PayloadKey other = (PayloadKey) o;
+            return hash == other.hash && converter == other.converter && Objects.equals(model, other.model)
+                    && Arrays.equals(payload, other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * W-TinyLFU segment: a LRU admission window followed by a segmented LRU main area, where the payloads hit again
+     * are protected from the new ones
+     */
+    private class Segment {
+
+        private final int windowCapacity;
+        private final int protectedCapacity;
+        private final int mainCapacity;
+        private final LinkedHashMap<PayloadKey, List<ContextAttribute>> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<PayloadKey, List<ContextAttribute>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<PayloadKey, List<ContextAttribute>> protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+
+        Segment(int capacity) {
+            windowCapacity = Math.max(1, capacity / 100);
+            mainCapacity = capacity - windowCapacity;
+            protectedCapacity = mainCapacity * 4 / 5;
+            sketch = new FrequencySketch(capacity);
+        }
+
+        List<ContextAttribute> get(PayloadKey key) {
+            sketch.increment(key.hash);
+            List<ContextAttribute> attributes = window.get(key);
+            if (attributes != null) {
+                return attributes;
+            }
+            attributes = protectedArea.get(key);
+            if (attributes != null) {
+                return attributes;
+            }
+            attributes = probation.remove(key);
+            if (attributes != null) {
+                // Hit again in the main area: protected, its least recently used protected payload goes back to probation
+                protectedArea.put(key, attributes);
+                if (protectedArea.size() > protectedCapacity) {
+                    Iterator<Map.Entry<PayloadKey, List<ContextAttribute>>> eldest = protectedArea.entrySet().iterator();
+                    Map.Entry<PayloadKey, List<ContextAttribute>> demoted = eldest.next();
+                    eldest.remove();
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            }
+            return attributes;
+        }
+
+        void put(PayloadKey key, List<ContextAttribute> attributes) {
+            if (window.containsKey(key) || probation.containsKey(key) || protectedArea.containsKey(key)) {
+                // Decoded concurrently by another thread
+                return;
+            }
+            window.put(key, attributes);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+            Iterator<Map.Entry<PayloadKey, List<ContextAttribute>>> eldest = window.entrySet().iterator();
+            Map.Entry<PayloadKey, List<ContextAttribute>> candidateEntry = eldest.next();
+            eldest.remove();
+            PayloadKey candidate = candidateEntry.getKey();
+            List<ContextAttribute> candidateAttributes = candidateEntry.getValue();
+            if (mainCapacity == 0) {
+                evictionCount.increment();
+                return;
+            }
+            if (probation.size() + protectedArea.size() < mainCapacity) {
+                probation.put(candidate, candidateAttributes);
+                return;
+            }
+
+            LinkedHashMap<PayloadKey, List<ContextAttribute>> victimArea = probation.isEmpty() ? protectedArea : probation;
+            Iterator<PayloadKey> victims = victimArea.keySet().iterator();
+            PayloadKey victim = victims.next();
+            evictionCount.increment();
+            if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                victims.remove();
+                probation.put(candidate, candidateAttributes);
+            }
+        }
+
+        int size() {
+            return window.size() + probation.size() + protectedArea.size();
+        }
+
+        void clear() {
+            window.clear();
+            probation.clear();
+            protectedArea.clear();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, 16 counters per long. The counters are halved once the number of
+     * increments reaches ten times the size of the table, so the old frequencies fade away.
+     */
+    static class FrequencySketch {
+
+        private final static long[] seeds = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final static long resetMask = 0x7777777777777777L;
+        private final long[] table;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+            table = new long[size];
+            sampleSize = 10 * size;
+        }
+
+        /**
+         * @return Estimated number of recent occurrences of the hash, at most 15
+         */
+        int frequency(int hash) {
+            hash = rehash(hash);
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            hash = rehash(hash);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & resetMask;
+            }
+            additions /= 2;
+        }
+
+        /**
+         * The low bits of the hash select the segment, they are the same for all the payloads of the sketch
+         */
+        private static int rehash(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + seeds[i]) * seeds[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+    }
+}
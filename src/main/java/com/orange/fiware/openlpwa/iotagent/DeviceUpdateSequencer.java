@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.ngsi.AttributeCoalescer.DeviceUpdateSender;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the updates of each device one after the other.
+ * An update is sent once the previous update of the device is completed, including its retries and its storage in
+ * the spool, so that a failed update is never sent again after a more recent one. The updates submitted meanwhile
+ * are merged, only the latest value of each attribute being kept, and sent together.
+ */
+public class DeviceUpdateSequencer {
+
+    private final DeviceUpdateSender sender;
+    private final ConcurrentMap<String, DeviceState> devices = new ConcurrentHashMap<>();
+    private final LongAdder heldBackCount = new LongAdder();
+    private final LongAdder replacedValueCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param sender Sends the update of a device, the returned future being completed once the update is handled
+     */
+    public DeviceUpdateSequencer(DeviceUpdateSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Submit an update of a device
+     * @param deviceID Device identifier
+     * @param attributes Attributes to update
+     * @return A future for the response of the request containing the attributes
+     */
+    public ListenableFuture<UpdateContextResponse> submit(String deviceID, List<ContextAttribute> attributes) {
+        while (true) {
+            DeviceState state = devices.computeIfAbsent(deviceID, DeviceState::new);
+            synchronized (state) {
+                if (state.forgotten) {
+                    // Removed meanwhile
+                    continue;
+                }
+                if (state.inFlight) {
+                    heldBackCount.increment();
+                    for (ContextAttribute attribute : attributes) {
+                        if (state.pendingAttributes.put(attribute.getName(), attribute) != null) {
+                            replacedValueCount.increment();
+                        }
+                    }
+                    SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+                    state.pendingFutures.add(future);
+                    return future;
+                }
+                state.inFlight = true;
+            }
+            return send(state, attributes);
+        }
+    }
+
+    /**
+     * @return Number of devices with an update in flight
+     */
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    /**
+     * @return Number of updates which have waited for the previous update of their device
+     */
+    public long getHeldBackCount() {
+        return heldBackCount.sum();
+    }
+
+    /**
+     * @return Number of attribute values replaced by a more recent one before being sent
+     */
+    public long getReplacedValueCount() {
+        return replacedValueCount.sum();
+    }
+
+    private ListenableFuture<UpdateContextResponse> send(DeviceState state, List<ContextAttribute> attributes) {
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            future = sender.send(state.deviceID, attributes);
+        } catch (RuntimeException e) {
+            completed(state);
+            throw e;
+        }
+        future.addCallback(response -> completed(state), ex -> completed(state));
+        return future;
+    }
+
+    /**
+     * End of the update in flight of a device: the updates submitted meanwhile are sent
+     * @param state State of the device
+     */
+    private void completed(DeviceState state) {
+        List<ContextAttribute> attributes;
+        List<SettableListenableFuture<UpdateContextResponse>> futures;
+        synchronized (state) {
+            if (state.pendingAttributes.isEmpty()) {
+                state.forgotten = true;
+                devices.remove(state.deviceID, state);
+                return;
+            }
+            attributes = new ArrayList<>(state.pendingAttributes.values());
+            futures = state.pendingFutures;
+            state.pendingAttributes.clear();
+            state.pendingFutures = new ArrayList<>();
+        }
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            future = send(state, attributes);
+        } catch (RuntimeException e) {
+            futures.forEach(pendingFuture -> pendingFuture.setException(e));
+            return;
+        }
+        future.addCallback(
+                response -> futures.forEach(pendingFuture -> pendingFuture.set(response)),
+                ex -> futures.forEach(pendingFuture -> pendingFuture.setException(ex)));
+    }
+
+    private static class DeviceState {
+
+        private final String deviceID;
+        // Latest value of each attribute submitted while an update is in flight
+        private final Map<String, ContextAttribute> pendingAttributes = new LinkedHashMap<>();
+        private List<SettableListenableFuture<UpdateContextResponse>> pendingFutures = new ArrayList<>();
+        private boolean inFlight = false;
+        private boolean forgotten = false;
+
+        DeviceState(String deviceID) {
+            this.deviceID = deviceID;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Detects the messages redelivered by the Mqtt broker.
+ * A message is identified by a 64 bits fingerprint of its source, its timestamp and its payload. The fingerprints
+ * are stored in a ring of buckets, each one covering a slice of the time window: when a slice ends, the oldest
+ * bucket is cleared and reused. A bucket holding its maximum number of fingerprints is rotated early, so the memory
+ * stays bounded when the message rate exceeds the configured window.
+ */
+public class DuplicateMessageFilter {
+
+    private final static int bucketCount = 4;
+    private final List<Set<Long>> buckets = new ArrayList<>(bucketCount);
+    private final long bucketDuration;
+    private final int maxEntriesPerBucket;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder earlyRotations = new LongAdder();
+    private volatile long currentEpoch;
+    // Number of early rotations, added to the epoch given by the clock
+    private volatile long epochShift = 0;
+
+    /**
+     * Constructor
+     * @param window Duration during which a message is remembered, in milliseconds
+     * @param maxEntries Maximum number of remembered messages
+     */
+    public DuplicateMessageFilter(long window, int maxEntries) {
+        this(window, maxEntries, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor
+     * @param window Duration during which a message is remembered, in milliseconds
+     * @param maxEntries Maximum number of remembered messages
+     * @param clock Current time in milliseconds
+     */
+    DuplicateMessageFilter(long window, int maxEntries, LongSupplier clock) {
+        if (window < bucketCount) {
+            throw new IllegalArgumentException("window is too small");
+        }
+        if (maxEntries < bucketCount) {
+            throw new IllegalArgumentException("maxEntries is too small");
+        }
+        this.bucketDuration = window / bucketCount;
+        this.maxEntriesPerBucket = maxEntries / bucketCount;
+        this.clock = clock;
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+        currentEpoch = clock.getAsLong() / bucketDuration;
+    }
+
+    /**
+     * Check if a message has already been received and remember it.
+     * A message whose processing then fails must be forgotten, so that its redelivery is processed.
+     * @param incomingMessage Incoming message
+     * @return <code>true</code> if the message has already been received during the window
+     */
+    public boolean isDuplicate(DeviceIncomingMessage incomingMessage) {
+        Long fingerprint = fingerprint(incomingMessage);
+        if (fingerprint == null) {
+            return false;
+        }
+
+        long epoch = rotate();
+        Set<Long> current = buckets.get((int) (epoch % bucketCount));
+        for (Set<Long> bucket : buckets) {
+            if (bucket != current && bucket.contains(fingerprint)) {
+                hits.increment();
+                return true;
+            }
+        }
+        if (!current.add(fingerprint)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        if (current.size() >= maxEntriesPerBucket) {
+            rotateEarly(epoch);
+        }
+        return false;
+    }
+
+    /**
+     * Forget a message whose processing has failed, its redelivery is not considered as a duplicate
+     * @param incomingMessage Incoming message
+     */
+    public void forget(DeviceIncomingMessage incomingMessage) {
+        Long fingerprint = fingerprint(incomingMessage);
+        if (fingerprint != null) {
+            for (Set<Long> bucket : buckets) {
+                bucket.remove(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * @return Number of duplicated messages
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of messages received for the first time
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Ratio of duplicated messages, 0 if no message has been checked
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return Number of buckets rotated before the end of their time slice because they were full
+     */
+    public long getEarlyRotationCount() {
+        return earlyRotations.sum();
+    }
+
+    /**
+     * @return Number of remembered messages
+     */
+    public int size() {
+        int size = 0;
+        for (Set<Long> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * Clear the buckets whose time slice has ended
+     * @return Current epoch
+     */
+    private long rotate() {
+        long epoch = currentEpoch;
+        if (clock.getAsLong() / bucketDuration + epochShift <= epoch) {
+            return epoch;
+        }
+        synchronized (this) {
+            long newEpoch = clock.getAsLong() / bucketDuration + epochShift;
+            advance(newEpoch);
+            return currentEpoch;
+        }
+    }
+
+    private synchronized void rotateEarly(long epoch) {
+        // Another thread may have already rotated
+        if (currentEpoch == epoch) {
+            epochShift++;
+            earlyRotations.increment();
+            advance(epoch + 1);
+        }
+    }
+
+    private void advance(long newEpoch) {
+        long epoch = currentEpoch;
+        if (newEpoch <= epoch) {
+            return;
+        }
+        for (long e = epoch + 1; e <= Math.min(newEpoch, epoch + bucketCount); e++) {
+            buckets.get((int) (e % bucketCount)).clear();
+        }
+        currentEpoch = newEpoch;
+    }
+
+    /**
+     * @return Fingerprint of the message, null if it can't be identified
+     */
+    private static Long fingerprint(DeviceIncomingMessage incomingMessage) {
+        if (incomingMessage == null || incomingMessage.getMetadata() == null || incomingMessage.getMetadata().getSource() == null
+                || incomingMessage.getDate() == null) {
+            // Without a source and a timestamp, two identical payloads may be two different messages
+            return null;
+        }
+        return fingerprint(incomingMessage.getMetadata().getSource(), incomingMessage.getDate().getTime(),
+                incomingMessage.getValue() != null ? incomingMessage.getData() : null);
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the message identity, with a final avalanche step
+     */
+    static long fingerprint(String source, long timestamp, String payload) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, source);
+        for (int i = 0; i < 8; i++) {
+            hash ^= (timestamp >>> (i * 8)) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        if (payload != null) {
+            hash = hash(hash, payload);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Table driven hexadecimal codec of the device payloads.
+ * Decoding reads the characters directly from the string. Encoding writes each byte as a precomputed pair of
+ * characters into an array, copied once by the string constructor.
+ */
+public final class HexCodec {
+
+    private final static byte[] digitValues = new byte[128];
+    // Lower case characters of each byte value, two per byte
+    private final static byte[] bytePairs = new byte[512];
+    private final static int maxTransientSize = 4096;
+    private final static ThreadLocal<byte[]> transientBuffers = ThreadLocal.withInitial(() -> new byte[256]);
+
+    static {
+        for (int i = 0; i < digitValues.length; i++) {
+            digitValues[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            digitValues['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            digitValues['a' + i] = (byte) (10 + i);
+            digitValues['A' + i] = (byte) (10 + i);
+        }
+        byte[] digits = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < 256; i++) {
+            bytePairs[2 * i] = digits[i >>> 4];
+            bytePairs[2 * i + 1] = digits[i & 0xF];
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * Decode a hexadecimal string, lower or upper case
+     *
+     * @param hex Hexadecimal string
+     * @return Read-only buffer of the decoded bytes
+     * @throws IllegalArgumentException when the string is not hexadecimal
+     */
+    public static ByteBuffer decode(CharSequence hex) {
+        byte[] bytes = new byte[decodedLength(hex)];
+        decode(hex, bytes, 0);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Decode a hexadecimal string into an array
+     *
+     * @param hex         Hexadecimal string
+     * @param destination Array receiving the bytes
+     * @param offset      Index of the first byte in the array
+     * @return Number of decoded bytes
+     * @throws IllegalArgumentException when the string is not hexadecimal
+     */
+    public static int decode(CharSequence hex, byte[] destination, int offset) {
+        int length = decodedLength(hex);
+        if (offset < 0 || destination.length - offset < length) {
+            throw new IndexOutOfBoundsException("Destination too small for " + length + " bytes");
+        }
+        for (int i = 0, j = 0; i < length; i++, j += 2) {
+            int high = digit(hex.charAt(j));
+            int low = digit(hex.charAt(j + 1));
+            // An invalid character has a negative value
+            if ((high | low) < 0) {
+                throw new IllegalArgumentException("Invalid hexadecimal character at index " + (high < 0 ? j : j + 1));
+            }
+            destination[offset + i] = (byte) ((high << 4) | low);
+        }
+        return length;
+    }
+
+    /**
+     * Decode a hexadecimal string into a buffer reused by the next calls of the same thread
+     *
+     * @param hex Hexadecimal string
+     * @return Read-only buffer of the decoded bytes, only valid until the next call of the thread
+     * @throws IllegalArgumentException when the string is not hexadecimal
+     */
+    static ByteBuffer decodeTransient(CharSequence hex) {
+        int length = decodedLength(hex);
+        if (length > maxTransientSize) {
+            return decode(hex);
+        }
+        byte[] buffer = transientBuffers.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+            transientBuffers.set(buffer);
+        }
+        decode(hex, buffer, 0);
+        return ByteBuffer.wrap(buffer, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Encode bytes in lower case hexadecimal
+     *
+     * @param bytes Bytes between the position and the limit of the buffer, the position is not changed
+     * @return Hexadecimal string
+     */
+    public static String encode(ByteBuffer bytes) {
+        int position = bytes.position();
+        int length = bytes.remaining();
+        byte[] characters = new byte[2 * length];
+        for (int i = 0; i < length; i++) {
+            int value = bytes.get(position + i) & 0xFF;
+            characters[2 * i] = bytePairs[2 * value];
+            characters[2 * i + 1] = bytePairs[2 * value + 1];
+        }
+        // The string copies the array, stored with one byte per character since the characters are Latin-1
+        return new String(characters, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encode bytes in lower case hexadecimal
+     *
+     * @param bytes  Array of the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return Hexadecimal string
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        return encode(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    private static int decodedLength(CharSequence hex) {
+        if ((hex.length() & 1) != 0) {
+            throw new IllegalArgumentException("Odd number of hexadecimal characters: " + hex.length());
+        }
+        return hex.length() >> 1;
+    }
+
+    private static int digit(char character) {
+        return character < 128 ? digitValues[character] : -1;
+    }
+}
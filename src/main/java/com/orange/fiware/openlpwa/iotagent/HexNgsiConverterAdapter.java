@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Binary view of a converter working on hexadecimal payloads.
+ * The hexadecimal methods are delegated as is, so the payloads received by the agent are never decoded for the
+ * converter: only the binary methods convert the payloads.
+ */
+public class HexNgsiConverterAdapter implements BinaryNgsiConverter {
+
+    private final OpenLpwaNgsiConverter converter;
+
+    /**
+     * Constructor
+     * @param converter Converter working on hexadecimal payloads
+     */
+    public HexNgsiConverterAdapter(OpenLpwaNgsiConverter converter) {
+        this.converter = converter;
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, ByteBuffer payload, DeviceIncomingMessage incomingMessage) {
+        return converter.decodeData(deviceID, HexCodec.encode(payload), incomingMessage);
+    }
+
+    @Override
+    public ByteBuffer encodeCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        String data = converter.encodeDataForCommand(deviceID, commandName, attribute);
+        return data != null ? HexCodec.decode(data) : null;
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data) {
+        return converter.decodeData(deviceID, data);
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+        return converter.decodeData(deviceID, data, incomingMessage);
+    }
+
+    @Override
+    public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        return converter.encodeDataForCommand(deviceID, commandName, attribute);
+    }
+
+    /**
+     * @return Converter working on hexadecimal payloads
+     */
+    public OpenLpwaNgsiConverter getConverter() {
+        return converter;
+    }
+}
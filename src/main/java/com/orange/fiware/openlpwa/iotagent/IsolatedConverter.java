@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a converter on a bounded pool of threads with a deadline for each call, so a slow or failing converter
+ * can't stall the processing of the messages.
+ * The latency and the failures of the last calls are recorded for each device model. A model whose 99th percentile
+ * latency or failure rate exceeds its threshold is quarantined for a while: its messages are not converted anymore
+ * and go to the dead-letter sink, like the messages whose conversion fails or times out, while the other models
+ * keep flowing.
+ * A model is quarantined as well when its timed out calls still hold half of the threads, a converter ignoring the
+ * interruptions would otherwise take all the threads and the calls of all the models would time out in the queue.
+ */
+public class IsolatedConverter implements OpenLpwaNgsiConverter {
+
+    private static Logger logger = LoggerFactory.getLogger(IsolatedConverter.class);
+    private static Logger deadLetterLogger = LoggerFactory.getLogger("com.orange.fiware.openlpwa.deadletter");
+    private final static String unknownModel = "";
+    // Number of calls of a model used to compute its latency and failure rate
+    private final static int windowSize = 200;
+    // Minimum number of calls of a model before it can be quarantined
+    private final static int minSamples = 20;
+    private final OpenLpwaNgsiConverter converter;
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final long timeout;
+    private final long latencyThreshold;
+    private final double failureRateThreshold;
+    private final long quarantineDuration;
+    private final DeadLetterSink deadLetterSink;
+    private final Map<String, ModelStatistics> statistics = new ConcurrentHashMap<>();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param converter Converter to isolate
+     * @param threads Number of threads running the converter
+     * @param queueCapacity Maximum number of calls waiting for a thread, the next calls are rejected
+     * @param timeout Maximum duration of a call, in milliseconds
+     * @param latencyThreshold 99th percentile latency above which a model is quarantined, in milliseconds
+     * @param failureRateThreshold Rate of failed calls (0 to 1) above which a model is quarantined
+     * @param quarantineDuration Duration of a quarantine, in milliseconds
+     * @param deadLetterSink Sink of the messages not converted, null to log them
+     */
+    public IsolatedConverter(OpenLpwaNgsiConverter converter, int threads, int queueCapacity, long timeout, long latencyThreshold,
+                             double failureRateThreshold, long quarantineDuration, DeadLetterSink deadLetterSink) {
+        this.converter = converter;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "iotagent-converter-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.threads = threads;
+        this.timeout = timeout;
+        this.latencyThreshold = latencyThreshold;
+        this.failureRateThreshold = failureRateThreshold;
+        this.quarantineDuration = quarantineDuration;
+        this.deadLetterSink = deadLetterSink != null ? deadLetterSink : IsolatedConverter::logDeadLetter;
+    }
+
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data) {
+        return decodeData(deviceID, data, null);
+    }
+
+    /**
+     * Convert a message on the pool, waiting at most the timeout
+     * @return The attributes decoded, null if the message has gone to the dead-letter sink
+     */
+    @Override
+    public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+        return decodeData(deviceID, new UplinkPayload(data), incomingMessage);
+    }
+
+    /**
+     * Convert a message on the pool, the payload bytes being given to a binary converter
+     * @return The attributes decoded, null if the message has gone to the dead-letter sink
+     */
+    List<ContextAttribute> decodeData(String deviceID, UplinkPayload payload, DeviceIncomingMessage incomingMessage) {
+        String data = payload.hex();
+        String model = incomingMessage != null && incomingMessage.getModel() != null ? incomingMessage.getModel() : unknownModel;
+        ModelStatistics modelStatistics = statistics.computeIfAbsent(model, ModelStatistics::new);
+        if (modelStatistics.isQuarantined(System.currentTimeMillis())) {
+            deadLetter(modelStatistics, deviceID, data, incomingMessage, "model quarantined");
+            return null;
+        }
+
+        Conversion conversion = new Conversion(modelStatistics, deviceID, payload, incomingMessage);
+        Future<Conversion> future;
+        try {
+            future = executor.submit(conversion);
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                // Messages still processed while the agent stops
+                return UplinkPayload.decode(converter, deviceID, payload, incomingMessage);
+            }
+            rejectedCount.increment();
+            deadLetter(modelStatistics, deviceID, data, incomingMessage, "too many conversions in progress");
+            return null;
+        }
+        try {
+            future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            modelStatistics.timeoutCount.increment();
+            // A call still queued is not recorded: a backlog alone doesn't quarantine the model
+            long start = conversion.start;
+            if (start != 0) {
+                record(modelStatistics, System.nanoTime() - start, true);
+                int busyThreads = modelStatistics.busyThreads.get();
+                if (busyThreads >= Math.max(1, threads / 2) && !modelStatistics.isQuarantined(System.currentTimeMillis())) {
+                    quarantine(modelStatistics, busyThreads + " of " + threads + " threads held by timed out calls");
+                }
+            }
+            deadLetter(modelStatistics, deviceID, data, incomingMessage, "conversion timed out after " + timeout + " ms");
+            return null;
+        } catch (ExecutionException e) {
+            conversion.failure = e.getCause();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        record(modelStatistics, conversion.latency, conversion.failure != null);
+        if (conversion.failure != null) {
+            logger.debug("Conversion failed (ID:{}, model:{})", deviceID, model, conversion.failure);
+            deadLetter(modelStatistics, deviceID, data, incomingMessage, "conversion failed: " + conversion.failure);
+            return null;
+        }
+        return conversion.attributes;
+    }
+
+    @Override
+    public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+        return converter.encodeDataForCommand(deviceID, commandName, attribute);
+    }
+
+    /**
+     * @return Isolated converter
+     */
+    public OpenLpwaNgsiConverter getConverter() {
+        return converter;
+    }
+
+    /**
+     * Stop the threads once the queued calls are completed, the next calls run on the calling thread
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param model Device model, empty for the messages without model
+     * @return Statistics of the model, null if no message of the model has been converted
+     */
+    public ModelStatistics getStatistics(String model) {
+        return statistics.get(model);
+    }
+
+    /**
+     * @return Statistics of all the models by model
+     */
+    public Map<String, ModelStatistics> getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * @return Number of calls rejected because all the threads were busy and the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    private void record(ModelStatistics modelStatistics, long latency, boolean failed) {
+        String reason = modelStatistics.record(latency, failed, latencyThreshold, failureRateThreshold);
+        if (reason != null) {
+            quarantine(modelStatistics, reason);
+        }
+    }
+
+    private void quarantine(ModelStatistics modelStatistics, String reason) {
+        modelStatistics.quarantinedUntil = System.currentTimeMillis() + quarantineDuration;
+        modelStatistics.quarantineCount.increment();
+        logger.warn("Converter of the model '{}' quarantined during {} ms: {}", modelStatistics.model, quarantineDuration, reason);
+    }
+
+    private void deadLetter(ModelStatistics modelStatistics, String deviceID, String data, DeviceIncomingMessage incomingMessage, String reason) {
+        modelStatistics.deadLetterCount.increment();
+        try {
+            deadLetterSink.accept(deviceID, data, incomingMessage, reason);
+        } catch (RuntimeException e) {
+            logger.error("Unable to send a message to the dead-letter sink (ID:{})", deviceID, e);
+        }
+    }
+
+    private static void logDeadLetter(String deviceID, String data, DeviceIncomingMessage incomingMessage, String reason) {
+        deadLetterLogger.warn("Message not converted, {} (ID:{}, data:{}, message:{})", reason, deviceID, data, incomingMessage);
+    }
+
+    /**
+     * Call of the converter, run on the pool
+     */
+    private class Conversion implements Callable<Conversion> {
+
+        private final ModelStatistics modelStatistics;
+        private final String deviceID;
+        private final UplinkPayload payload;
+        private final DeviceIncomingMessage incomingMessage;
+        private volatile List<ContextAttribute> attributes;
+        private volatile Throwable failure;
+        private volatile long start;
+        private volatile long latency;
+
+        Conversion(ModelStatistics modelStatistics, String deviceID, UplinkPayload payload, DeviceIncomingMessage incomingMessage) {
+            this.modelStatistics = modelStatistics;
+            this.deviceID = deviceID;
+            this.payload = payload;
+            this.incomingMessage = incomingMessage;
+        }
+
+        @Override
+        public Conversion call() {
+            // Measured on the pool thread: the time spent in the queue is not the converter latency
+            modelStatistics.busyThreads.incrementAndGet();
+            start = System.nanoTime();
+            try {
+                attributes = UplinkPayload.decode(converter, deviceID, payload, incomingMessage);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                latency = System.nanoTime() - start;
+                modelStatistics.busyThreads.decrementAndGet();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Latency and failures of the last calls of a model
+     */
+    public static class ModelStatistics {
+
+        private final String model;
+        private final long[] latencies = new long[windowSize];
+        private final boolean[] failures = new boolean[windowSize];
+        private int index = 0;
+        private int sampleCount = 0;
+        private int failureCount = 0;
+        // Calls slower than the latency threshold, the 99th percentile exceeds it when they are more than 1%
+        private int slowCount = 0;
+        private volatile long quarantinedUntil = 0;
+        private final LongAdder callCount = new LongAdder();
+        private final LongAdder timeoutCount = new LongAdder();
+        private final LongAdder deadLetterCount = new LongAdder();
+        private final LongAdder quarantineCount = new LongAdder();
+        // Threads running a call of the model
+        private final AtomicInteger busyThreads = new AtomicInteger();
+
+        ModelStatistics(String model) {
+            this.model = model;
+        }
+
+        /**
+         * Record a call
+         * @return Why the model has to be quarantined, null if it doesn't
+         */
+        synchronized String record(long latency, boolean failed, long latencyThreshold, double failureRateThreshold) {
+            callCount.increment();
+            if (sampleCount == windowSize) {
+                if (failures[index]) {
+                    failureCount--;
+                }
+                if (isSlow(latencies[index], latencyThreshold)) {
+                    slowCount--;
+                }
+            }
+            latencies[index] = latency;
+            failures[index] = failed;
+            if (failed) {
+                failureCount++;
+            }
+            if (isSlow(latency, latencyThreshold)) {
+                slowCount++;
+            }
+            index = (index + 1) % windowSize;
+            sampleCount = Math.min(sampleCount + 1, windowSize);
+            if (sampleCount < minSamples) {
+                return null;
+            }
+            String reason = null;
+            double failureRate = (double) failureCount / sampleCount;
+            if (failureRate > failureRateThreshold) {
+                reason = "failure rate " + failureRate;
+            } else if (slowCount >= sampleCount - percentile99Index()) {
+                // The window is only sorted when the model is quarantined
+                reason = "99th percentile latency " + TimeUnit.NANOSECONDS.toMillis(latencyPercentile99()) + " ms";
+            }
+            if (reason != null) {
+                // The model starts again from a clean window after its quarantine
+                sampleCount = 0;
+                failureCount = 0;
+                slowCount = 0;
+                index = 0;
+            }
+            return reason;
+        }
+
+        private long latencyPercentile99() {
+            long[] sortedLatencies = Arrays.copyOf(latencies, sampleCount);
+            Arrays.sort(sortedLatencies);
+            return sortedLatencies[percentile99Index()];
+        }
+
+        /**
+         * @return Index of the 99th percentile in the sorted latencies of the window
+         */
+        private int percentile99Index() {
+            return (int) Math.ceil(0.99 * sampleCount) - 1;
+        }
+
+        private static boolean isSlow(long latency, long latencyThreshold) {
+            return TimeUnit.NANOSECONDS.toMillis(latency) > latencyThreshold;
+        }
+
+        /**
+         * @param now Current time in milliseconds
+         * @return <code>true</code> if the messages of the model are not converted
+         */
+        public boolean isQuarantined(long now) {
+            return now < quarantinedUntil;
+        }
+
+        /**
+         * @return 99th percentile latency of the last calls in milliseconds, 0 if none
+         */
+        public synchronized long getLatencyPercentile99() {
+            return sampleCount > 0 ? TimeUnit.NANOSECONDS.toMillis(latencyPercentile99()) : 0;
+        }
+
+        /**
+         * @return Rate of failed calls among the last calls
+         */
+        public synchronized double getFailureRate() {
+            return sampleCount > 0 ? (double) failureCount / sampleCount : 0;
+        }
+
+        /**
+         * @return Number of calls of the converter
+         */
+        public long getCallCount() {
+            return callCount.sum();
+        }
+
+        /**
+         * @return Number of calls which have exceeded the timeout
+         */
+        public long getTimeoutCount() {
+            return timeoutCount.sum();
+        }
+
+        /**
+         * @return Number of messages sent to the dead-letter sink
+         */
+        public long getDeadLetterCount() {
+            return deadLetterCount.sum();
+        }
+
+        /**
+         * @return Number of times the model has been quarantined
+         */
+        public long getQuarantineCount() {
+            return quarantineCount.sum();
+        }
+    }
+}
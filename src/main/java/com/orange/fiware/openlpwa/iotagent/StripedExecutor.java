@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executes tasks on a fixed number of workers.
+ * Tasks submitted with the same key are always run by the same worker, in submission order.
+ * Each worker has a bounded queue: submitting a task to a full queue blocks the caller until room is available.
+ */
+public class StripedExecutor {
+
+    private static Logger logger = LoggerFactory.getLogger(StripedExecutor.class);
+    private final static Runnable POISON = () -> { };
+    private final Worker[] workers;
+    private final LongAdder completedTaskCount = new LongAdder();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructor
+     * @param name Prefix of the worker thread names
+     * @param workerCount Number of workers
+     * @param queueCapacity Capacity of the queue of each worker
+     */
+    public StripedExecutor(String name, int workerCount, int queueCapacity) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(name + "-" + i, queueCapacity);
+        }
+    }
+
+    /**
+     * Submit a task
+     * @param key Key of the task, tasks with the same key are run sequentially
+     * @param task Task to run
+     * @throws InterruptedException The caller has been interrupted while waiting for room in the queue
+     * @throws RejectedExecutionException The executor is shut down
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        Worker worker = workers[stripe(key)];
+        worker.queue.put(task);
+        // Shut down meanwhile: the task is run by the worker unless it has already drained its queue
+        if (worker.terminated && worker.queue.remove(task)) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+    }
+
+    /**
+     * Stop accepting tasks, the already queued ones are still run
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        for (Worker worker : workers) {
+            // A full queue doesn't need the pill: the worker sees the shutdown once it has run the queued tasks
+            worker.queue.offer(POISON);
+        }
+    }
+
+    /**
+     * Wait for the workers to end after a shutdown
+     * @param timeout Maximum time to wait
+     * @param unit Time unit of the timeout
+     * @return <code>true</code> if all the workers have ended
+     * @throws InterruptedException The caller has been interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0) {
+                worker.thread.join(remaining);
+            }
+            if (worker.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return Number of tasks waiting in the queues
+     */
+    public int getQueuedTaskCount() {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.queue.size();
+        }
+        return count;
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount.sum();
+    }
+
+    /**
+     * Select the worker of a key
+     * @param key Key of a task
+     * @return Index of the worker
+     */
+    private int stripe(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        // Spread the high bits as keys often only differ by their last characters
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, workers.length);
+    }
+
+    /**
+     * Thread consuming a queue of tasks
+     */
+    private class Worker implements Runnable {
+
+        private final BlockingQueue<Runnable> queue;
+        private final Thread thread;
+        private volatile boolean terminated = false;
+
+        Worker(String name, int queueCapacity) {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = shutdown ? queue.poll() : queue.take();
+                } catch (InterruptedException e) {
+                    terminated = true;
+                    logger.warn("Worker {} interrupted, {} tasks dropped", thread.getName(), queue.size());
+                    return;
+                }
+                if (task == null || task == POISON) {
+                    break;
+                }
+                runTask(task);
+            }
+            // The tasks queued while the executor was shutting down are run, the next ones are rejected
+            terminated = true;
+            Runnable task;
+            while ((task = queue.poll()) != null) {
+                if (task != POISON) {
+                    runTask(task);
+                }
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.error("Unhandled exception while running a task.", e);
+            }
+            completedTaskCount.increment();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.fiware.openlpwa.http.ResilientCaller;
+import com.orange.fiware.openlpwa.storage.MappedSegmentLog;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores the device updates which can't be sent to the context broker and sends them again, in the order they
+ * have been stored, once the context broker is available.
+ * The updates are appended to a log of memory-mapped segment files, so they survive a restart of the agent. The
+ * updates are replayed one at a time, at a bounded rate: when a replayed update fails, the replay is suspended
+ * for the retry delay and starts again with the same update. Segments whose updates have all been replayed are
+ * deleted. The position following the last replayed update is saved in a checkpoint file, so that after a restart
+ * the replay starts where it has stopped instead of sending again the replayed updates of the remaining segments.
+ * Each update keeps the tenant it was sent to, since the tenant of a device may come from its model, only known from
+ * its messages.
+ */
+public class UpdateSpool implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(UpdateSpool.class);
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+    private final static TypeReference<List<ContextAttribute>> attributeListType = new TypeReference<List<ContextAttribute>>() { };
+    private final static String checkpointFileName = "replay.checkpoint";
+    // Segment identifier (8 bytes), position in the segment (4 bytes), CRC32C of both (4 bytes)
+    private final static int checkpointSize = 16;
+    private final MappedSegmentLog log;
+    private final Path checkpointPath;
+    private final CRC32C checkpointCrc = new CRC32C();
+    private MappedByteBuffer checkpoint;
+    private final UpdateSender sender;
+    private final long replayInterval;
+    private final long retryDelay;
+    private final ScheduledExecutorService scheduler;
+    private MappedSegmentLog.RecordCursor cursor;
+    // Update being replayed, the oldest one of the spool
+    private SpooledUpdate head;
+    private long pendingCount = 0;
+    private boolean replaying = false;
+    private boolean closed = false;
+    private final LongAdder spooledCount = new LongAdder();
+    private final LongAdder replayedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder replayFailureCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param directory Directory of the segment files
+     * @param segmentSize Size of a segment file in bytes
+     * @param replayRate Maximum number of updates replayed per second (0 for no limit)
+     * @param retryDelay Delay before replaying again an update which has failed, in milliseconds
+     * @param sender Sends an update to the context broker
+     */
+    public UpdateSpool(Path directory, int segmentSize, double replayRate, long retryDelay, UpdateSender sender) {
+        this(directory, segmentSize, replayRate, retryDelay, sender, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "iotagent-spool");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    UpdateSpool(Path directory, int segmentSize, double replayRate, long retryDelay, UpdateSender sender, ScheduledExecutorService scheduler) {
+        if (replayRate < 0) {
+            throw new IllegalArgumentException("replayRate must be positive");
+        }
+        this.log = new MappedSegmentLog(directory, segmentSize, false);
+        this.checkpointPath = directory.resolve(checkpointFileName);
+        this.sender = sender;
+        this.replayInterval = replayRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / replayRate) : 0;
+        this.retryDelay = retryDelay;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Open the spool, the updates stored before a restart and not yet replayed are replayed
+     * @throws IOException Unable to read or create the segment files
+     */
+    public synchronized void open() throws IOException {
+        log.open((segmentId, record) -> pendingCount++);
+        cursor = log.cursor();
+        try (FileChannel channel = FileChannel.open(checkpointPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, checkpointSize);
+        }
+        skipReplayedUpdates();
+        if (pendingCount > 0) {
+            logger.info("{} stored updates to send to the context broker", pendingCount);
+            scheduleReplay(0);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no update is waiting to be replayed
+     */
+    public synchronized boolean isEmpty() {
+        return pendingCount == 0;
+    }
+
+    /**
+     * Store an update, sent after the already stored ones
+     * @param deviceID Device identifier
+     * @param tenant Name of the tenant of the update, null to route the update when it is replayed
+     * @param attributes Attributes to update
+     * @throws IOException Unable to write the update
+     */
+    public void append(String deviceID, String tenant, List<ContextAttribute> attributes) throws IOException {
+        byte[] record = encode(System.currentTimeMillis(), deviceID, tenant, attributes);
+        synchronized (this) {
+            if (closed || cursor == null) {
+                throw new IOException("Spool is not opened");
+            }
+            log.append(record);
+            pendingCount++;
+            spooledCount.increment();
+            if (!replaying) {
+                scheduleReplay(0);
+            }
+        }
+    }
+
+    /**
+     * @return Number of updates waiting to be replayed
+     */
+    public synchronized long getDepth() {
+        return pendingCount;
+    }
+
+    /**
+     * @return Time spent in the spool by the oldest update, in milliseconds
+     */
+    public synchronized long getOldestAge() {
+        return head != null ? Math.max(0, System.currentTimeMillis() - head.timestamp) : 0;
+    }
+
+    /**
+     * @return Size of the segment files in bytes
+     */
+    public long getDiskUsage() {
+        return log.getDiskUsage();
+    }
+
+    /**
+     * @return Number of segment files
+     */
+    public int getSegmentCount() {
+        return log.getSegmentCount();
+    }
+
+    /**
+     * @return Number of updates stored
+     */
+    public long getSpooledCount() {
+        return spooledCount.sum();
+    }
+
+    /**
+     * @return Number of updates successfully replayed
+     */
+    public long getReplayedCount() {
+        return replayedCount.sum();
+    }
+
+    /**
+     * @return Number of updates dropped because they are unreadable or rejected by the context broker
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return Number of replays which have failed and have been retried
+     */
+    public long getReplayFailureCount() {
+        return replayFailureCount.sum();
+    }
+
+    /**
+     * Stop the replay and close the segment files, the remaining updates are replayed on the next opening
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        scheduler.shutdownNow();
+        if (checkpoint != null) {
+            checkpoint.force();
+        }
+        log.close();
+    }
+
+    /**
+     * @param ex Failure of an update
+     * @return <code>true</code> if the update may succeed later, <code>false</code> if the context broker has rejected it
+     */
+    public static boolean isRecoverable(Throwable ex) {
+        return ResilientCaller.classify(ex) != ResilientCaller.FailureType.PERMANENT;
+    }
+
+    private void scheduleReplay(long delay) {
+        replaying = true;
+        scheduler.schedule(this::replayNext, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void replayNext() {
+        SpooledUpdate update;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (head == null && !readHead()) {
+                replaying = false;
+                return;
+            }
+            update = head;
+        }
+
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            future = sender.send(update.deviceID, update.tenant, update.attributes);
+        } catch (RuntimeException e) {
+            replayFailed(update, e);
+            return;
+        }
+        future.addCallback(updateContextResponse -> replayed(update, true), ex -> replayFailed(update, ex));
+    }
+
+    /**
+     * Read the oldest update not yet replayed, the unreadable ones are dropped
+     * @return <code>false</code> if there is no update to replay
+     */
+    private boolean readHead() {
+        while (true) {
+            SpooledUpdate[] update = new SpooledUpdate[1];
+            try {
+                if (!cursor.next((segmentId, record) -> update[0] = decode(segmentId, record))) {
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.error("Unable to read a stored update, update dropped", e);
+            } catch (IllegalStateException e) {
+                // Closed meanwhile
+                return false;
+            }
+            if (update[0] != null && update[0].attributes != null) {
+                head = update[0];
+                return true;
+            }
+            if (update[0] != null) {
+                release(update[0]);
+                droppedCount.increment();
+            }
+        }
+    }
+
+    private void replayed(SpooledUpdate update, boolean sent) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            release(update);
+            head = null;
+            if (sent) {
+                replayedCount.increment();
+            } else {
+                droppedCount.increment();
+            }
+            if (pendingCount > 0) {
+                scheduleReplay(replayInterval);
+            } else {
+                replaying = false;
+            }
+        }
+    }
+
+    private void replayFailed(SpooledUpdate update, Throwable ex) {
+        if (!isRecoverable(ex)) {
+            logger.error("Stored update rejected by the context broker, update dropped (ID:{}): {}", update.deviceID, ex.getMessage());
+            replayed(update, false);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            replayFailureCount.increment();
+            logger.warn("Unable to send the stored updates, next attempt in {} ms: {}", retryDelay, ex.getMessage());
+            scheduleReplay(TimeUnit.MILLISECONDS.toNanos(retryDelay));
+        }
+    }
+
+    private void release(SpooledUpdate update) {
+        log.release(update.segmentId);
+        pendingCount--;
+        saveCheckpoint();
+    }
+
+    /**
+     * Save the position following the last update read, all the updates up to it have been released
+     */
+    private void saveCheckpoint() {
+        checkpoint.putLong(0, cursor.getSegmentId());
+        checkpoint.putInt(8, cursor.getPosition());
+        checkpoint.putInt(12, checkpointCrc());
+    }
+
+    /**
+     * Release the stored updates preceding the saved checkpoint, they have been replayed before the restart
+     * @throws IOException Unable to read a stored update
+     */
+    private void skipReplayedUpdates() throws IOException {
+        if (checkpoint.getInt(12) != checkpointCrc()) {
+            // Never saved or partially written: all the stored updates are replayed
+            return;
+        }
+        long segmentId = checkpoint.getLong(0);
+        int position = checkpoint.getInt(8);
+        long skippedCount = 0;
+        while ((cursor.getSegmentId() < segmentId || (cursor.getSegmentId() == segmentId && cursor.getPosition() < position))
+                && cursor.next((recordSegmentId, record) -> log.release(recordSegmentId))) {
+            pendingCount--;
+            skippedCount++;
+        }
+        if (skippedCount > 0) {
+            logger.info("{} stored updates already replayed before the restart", skippedCount);
+        }
+    }
+
+    private int checkpointCrc() {
+        ByteBuffer content = checkpoint.duplicate();
+        content.position(0).limit(12);
+        checkpointCrc.reset();
+        checkpointCrc.update(content);
+        return (int) checkpointCrc.getValue();
+    }
+
+    /**
+     * Record format: timestamp (8 bytes), length of the device identifier (2 bytes), device identifier (UTF-8),
+     * length of the tenant name (2 bytes, 0 if none), tenant name (UTF-8), attributes (Json)
+     */
+    private static byte[] encode(long timestamp, String deviceID, String tenant, List<ContextAttribute> attributes) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeLong(timestamp);
+        writeString(dataOutputStream, deviceID);
+        writeString(dataOutputStream, tenant);
+        dataOutputStream.write(objectMapper.writeValueAsBytes(attributes));
+        return outputStream.toByteArray();
+    }
+
+    private static SpooledUpdate decode(long segmentId, ByteBuffer record) {
+        long timestamp = 0;
+        String deviceID = null;
+        String tenant = null;
+        List<ContextAttribute> attributes = null;
+        try {
+            timestamp = record.getLong();
+            deviceID = readString(record);
+            tenant = readString(record);
+            byte[] json = new byte[record.remaining()];
+            record.get(json);
+            attributes = objectMapper.readValue(json, attributeListType);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Unable to decode a stored update (ID:{}), update dropped", deviceID, e);
+        }
+        return new SpooledUpdate(segmentId, timestamp, deviceID, tenant, attributes);
+    }
+
+    private static void writeString(DataOutputStream dataOutputStream, String value) throws IOException {
+        byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        dataOutputStream.writeShort(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return bytes.length > 0 ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Sends an update to the context broker
+     */
+    @FunctionalInterface
+    public interface UpdateSender {
+        ListenableFuture<UpdateContextResponse> send(String deviceID, String tenant, List<ContextAttribute> attributes);
+    }
+
+    private static class SpooledUpdate {
+
+        private final long segmentId;
+        private final long timestamp;
+        private final String deviceID;
+        private final String tenant;
+        // Null if the update can't be decoded
+        private final List<ContextAttribute> attributes;
+
+        SpooledUpdate(long segmentId, long timestamp, String deviceID, String tenant, List<ContextAttribute> attributes) {
+            this.segmentId = segmentId;
+            this.timestamp = timestamp;
+            this.deviceID = deviceID;
+            this.tenant = tenant;
+            this.attributes = attributes;
+        }
+    }
+}
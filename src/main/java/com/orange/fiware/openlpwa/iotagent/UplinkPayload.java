@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Payload of a message, hexadecimal as received and decoded at most once, the bytes being shared by the decoding
+ * cache and the binary converters.
+ * Not thread-safe: a payload is handed over to the threads of an {@link IsolatedConverter} through its executor.
+ */
+final class UplinkPayload {
+
+    private final String data;
+    private byte[] bytes;
+    private boolean decoded = false;
+
+    /**
+     * Constructor
+     * @param data Hexadecimal payload
+     */
+    UplinkPayload(String data) {
+        this.data = data;
+    }
+
+    /**
+     * @return Hexadecimal payload
+     */
+    String hex() {
+        return data;
+    }
+
+    /**
+     * @return Payload bytes, never modified, null if the payload is not hexadecimal
+     */
+    byte[] bytes() {
+        if (!decoded) {
+            decoded = true;
+            if (data.length() % 2 == 0) {
+                byte[] payload = new byte[data.length() / 2];
+                try {
+                    HexCodec.decode(data, payload, 0);
+                    bytes = payload;
+                } catch (IllegalArgumentException e) {
+                    // Left to the converter, which fails as with the hexadecimal payload
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode a payload with a converter, giving the payload bytes to the binary converters
+     * @param converter Converter, possibly wrapping other converters
+     * @param deviceID Device identifier
+     * @param payload Payload
+     * @param incomingMessage Message of the payload
+     * @return The decoded attributes
+     */
+    static List<ContextAttribute> decode(OpenLpwaNgsiConverter converter, String deviceID, UplinkPayload payload,
+                                         DeviceIncomingMessage incomingMessage) {
+        if (converter instanceof IsolatedConverter) {
+            return ((IsolatedConverter) converter).decodeData(deviceID, payload, incomingMessage);
+        }
+        if (converter instanceof ConverterRegistry) {
+            return ((ConverterRegistry) converter).decodeData(deviceID, payload, incomingMessage);
+        }
+        // The adapter of a hexadecimal converter would encode the bytes again
+        if (converter instanceof BinaryNgsiConverter && !(converter instanceof HexNgsiConverterAdapter)) {
+            byte[] payloadBytes = payload.bytes();
+            if (payloadBytes != null) {
+                return ((BinaryNgsiConverter) converter).decodeData(deviceID, ByteBuffer.wrap(payloadBytes).asReadOnlyBuffer(), incomingMessage);
+            }
+        }
+        return converter.decodeData(deviceID, payload.hex(), incomingMessage);
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.fiware.openlpwa.exception.AgentException;
+import com.orange.fiware.openlpwa.http.PooledHttpTransport;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provides the OAuth access token of the remote context broker.
+ * The current token is read without locking. It is refreshed in the background before it expires, with the
+ * refresh_token grant when the authorization server has provided a refresh token, otherwise with the password grant.
+ * Concurrent refresh requests share the same request to the authorization server.
+ * A failed refresh is retried with an exponential backoff. When the authorization server rejects the user
+ * credentials (400 or 401), no more token is requested until the agent is restarted with other credentials.
+ */
+@Service
+public class AccessTokenManager {
+
+    private static Logger logger = LoggerFactory.getLogger(AccessTokenManager.class);
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+    // Delay before retrying a failed refresh, doubled after each consecutive failure
+    private final static long retryInitialDelay = 10000;
+    private final static long retryMaxDelay = 600000;
+    @Value("${contextBroker.remoteAuthToken}")
+    private String configuredToken;
+    @Value("${contextBroker.remoteAuthTokenURI}")
+    private String tokenURI;
+    @Value("${contextBroker.remoteClientId}")
+    private String clientId;
+    @Value("${contextBroker.remoteClientSecret}")
+    private String clientSecret;
+    @Value("${contextBroker.remoteUserLogin}")
+    private String userLogin;
+    @Value("${contextBroker.remoteUserPassword}")
+    private String userPassword;
+    @Value("${contextBroker.tokenRefreshMargin:60000}")
+    private long refreshMargin;
+    @Autowired(required = false)
+    private PooledHttpTransport httpTransport;
+    @Autowired(required = false)
+    private CloseableHttpAsyncClient httpClient;
+    // Without any shared Http client, a client is created and closed on shutdown
+    private boolean ownedHttpClient = false;
+    private volatile AccessToken accessToken;
+    private final AtomicReference<SettableListenableFuture<String>> refreshInProgress = new AtomicReference<>();
+    private volatile ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledRefresh;
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder refreshFailureCount = new LongAdder();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile boolean credentialsRejected = false;
+
+    /**
+     * Get the current access token without waiting, a refresh is launched if there is no valid token
+     *
+     * @return The access token, null if not retrieved yet
+     */
+    public String getAccessToken() {
+        AccessToken token = accessToken;
+        if (token != null && !token.isExpired()) {
+            return token.value;
+        }
+        if (token == null && configuredToken != null && !configuredToken.isEmpty()) {
+            return configuredToken;
+        }
+        if (canRefresh() && !credentialsRejected) {
+            refresh();
+        }
+        return token != null ? token.value : null;
+    }
+
+    /**
+     * @return <code>true</code> if the credentials needed to retrieve a token are configured
+     */
+    public boolean canRefresh() {
+        return tokenURI != null && !tokenURI.isEmpty() && clientId != null && clientSecret != null
+                && userLogin != null && userPassword != null;
+    }
+
+    /**
+     * Retrieve a new token, joins the refresh in progress if any
+     *
+     * @return A future for the new access token
+     */
+    public ListenableFuture<String> refresh() {
+        SettableListenableFuture<String> future = new SettableListenableFuture<>();
+        SettableListenableFuture<String> current = refreshInProgress.get();
+        if (current != null || !refreshInProgress.compareAndSet(null, future)) {
+            current = refreshInProgress.get();
+            // The refresh in progress may have just ended, in which case its token is the most recent one
+            return current != null ? current : refresh();
+        }
+
+        if (!canRefresh()) {
+            refreshInProgress.set(null);
+            future.setException(new AgentException("Credentials of the remote context broker are missing"));
+            return future;
+        }
+        if (credentialsRejected) {
+            refreshInProgress.set(null);
+            future.setException(new AgentException("Credentials of the remote context broker have been rejected"));
+            return future;
+        }
+
+        AccessToken token = accessToken;
+        String refreshToken = token != null ? token.refreshToken : null;
+        requestToken(refreshToken, future);
+        return future;
+    }
+
+    /**
+     * @return Number of tokens retrieved
+     */
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    /**
+     * @return Number of failed token requests
+     */
+    public long getRefreshFailureCount() {
+        return refreshFailureCount.sum();
+    }
+
+    /**
+     * @return <code>true</code> if the authorization server has rejected the user credentials
+     */
+    public boolean isCredentialsRejected() {
+        return credentialsRejected;
+    }
+
+    /**
+     * Stop the background refreshes
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (ownedHttpClient) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close the Http client", e);
+            }
+            httpClient = null;
+            ownedHttpClient = false;
+        }
+    }
+
+    /**
+     * Send a token request to the authorization server
+     *
+     * @param refreshToken Refresh token, null to use the password grant
+     * @param future       Future completed with the new token
+     */
+    private void requestToken(String refreshToken, SettableListenableFuture<String> future) {
+        List<NameValuePair> parameters = new ArrayList<>(3);
+        if (refreshToken != null) {
+            parameters.add(new BasicNameValuePair("grant_type", "refresh_token"));
+            parameters.add(new BasicNameValuePair("refresh_token", refreshToken));
+        } else {
+            parameters.add(new BasicNameValuePair("grant_type", "password"));
+            parameters.add(new BasicNameValuePair("username", userLogin));
+            parameters.add(new BasicNameValuePair("password", userPassword));
+        }
+        String encoding = Base64.getEncoder().encodeToString((clientId + ":" + clientSecret).getBytes(StandardCharsets.UTF_8));
+        HttpPost request = new HttpPost(tokenURI);
+        request.setHeader("Authorization", "Basic " + encoding);
+        request.setEntity(new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8));
+
+        FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != 200) {
+                    if (refreshToken != null) {
+                        // The refresh token may have expired as well
+                        logger.warn("Unable to refresh the token: status{}. Trying with the user credentials.", response.getStatusLine());
+                        requestToken(null, future);
+                        return;
+                    }
+                    if (statusCode == 400 || statusCode == 401) {
+                        // Retrying with the same credentials would be rejected again
+                        credentialsRejected = true;
+                    }
+                    failed(new AgentException("Unable to retrieve token: status" + response.getStatusLine() + ". Please check your credentials."));
+                    return;
+                }
+                try {
+                    TokenResponse tokenResponse = objectMapper.readValue(EntityUtils.toString(response.getEntity()), TokenResponse.class);
+                    tokenReceived(tokenResponse, future);
+                } catch (IOException | RuntimeException e) {
+                    failed(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                logger.error("An error occurred while retrieving the token. error{}", e.getMessage());
+                refreshFailureCount.increment();
+                refreshInProgress.set(null);
+                future.setException(e);
+                if (credentialsRejected) {
+                    logger.error("Credentials rejected by the authorization server, the token won't be requested anymore.");
+                } else {
+                    scheduleRefresh(retryDelay(consecutiveFailures.incrementAndGet()));
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                failed(new AgentException("Token request cancelled"));
+            }
+        };
+        try {
+            httpClient().execute(request, callback);
+        } catch (RuntimeException e) {
+            // The request is not sent (e.g. client closed), the refreshes joining this one have to fail as well
+            callback.failed(e);
+        }
+    }
+
+    private void tokenReceived(TokenResponse tokenResponse, SettableListenableFuture<String> future) {
+        long expiresIn = parseExpiresIn(tokenResponse.getExpires_in());
+        long expiresAt = expiresIn > 0 ? System.currentTimeMillis() + expiresIn : Long.MAX_VALUE;
+        accessToken = new AccessToken(tokenResponse.getAccess_token(), tokenResponse.getRefresh_token(), expiresAt);
+        refreshCount.increment();
+        consecutiveFailures.set(0);
+        refreshInProgress.set(null);
+        logger.info("Token successfully recovered");
+        if (expiresIn > 0) {
+            // Short-lived tokens are refreshed at half of their lifetime
+            scheduleRefresh(Math.max(expiresIn - refreshMargin, expiresIn / 2));
+        }
+        future.set(tokenResponse.getAccess_token());
+    }
+
+    /**
+     * @param failures Number of consecutive failures
+     * @return Delay before the next attempt in milliseconds
+     */
+    static long retryDelay(int failures) {
+        return Math.min(retryInitialDelay << Math.min(failures - 1, 6), retryMaxDelay);
+    }
+
+    private static long parseExpiresIn(String expiresIn) {
+        if (expiresIn == null || expiresIn.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(expiresIn.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid token expiration: {}", expiresIn);
+            return 0;
+        }
+    }
+
+    private synchronized void scheduleRefresh(long delay) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ngsi-token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        scheduledRefresh = scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized CloseableHttpAsyncClient httpClient() {
+        if (httpTransport != null) {
+            return httpTransport.getHttpClient();
+        }
+        if (httpClient == null) {
+            httpClient = HttpAsyncClients.createDefault();
+            ownedHttpClient = true;
+        }
+        if (!httpClient.isRunning()) {
+            httpClient.start();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Immutable access token, replaced as a whole on each refresh
+     */
+    private static class AccessToken {
+
+        private final String value;
+        private final String refreshToken;
+        private final long expiresAt;
+
+        AccessToken(String value, String refreshToken, long expiresAt) {
+            this.value = value;
+            this.refreshToken = refreshToken;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
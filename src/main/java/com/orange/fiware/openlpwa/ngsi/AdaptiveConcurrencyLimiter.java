@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.fiware.openlpwa.http.ResilientCaller;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of requests in flight to the context broker, the limit being adapted to the broker load with
+ * an additive increase / multiplicative decrease policy.
+ * The limit grows by one request per round trip while the requests are fast and use at least half of the limit.
+ * It is reduced by a factor when a request is slower than the latency threshold or fails with a transient error.
+ * The requests above the limit are queued, never dropped: the producers are expected to wait for the queue to
+ * go below its capacity before submitting new requests.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private final static double backoffRatio = 0.9;
+    // Weight of the last request in the average latency
+    private final static double latencySmoothing = 0.1;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThreshold;
+    private final int queueCapacity;
+    private double limit;
+    private int inFlight = 0;
+    private final ArrayDeque<PendingRequest<?>> queue = new ArrayDeque<>();
+    private volatile double averageLatency = 0;
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder overloadCount = new LongAdder();
+    private final LongAdder queuedCount = new LongAdder();
+
+    /**
+     * Constructor
+     * @param initialLimit Initial number of requests in flight
+     * @param minLimit Minimum number of requests in flight
+     * @param maxLimit Maximum number of requests in flight
+     * @param latencyThreshold Latency above which the context broker is considered overloaded, in milliseconds
+     * @param queueCapacity Number of queued requests above which the producers wait
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThreshold, int queueCapacity) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.latencyThreshold = TimeUnit.MILLISECONDS.toNanos(latencyThreshold);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Send a request when the limit allows it
+     * @param request Sends the request
+     * @param <T> Type of the response
+     * @return A future for the response
+     */
+    public <T> ListenableFuture<T> submit(Supplier<ListenableFuture<T>> request) {
+        PendingRequest<T> pendingRequest = new PendingRequest<>(request);
+        synchronized (this) {
+            if (inFlight >= (int) limit || !queue.isEmpty()) {
+                queue.add(pendingRequest);
+                queuedCount.increment();
+                return pendingRequest.result;
+            }
+            inFlight++;
+        }
+        start(pendingRequest);
+        return pendingRequest.result;
+    }
+
+    /**
+     * Wait until the number of queued requests is below the queue capacity
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public synchronized void awaitCapacity() throws InterruptedException {
+        while (queue.size() >= queueCapacity) {
+            wait();
+        }
+    }
+
+    /**
+     * @return Current number of requests allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return Number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Number of requests waiting for the limit
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return Smoothed latency of the requests, in milliseconds
+     */
+    public double getAverageLatency() {
+        return averageLatency / 1e6;
+    }
+
+    /**
+     * @return Number of completed requests
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * @return Number of requests which have reduced the limit
+     */
+    public long getOverloadCount() {
+        return overloadCount.sum();
+    }
+
+    /**
+     * @return Number of requests which have waited for the limit
+     */
+    public long getQueuedCount() {
+        return queuedCount.sum();
+    }
+
+    private <T> void start(PendingRequest<T> pendingRequest) {
+        long startTime = System.nanoTime();
+        ListenableFuture<T> future;
+        try {
+            future = pendingRequest.request.get();
+        } catch (RuntimeException e) {
+            completed(startTime, false);
+            pendingRequest.result.setException(e);
+            return;
+        }
+        // The permit is released before the caller is notified, so that its next request may use it
+        future.addCallback(
+                response -> {
+                    completed(startTime, false);
+                    pendingRequest.result.set(response);
+                },
+                ex -> {
+                    completed(startTime, ResilientCaller.classify(ex) == ResilientCaller.FailureType.TRANSIENT);
+                    pendingRequest.result.setException(ex);
+                });
+    }
+
+    private void completed(long startTime, boolean failed) {
+        long latency = System.nanoTime() - startTime;
+        completedCount.increment();
+        List<PendingRequest<?>> startedRequests = null;
+        synchronized (this) {
+            inFlight--;
+            averageLatency += (latency - averageLatency) * latencySmoothing;
+            if (failed || latency > latencyThreshold) {
+                overloadCount.increment();
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (inFlight + 1 >= limit / 2) {
+                // Only a used limit is increased
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                if (startedRequests == null) {
+                    startedRequests = new ArrayList<>();
+                }
+                startedRequests.add(queue.poll());
+                inFlight++;
+            }
+            if (startedRequests != null && queue.size() < queueCapacity) {
+                notifyAll();
+            }
+        }
+        if (startedRequests != null) {
+            startedRequests.forEach(this::start);
+        }
+    }
+
+    private static class PendingRequest<T> {
+
+        private final Supplier<ListenableFuture<T>> request;
+        private final SettableListenableFuture<T> result = new SettableListenableFuture<>();
+
+        PendingRequest(Supplier<ListenableFuture<T>> request) {
+            this.request = request;
+        }
+    }
+}
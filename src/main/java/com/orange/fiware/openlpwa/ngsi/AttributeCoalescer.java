@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the updates of an entity at most once per interval.
+ * The first update of an entity is sent at once. The updates received during the following interval are merged,
+ * only the latest value of each attribute being kept, and sent together when the interval ends. An entity without
+ * any update during a whole interval is forgotten.
+ * The intervals of all the entities are tracked by a single timer wheel.
+ */
+public class AttributeCoalescer {
+
+    private final static int wheelSize = 512;
+    private final DeviceUpdateSender sender;
+    private final long interval;
+    private final TimerWheel<EntityState> timerWheel;
+    private final ConcurrentMap<String, EntityState> entities = new ConcurrentHashMap<>();
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder replacedValueCount = new LongAdder();
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     * @param sender Sends the update of an entity
+     * @param interval Minimum time between two updates of an entity, in milliseconds
+     * @param tickDuration Precision of the intervals, in milliseconds
+     */
+    public AttributeCoalescer(DeviceUpdateSender sender, long interval, long tickDuration) {
+        this(sender, interval, tickDuration, true);
+    }
+
+    AttributeCoalescer(DeviceUpdateSender sender, long interval, long tickDuration, boolean startTimer) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.sender = sender;
+        this.interval = interval;
+        // The wheel covers an interval in a single round
+        this.timerWheel = new TimerWheel<>(tickDuration, (int) Math.min(wheelSize, interval / tickDuration + 1), this::intervalEnded);
+        if (startTimer) {
+            timerWheel.start("ngsi-coalescer");
+        }
+    }
+
+    /**
+     * Submit an update of an entity
+     * @param deviceID Entity identifier
+     * @param attributes Attributes to update
+     * @return A future for the response of the request containing the attributes
+     */
+    public ListenableFuture<UpdateContextResponse> submit(String deviceID, List<ContextAttribute> attributes) {
+        submittedCount.increment();
+        while (true) {
+            EntityState state = entities.computeIfAbsent(deviceID, EntityState::new);
+            synchronized (state) {
+                if (state.forgotten) {
+                    // Removed meanwhile
+                    continue;
+                }
+                if (state.throttled && !stopped) {
+                    for (ContextAttribute attribute : attributes) {
+                        if (state.pendingAttributes.put(attribute.getName(), attribute) != null) {
+                            replacedValueCount.increment();
+                        }
+                    }
+                    SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+                    state.pendingFutures.add(future);
+                    return future;
+                }
+                if (!stopped) {
+                    state.throttled = true;
+                    timerWheel.schedule(state, interval);
+                }
+            }
+            sentCount.increment();
+            return sender.send(deviceID, attributes);
+        }
+    }
+
+    /**
+     * @return Number of entities updated during the last interval
+     */
+    public int getEntityCount() {
+        return entities.size();
+    }
+
+    /**
+     * @return Number of submitted updates
+     */
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    /**
+     * @return Number of updates sent, the difference with the submitted ones being the saved requests
+     */
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /**
+     * @return Number of attribute values replaced by a more recent one before being sent
+     */
+    public long getReplacedValueCount() {
+        return replacedValueCount.sum();
+    }
+
+    /**
+     * Stop the timer of the intervals and send the pending attributes at once, the next updates are sent without
+     * waiting
+     */
+    public void shutdown() {
+        stopped = true;
+        timerWheel.stop();
+        for (EntityState state : entities.values()) {
+            intervalEnded(state);
+        }
+    }
+
+    TimerWheel<EntityState> getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * End of the interval of an entity: its pending attributes are sent and a new interval starts
+     * @param state State of the entity
+     */
+    void intervalEnded(EntityState state) {
+        List<ContextAttribute> attributes;
+        List<SettableListenableFuture<UpdateContextResponse>> futures;
+        synchronized (state) {
+            if (state.pendingAttributes.isEmpty() || stopped) {
+                state.forgotten = true;
+                entities.remove(state.deviceID, state);
+            }
+            if (state.pendingAttributes.isEmpty()) {
+                return;
+            }
+            attributes = new ArrayList<>(state.pendingAttributes.values());
+            futures = state.pendingFutures;
+            state.pendingAttributes.clear();
+            state.pendingFutures = new ArrayList<>();
+            if (!stopped) {
+                timerWheel.schedule(state, interval);
+            }
+        }
+        sentCount.increment();
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            future = sender.send(state.deviceID, attributes);
+        } catch (RuntimeException e) {
+            futures.forEach(pendingFuture -> pendingFuture.setException(e));
+            return;
+        }
+        future.addCallback(
+                response -> futures.forEach(pendingFuture -> pendingFuture.set(response)),
+                ex -> futures.forEach(pendingFuture -> pendingFuture.setException(ex)));
+    }
+
+    /**
+     * Sends the update of an entity
+     */
+    @FunctionalInterface
+    public interface DeviceUpdateSender {
+        ListenableFuture<UpdateContextResponse> send(String deviceID, List<ContextAttribute> attributes);
+    }
+
+    static class EntityState {
+
+        private final String deviceID;
+        // Latest value of each attribute received during the current interval
+        private final Map<String, ContextAttribute> pendingAttributes = new LinkedHashMap<>();
+        private List<SettableListenableFuture<UpdateContextResponse>> pendingFutures = new ArrayList<>();
+        private boolean throttled = false;
+        private boolean forgotten = false;
+
+        EntityState(String deviceID) {
+            this.deviceID = deviceID;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Immutable consistent hash ring mapping keys to nodes.
+ * Each node is placed on the ring at several points (virtual nodes) and a key belongs to the node of the first point
+ * following its hash. Adding a node to N nodes only moves about 1/(N+1) of the keys, all of them to the new node.
+ *
+ * @param <T> Type of the nodes
+ */
+public class ConsistentHashRing<T> {
+
+    private final List<T> nodes;
+    private final long[] points;
+    private final Object[] pointNodes;
+
+    /**
+     * Constructor
+     *
+     * @param nodes        Nodes of the ring
+     * @param nodeName     Name of a node, the position of its points only depends on its name
+     * @param virtualNodes Number of points of each node
+     */
+    public ConsistentHashRing(List<T> nodes, Function<T, String> nodeName, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("The ring needs nodes and virtual nodes");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int pointCount = nodes.size() * virtualNodes;
+        long[][] sortedPoints = new long[pointCount][];
+        int index = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            String name = nodeName.apply(nodes.get(node));
+            for (int i = 0; i < virtualNodes; i++) {
+                sortedPoints[index++] = new long[]{hash(name + "#" + i), node};
+            }
+        }
+        Arrays.sort(sortedPoints, (point1, point2) -> Long.compare(point1[0], point2[0]));
+        points = new long[pointCount];
+        pointNodes = new Object[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            points[i] = sortedPoints[i][0];
+            pointNodes[i] = nodes.get((int) sortedPoints[i][1]);
+        }
+    }
+
+    /**
+     * Get the node of a key
+     *
+     * @param key Key, an entity identifier for instance
+     * @return The node owning the key
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            // Insertion point: first point after the hash, wrapping around the ring
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return (T) pointNodes[index];
+    }
+
+    /**
+     * @return Nodes of the ring
+     */
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the characters, followed by the MurmurHash3 finalizer to spread close keys
+     *
+     * @param key Key
+     * @return The position of the key on the ring
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.fiware.openlpwa.http.CircuitBreaker;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Context broker receiving updates through its own batches, limit of requests in flight and circuit breaker, with
+ * its delivery statistics.
+ */
+public class ContextBrokerEndpoint {
+
+    private final String url;
+    private final UpdateContextBatcher.UpdateContextSender sender;
+    private final UpdateContextBatcher batcher;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final CircuitBreaker circuitBreaker;
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private volatile long lastSuccessTime = 0;
+
+    /**
+     * Constructor
+     *
+     * @param url                URL of the context broker
+     * @param sender             Sends an updateContext request to the broker (limit and retries included)
+     * @param concurrencyLimiter Limiter used by the sender, null if none
+     * @param circuitBreaker     Circuit breaker used by the sender, null if none
+     * @param batchSize          Maximum number of updates of a request (1 to send one request per update)
+     * @param batchLinger        Maximum time an update waits for other ones, in milliseconds
+     */
+    public ContextBrokerEndpoint(String url, UpdateContextBatcher.UpdateContextSender sender, AdaptiveConcurrencyLimiter concurrencyLimiter,
+                                 CircuitBreaker circuitBreaker, int batchSize, long batchLinger) {
+        this.url = url;
+        this.sender = sender;
+        this.batcher = batchSize > 1 ? new UpdateContextBatcher(sender, batchSize, batchLinger) : null;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Send an update to the broker
+     *
+     * @param contextElement Context element to update
+     * @return A future for the response concerning this element
+     */
+    public ListenableFuture<UpdateContextResponse> submit(ContextElement contextElement) {
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            if (batcher != null) {
+                future = batcher.submit(contextElement);
+            } else {
+                UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
+                updateContext.setContextElements(Collections.singletonList(contextElement));
+                future = sender.send(updateContext);
+            }
+        } catch (RuntimeException e) {
+            failedCount.increment();
+            SettableListenableFuture<UpdateContextResponse> failedFuture = new SettableListenableFuture<>();
+            failedFuture.setException(e);
+            return failedFuture;
+        }
+        future.addCallback(
+                updateContextResponse -> {
+                    sentCount.increment();
+                    lastSuccessTime = System.currentTimeMillis();
+                },
+                ex -> failedCount.increment());
+        return future;
+    }
+
+    /**
+     * Send the batched updates without waiting for the linger time
+     */
+    public void flush() {
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Send the batched updates and stop the thread of the batches
+     */
+    public void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Wait until the broker can accept more requests
+     *
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public void awaitCapacity() throws InterruptedException {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.awaitCapacity();
+        }
+    }
+
+    /**
+     * @return URL of the context broker
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return <code>true</code> unless the circuit breaker of the broker is open after successive failures
+     */
+    public boolean isAvailable() {
+        return circuitBreaker == null || circuitBreaker.getState() != CircuitBreaker.State.OPEN;
+    }
+
+    /**
+     * @return Limiter of the requests in flight to the broker (limit, latency), null if none
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @return Batcher of the requests to the broker, null if the updates are not batched
+     */
+    public UpdateContextBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * @return Time of the last update received by the broker in milliseconds, 0 if none
+     */
+    public long getLastSuccessTime() {
+        return lastSuccessTime;
+    }
+
+    /**
+     * @return Number of updates received by the broker
+     */
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /**
+     * @return Number of updates which have failed after their retries
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+}
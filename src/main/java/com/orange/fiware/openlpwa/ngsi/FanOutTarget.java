@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.fiware.openlpwa.http.CircuitBreaker;
+import com.orange.ngsi.model.ContextElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Additional context broker receiving a copy of the updates, independently of the other brokers.
+ * The updates waiting for the broker (batched, queued by its concurrency limit, retried) are bounded: when the
+ * broker is too slow or unavailable, the new updates are dropped for this broker only and never block the caller.
+ */
+public class FanOutTarget {
+
+    private static Logger logger = LoggerFactory.getLogger(FanOutTarget.class);
+    private final ContextBrokerEndpoint endpoint;
+    private final int queueCapacity;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param url            URL of the context broker
+     * @param sender         Sends an updateContext request to the broker (retries included)
+     * @param circuitBreaker Circuit breaker of the broker, null if none
+     * @param queueCapacity  Maximum number of updates waiting for the broker
+     * @param batchSize      Maximum number of updates of a request (1 to send one request per update)
+     * @param batchLinger    Maximum time an update waits for other ones, in milliseconds
+     */
+    public FanOutTarget(String url, UpdateContextBatcher.UpdateContextSender sender, CircuitBreaker circuitBreaker,
+                        int queueCapacity, int batchSize, long batchLinger) {
+        this(new ContextBrokerEndpoint(url, sender, null, circuitBreaker, batchSize, batchLinger), queueCapacity);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param endpoint      Context broker
+     * @param queueCapacity Maximum number of updates waiting for the broker
+     */
+    public FanOutTarget(ContextBrokerEndpoint endpoint, int queueCapacity) {
+        this.endpoint = endpoint;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Send an update to the broker, without waiting
+     *
+     * @param contextElement Context element to update
+     * @return <code>false</code> if the update is dropped because too many updates are waiting for the broker
+     */
+    public boolean submit(ContextElement contextElement) {
+        if (pendingCount.incrementAndGet() > queueCapacity) {
+            pendingCount.decrementAndGet();
+            droppedCount.increment();
+            return false;
+        }
+
+        endpoint.submit(contextElement).addCallback(
+                updateContextResponse -> pendingCount.decrementAndGet(),
+                ex -> {
+                    pendingCount.decrementAndGet();
+                    logger.debug("Update not sent to {}: {}", endpoint.getUrl(), ex.getMessage());
+                });
+        return true;
+    }
+
+    /**
+     * @return Context broker receiving the updates
+     */
+    public ContextBrokerEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return URL of the context broker
+     */
+    public String getUrl() {
+        return endpoint.getUrl();
+    }
+
+    /**
+     * @return <code>true</code> unless the circuit breaker of the broker is open after successive failures
+     */
+    public boolean isAvailable() {
+        return endpoint.isAvailable();
+    }
+
+    /**
+     * @return Time of the last update received by the broker in milliseconds, 0 if none
+     */
+    public long getLastSuccessTime() {
+        return endpoint.getLastSuccessTime();
+    }
+
+    /**
+     * @return Number of updates waiting for the broker
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return Number of updates received by the broker
+     */
+    public long getSentCount() {
+        return endpoint.getSentCount();
+    }
+
+    /**
+     * @return Number of updates which have failed after their retries
+     */
+    public long getFailedCount() {
+        return endpoint.getFailedCount();
+    }
+
+    /**
+     * @return Number of updates dropped because too many updates were waiting for the broker
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+}
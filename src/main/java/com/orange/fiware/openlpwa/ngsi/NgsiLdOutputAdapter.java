@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.orange.ngsi.model.CodeEnum;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextElementResponse;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.StatusCode;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the updates with the NGSI-LD batch upsert operation
+ * (<code>POST /ngsi-ld/v1/entityOperations/upsert?options=update</code>), the attributes of existing entities being
+ * updated instead of replaced:
+ * <pre>
+ * [{"id":"urn:ngsi-ld:Device:device1","type":"Device","temperature":{"type":"Property","value":21.5}}]
+ * </pre>
+ * The attributes and their metadata are sent as properties, the entity identifiers which are not URIs are prefixed
+ * by <code>urn:ngsi-ld:&lt;type&gt;:</code>. The JSON-LD context is given in a Link header.
+ */
+public class NgsiLdOutputAdapter extends StreamingOutputAdapter {
+
+    public final static String UPSERT_PATH = "/ngsi-ld/v1/entityOperations/upsert?options=update";
+    private final static String contextRelation = "http://www.w3.org/ns/json-ld#context";
+    private final static int multiStatus = 207;
+    private final String contextLink;
+    private final String defaultEntityType;
+
+    /**
+     * Constructor
+     *
+     * @param url               URL of the context broker
+     * @param requestFactory    Factory of the Http requests
+     * @param context           URL of the JSON-LD context of the attributes, empty for the core context
+     * @param defaultEntityType Type of the entities sent without a type
+     */
+    public NgsiLdOutputAdapter(String url, AsyncClientHttpRequestFactory requestFactory, String context, String defaultEntityType) {
+        super(operationUri(url, UPSERT_PATH), requestFactory);
+        this.contextLink = isEmpty(context) ? null
+                : "<" + context + ">; rel=\"" + contextRelation + "\"; type=\"application/ld+json\"";
+        this.defaultEntityType = defaultEntityType;
+    }
+
+    /**
+     * Identifier of an entity in NGSI-LD
+     *
+     * @param id   Identifier of the entity
+     * @param type Type of the entity
+     * @return The identifier if it is already a URI, else a URN built from the type and the identifier
+     */
+    public static String entityUri(String id, String type) {
+        if (id.indexOf(':') > 0) {
+            return id;
+        }
+        return "urn:ngsi-ld:" + type + ":" + id;
+    }
+
+    @Override
+    protected void prepareHeaders(HttpHeaders headers) {
+        if (contextLink != null) {
+            headers.set(HttpHeaders.LINK, contextLink);
+        }
+        // Tenant of the entities, named differently in NGSI-LD
+        String service = headers.getFirst("Fiware-Service");
+        if (service != null) {
+            headers.set("NGSILD-Tenant", service);
+        }
+    }
+
+    @Override
+    protected void writeBody(JsonGenerator generator, UpdateContext updateContext) throws IOException {
+        generator.writeStartArray();
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            String type = entityType(contextElement);
+            generator.writeStartObject();
+            generator.writeStringField("id", entityUri(contextElement.getEntityId().getId(), type));
+            generator.writeStringField("type", type);
+            if (contextElement.getContextAttributeList() != null) {
+                for (ContextAttribute attribute : contextElement.getContextAttributeList()) {
+                    generator.writeObjectFieldStart(attribute.getName());
+                    generator.writeStringField("type", "Property");
+                    generator.writeObjectField("value", attribute.getValue());
+                    if (attribute.getMetadata() != null) {
+                        for (ContextMetadata metadata : attribute.getMetadata()) {
+                            generator.writeObjectFieldStart(metadata.getName());
+                            generator.writeStringField("type", "Property");
+                            generator.writeObjectField("value", metadata.getValue());
+                            generator.writeEndObject();
+                        }
+                    }
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Read a successful response: a multi-status response lists the entities which have not been updated
+     */
+    @Override
+    protected UpdateContextResponse readResponse(ClientHttpResponse response, UpdateContext updateContext) throws IOException {
+        if (response.getRawStatusCode() != multiStatus) {
+            return super.readResponse(response, updateContext);
+        }
+
+        Map<String, StatusCode> errors = new HashMap<>();
+        JsonNode body = objectMapper.readTree(response.getBody());
+        for (JsonNode error : body.path("errors")) {
+            JsonNode details = error.path("error");
+            StatusCode statusCode = new StatusCode(statusCode(details.path("status").asInt()));
+            if (details.hasNonNull("detail")) {
+                statusCode.setDetail(details.get("detail").asText());
+            }
+            errors.put(error.path("entityId").asText(), statusCode);
+        }
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>(updateContext.getContextElements().size());
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            StatusCode statusCode = errors.get(entityUri(contextElement.getEntityId().getId(), entityType(contextElement)));
+            contextElementResponses.add(new ContextElementResponse(contextElement,
+                    statusCode != null ? statusCode : new StatusCode(CodeEnum.CODE_200)));
+        }
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(contextElementResponses);
+        return updateContextResponse;
+    }
+
+    private String entityType(ContextElement contextElement) {
+        String type = contextElement.getEntityId().getType();
+        return isEmpty(type) ? defaultEntityType : type;
+    }
+
+    private static CodeEnum statusCode(int status) {
+        if (status == 404) {
+            return CodeEnum.CODE_404;
+        }
+        if (status >= 500) {
+            return CodeEnum.CODE_500;
+        }
+        return CodeEnum.CODE_400;
+    }
+}
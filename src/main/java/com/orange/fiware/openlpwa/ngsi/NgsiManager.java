@@ -18,31 +18,31 @@
 
 package com.orange.fiware.openlpwa.ngsi;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.fiware.openlpwa.exception.AgentException;
+import com.orange.fiware.openlpwa.http.PooledHttpTransport;
+import com.orange.fiware.openlpwa.http.ResilientCaller;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Manage Ngsi operations
@@ -55,30 +55,78 @@ public class NgsiManager {
     public final static String COMMAND_STATUS_SUFFIX = "_commandStatus";
     public final static String COMMAND_SENT = "SENT";
     public final static String COMMAND_ERROR = "ERROR";
-    @Value("${contextBroker.localUrl}")
-    private String contextBrokerLocalUrl;
     @Value("${contextBroker.remoteUrl}")
     private String contextBrokerRemoteUrl;
-    @Value("${contextBroker.remoteAuthToken}")
-    private String contextBrokerRemoteAuthToken;
-    @Value("${contextBroker.remoteAuthTokenURI}")
-    private String contextBrokerRemoteAuthTokenURI;
-    @Value("${contextBroker.remoteClientId}")
-    private String contextBrokerRemoteClientId;
-    @Value("${contextBroker.remoteClientSecret}")
-    private String contextBrokerRemoteClientSecret;
-    @Value("${contextBroker.remoteUserLogin}")
-    private String contextBrokerRemoteUserLogin;
-    @Value("${contextBroker.remoteUserPassword}")
-    private String contextBrokerRemoteUserPassword;
 
     @Value("${contextBroker.remoteFiwareService}")
     private String contextBrokerRemoteFiwareService;
     @Value("${contextBroker.remoteFiwareServicePath}")
     private String contextBrokerRemoteFiwareServicePath;
+    @Value("${contextBroker.tenants:}")
+    private String tenantNames;
+    @Value("${contextBroker.outputFormat:v1}")
+    private String outputFormat;
+    @Value("${contextBroker.ngsiLd.context:}")
+    private String ngsiLdContext;
+    @Value("${contextBroker.ngsiLd.entityType:Device}")
+    private String ngsiLdEntityType;
+    @Value("${contextBroker.fanOut.urls:}")
+    private String fanOutUrls;
+    @Value("${contextBroker.fanOut.queueCapacity:10000}")
+    private int fanOutQueueCapacity;
+    @Value("${contextBroker.shards:}")
+    private String shardUrls;
+    @Value("${contextBroker.shards.virtualNodes:160}")
+    private int shardVirtualNodes;
+    @Value("${contextBroker.batchSize:1}")
+    private int batchSize;
+    @Value("${contextBroker.batchLinger:20}")
+    private long batchLinger;
+    @Value("${contextBroker.coalescing.interval:0}")
+    private long coalescingInterval;
+    @Value("${contextBroker.coalescing.tickDuration:100}")
+    private long coalescingTickDuration;
+    @Value("${contextBroker.concurrency.initialLimit:0}")
+    private int concurrencyInitialLimit;
+    @Value("${contextBroker.concurrency.minLimit:1}")
+    private int concurrencyMinLimit;
+    @Value("${contextBroker.concurrency.maxLimit:20}")
+    private int concurrencyMaxLimit;
+    @Value("${contextBroker.concurrency.latencyThreshold:1000}")
+    private long concurrencyLatencyThreshold;
+    @Value("${contextBroker.concurrency.queueCapacity:1000}")
+    private int concurrencyQueueCapacity;
     @Autowired
     private NgsiClient ngsiClient;
+    @Autowired
+    private AccessTokenManager accessTokenManager;
+    @Autowired(required = false)
+    private ResilientCaller resilientCaller;
+    @Autowired(required = false)
+    private Environment environment;
+    private volatile NgsiOutputAdapter outputAdapter;
+    private volatile UpdateContextBatcher updateContextBatcher;
+    private volatile AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private volatile AttributeCoalescer attributeCoalescer;
+    // Fan-out brokers of each tenant, by tenant name: the copies of an update keep the headers of its tenant
+    private volatile Map<String, List<FanOutTarget>> fanOutTargets;
+    private volatile ConsistentHashRing<ContextBrokerEndpoint> shardRing;
+    private volatile TenantRouter tenantRouter;
+    private volatile Map<String, ContextBrokerEndpoint> tenantEndpoints;
+    private PooledHttpTransport httpTransport;
 
+    /**
+     * Send the context broker requests through the shared connection pool
+     *
+     * @param httpTransport Pooled Http transport
+     */
+    @Autowired(required = false)
+    public void setHttpTransport(PooledHttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+        if (ngsiClient != null && ngsiClient.asyncRestTemplate != null) {
+            ngsiClient.asyncRestTemplate.setAsyncRequestFactory(httpTransport.getRequestFactory());
+        }
+    }
 
     /**
      * Updates a subscription
@@ -96,7 +144,7 @@ public class NgsiManager {
         UpdateContextSubscription updateContextSubscription = new UpdateContextSubscription();
         updateContextSubscription.setSubscriptionId(subscriptionId);
         updateContextSubscription.setDuration("P1M");
-        return ngsiClient.updateContextSubscription(contextBrokerRemoteUrl, remoteHeaders(), updateContextSubscription);
+        return sendToRemote(headers -> ngsiClient.updateContextSubscription(contextBrokerRemoteUrl, headers, updateContextSubscription));
     }
 
     /**
@@ -112,97 +160,600 @@ public class NgsiManager {
             logger.error(errorMsg);
             throw new AgentException(errorMsg);
         }
-        return ngsiClient.unsubscribeContext(contextBrokerRemoteUrl, remoteHeaders(), subscriptionId);
+        return sendToRemote(headers -> ngsiClient.unsubscribeContext(contextBrokerRemoteUrl, headers, subscriptionId));
     }
 
     /**
-     * Updates device attributes sending an updateContext request to the context broker with the deviceID
+     * Updates device attributes sending an updateContext request to the context broker with the deviceID, and a
+     * copy to the fan-out brokers
      *
      * @param deviceID      Device identifier
      * @param attributeList Attributes to update
-     * @return A future for UpdateContextResponse
+     * @return A future for UpdateContextResponse of the remote context broker
      * @throws AgentException when the deviceID is null or where there isn't an attribute to update
      */
     public ListenableFuture<UpdateContextResponse> updateDeviceAttributes(String deviceID, List<ContextAttribute> attributeList) throws AgentException {
-        UpdateContext context = new UpdateContext();
-        context.setUpdateAction(UpdateAction.APPEND);
-        List<ContextElement> elementList = new ArrayList<>();
+        fanOutDeviceAttributes(deviceID, attributeList);
+        return updateRemoteDeviceAttributes(deviceID, attributeList);
+    }
+
+    /**
+     * Updates device attributes in the remote context broker only, for instance to send again an update already
+     * received by the fan-out brokers
+     *
+     * @param deviceID      Device identifier
+     * @param attributeList Attributes to update
+     * @return A future for UpdateContextResponse
+     * @throws AgentException when the deviceID is null or where there isn't an attribute to update
+     */
+    public ListenableFuture<UpdateContextResponse> updateRemoteDeviceAttributes(String deviceID, List<ContextAttribute> attributeList) throws AgentException {
+        AttributeCoalescer coalescer = attributeCoalescer();
+        if (coalescer != null) {
+            return coalescer.submit(deviceID, attributeList);
+        }
+        return sendDeviceAttributes(deviceID, attributeList);
+    }
+
+    /**
+     * Updates device attributes of a given tenant in the remote context broker only, without coalescing them, for
+     * instance to send again a stored update
+     *
+     * @param deviceID      Device identifier
+     * @param tenantName    Name of the tenant of the update, null for the current tenant of the device
+     * @param attributeList Attributes to update
+     * @return A future for UpdateContextResponse
+     * @throws AgentException when the deviceID is null or where there isn't an attribute to update
+     */
+    public ListenableFuture<UpdateContextResponse> updateRemoteDeviceAttributes(String deviceID, String tenantName, List<ContextAttribute> attributeList) throws AgentException {
+        TenantRouter router = tenantRouter();
+        Tenant tenant = tenantName != null ? router.getTenant(tenantName) : null;
+        if (tenant == null) {
+            if (tenantName != null) {
+                logger.warn("Unknown tenant {}, update sent to the current tenant of the device (deviceID:{})", tenantName, deviceID);
+            }
+            tenant = router.tenant(deviceID);
+        }
+        return sendDeviceAttributes(deviceID, tenant, attributeList);
+    }
+
+    /**
+     * Send a copy of device attributes to the fan-out brokers, without waiting for them
+     *
+     * @param deviceID      Device identifier
+     * @param attributeList Attributes to update
+     */
+    public void fanOutDeviceAttributes(String deviceID, List<ContextAttribute> attributeList) {
+        List<FanOutTarget> targets = fanOutTargets(tenantRouter().tenant(deviceID));
+        if (targets.isEmpty()) {
+            return;
+        }
         ContextElement element = new ContextElement();
         element.setEntityId(new EntityId(deviceID, "", false));
         element.setContextAttributeList(attributeList);
+        for (FanOutTarget target : targets) {
+            if (!target.submit(element)) {
+                logger.debug("Too many updates waiting for {}, update dropped (deviceID:{})", target.getUrl(), deviceID);
+            }
+        }
+    }
+
+    /**
+     * Get the additional context brokers receiving a copy of the updates, created on first use
+     *
+     * @return The fan-out brokers of all the tenants, empty if none
+     */
+    public List<FanOutTarget> fanOutTargets() {
+        List<FanOutTarget> targets = new ArrayList<>();
+        fanOutTargetsByTenant().values().forEach(targets::addAll);
+        return targets;
+    }
+
+    /**
+     * Get the additional context brokers receiving a copy of the updates of a tenant, created on first use
+     *
+     * @param tenant Tenant
+     * @return The fan-out brokers of the tenant, each one with the headers of the tenant, empty if none
+     */
+    public List<FanOutTarget> fanOutTargets(Tenant tenant) {
+        return fanOutTargetsByTenant().getOrDefault(tenant.getName(), Collections.emptyList());
+    }
+
+    private Map<String, List<FanOutTarget>> fanOutTargetsByTenant() {
+        Map<String, List<FanOutTarget>> targets = fanOutTargets;
+        if (targets == null) {
+            synchronized (this) {
+                targets = fanOutTargets;
+                if (targets == null) {
+                    targets = createFanOutTargets();
+                    fanOutTargets = targets;
+                }
+            }
+        }
+        return targets;
+    }
+
+    private Map<String, List<FanOutTarget>> createFanOutTargets() {
+        if (fanOutUrls == null || fanOutUrls.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<FanOutTarget>> targets = new HashMap<>();
+        for (Tenant tenant : tenantRouter().getTenants()) {
+            List<FanOutTarget> tenantTargets = new ArrayList<>();
+            for (String url : fanOutUrls.split(",")) {
+                String targetUrl = url.trim();
+                if (!targetUrl.isEmpty()) {
+                    tenantTargets.add(new FanOutTarget(createEndpoint(targetUrl, tenant), fanOutQueueCapacity));
+                }
+            }
+            targets.put(tenant.getName(), Collections.unmodifiableList(tenantTargets));
+        }
+        logger.info("Updates copied to the context brokers {}", fanOutUrls);
+        return Collections.unmodifiableMap(targets);
+    }
+
+    /**
+     * Select the tenant of a device from its model, the next updates of the device are sent to this tenant
+     *
+     * @param deviceID Device identifier
+     * @param model    Model of the device, null if unknown
+     * @return The tenant of the device
+     */
+    public Tenant routeDevice(String deviceID, String model) {
+        return tenantRouter().route(deviceID, model);
+    }
+
+    /**
+     * Get the router selecting the tenant of each device, created on first use
+     *
+     * @return The router, with the remote context broker service as default tenant
+     */
+    public TenantRouter tenantRouter() {
+        TenantRouter router = tenantRouter;
+        if (router == null) {
+            synchronized (this) {
+                router = tenantRouter;
+                if (router == null) {
+                    Tenant defaultTenant = new Tenant("default", null, contextBrokerRemoteFiwareService,
+                            contextBrokerRemoteFiwareServicePath, null);
+                    router = environment != null
+                            ? TenantRouter.fromProperties(defaultTenant, tenantNames, environment)
+                            : new TenantRouter(defaultTenant, Collections.emptyMap(), Collections.emptyMap());
+                    tenantRouter = router;
+                }
+            }
+        }
+        return router;
+    }
+
+    /**
+     * Get the context broker receiving the updates of a tenant other than the default one
+     *
+     * @param tenant Tenant
+     * @return The context broker of the tenant, with its own batches since they can't mix tenants
+     */
+    public ContextBrokerEndpoint tenantEndpoint(Tenant tenant) {
+        Map<String, ContextBrokerEndpoint> endpoints = tenantEndpoints;
+        if (endpoints == null) {
+            synchronized (this) {
+                endpoints = tenantEndpoints;
+                if (endpoints == null) {
+                    endpoints = new HashMap<>();
+                    TenantRouter router = tenantRouter();
+                    for (Tenant routedTenant : router.getTenants()) {
+                        if (routedTenant != router.getDefaultTenant()) {
+                            String url = routedTenant.getUrl() != null ? routedTenant.getUrl() : contextBrokerRemoteUrl;
+                            endpoints.put(routedTenant.getName(), createEndpoint(url, routedTenant));
+                            logger.info("Updates of the tenant {} sent to {}", routedTenant.getName(), url);
+                        }
+                    }
+                    endpoints = Collections.unmodifiableMap(endpoints);
+                    tenantEndpoints = endpoints;
+                }
+            }
+        }
+        return endpoints.get(tenant.getName());
+    }
+
+    /**
+     * Get the ring distributing the entities between the context broker shards, created on first use
+     *
+     * @return The ring, null if the updates are not sharded
+     */
+    public ConsistentHashRing<ContextBrokerEndpoint> shardRing() {
+        if (shardUrls == null || shardUrls.trim().isEmpty()) {
+            return null;
+        }
+        ConsistentHashRing<ContextBrokerEndpoint> ring = shardRing;
+        if (ring == null) {
+            synchronized (this) {
+                ring = shardRing;
+                if (ring == null) {
+                    ring = createShardRing();
+                    shardRing = ring;
+                }
+            }
+        }
+        return ring;
+    }
+
+    private ConsistentHashRing<ContextBrokerEndpoint> createShardRing() {
+        List<ContextBrokerEndpoint> shards = new ArrayList<>();
+        for (String url : shardUrls.split(",")) {
+            String shardUrl = url.trim();
+            if (!shardUrl.isEmpty()) {
+                shards.add(createEndpoint(shardUrl, tenantRouter().getDefaultTenant()));
+            }
+        }
+        logger.info("Updates sharded between {} context brokers", shards.size());
+        // The position of a shard only depends on its URL: adding a shard only moves the entities it takes
+        return new ConsistentHashRing<>(shards, ContextBrokerEndpoint::getUrl, shardVirtualNodes);
+    }
+
+    /**
+     * Create a context broker with its own adapter, batches, limit and circuit breaker
+     *
+     * @param url    URL of the context broker
+     * @param tenant Tenant of the updates sent to the context broker
+     * @return The context broker
+     */
+    private ContextBrokerEndpoint createEndpoint(String url, Tenant tenant) {
+        NgsiOutputAdapter adapter = createOutputAdapter(url);
+        AdaptiveConcurrencyLimiter limiter = createConcurrencyLimiter();
+        ResilientCaller caller = resilientCaller;
+        return new ContextBrokerEndpoint(url,
+                context -> send(url, limiter, tenant, headers -> adapter.updateContext(headers, context)),
+                limiter, caller != null ? caller.circuitBreaker(url) : null, batchSize, batchLinger);
+    }
+
+    /**
+     * Get the statistics of the connections to a context broker
+     *
+     * @param endpoint Context broker
+     * @return The statistics of its connections in the shared pool, null without a pool
+     */
+    public PoolStats getPoolStats(ContextBrokerEndpoint endpoint) {
+        PooledHttpTransport transport = httpTransport;
+        return transport != null ? transport.getPoolStats(endpoint.getUrl()) : null;
+    }
+
+    /**
+     * Send the attributes of a device, in a batch if enabled
+     *
+     * @param deviceID      Device identifier
+     * @param attributeList Attributes to update
+     * @return A future for UpdateContextResponse
+     */
+    private ListenableFuture<UpdateContextResponse> sendDeviceAttributes(String deviceID, List<ContextAttribute> attributeList) {
+        return sendDeviceAttributes(deviceID, tenantRouter().tenant(deviceID), attributeList);
+    }
+
+    /**
+     * Send the attributes of a device to a tenant, in a batch if enabled
+     *
+     * @param deviceID      Device identifier
+     * @param tenant        Tenant of the update
+     * @param attributeList Attributes to update
+     * @return A future for UpdateContextResponse
+     */
+    private ListenableFuture<UpdateContextResponse> sendDeviceAttributes(String deviceID, Tenant tenant, List<ContextAttribute> attributeList) {
+        ContextElement element = new ContextElement();
+        element.setEntityId(new EntityId(deviceID, "", false));
+        element.setContextAttributeList(attributeList);
+        TenantRouter router = tenantRouter();
+        if (tenant != router.getDefaultTenant()) {
+            logger.debug("Sending an update to the tenant {} (deviceID:{})", tenant.getName(), deviceID);
+            return tenantEndpoint(tenant).submit(element);
+        }
+        ConsistentHashRing<ContextBrokerEndpoint> ring = shardRing();
+        if (ring != null) {
+            ContextBrokerEndpoint shard = ring.get(deviceID);
+            logger.debug("Sending an update to the context broker shard {} (deviceID:{})", shard.getUrl(), deviceID);
+            return shard.submit(element);
+        }
+        UpdateContextBatcher batcher = updateContextBatcher();
+        if (batcher != null) {
+            logger.debug("Adding an update to the next context broker request (deviceID:{}, list:{})", deviceID, attributeList);
+            return batcher.submit(element);
+        }
+
+        UpdateContext context = new UpdateContext();
+        context.setUpdateAction(UpdateAction.APPEND);
+        List<ContextElement> elementList = new ArrayList<>();
         elementList.add(element);
         context.setContextElements(elementList);
-        logger.info("Sending an update request to the context broker (deviceID:{}, context:{}, list:{})", deviceID, context, attributeList);
-        return ngsiClient.updateContext(contextBrokerRemoteUrl, remoteHeaders(), context);
+        logger.debug("Sending an update request to the context broker (deviceID:{})", deviceID);
+        return sendToRemote(headers -> outputAdapter().updateContext(headers, context));
     }
 
     /**
-     * Generates headers for Context Broker
+     * Get the adapter sending the updates in the configured NGSI version, created on first use
      *
-     * @return Http headers for provided configuration
+     * @return The adapter
+     * @throws IllegalArgumentException when the output format is unknown
      */
-    private HttpHeaders remoteHeaders() {
-        HttpHeaders httpHeaders = new HttpHeaders();
+    public NgsiOutputAdapter outputAdapter() {
+        NgsiOutputAdapter adapter = outputAdapter;
+        if (adapter == null) {
+            synchronized (this) {
+                adapter = outputAdapter;
+                if (adapter == null) {
+                    adapter = createOutputAdapter(contextBrokerRemoteUrl);
+                    outputAdapter = adapter;
+                }
+            }
+        }
+        return adapter;
+    }
 
+    private NgsiOutputAdapter createOutputAdapter(String url) {
+        // Each context broker has its own connections, a stalled one can't take those of the others
+        PooledHttpTransport transport = httpTransport;
+        if (transport != null) {
+            transport.reserveConnections(url);
+        }
+        // Same connections as the NgsiClient
+        AsyncClientHttpRequestFactory requestFactory = ngsiClient.asyncRestTemplate.getAsyncRequestFactory();
+        if (outputFormat == null || outputFormat.isEmpty() || "v1".equalsIgnoreCase(outputFormat)) {
+            return new NgsiV1OutputAdapter(url, requestFactory);
+        }
+        if ("v2".equalsIgnoreCase(outputFormat)) {
+            return new NgsiV2OutputAdapter(url, requestFactory);
+        }
+        if ("ld".equalsIgnoreCase(outputFormat)) {
+            return new NgsiLdOutputAdapter(url, requestFactory, ngsiLdContext, ngsiLdEntityType);
+        }
+        throw new IllegalArgumentException("Unknown context broker output format: " + outputFormat);
+    }
 
-        if (contextBrokerRemoteAuthToken == null) {
-            setAccessTokenSync();
+    /**
+     * Get the coalescer of the updates of each device, created on first use
+     *
+     * @return The coalescer, null if the updates are not coalesced
+     */
+    public AttributeCoalescer attributeCoalescer() {
+        if (coalescingInterval <= 0) {
+            return null;
+        }
+        AttributeCoalescer coalescer = attributeCoalescer;
+        if (coalescer == null) {
+            synchronized (this) {
+                coalescer = attributeCoalescer;
+                if (coalescer == null) {
+                    coalescer = new AttributeCoalescer(this::sendDeviceAttributes, coalescingInterval, coalescingTickDuration);
+                    attributeCoalescer = coalescer;
+                }
+            }
+        }
+        return coalescer;
+    }
+
+    /**
+     * Get the batcher of the updateContext requests, created on first use
+     *
+     * @return The batcher, null if the batches are disabled
+     */
+    public UpdateContextBatcher updateContextBatcher() {
+        if (batchSize <= 1) {
+            return null;
         }
-        if (contextBrokerRemoteAuthToken != null) {
-            httpHeaders.set("X-Auth-Token", contextBrokerRemoteAuthToken);
+        UpdateContextBatcher batcher = updateContextBatcher;
+        if (batcher == null) {
+            synchronized (this) {
+                batcher = updateContextBatcher;
+                if (batcher == null) {
+                    batcher = new UpdateContextBatcher(
+                            context -> sendToRemote(headers -> outputAdapter().updateContext(headers, context)),
+                            batchSize, batchLinger);
+                    updateContextBatcher = batcher;
+                }
+            }
         }
-        if (contextBrokerRemoteFiwareService != null && contextBrokerRemoteFiwareService.length() > 0) {
-            httpHeaders.set("Fiware-Service", contextBrokerRemoteFiwareService);
+        return batcher;
+    }
+
+    /**
+     * Get the limiter of the requests in flight to the context broker, created on first use
+     *
+     * @return The limiter, null if the requests are not limited
+     */
+    public AdaptiveConcurrencyLimiter concurrencyLimiter() {
+        if (concurrencyInitialLimit <= 0) {
+            return null;
         }
-        if (contextBrokerRemoteFiwareServicePath != null && contextBrokerRemoteFiwareServicePath.length() > 0) {
-            httpHeaders.set("Fiware-ServicePath", contextBrokerRemoteFiwareServicePath);
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            synchronized (this) {
+                limiter = concurrencyLimiter;
+                if (limiter == null) {
+                    limiter = createConcurrencyLimiter();
+                    concurrencyLimiter = limiter;
+                }
+            }
         }
-        httpHeaders.set("Accept", "application/json");
-        httpHeaders.set("Content-Type", "application/json");
+        return limiter;
+    }
 
-        return httpHeaders;
+    private AdaptiveConcurrencyLimiter createConcurrencyLimiter() {
+        if (concurrencyInitialLimit <= 0) {
+            return null;
+        }
+        int maxLimit = concurrencyMaxLimit;
+        PooledHttpTransport transport = httpTransport;
+        if (transport != null && maxLimit > transport.getMaxConnectionsPerRoute()) {
+            // The requests above the connections of the broker would wait for the pool, the limit would measure this wait
+            logger.warn("contextBroker.concurrency.maxLimit ({}) capped to http.maxConnectionsPerRoute ({})",
+                    maxLimit, transport.getMaxConnectionsPerRoute());
+            maxLimit = transport.getMaxConnectionsPerRoute();
+        }
+        return new AdaptiveConcurrencyLimiter(concurrencyInitialLimit, Math.min(concurrencyMinLimit, maxLimit), maxLimit,
+                concurrencyLatencyThreshold, concurrencyQueueCapacity);
     }
-    
-    public void setAccessTokenSync() {
 
-        if (contextBrokerRemoteClientId == null || contextBrokerRemoteClientSecret == null ||
-                contextBrokerRemoteUserLogin == null || contextBrokerRemoteUserPassword == null) {
-            return;
+    /**
+     * Wait until the context broker can accept more requests, to slow down the producers of updates
+     *
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public void awaitCapacity() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter();
+        if (limiter != null) {
+            limiter.awaitCapacity();
+        }
+    }
+
+    /**
+     * Wait until the context broker receiving the updates of a device can accept more requests
+     *
+     * @param deviceID Device identifier
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public void awaitCapacity(String deviceID) throws InterruptedException {
+        TenantRouter router = tenantRouter();
+        Tenant tenant = router.tenant(deviceID);
+        ConsistentHashRing<ContextBrokerEndpoint> ring = shardRing();
+        if (tenant != router.getDefaultTenant()) {
+            tenantEndpoint(tenant).awaitCapacity();
+        } else if (ring != null) {
+            ring.get(deviceID).awaitCapacity();
+        } else {
+            awaitCapacity();
         }
+    }
+
+    /**
+     * Send a request to the context broker, retried on transient failures and sent again with a new token when the
+     * authentication is rejected
+     *
+     * @param request Sends the request with the given headers
+     * @return A future for the response
+     */
+    private <T> ListenableFuture<T> sendToRemote(Function<HttpHeaders, ListenableFuture<T>> request) {
+        return send(contextBrokerRemoteUrl, concurrencyLimiter(), tenantRouter().getDefaultTenant(), request);
+    }
 
-        String encoding = Base64.getEncoder().encodeToString((contextBrokerRemoteClientId + ":" + contextBrokerRemoteClientSecret).getBytes(StandardCharsets.UTF_8));
+    /**
+     * Send a request to a context broker, retried on transient failures and sent again with a new token when the
+     * authentication is rejected
+     *
+     * @param url     URL of the context broker, identifying its circuit breaker
+     * @param limiter Limiter of the requests in flight to the context broker, null if none
+     * @param tenant  Tenant of the request, providing its headers
+     * @param request Sends the request with the given headers
+     * @return A future for the response
+     */
+    private <T> ListenableFuture<T> send(String url, AdaptiveConcurrencyLimiter limiter, Tenant tenant, Function<HttpHeaders, ListenableFuture<T>> request) {
+        // Each attempt waits for the limit
+        Supplier<ListenableFuture<T>> attempt = limiter != null
+                ? () -> limiter.submit(() -> withRemoteHeaders(tenant, request))
+                : () -> withRemoteHeaders(tenant, request);
+        ResilientCaller caller = resilientCaller;
+        if (caller == null) {
+            return attempt.get();
+        }
+        boolean reauthenticate = !tenant.hasAuthToken() && accessTokenManager.canRefresh();
+        return caller.call(url, attempt, reauthenticate ? accessTokenManager::refresh : null);
+    }
+
+    /**
+     * Send a request to the context broker once an access token is available, without blocking the caller
+     *
+     * @param tenant  Tenant of the request, providing its headers
+     * @param request Sends the request with the given headers
+     * @return A future for the response
+     */
+    private <T> ListenableFuture<T> withRemoteHeaders(Tenant tenant, Function<HttpHeaders, ListenableFuture<T>> request) {
+        if (tenant.hasAuthToken()) {
+            return request.apply(tenant.headers(null));
+        }
+        String token = accessTokenManager.getAccessToken();
+        if (token != null || !accessTokenManager.canRefresh()) {
+            return request.apply(tenant.headers(token));
+        }
+
+        // No token retrieved yet: the request is sent once the first token request is completed
+        SettableListenableFuture<T> result = new SettableListenableFuture<>();
+        accessTokenManager.refresh().addCallback(
+                newToken -> relay(tenant, request, newToken, result),
+                ex -> relay(tenant, request, null, result));
+        return result;
+    }
+
+    private <T> void relay(Tenant tenant, Function<HttpHeaders, ListenableFuture<T>> request, String token, SettableListenableFuture<T> result) {
         try {
-            HttpUriRequest request = RequestBuilder.post()
-                    .setUri(contextBrokerRemoteAuthTokenURI)
-                    .setHeader("Content-Type", "application/x-www-form-urlencoded")
-                    .setHeader("Authorization", "Basic " + encoding)
-                    .addParameter("grant_type", "password")
-                    .addParameter("username", contextBrokerRemoteUserLogin)
-                    .addParameter("password", contextBrokerRemoteUserPassword)
-                    .build();
-
-            CloseableHttpClient client = HttpClientBuilder.create().build();
-            CloseableHttpResponse response = client.execute(request);
-            HttpEntity entity = response.getEntity();
-
-            if (response.getStatusLine().getStatusCode() != 200) {
-                logger.error("Unable to retrieve token: status{}. Please check your credentials.", response.getStatusLine());
-            } else {
-                this.contextBrokerRemoteAuthToken = tokenParsing(EntityUtils.toString(entity)).getAccess_token();
-                logger.info("Token successfully recovered");
-            }
-        } catch (IOException e) {
-            logger.error("An error occurred while retrieving the token. error{}", e.getMessage());
+            request.apply(tenant.headers(token)).addCallback(result::set, result::setException);
+        } catch (RuntimeException e) {
+            result.setException(e);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the failed requests are sent again
+     */
+    public boolean isRetryEnabled() {
+        ResilientCaller caller = resilientCaller;
+        return caller != null && caller.isRetryEnabled();
+    }
+
+    /**
+     * Send the coalesced and batched updates at once and stop the background tasks, they are started again when
+     * needed
+     */
+    public void shutdown() {
+        AttributeCoalescer coalescer;
+        synchronized (this) {
+            coalescer = attributeCoalescer;
+            attributeCoalescer = null;
+        }
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+        UpdateContextBatcher batcher = updateContextBatcher;
+        if (batcher != null) {
+            batcher.shutdown();
         }
+        List<ContextBrokerEndpoint> endpoints = new ArrayList<>();
+        ConsistentHashRing<ContextBrokerEndpoint> ring = shardRing;
+        if (ring != null) {
+            endpoints.addAll(ring.getNodes());
+        }
+        Map<String, ContextBrokerEndpoint> routedEndpoints = tenantEndpoints;
+        if (routedEndpoints != null) {
+            endpoints.addAll(routedEndpoints.values());
+        }
+        Map<String, List<FanOutTarget>> targets = fanOutTargets;
+        if (targets != null) {
+            targets.values().forEach(tenantTargets -> tenantTargets.forEach(target -> endpoints.add(target.getEndpoint())));
+        }
+        endpoints.forEach(ContextBrokerEndpoint::shutdown);
+        ResilientCaller caller = resilientCaller;
+        if (caller != null) {
+            caller.shutdown();
+        }
+        accessTokenManager.shutdown();
     }
 
-    private TokenResponse tokenParsing(String tokenJsonReponse) {
+    /**
+     * Retrieve a new access token, concurrent calls share the same token request
+     *
+     * @return A future for the new access token
+     */
+    public ListenableFuture<String> refreshAccessToken() {
+        return accessTokenManager.refresh();
+    }
+
+    /**
+     * Retrieve a new access token and wait for it
+     *
+     * @deprecated Blocks the caller, use {@link #refreshAccessToken()}
+     */
+    @Deprecated
+    public void setAccessTokenSync() {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.readValue(tokenJsonReponse, TokenResponse.class);
-        } catch (JsonProcessingException e) {
-            logger.error("An error occurred while parsing the token. error{}", e.getMessage());
+            accessTokenManager.refresh().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("An error occurred while retrieving the token. error{}", e.getCause().getMessage());
         }
-        return null;
     }
 }
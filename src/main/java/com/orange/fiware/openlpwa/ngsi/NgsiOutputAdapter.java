@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Sends the context updates to the context broker in a given version of the NGSI API.
+ * The updates are built in the NGSI v1 model whatever the API, each adapter translating them to its own format and
+ * the response of the broker to an UpdateContextResponse, with one ContextElementResponse per updated entity.
+ */
+public interface NgsiOutputAdapter {
+
+    /**
+     * Send an update of several entities
+     *
+     * @param headers       Headers of the request (authentication, service, content type)
+     * @param updateContext Update of the entities
+     * @return A future for the response, failed with an HttpStatusCodeException when the request is rejected
+     */
+    ListenableFuture<UpdateContextResponse> updateContext(HttpHeaders headers, UpdateContext updateContext);
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.json.JsonWriteFeature;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.EntityIdMixIn;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends the updates with the NGSI v1 updateContext operation (<code>POST /ngsi10/updateContext</code>), in the JSON
+ * format of the NgsiClient: the entity identifier is unwrapped in the context element, numbers and booleans are
+ * written as strings.
+ * The beginning of the context element of an entity (type, isPattern and id fields) is encoded once and cached.
+ */
+public class NgsiV1OutputAdapter extends StreamingOutputAdapter {
+
+    public final static String UPDATE_PATH = "/ngsi10/updateContext";
+    // The cache is cleared when full, the prefixes of the active entities being encoded again
+    private final static int maxCachedPrefixes = 100000;
+    private final static SerializableString contextElementsField = new SerializedString("contextElements");
+    private final static SerializableString attributesField = new SerializedString("attributes");
+    private final static SerializableString metadatasField = new SerializedString("metadatas");
+    private final static SerializableString nameField = new SerializedString("name");
+    private final static SerializableString typeField = new SerializedString("type");
+    private final static SerializableString valueField = new SerializedString("value");
+    private final static SerializableString updateActionField = new SerializedString("updateAction");
+    private final ConcurrentMap<String, SerializableString> entityPrefixes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param url            URL of the context broker
+     * @param requestFactory Factory of the Http requests
+     */
+    public NgsiV1OutputAdapter(String url, AsyncClientHttpRequestFactory requestFactory) {
+        super(operationUri(url, UPDATE_PATH), requestFactory, v1ObjectMapper());
+    }
+
+    /**
+     * @return A mapper producing and reading the JSON format of the NgsiClient
+     */
+    static ObjectMapper v1ObjectMapper() {
+        ObjectMapper objectMapper = JsonMapper.builder()
+                .enable(JsonWriteFeature.WRITE_NUMBERS_AS_STRINGS)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .build();
+        objectMapper.registerModule(new SimpleModule("BooleanAsString").addSerializer(Boolean.class, ToStringSerializer.instance));
+        objectMapper.addMixIn(ContextElement.class, EntityIdMixIn.class);
+        return objectMapper;
+    }
+
+    @Override
+    protected void writeBody(JsonGenerator generator, UpdateContext updateContext) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName(contextElementsField);
+        generator.writeStartArray();
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            generator.writeStartObject();
+            // The prefix ends with a separator: the generator sees the attributes as the first field
+            generator.writeRaw(entityPrefix(contextElement.getEntityId()));
+            generator.writeFieldName(attributesField);
+            generator.writeStartArray();
+            if (contextElement.getContextAttributeList() != null) {
+                for (ContextAttribute attribute : contextElement.getContextAttributeList()) {
+                    writeAttribute(generator, attribute);
+                }
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeFieldName(updateActionField);
+        generator.writeString(updateContext.getUpdateAction() != null ? updateContext.getUpdateAction().name() : UpdateAction.APPEND.name());
+        generator.writeEndObject();
+    }
+
+    @Override
+    protected UpdateContextResponse readResponse(ClientHttpResponse response, UpdateContext updateContext) throws IOException {
+        if (response.getHeaders().getContentLength() == 0) {
+            return super.readResponse(response, updateContext);
+        }
+        return objectMapper.readValue(response.getBody(), UpdateContextResponse.class);
+    }
+
+    /**
+     * @return Number of cached entity prefixes
+     */
+    public int getCachedPrefixCount() {
+        return entityPrefixes.size();
+    }
+
+    /**
+     * Get the encoded beginning of the context element of an entity, created on first use
+     *
+     * @param entityId Entity identifier
+     * @return The type, isPattern and id fields followed by a separator
+     */
+    SerializableString entityPrefix(EntityId entityId) {
+        String type = entityId.getType() != null ? entityId.getType() : "";
+        boolean pattern = Boolean.TRUE.equals(entityId.getIsPattern());
+        String key = (pattern ? "p" : "e") + type + '\u0000' + entityId.getId();
+        SerializableString prefix = entityPrefixes.get(key);
+        if (prefix == null) {
+            if (entityPrefixes.size() >= maxCachedPrefixes) {
+                entityPrefixes.clear();
+            }
+            JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+            prefix = new SerializedString("\"type\":\"" + new String(encoder.quoteAsString(type))
+                    + "\",\"isPattern\":\"" + pattern
+                    + "\",\"id\":\"" + new String(encoder.quoteAsString(entityId.getId())) + "\",");
+            entityPrefixes.put(key, prefix);
+        }
+        return prefix;
+    }
+
+    private static void writeAttribute(JsonGenerator generator, ContextAttribute attribute) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName(nameField);
+        generator.writeString(attribute.getName());
+        generator.writeFieldName(typeField);
+        generator.writeString(attribute.getType());
+        generator.writeFieldName(valueField);
+        generator.writeObject(attribute.getValue());
+        if (attribute.getMetadata() != null && !attribute.getMetadata().isEmpty()) {
+            generator.writeFieldName(metadatasField);
+            generator.writeStartArray();
+            for (ContextMetadata metadata : attribute.getMetadata()) {
+                generator.writeStartObject();
+                generator.writeFieldName(nameField);
+                generator.writeString(metadata.getName());
+                generator.writeFieldName(typeField);
+                generator.writeString(metadata.getType());
+                generator.writeFieldName(valueField);
+                generator.writeObject(metadata.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+}
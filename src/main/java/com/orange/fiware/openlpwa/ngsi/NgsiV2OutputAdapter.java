@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+
+import java.io.IOException;
+
+/**
+ * Sends the updates with the NGSI v2 batch update operation (<code>POST /v2/op/update</code>):
+ * <pre>
+ * {"actionType":"append","entities":[{"id":"device1","temperature":{"type":"float","value":21.5}}]}
+ * </pre>
+ * The context broker answers with an empty response once all the entities are updated.
+ */
+public class NgsiV2OutputAdapter extends StreamingOutputAdapter {
+
+    public final static String UPDATE_PATH = "/v2/op/update";
+
+    /**
+     * Constructor
+     *
+     * @param url            URL of the context broker
+     * @param requestFactory Factory of the Http requests
+     */
+    public NgsiV2OutputAdapter(String url, AsyncClientHttpRequestFactory requestFactory) {
+        super(operationUri(url, UPDATE_PATH), requestFactory);
+    }
+
+    @Override
+    protected void writeBody(JsonGenerator generator, UpdateContext updateContext) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("actionType", actionType(updateContext.getUpdateAction()));
+        generator.writeArrayFieldStart("entities");
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            generator.writeStartObject();
+            generator.writeStringField("id", contextElement.getEntityId().getId());
+            // Without a type, the context broker uses its default entity type
+            if (!isEmpty(contextElement.getEntityId().getType())) {
+                generator.writeStringField("type", contextElement.getEntityId().getType());
+            }
+            if (contextElement.getContextAttributeList() != null) {
+                for (ContextAttribute attribute : contextElement.getContextAttributeList()) {
+                    writeAttribute(generator, attribute);
+                }
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private static void writeAttribute(JsonGenerator generator, ContextAttribute attribute) throws IOException {
+        generator.writeObjectFieldStart(attribute.getName());
+        if (!isEmpty(attribute.getType())) {
+            generator.writeStringField("type", attribute.getType());
+        }
+        generator.writeObjectField("value", attribute.getValue());
+        if (attribute.getMetadata() != null && !attribute.getMetadata().isEmpty()) {
+            generator.writeObjectFieldStart("metadata");
+            for (ContextMetadata metadata : attribute.getMetadata()) {
+                generator.writeObjectFieldStart(metadata.getName());
+                if (!isEmpty(metadata.getType())) {
+                    generator.writeStringField("type", metadata.getType());
+                }
+                generator.writeObjectField("value", metadata.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    private static String actionType(UpdateAction updateAction) {
+        if (updateAction == UpdateAction.UPDATE) {
+            return "update";
+        }
+        if (updateAction == UpdateAction.DELETE) {
+            return "delete";
+        }
+        return "append";
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi.model.CodeEnum;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextElementResponse;
+import com.orange.ngsi.model.StatusCode;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.AsyncClientHttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseErrorHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of the adapters sending the updates in JSON, written by a streaming generator: no intermediate object tree
+ * nor string is built. The body is written in a buffer reused by the requests of the same thread, then copied at
+ * once in the request with its length.
+ * A response with an error status fails with the HttpStatusCodeException of the status, as with the NgsiClient, so
+ * that the retry policy applies the same way whatever the API.
+ */
+public abstract class StreamingOutputAdapter implements NgsiOutputAdapter {
+
+    private final static ResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
+    // A buffer grown by a large batch is not kept
+    private final static int maxPooledBufferSize = 1024 * 1024;
+    private final static ThreadLocal<BodyBuffer> bodyBuffers = ThreadLocal.withInitial(BodyBuffer::new);
+    protected final ObjectMapper objectMapper;
+    private final URI uri;
+    private final AsyncClientHttpRequestFactory requestFactory;
+
+    /**
+     * Constructor
+     *
+     * @param uri            URI of the update operation
+     * @param requestFactory Factory of the Http requests
+     */
+    protected StreamingOutputAdapter(URI uri, AsyncClientHttpRequestFactory requestFactory) {
+        this(uri, requestFactory, new ObjectMapper());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param uri            URI of the update operation
+     * @param requestFactory Factory of the Http requests
+     * @param objectMapper   Mapper of the values and of the responses
+     */
+    protected StreamingOutputAdapter(URI uri, AsyncClientHttpRequestFactory requestFactory, ObjectMapper objectMapper) {
+        this.uri = uri;
+        this.requestFactory = requestFactory;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public ListenableFuture<UpdateContextResponse> updateContext(HttpHeaders headers, UpdateContext updateContext) {
+        SettableListenableFuture<UpdateContextResponse> result = new SettableListenableFuture<>();
+        ListenableFuture<ClientHttpResponse> future;
+        try {
+            AsyncClientHttpRequest request = requestFactory.createAsyncRequest(uri, HttpMethod.POST);
+            request.getHeaders().putAll(headers);
+            prepareHeaders(request.getHeaders());
+            BodyBuffer buffer = bodyBuffers.get();
+            try {
+                write(updateContext, buffer);
+                request.getHeaders().setContentLength(buffer.size());
+                buffer.writeTo(request.getBody());
+            } finally {
+                if (buffer.capacity() > maxPooledBufferSize) {
+                    bodyBuffers.remove();
+                } else {
+                    buffer.reset();
+                }
+            }
+            future = request.executeAsync();
+        } catch (IOException e) {
+            result.setException(new ResourceAccessException("Unable to send the update to " + uri + ": " + e.getMessage(), e));
+            return result;
+        }
+        future.addCallback(
+                response -> {
+                    try {
+                        if (errorHandler.hasError(response)) {
+                            errorHandler.handleError(response);
+                        }
+                        result.set(readResponse(response, updateContext));
+                    } catch (IOException | RuntimeException e) {
+                        result.setException(e);
+                    } finally {
+                        response.close();
+                    }
+                },
+                result::setException);
+        return result;
+    }
+
+    /**
+     * Write an update in the format of the API
+     *
+     * @param updateContext Update of the entities
+     * @param outputStream  Output
+     * @throws IOException Write failure
+     */
+    void write(UpdateContext updateContext, OutputStream outputStream) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            writeBody(generator, updateContext);
+        }
+    }
+
+    /**
+     * @return URI of the update operation
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Set the headers specific to the API
+     *
+     * @param headers Headers of the request
+     */
+    protected void prepareHeaders(HttpHeaders headers) {
+    }
+
+    /**
+     * Write the update in the format of the API
+     *
+     * @param generator     Generator writing in the body of the request
+     * @param updateContext Update of the entities
+     * @throws IOException Write failure
+     */
+    protected abstract void writeBody(JsonGenerator generator, UpdateContext updateContext) throws IOException;
+
+    /**
+     * Read a successful response, all the entities being updated unless overridden
+     *
+     * @param response      Response with a success status
+     * @param updateContext Update sent
+     * @return The response in the NGSI v1 model
+     * @throws IOException Read failure
+     */
+    protected UpdateContextResponse readResponse(ClientHttpResponse response, UpdateContext updateContext) throws IOException {
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>(updateContext.getContextElements().size());
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            contextElementResponses.add(new ContextElementResponse(contextElement, new StatusCode(CodeEnum.CODE_200)));
+        }
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(contextElementResponses);
+        return updateContextResponse;
+    }
+
+    /**
+     * Append a path to the URL of the context broker
+     *
+     * @param url  URL of the context broker
+     * @param path Path of the operation
+     * @return The URI of the operation
+     */
+    protected static URI operationUri(String url, String path) {
+        return URI.create(url.endsWith("/") ? url.substring(0, url.length() - 1) + path : url + path);
+    }
+
+    protected static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    /**
+     * Body of a request, kept between the requests of a thread
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+
+        BodyBuffer() {
+            super(4096);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
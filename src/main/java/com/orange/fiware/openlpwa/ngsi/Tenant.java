@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Context broker tenant: service, service path, broker URL and token of the updates of some devices.
+ * The headers of the requests are built once and shared by all the requests of the tenant, only a new access token
+ * builds new headers.
+ */
+public class Tenant {
+
+    private final String name;
+    private final String url;
+    private final String fiwareService;
+    private final String fiwareServicePath;
+    private final String authToken;
+    private final HttpHeaders headers;
+    private volatile TokenHeaders tokenHeaders;
+
+    /**
+     * Constructor
+     *
+     * @param name              Name of the tenant
+     * @param url               URL of the context broker, null to use the remote context broker
+     * @param fiwareService     Fiware-Service header, null if none
+     * @param fiwareServicePath Fiware-ServicePath header, null if none
+     * @param authToken         Access token of the tenant, null to use the token of the remote context broker
+     */
+    public Tenant(String name, String url, String fiwareService, String fiwareServicePath, String authToken) {
+        this.name = name;
+        this.url = emptyToNull(url);
+        this.fiwareService = emptyToNull(fiwareService);
+        this.fiwareServicePath = emptyToNull(fiwareServicePath);
+        this.authToken = emptyToNull(authToken);
+        this.headers = buildHeaders(this.authToken);
+    }
+
+    /**
+     * Get the headers of a request
+     *
+     * @param token Access token of the remote context broker, null if none (ignored if the tenant has its own token)
+     * @return Read-only headers of the request
+     */
+    public HttpHeaders headers(String token) {
+        if (authToken != null || token == null || token.isEmpty()) {
+            return headers;
+        }
+        TokenHeaders current = tokenHeaders;
+        if (current != null && current.token.equals(token)) {
+            return current.headers;
+        }
+        // The token has changed: the headers are built again once per token
+        current = new TokenHeaders(token, buildHeaders(token));
+        tokenHeaders = current;
+        return current.headers;
+    }
+
+    /**
+     * @return Name of the tenant
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return URL of the context broker, null to use the remote context broker
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Fiware-Service header, null if none
+     */
+    public String getFiwareService() {
+        return fiwareService;
+    }
+
+    /**
+     * @return Fiware-ServicePath header, null if none
+     */
+    public String getFiwareServicePath() {
+        return fiwareServicePath;
+    }
+
+    /**
+     * @return <code>true</code> if the tenant has its own access token
+     */
+    public boolean hasAuthToken() {
+        return authToken != null;
+    }
+
+    private HttpHeaders buildHeaders(String token) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        if (token != null) {
+            httpHeaders.set("X-Auth-Token", token);
+        }
+        if (fiwareService != null) {
+            httpHeaders.set("Fiware-Service", fiwareService);
+        }
+        if (fiwareServicePath != null) {
+            httpHeaders.set("Fiware-ServicePath", fiwareServicePath);
+        }
+        httpHeaders.set("Accept", "application/json");
+        httpHeaders.set("Content-Type", "application/json");
+        return HttpHeaders.readOnlyHttpHeaders(httpHeaders);
+    }
+
+    private static String emptyToNull(String value) {
+        return value != null && !value.trim().isEmpty() ? value.trim() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "Tenant{" +
+                "name='" + name + '\'' +
+                ", url='" + url + '\'' +
+                ", fiwareService='" + fiwareService + '\'' +
+                ", fiwareServicePath='" + fiwareServicePath + '\'' +
+                '}';
+    }
+
+    /**
+     * Headers built for an access token, replaced as a whole when the token changes
+     */
+    private static class TokenHeaders {
+
+        private final String token;
+        private final HttpHeaders headers;
+
+        TokenHeaders(String token, HttpHeaders headers) {
+            this.token = token;
+            this.headers = headers;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.springframework.core.env.PropertyResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the tenant of the updates of each device.
+ * A device is routed to the tenant listing its identifier, otherwise to the tenant listing its model, otherwise to
+ * the default tenant. The tenant found from the model of the last message of a device is remembered, so the updates
+ * sent later with the device identifier only (coalesced, retried) keep the same tenant.
+ */
+public class TenantRouter {
+
+    private final Tenant defaultTenant;
+    private final List<Tenant> tenants;
+    private final Map<String, Tenant> deviceTenants;
+    private final Map<String, Tenant> modelTenants;
+    private final Map<String, Tenant> routedDevices = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param defaultTenant Tenant of the devices not listed by any tenant
+     * @param deviceTenants Tenants by device identifier
+     * @param modelTenants  Tenants by device model
+     */
+    public TenantRouter(Tenant defaultTenant, Map<String, Tenant> deviceTenants, Map<String, Tenant> modelTenants) {
+        this.defaultTenant = defaultTenant;
+        this.deviceTenants = new HashMap<>(deviceTenants);
+        this.modelTenants = new HashMap<>(modelTenants);
+        List<Tenant> allTenants = new ArrayList<>();
+        allTenants.add(defaultTenant);
+        for (Tenant tenant : this.deviceTenants.values()) {
+            if (!allTenants.contains(tenant)) {
+                allTenants.add(tenant);
+            }
+        }
+        for (Tenant tenant : this.modelTenants.values()) {
+            if (!allTenants.contains(tenant)) {
+                allTenants.add(tenant);
+            }
+        }
+        this.tenants = Collections.unmodifiableList(allTenants);
+    }
+
+    /**
+     * Create a router from the tenant properties:
+     * <code>contextBroker.tenant.&lt;name&gt;.url</code>, <code>.fiwareService</code>, <code>.fiwareServicePath</code>,
+     * <code>.authToken</code>, <code>.devices</code> and <code>.models</code> (separated by commas)
+     *
+     * @param defaultTenant Tenant of the devices not listed by any tenant
+     * @param tenantNames   Names of the tenants, separated by commas
+     * @param properties    Properties of the tenants
+     * @return The router
+     * @throws IllegalArgumentException when a device or a model is listed by two tenants
+     */
+    public static TenantRouter fromProperties(Tenant defaultTenant, String tenantNames, PropertyResolver properties) {
+        Map<String, Tenant> deviceTenants = new HashMap<>();
+        Map<String, Tenant> modelTenants = new HashMap<>();
+        if (tenantNames != null) {
+            for (String tenantName : tenantNames.split(",")) {
+                String name = tenantName.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                String prefix = "contextBroker.tenant." + name + ".";
+                Tenant tenant = new Tenant(name, properties.getProperty(prefix + "url"),
+                        properties.getProperty(prefix + "fiwareService"), properties.getProperty(prefix + "fiwareServicePath"),
+                        properties.getProperty(prefix + "authToken"));
+                addKeys(deviceTenants, properties.getProperty(prefix + "devices"), tenant);
+                addKeys(modelTenants, properties.getProperty(prefix + "models"), tenant);
+            }
+        }
+        return new TenantRouter(defaultTenant, deviceTenants, modelTenants);
+    }
+
+    private static void addKeys(Map<String, Tenant> tenantsByKey, String keys, Tenant tenant) {
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys.split(",")) {
+            if (!key.trim().isEmpty() && tenantsByKey.put(key.trim(), tenant) != null) {
+                throw new IllegalArgumentException("Tenant defined twice for " + key.trim());
+            }
+        }
+    }
+
+    /**
+     * Select the tenant of a device from a message, and remember it for the next updates of the device
+     *
+     * @param deviceID Device identifier
+     * @param model    Model of the device, null if unknown
+     * @return The tenant of the device
+     */
+    public Tenant route(String deviceID, String model) {
+        Tenant tenant = deviceTenants.get(deviceID);
+        if (tenant != null) {
+            return tenant;
+        }
+        tenant = model != null ? modelTenants.get(model) : null;
+        if (tenant == null) {
+            // Only the devices outside the default tenant are remembered
+            if (!routedDevices.isEmpty()) {
+                routedDevices.remove(deviceID);
+            }
+            return defaultTenant;
+        }
+        if (routedDevices.get(deviceID) != tenant) {
+            routedDevices.put(deviceID, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Get the tenant of a device
+     *
+     * @param deviceID Device identifier
+     * @return The tenant listing the device, otherwise the tenant of its last message, otherwise the default tenant
+     */
+    public Tenant tenant(String deviceID) {
+        Tenant tenant = deviceTenants.get(deviceID);
+        if (tenant == null && !routedDevices.isEmpty()) {
+            tenant = routedDevices.get(deviceID);
+        }
+        return tenant != null ? tenant : defaultTenant;
+    }
+
+    /**
+     * @param name Name of a tenant
+     * @return The tenant, null if no tenant has this name
+     */
+    public Tenant getTenant(String name) {
+        for (Tenant tenant : tenants) {
+            if (tenant.getName().equals(name)) {
+                return tenant;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Tenant of the devices not listed by any tenant
+     */
+    public Tenant getDefaultTenant() {
+        return defaultTenant;
+    }
+
+    /**
+     * @return All the tenants, the default one first
+     */
+    public List<Tenant> getTenants() {
+        return tenants;
+    }
+
+    /**
+     * @return <code>true</code> if some devices are not routed to the default tenant
+     */
+    public boolean isMultiTenant() {
+        return tenants.size() > 1;
+    }
+}
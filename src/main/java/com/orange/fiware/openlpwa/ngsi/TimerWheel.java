@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel: a ring of buckets, one per tick, advanced by a single thread.
+ * A timeout is stored in the bucket of its deadline tick, modulo the size of the wheel, so scheduling is done in
+ * constant time whatever the number of timeouts. The timeouts expire with a precision of one tick.
+ *
+ * @param <T> Type of the items given back on expiration
+ */
+public class TimerWheel<T> {
+
+    private static Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+    private final long tickDuration;
+    private final List<Timeout<T>>[] buckets;
+    private final int mask;
+    private final Consumer<T> expiration;
+    private long currentTick = 0;
+    private int size = 0;
+    private ScheduledExecutorService ticker;
+
+    /**
+     * Constructor
+     * @param tickDuration Duration of a tick in milliseconds
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     * @param expiration Called with the items whose timeout has expired, on the thread of the wheel
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickDuration, int wheelSize, Consumer<T> expiration) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        int bucketCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickDuration = tickDuration;
+        this.buckets = new List[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.mask = bucketCount - 1;
+        this.expiration = expiration;
+    }
+
+    /**
+     * Start the thread of the wheel
+     * @param threadName Name of the thread
+     */
+    public synchronized void start(String threadName) {
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(this::advance, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the thread of the wheel, the pending timeouts never expire
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Schedule a timeout
+     * @param item Item given back on expiration
+     * @param delay Delay in milliseconds, rounded up to a number of ticks
+     */
+    public void schedule(T item, long delay) {
+        long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        synchronized (this) {
+            long deadline = currentTick + ticks;
+            buckets[(int) (deadline & mask)].add(new Timeout<>(item, deadline));
+            size++;
+        }
+    }
+
+    /**
+     * @return Number of pending timeouts
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Move to the next tick and expire its timeouts
+     */
+    void advance() {
+        List<T> expiredItems = null;
+        synchronized (this) {
+            currentTick++;
+            List<Timeout<T>> bucket = buckets[(int) (currentTick & mask)];
+            // The bucket also holds the timeouts of the next rounds
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Timeout<T> timeout = bucket.get(i);
+                if (timeout.deadline <= currentTick) {
+                    if (expiredItems == null) {
+                        expiredItems = new ArrayList<>();
+                    }
+                    expiredItems.add(timeout.item);
+                    bucket.set(i, bucket.get(bucket.size() - 1));
+                    bucket.remove(bucket.size() - 1);
+                    size--;
+                }
+            }
+        }
+        if (expiredItems != null) {
+            for (T item : expiredItems) {
+                try {
+                    expiration.accept(item);
+                } catch (RuntimeException e) {
+                    logger.error("Timeout processing failed", e);
+                }
+            }
+        }
+    }
+
+    private static class Timeout<T> {
+
+        private final T item;
+        private final long deadline;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
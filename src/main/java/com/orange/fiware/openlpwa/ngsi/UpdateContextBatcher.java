@@ -0,0 +1,399 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextElementResponse;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathers the context elements of several devices into a single updateContext request (APPEND action).
+ * A batch is sent when it reaches its maximum size or when its oldest element has waited for the linger time.
+ * Each caller gets its own future, completed with the part of the response concerning its element.
+ * A batch rejected by the context broker because of its size is split in two halves sent one after the other.
+ * An entity is in one batch in flight at most: its updates submitted meanwhile are held back until the batch is
+ * completed, so the updates of an entity reach the context broker in submission order.
+ */
+public class UpdateContextBatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(UpdateContextBatcher.class);
+    private final UpdateContextSender sender;
+    private final int maxBatchSize;
+    private final long linger;
+    private ScheduledExecutorService scheduler;
+    private List<PendingUpdate> pendingUpdates;
+    private ScheduledFuture<?> lingerFlush;
+    // Set by shutdown until the next submission: the elements released by the late responses are sent at once
+    private boolean stopped = false;
+    // Entities of the batches in flight, and their updates waiting for the batch
+    private final Set<String> inFlightEntities = new HashSet<>();
+    private final Map<String, Deque<PendingUpdate>> heldBackUpdates = new HashMap<>();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder sentElements = new LongAdder();
+    private final LongAdder splitBatches = new LongAdder();
+
+    /**
+     * Constructor
+     * @param sender Sends an updateContext request to the context broker
+     * @param maxBatchSize Maximum number of context elements of a request
+     * @param linger Maximum time an element waits for other ones, in milliseconds
+     */
+    public UpdateContextBatcher(UpdateContextSender sender, int maxBatchSize, long linger) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.sender = sender;
+        this.maxBatchSize = maxBatchSize;
+        this.linger = linger;
+        pendingUpdates = new ArrayList<>(maxBatchSize);
+    }
+
+    /**
+     * Add a context element to the next batch
+     * @param contextElement Context element to update
+     * @return A future for the response concerning this element
+     */
+    public ListenableFuture<UpdateContextResponse> submit(ContextElement contextElement) {
+        PendingUpdate pendingUpdate = new PendingUpdate(contextElement);
+        List<PendingUpdate> batch = null;
+        synchronized (this) {
+            stopped = false;
+            if (inFlightEntities.contains(pendingUpdate.entityId)) {
+                heldBackUpdates.computeIfAbsent(pendingUpdate.entityId, id -> new ArrayDeque<>()).add(pendingUpdate);
+                return pendingUpdate.future;
+            }
+            pendingUpdates.add(pendingUpdate);
+            if (pendingUpdates.size() >= maxBatchSize) {
+                batch = takeBatch();
+            } else {
+                scheduleFlush();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        return pendingUpdate.future;
+    }
+
+    /**
+     * Send the pending elements without waiting for the linger time
+     */
+    public void flush() {
+        List<PendingUpdate> batch;
+        synchronized (this) {
+            if (pendingUpdates.isEmpty()) {
+                return;
+            }
+            batch = takeBatch();
+        }
+        send(batch);
+    }
+
+    /**
+     * Send all the pending elements and stop the thread of the linger time, the elements released by the batches
+     * still in flight are sent at once and the next submissions start a new thread
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+        }
+        while (true) {
+            List<PendingUpdate> batch;
+            synchronized (this) {
+                if (pendingUpdates.isEmpty()) {
+                    break;
+                }
+                batch = takeBatch();
+            }
+            send(batch);
+        }
+        synchronized (this) {
+            if (lingerFlush != null) {
+                lingerFlush.cancel(false);
+                lingerFlush = null;
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    /**
+     * @return Number of updateContext requests sent
+     */
+    public long getSentBatchCount() {
+        return sentBatches.sum();
+    }
+
+    /**
+     * @return Number of context elements sent, the average batch size being this count divided by the batch count
+     */
+    public long getSentElementCount() {
+        return sentElements.sum();
+    }
+
+    /**
+     * @return Number of batches split because the context broker has rejected their size
+     */
+    public long getSplitBatchCount() {
+        return splitBatches.sum();
+    }
+
+    /**
+     * @return Number of updates held back until the batch of their entity is completed
+     */
+    public synchronized int getHeldBackCount() {
+        int count = 0;
+        for (Deque<PendingUpdate> updates : heldBackUpdates.values()) {
+            count += updates.size();
+        }
+        return count;
+    }
+
+    /**
+     * Take the next batch from the pending updates and mark its entities as in flight
+     */
+    private List<PendingUpdate> takeBatch() {
+        List<PendingUpdate> batch = pendingUpdates;
+        List<PendingUpdate> remaining = Collections.emptyList();
+        if (batch.size() > maxBatchSize) {
+            remaining = batch.subList(maxBatchSize, batch.size());
+            batch = batch.subList(0, maxBatchSize);
+        }
+        pendingUpdates = new ArrayList<>(maxBatchSize);
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        for (PendingUpdate pendingUpdate : batch) {
+            inFlightEntities.add(pendingUpdate.entityId);
+        }
+        for (PendingUpdate pendingUpdate : remaining) {
+            hold(pendingUpdate);
+        }
+        scheduleFlush();
+        return new ArrayList<>(batch);
+    }
+
+    /**
+     * Add an update to the pending ones, or hold it back if its entity is in flight
+     */
+    private void hold(PendingUpdate pendingUpdate) {
+        if (inFlightEntities.contains(pendingUpdate.entityId)) {
+            heldBackUpdates.computeIfAbsent(pendingUpdate.entityId, id -> new ArrayDeque<>()).add(pendingUpdate);
+        } else {
+            pendingUpdates.add(pendingUpdate);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!stopped && lingerFlush == null && !pendingUpdates.isEmpty()) {
+            lingerFlush = scheduler().schedule(this::flush, linger, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ngsi-batcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Release the entities of a completed batch, their held back updates become pending
+     * @param batch Completed batch
+     */
+    private void release(List<PendingUpdate> batch) {
+        List<PendingUpdate> nextBatch = null;
+        List<List<PendingUpdate>> remainingBatches = null;
+        synchronized (this) {
+            for (PendingUpdate pendingUpdate : batch) {
+                if (inFlightEntities.remove(pendingUpdate.entityId)) {
+                    Deque<PendingUpdate> heldBack = heldBackUpdates.remove(pendingUpdate.entityId);
+                    if (heldBack != null) {
+                        pendingUpdates.addAll(heldBack);
+                    }
+                }
+            }
+            if (stopped) {
+                // No thread is started once the batcher is shut down
+                remainingBatches = new ArrayList<>();
+                while (!pendingUpdates.isEmpty()) {
+                    remainingBatches.add(takeBatch());
+                }
+            } else if (pendingUpdates.size() >= maxBatchSize) {
+                nextBatch = takeBatch();
+            } else {
+                scheduleFlush();
+            }
+        }
+        if (nextBatch != null) {
+            send(nextBatch);
+        }
+        if (remainingBatches != null) {
+            remainingBatches.forEach(this::send);
+        }
+    }
+
+    private void send(List<PendingUpdate> batch) {
+        send(batch, () -> release(batch));
+    }
+
+    /**
+     * Send a batch
+     * @param batch Updates to send
+     * @param completion Run once the futures of the batch are completed
+     */
+    private void send(List<PendingUpdate> batch, Runnable completion) {
+        List<ContextElement> contextElements = new ArrayList<>(batch.size());
+        for (PendingUpdate pendingUpdate : batch) {
+            contextElements.add(pendingUpdate.contextElement);
+        }
+        UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
+        updateContext.setContextElements(contextElements);
+
+        ListenableFuture<UpdateContextResponse> future;
+        try {
+            future = sender.send(updateContext);
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            completion.run();
+            return;
+        }
+        sentBatches.increment();
+        sentElements.add(batch.size());
+        future.addCallback(
+                updateContextResponse -> {
+                    complete(batch, updateContextResponse);
+                    completion.run();
+                },
+                ex -> {
+                    if (batch.size() > 1 && isPayloadTooLarge(ex)) {
+                        logger.warn("Batch of {} elements rejected by the context broker, sending it in two parts", batch.size());
+                        splitBatches.increment();
+                        int half = batch.size() / 2;
+                        // The halves may hold updates of the same entity
+                        send(batch.subList(0, half), () -> send(batch.subList(half, batch.size()), completion));
+                    } else {
+                        fail(batch, ex);
+                        completion.run();
+                    }
+                });
+    }
+
+    private static boolean isPayloadTooLarge(Throwable ex) {
+        return ex instanceof HttpStatusCodeException
+                && ((HttpStatusCodeException) ex).getStatusCode() == HttpStatus.PAYLOAD_TOO_LARGE;
+    }
+
+    /**
+     * Complete the future of each element of a batch with its own response
+     * @param batch Elements of the request
+     * @param updateContextResponse Response of the request
+     */
+    private static void complete(List<PendingUpdate> batch, UpdateContextResponse updateContextResponse) {
+        if (updateContextResponse == null) {
+            batch.forEach(pendingUpdate -> pendingUpdate.future.set(null));
+            return;
+        }
+
+        List<ContextElementResponse> contextElementResponses = updateContextResponse.getContextElementResponses();
+        // The context broker answers in the order of the request
+        boolean ordered = contextElementResponses != null && contextElementResponses.size() == batch.size();
+        Map<String, List<ContextElementResponse>> responsesByEntity = ordered || contextElementResponses == null
+                ? null : responsesByEntity(contextElementResponses);
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingUpdate pendingUpdate = batch.get(i);
+            UpdateContextResponse response = new UpdateContextResponse();
+            response.setErrorCode(updateContextResponse.getErrorCode());
+            if (ordered) {
+                response.setContextElementResponses(Collections.singletonList(contextElementResponses.get(i)));
+            } else if (responsesByEntity != null) {
+                // The n-th update of an entity gets the n-th response of this entity
+                int occurrence = occurrences.merge(pendingUpdate.entityId, 1, Integer::sum) - 1;
+                List<ContextElementResponse> entityResponses = responsesByEntity.getOrDefault(pendingUpdate.entityId, Collections.emptyList());
+                response.setContextElementResponses(occurrence < entityResponses.size()
+                        ? Collections.singletonList(entityResponses.get(occurrence)) : Collections.emptyList());
+            }
+            pendingUpdate.future.set(response);
+        }
+    }
+
+    private static Map<String, List<ContextElementResponse>> responsesByEntity(List<ContextElementResponse> contextElementResponses) {
+        Map<String, List<ContextElementResponse>> responses = new HashMap<>();
+        for (ContextElementResponse contextElementResponse : contextElementResponses) {
+            ContextElement responseElement = contextElementResponse.getContextElement();
+            if (responseElement != null && responseElement.getEntityId() != null) {
+                responses.computeIfAbsent(responseElement.getEntityId().getId(), id -> new ArrayList<>(1)).add(contextElementResponse);
+            }
+        }
+        return responses;
+    }
+
+    private static void fail(List<PendingUpdate> batch, Throwable ex) {
+        batch.forEach(pendingUpdate -> pendingUpdate.future.setException(ex));
+    }
+
+    /**
+     * Sends an updateContext request
+     */
+    @FunctionalInterface
+    public interface UpdateContextSender {
+        ListenableFuture<UpdateContextResponse> send(UpdateContext updateContext);
+    }
+
+    private static class PendingUpdate {
+
+        private final ContextElement contextElement;
+        private final String entityId;
+        private final SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+
+        PendingUpdate(ContextElement contextElement) {
+            this.contextElement = contextElement;
+            this.entityId = contextElement.getEntityId() != null ? contextElement.getEntityId().getId() : null;
+        }
+    }
+}
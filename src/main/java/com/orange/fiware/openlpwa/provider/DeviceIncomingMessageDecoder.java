@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the Json messages received from the OpenLpwa provider Mqtt interface.
+ * Only the fields used by the agent (streamId, timestamp, model, tags, metadata.source and value.payload)
+ * are read, the other ones are skipped without being bound.
+ * The decoder is thread-safe: build it once and share it.
+ */
+public class DeviceIncomingMessageDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    public DeviceIncomingMessageDecoder() {
+        this(new JsonFactory());
+    }
+
+    public DeviceIncomingMessageDecoder(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Decode an incoming message
+     * @param payload Mqtt message payload
+     * @return Decoded message
+     * @throws IOException The payload is not a valid incoming message
+     */
+    public DeviceIncomingMessage decode(byte[] payload) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Incoming message is not a Json object");
+            }
+
+            DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+            String fieldName;
+            while ((fieldName = parser.nextFieldName()) != null) {
+                parser.nextToken();
+                switch (fieldName) {
+                    case "streamId":
+                        incomingMessage.setStreamId(readText(parser));
+                        break;
+                    case "timestamp":
+                        incomingMessage.setDate(readDate(parser));
+                        break;
+                    case "model":
+                        incomingMessage.setModel(readText(parser));
+                        break;
+                    case "tags":
+                        incomingMessage.setTags(readTags(parser));
+                        break;
+                    case "metadata":
+                        incomingMessage.setMetadata(readMetadata(parser));
+                        break;
+                    case "value":
+                        incomingMessage.setValue(readValue(parser));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return incomingMessage;
+        }
+    }
+
+    /**
+     * Read a scalar value as a string
+     * @param parser Parser positioned on the value
+     * @return Text of the value, null for a Json null or a structured value
+     * @throws IOException Parsing error
+     */
+    private String readText(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getValueAsString();
+    }
+
+    /**
+     * Read an ISO 8601 or epoch milliseconds timestamp.
+     * The timestamps not parsed by java.time (offset without colon like <code>+0100</code>, no seconds...) are parsed
+     * as leniently as the Jackson mapper previously used to bind the messages
+     * @param parser Parser positioned on the value
+     * @return Date or null
+     * @throws IOException Parsing error or invalid date
+     */
+    private Date readDate(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return new Date(parser.getLongValue());
+        }
+
+        String text = readText(parser);
+        if (text == null) {
+            return null;
+        }
+        try {
+            return Date.from(Instant.parse(text));
+        } catch (DateTimeParseException e) {
+            try {
+                return Date.from(OffsetDateTime.parse(text).toInstant());
+            } catch (DateTimeParseException ex) {
+                try {
+                    // Not thread-safe, only built for the uncommon formats
+                    return new StdDateFormat().parse(text);
+                } catch (ParseException parseException) {
+                    throw new JsonParseException(parser, "Invalid timestamp: " + text, parseException);
+                }
+            }
+        }
+    }
+
+    private List<String> readTags(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+
+        List<String> tags = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            String tag = readText(parser);
+            if (tag != null) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+
+    private DeviceIncomingMessage.DeviceIncomingMessageMetadata readMetadata(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+
+        DeviceIncomingMessage.DeviceIncomingMessageMetadata metadata = new DeviceIncomingMessage.DeviceIncomingMessageMetadata();
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            if ("source".equals(fieldName)) {
+                metadata.setSource(readText(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return metadata;
+    }
+
+    private Map<String, Object> readValue(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+
+        Map<String, Object> value = new HashMap<>(2);
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            if ("payload".equals(fieldName)) {
+                value.put("payload", readText(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+}
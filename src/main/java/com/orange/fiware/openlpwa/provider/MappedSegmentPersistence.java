@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import com.orange.fiware.openlpwa.storage.MappedSegmentLog;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mqtt client persistence storing the in-flight messages in a memory-mapped append-only log,
+ * instead of the file per message of the default Paho file persistence.
+ * The messages are kept in memory as well, the log is only read when the persistence is opened.
+ * Paho only persists the outgoing messages and the QoS 2 exchanges, not the received QoS 1 messages: for this
+ * subscribing agent the store is nearly unused, the messages received while disconnected are kept by the broker
+ * with a persistent session.
+ */
+public class MappedSegmentPersistence implements MqttClientPersistence {
+
+    private final static byte putRecord = 1;
+    private final static byte removeRecord = 2;
+    private final static int defaultSegmentSize = 1024 * 1024;
+    // Above this number of segments, the messages of the oldest one are copied to the active one
+    private final static int maxSegmentCount = 4;
+    private final String directory;
+    private final int segmentSize;
+    private final boolean forceOnWrite;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private MappedSegmentLog log;
+
+    /**
+     * Constructor
+     * @param directory Base directory, each client gets its own sub-directory
+     */
+    public MappedSegmentPersistence(String directory) {
+        this(directory, defaultSegmentSize, false);
+    }
+
+    /**
+     * Constructor
+     * @param directory Base directory, each client gets its own sub-directory
+     * @param segmentSize Size of the segment files
+     * @param forceOnWrite Flush each write to the storage device
+     */
+    public MappedSegmentPersistence(String directory, int segmentSize, boolean forceOnWrite) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.forceOnWrite = forceOnWrite;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (log != null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+        }
+        Path clientDirectory = Paths.get(directory, sanitize(clientId + "-" + serverURI));
+        MappedSegmentLog clientLog = new MappedSegmentLog(clientDirectory, segmentSize, forceOnWrite);
+        try {
+            clientLog.open((segmentId, record) -> replay(clientLog, segmentId, record));
+        } catch (IOException e) {
+            entries.clear();
+            clientLog.close();
+            throw new MqttPersistenceException(e);
+        }
+        log = clientLog;
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        checkOpened();
+        log.close();
+        log = null;
+        entries.clear();
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpened();
+        try {
+            byte[] header = copy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+            byte[] payload = copy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+            store(key, header, payload);
+            if (log.getSegmentCount() > maxSegmentCount) {
+                relocate(log.getOldestSegmentId());
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpened();
+        Entry entry = entries.get(key);
+        return entry;
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpened();
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        try {
+            log.release(log.append(encode(removeRecord, key, null, null)));
+            log.release(entry.segmentId);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpened();
+        return Collections.enumeration(new ArrayList<>(entries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpened();
+        entries.clear();
+        try {
+            log.clear();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpened();
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return Number of segment files of the opened client
+     */
+    synchronized int getSegmentCount() {
+        return log != null ? log.getSegmentCount() : 0;
+    }
+
+    private void checkOpened() throws MqttPersistenceException {
+        if (log == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    private void store(String key, byte[] header, byte[] payload) throws IOException {
+        long segmentId = log.append(encode(putRecord, key, header, payload));
+        Entry previous = entries.put(key, new Entry(segmentId, key, header, payload));
+        if (previous != null) {
+            log.release(previous.segmentId);
+        }
+    }
+
+    /**
+     * Copy the messages still stored in a segment to the active segment, so that a message waiting for a long time
+     * does not prevent the following segments from being deleted
+     * @param segmentId Identifier of the segment
+     * @throws IOException Unable to write the log
+     */
+    private void relocate(long segmentId) throws IOException {
+        List<Entry> relocated = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.segmentId == segmentId) {
+                relocated.add(entry);
+            }
+        }
+        for (Entry entry : relocated) {
+            store(entry.key, entry.header, entry.payload);
+        }
+    }
+
+    private void replay(MappedSegmentLog clientLog, long segmentId, ByteBuffer record) {
+        byte type = record.get();
+        byte[] keyBytes = new byte[record.getShort() & 0xFFFF];
+        record.get(keyBytes);
+        String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+        Entry previous;
+        if (type == putRecord) {
+            byte[] header = new byte[record.getInt()];
+            record.get(header);
+            byte[] payload = new byte[record.remaining()];
+            record.get(payload);
+            previous = entries.put(key, new Entry(segmentId, key, header, payload));
+        } else {
+            previous = entries.remove(key);
+            clientLog.release(segmentId);
+        }
+        if (previous != null) {
+            clientLog.release(previous.segmentId);
+        }
+    }
+
+    private static byte[] encode(byte type, String key, byte[] header, byte[] payload) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = 1 + 2 + keyBytes.length;
+        if (type == putRecord) {
+            size += 4 + header.length + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(type);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        if (type == putRecord) {
+            buffer.putInt(header.length);
+            buffer.put(header);
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        if (bytes != null && length > 0) {
+            System.arraycopy(bytes, offset, copy, 0, length);
+        }
+        return copy;
+    }
+
+    /**
+     * Keep only the characters allowed in a directory name, as the default Paho file persistence does
+     * @param name Client name
+     * @return Directory name
+     */
+    private static String sanitize(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Message stored in a segment
+     */
+    private static class Entry implements MqttPersistable {
+
+        private final long segmentId;
+        private final String key;
+        private final byte[] header;
+        private final byte[] payload;
+
+        Entry(long segmentId, String key, byte[] header, byte[] payload) {
+            this.segmentId = segmentId;
+            this.key = key;
+            this.header = header;
+            this.payload = payload;
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
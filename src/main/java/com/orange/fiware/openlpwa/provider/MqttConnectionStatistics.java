@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a Mqtt connection
+ */
+public class MqttConnectionStatistics {
+
+    private final String clientId;
+    private final LongAdder receivedMessages = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private volatile long lastMessageTimestamp;
+
+    public MqttConnectionStatistics(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.sum();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * @return Time of the last received message in milliseconds since epoch, 0 if no message has been received
+     */
+    public long getLastMessageTimestamp() {
+        return lastMessageTimestamp;
+    }
+
+    void messageReceived(int size) {
+        receivedMessages.increment();
+        receivedBytes.add(size);
+        lastMessageTimestamp = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "MqttConnectionStatistics{" +
+                "clientId='" + clientId + '\'' +
+                ", receivedMessages=" + receivedMessages.sum() +
+                ", receivedBytes=" + receivedBytes.sum() +
+                ", lastMessageTimestamp=" + lastMessageTimestamp +
+                '}';
+    }
+}
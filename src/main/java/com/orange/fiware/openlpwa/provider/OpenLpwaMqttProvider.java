@@ -18,7 +18,6 @@
 
 package com.orange.fiware.openlpwa.provider;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.fiware.openlpwa.exception.ConfigurationException;
 import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
 import org.eclipse.paho.client.mqttv3.*;
@@ -30,6 +29,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.concurrent.FailureCallback;
 import org.springframework.util.concurrent.SuccessCallback;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MQTT_VERSION_3_1;
 
 /**
@@ -41,37 +50,88 @@ public class OpenLpwaMqttProvider implements MqttCallback {
     private static Logger logger = LoggerFactory.getLogger(OpenLpwaMqttProvider.class);
     private final static String userName = "application";
     private final static int subscribeQOS = 1;
-    private static String topicPath;
+    private String topicPath;
     private String serverUri;
     private String clientId;
     private String apiKey;
+    private boolean persistentSession;
+    private String persistenceDirectory;
     private OpenLpwaMqttProviderCallback clientCallback;
     private MqttAsyncClient mqttAsyncClient;
+    // Additional connections of the consumer group, the first connection being mqttAsyncClient
+    private final List<MqttAsyncClient> additionalClients = new CopyOnWriteArrayList<>();
+    private final List<MqttConnectionStatistics> connectionStatistics = new CopyOnWriteArrayList<>();
+    private final DeviceIncomingMessageDecoder messageDecoder = new DeviceIncomingMessageDecoder();
+    @Value("${openLpwaProvider.mqttConnections:1}")
+    private int connectionCount;
+    @Value("${openLpwaProvider.manualAcks:false}")
+    private boolean manualAcks;
+    @Value("${openLpwaProvider.maxUnackedMessages:1000}")
+    private int maxUnackedMessages;
+    // Unacknowledged messages of each connection, renewed when the connection is reopened:
+    // acknowledgements of a previous connection are not sent
+    private final Map<MqttAsyncClient, Semaphore> unackedMessages = new ConcurrentHashMap<>();
+    private ClientFactory clientFactory = MqttAsyncClient::new;
 
     public String getClientId() {
         return clientId;
     }
 
+    public String getTopicPath() {
+        return topicPath;
+    }
+
     public void setClientCallback(OpenLpwaMqttProviderCallback clientCallback) {
         this.clientCallback = clientCallback;
     }
 
+    /**
+     * @return true if the messages are acknowledged by the client callback
+     */
+    public boolean isManualAcks() {
+        return manualAcks;
+    }
+
+    /**
+     * Get the statistics of the Mqtt connections, the throughput of a connection is given by the evolution of its counters
+     * @return Statistics of each connection
+     */
+    public List<MqttConnectionStatistics> getConnectionStatistics() {
+        return Collections.unmodifiableList(connectionStatistics);
+    }
+
+    public OpenLpwaMqttProvider(String serverUri,
+                                String clientId,
+                                String apiKey,
+                                String topicPath,
+                                OpenLpwaMqttProviderCallback clientCallback) throws ConfigurationException, MqttException {
+        this(serverUri, clientId, apiKey, topicPath, false, null, clientCallback);
+    }
+
     @Autowired
     public OpenLpwaMqttProvider(@Value("${openLpwaProvider.mqttUri}") String serverUri,
                                 @Value("${openLpwaProvider.mqttClientId}") String clientId,
                                 @Value("${openLpwaProvider.apiKey}") String apiKey,
                                 @Value("${openLpwaProvider.topicPath}") String topicPath,
+                                @Value("${openLpwaProvider.persistentSession:false}") boolean persistentSession,
+                                @Value("${openLpwaProvider.persistenceDirectory:}") String persistenceDirectory,
                                 OpenLpwaMqttProviderCallback clientCallback) throws ConfigurationException, MqttException {
-        OpenLpwaMqttProvider.topicPath = topicPath;
+        this.topicPath = topicPath;
         this.serverUri = serverUri;
         this.clientId = clientId != null ? clientId : MqttAsyncClient.generateClientId();
         this.apiKey = apiKey;
+        this.persistentSession = persistentSession;
+        this.persistenceDirectory = persistenceDirectory;
         this.clientCallback = clientCallback;
 
         checkOpenLpwaMqttProviderInitialization();
+        if (persistentSession && clientId == null) {
+            logger.warn("Persistent session with a generated client ID, the session is lost when the agent restarts.");
+        }
 
-        mqttAsyncClient = new MqttAsyncClient(this.serverUri, this.clientId, null);
+        mqttAsyncClient = clientFactory.create(this.serverUri, this.clientId, createPersistence());
         mqttAsyncClient.setCallback(this);
+        connectionStatistics.add(new MqttConnectionStatistics(this.clientId));
     }
 
     /**
@@ -80,34 +140,43 @@ public class OpenLpwaMqttProvider implements MqttCallback {
      * @param failureCallback Callback when the connection fails
      */
     public void connect(SuccessCallback<String> successCallback, FailureCallback failureCallback) {
+        // Without permits, the Mqtt callback thread would wait forever for the first acknowledgement
+        if (manualAcks && maxUnackedMessages <= 0) {
+            if (failureCallback != null) {
+                failureCallback.onFailure(new ConfigurationException("OpenLpwa provider maximum of unacknowledged messages must be positive with manual acknowledgements."));
+            }
+            return;
+        }
+
         MqttConnectOptions connectOptions = new MqttConnectOptions();
         connectOptions.setMqttVersion(MQTT_VERSION_3_1);
-        connectOptions.setCleanSession(true);
+        // With a persistent session, the broker keeps the subscription and the messages received while disconnected
+        connectOptions.setCleanSession(!persistentSession);
         connectOptions.setKeepAliveInterval(30);
         connectOptions.setUserName(userName);
         connectOptions.setPassword(apiKey.toCharArray());
 
         try {
-            mqttAsyncClient.connect(connectOptions, null, new IMqttActionListener() {
-                @Override
-                public void onSuccess(IMqttToken iMqttToken) {
-                    if (successCallback != null) {
-                        successCallback.onSuccess(clientId);
-                    }
-                }
-
-                @Override
-                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                    if (failureCallback != null) {
-                        failureCallback.onFailure(throwable);
-                    }
-                }
-            });
+            createAdditionalClients();
         } catch (MqttException e) {
             if (failureCallback != null) {
                 failureCallback.onFailure(e);
             }
+            return;
         }
+
+        forEachClient((client, listener) -> {
+            client.setManualAcks(manualAcks);
+            // Only the lost connections are reopened, the messages in flight on the other ones are still acknowledged
+            if (client.isConnected()) {
+                listener.onSuccess(null);
+            } else {
+                if (manualAcks) {
+                    unackedMessages.put(client, new Semaphore(maxUnackedMessages));
+                }
+                client.connect(connectOptions, null, listener);
+            }
+        }, successCallback, failureCallback);
     }
 
     /**
@@ -116,27 +185,16 @@ public class OpenLpwaMqttProvider implements MqttCallback {
      * @param failureCallback Callback when the disconnection fails
      */
     public void disconnect(SuccessCallback<String> successCallback, FailureCallback failureCallback) {
-        try {
-            mqttAsyncClient.disconnect(null, new IMqttActionListener() {
-                @Override
-                public void onSuccess(IMqttToken iMqttToken) {
-                    if (successCallback != null) {
-                        successCallback.onSuccess(clientId);
-                    }
-                }
-
-                @Override
-                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                    if (failureCallback != null) {
-                        failureCallback.onFailure(throwable);
-                    }
+        forEachClient((client, listener) -> {
+            try {
+                client.disconnect(null, listener);
+            } catch (MqttException e) {
+                if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_ALREADY_DISCONNECTED) {
+                    throw e;
                 }
-            });
-        } catch (MqttException e) {
-            if (failureCallback != null) {
-                failureCallback.onFailure(e);
+                listener.onSuccess(null);
             }
-        }
+        }, successCallback, failureCallback);
     }
 
     /**
@@ -145,27 +203,8 @@ public class OpenLpwaMqttProvider implements MqttCallback {
      * @param failureCallback Callback when the subscription fails
      */
     public void subscribe(SuccessCallback<String> successCallback, FailureCallback failureCallback) {
-        try {
-            mqttAsyncClient.subscribe(topicPath, subscribeQOS, null, new IMqttActionListener() {
-                @Override
-                public void onSuccess(IMqttToken iMqttToken) {
-                    if (successCallback != null) {
-                        successCallback.onSuccess(clientId);
-                    }
-                }
-
-                @Override
-                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                    if (failureCallback != null) {
-                        failureCallback.onFailure(throwable);
-                    }
-                }
-            });
-        } catch (MqttException e) {
-            if (failureCallback != null) {
-                failureCallback.onFailure(e);
-            }
-        }
+        forEachClient((client, listener) -> client.subscribe(topicPath, subscribeQOS, null, listener),
+                successCallback, failureCallback);
     }
 
     /**
@@ -174,25 +213,70 @@ public class OpenLpwaMqttProvider implements MqttCallback {
      * @param failureCallback Callback when the unsubscription fails
      */
     public void unsubscribe(SuccessCallback<String> successCallback, FailureCallback failureCallback) {
-        try {
-            mqttAsyncClient.unsubscribe(topicPath, null, new IMqttActionListener() {
-                @Override
-                public void onSuccess(IMqttToken iMqttToken) {
-                    if (successCallback != null) {
-                        successCallback.onSuccess(clientId);
-                    }
+        forEachClient((client, listener) -> client.unsubscribe(topicPath, null, listener),
+                successCallback, failureCallback);
+    }
+
+    /**
+     * Create the additional connections of the consumer group, each one with a client ID derived from the configured one
+     * @throws MqttException A client can't be created
+     */
+    private synchronized void createAdditionalClients() throws MqttException {
+        for (int index = additionalClients.size() + 1; index < connectionCount; index++) {
+            String derivedClientId = clientId + "-" + index;
+            MqttConnectionStatistics statistics = new MqttConnectionStatistics(derivedClientId);
+            MqttAsyncClient client = clientFactory.create(serverUri, derivedClientId, createPersistence());
+            client.setCallback(new AdditionalClientCallback(client, statistics));
+            additionalClients.add(client);
+            connectionStatistics.add(statistics);
+        }
+    }
+
+    /**
+     * Create the storage of the in-flight messages of a connection
+     * @return File persistence if a directory is configured, otherwise null for an in-memory persistence
+     */
+    private MqttClientPersistence createPersistence() {
+        if (persistenceDirectory == null || persistenceDirectory.isEmpty()) {
+            return null;
+        }
+        return new MappedSegmentPersistence(persistenceDirectory);
+    }
+
+    /**
+     * Launch an operation on all the connections
+     * @param operation Operation to launch on each connection
+     * @param successCallback Callback when the operation succeeds for all the connections
+     * @param failureCallback Callback when the operation fails for a connection
+     */
+    private void forEachClient(ClientOperation operation, SuccessCallback<String> successCallback, FailureCallback failureCallback) {
+        List<MqttAsyncClient> clients = new ArrayList<>(additionalClients.size() + 1);
+        clients.add(mqttAsyncClient);
+        clients.addAll(additionalClients);
+
+        AtomicInteger remaining = new AtomicInteger(clients.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        IMqttActionListener listener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken iMqttToken) {
+                if (remaining.decrementAndGet() == 0 && !failed.get() && successCallback != null) {
+                    successCallback.onSuccess(clientId);
                 }
+            }
 
-                @Override
-                public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
-                    if (failureCallback != null) {
-                        failureCallback.onFailure(throwable);
-                    }
+            @Override
+            public void onFailure(IMqttToken iMqttToken, Throwable throwable) {
+                if (failed.compareAndSet(false, true) && failureCallback != null) {
+                    failureCallback.onFailure(throwable);
                 }
-            });
-        } catch (MqttException e) {
-            if (failureCallback != null) {
-                failureCallback.onFailure(e);
+            }
+        };
+
+        for (MqttAsyncClient client : clients) {
+            try {
+                operation.apply(client, listener);
+            } catch (MqttException e) {
+                listener.onFailure(null, e);
             }
         }
     }
@@ -211,6 +295,86 @@ public class OpenLpwaMqttProvider implements MqttCallback {
         }
     }
 
+    /**
+     * Decode a message received by a connection and forward it to the client callback
+     * @param client Mqtt client which has received the message
+     * @param statistics Statistics of the connection
+     * @param mqttMessage Received message
+     */
+    private void handleMessage(MqttAsyncClient client, MqttConnectionStatistics statistics, MqttMessage mqttMessage) {
+        statistics.messageReceived(mqttMessage.getPayload().length);
+        Runnable acknowledgement = null;
+        if (manualAcks) {
+            try {
+                acknowledgement = acknowledgement(client, mqttMessage);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while waiting for unacknowledged messages, message not treated.");
+                return;
+            }
+        }
+
+        if (clientCallback == null) {
+            acknowledge(acknowledgement);
+            return;
+        }
+
+        try {
+            // Deserialize incoming message
+            DeviceIncomingMessage incomingMessage = messageDecoder.decode(mqttMessage.getPayload());
+            logger.debug("New message arrived: incomingMessage{}", incomingMessage);
+            // Retrieve the deviceID from the source metadata
+            DeviceIncomingMessage.DeviceIncomingMessageMetadata metadata = incomingMessage.getMetadata();
+            if (metadata == null) {
+                logger.error("Metadata not found, can't treat message: incomingMessage{}", incomingMessage);
+                acknowledge(acknowledgement);
+                return;
+            }
+
+            if (acknowledgement != null) {
+                clientCallback.newMessageArrived(metadata.getSource(), incomingMessage, acknowledgement);
+            } else {
+                clientCallback.newMessageArrived(metadata.getSource(), incomingMessage);
+            }
+        } catch (Throwable e) {
+            logger.error("Unhandled exception while reading message.", e);
+            acknowledge(acknowledgement);
+        }
+    }
+
+    /**
+     * Build the manual acknowledgement of a message, waits while the maximum of unacknowledged messages is reached
+     * @param client Mqtt client which has received the message
+     * @param mqttMessage Message to acknowledge
+     * @return Acknowledgement which can be run once the message is treated, further runs are ignored
+     * @throws InterruptedException Interrupted while waiting
+     */
+    private Runnable acknowledgement(MqttAsyncClient client, MqttMessage mqttMessage) throws InterruptedException {
+        Semaphore permits = unackedMessages.computeIfAbsent(client, c -> new Semaphore(maxUnackedMessages));
+        permits.acquire();
+        AtomicBoolean acknowledged = new AtomicBoolean(false);
+        return () -> {
+            if (acknowledged.compareAndSet(false, true)) {
+                try {
+                    // After a reconnection the message ID may have been reused, the broker redelivers the message anyway
+                    if (permits == unackedMessages.get(client)) {
+                        client.messageArrivedComplete(mqttMessage.getId(), mqttMessage.getQos());
+                    }
+                } catch (MqttException e) {
+                    logger.warn("Unable to acknowledge message (ID:{})", mqttMessage.getId(), e);
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+    }
+
+    private void acknowledge(Runnable acknowledgement) {
+        if (acknowledgement != null) {
+            acknowledgement.run();
+        }
+    }
+
     // MqttCallback implementation
 
     @Override
@@ -222,30 +386,56 @@ public class OpenLpwaMqttProvider implements MqttCallback {
 
     @Override
     public void messageArrived(String s, MqttMessage mqttMessage) {
-        if (clientCallback != null) {
-            // Deserialize incoming message
-            DeviceIncomingMessage incomingMessage;
-            String deviceID = null;
-            try {
-                incomingMessage = new ObjectMapper().readValue(mqttMessage.getPayload(), DeviceIncomingMessage.class);
-                if (incomingMessage != null) {
-                    logger.info("New message arrived: incomingMessage{}", incomingMessage.toString());
-                    // Retrieve the deviceID from the source metadata
-                    String source = incomingMessage.getMetadata().getSource();
-                    if (source != null) {
-                        deviceID = source;
-                    }
-                }
-
-                clientCallback.newMessageArrived(deviceID, incomingMessage);
-            } catch (Throwable e) {
-                logger.error("Unhandled exception while reading message.", e);
-            }
-        }
+        handleMessage(mqttAsyncClient, connectionStatistics.get(0), mqttMessage);
     }
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
         // Publish not implemented so deliveryComplete never called
     }
+
+    /**
+     * Creates the Mqtt clients
+     */
+    @FunctionalInterface
+    interface ClientFactory {
+        MqttAsyncClient create(String serverUri, String clientId, MqttClientPersistence persistence) throws MqttException;
+    }
+
+    /**
+     * Operation launched on a Mqtt client
+     */
+    @FunctionalInterface
+    private interface ClientOperation {
+        void apply(MqttAsyncClient client, IMqttActionListener listener) throws MqttException;
+    }
+
+    /**
+     * Manages Mqtt events of an additional connection
+     */
+    private class AdditionalClientCallback implements MqttCallback {
+
+        private final MqttAsyncClient client;
+        private final MqttConnectionStatistics statistics;
+
+        AdditionalClientCallback(MqttAsyncClient client, MqttConnectionStatistics statistics) {
+            this.client = client;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public void connectionLost(Throwable throwable) {
+            OpenLpwaMqttProvider.this.connectionLost(throwable);
+        }
+
+        @Override
+        public void messageArrived(String s, MqttMessage mqttMessage) {
+            handleMessage(client, statistics, mqttMessage);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+            // Publish not implemented so deliveryComplete never called
+        }
+    }
 }
@@ -38,4 +38,18 @@ public interface OpenLpwaMqttProviderCallback {
      * @param incomingMessage   Message (may be null if the deserialization fails)
      */
     void newMessageArrived(String deviceEUI, DeviceIncomingMessage incomingMessage);
+
+    /**
+     * A new message is arrived and must be acknowledged (manual acknowledgement mode)
+     * @param deviceEUI         End device Identifier of the device concerned by the message
+     * @param incomingMessage   Message
+     * @param acknowledgement   Acknowledgement to run once the message is treated
+     */
+    default void newMessageArrived(String deviceEUI, DeviceIncomingMessage incomingMessage, Runnable acknowledgement) {
+        try {
+            newMessageArrived(deviceEUI, incomingMessage);
+        } finally {
+            acknowledgement.run();
+        }
+    }
 }
@@ -19,6 +19,8 @@
 package com.orange.fiware.openlpwa.provider;
 
 import com.orange.fiware.openlpwa.exception.ConfigurationException;
+import com.orange.fiware.openlpwa.http.PooledHttpTransport;
+import com.orange.fiware.openlpwa.http.ResilientCaller;
 import com.orange.fiware.openlpwa.provider.model.DeviceCommand;
 import com.orange.fiware.openlpwa.provider.model.DeviceInfo;
 import com.orange.fiware.openlpwa.provider.model.RegisterDeviceCommandParameter;
@@ -33,6 +35,7 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.util.Collections;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 /**
  * Provides methods to request OpenLpwa provider API
@@ -45,6 +48,8 @@ public class OpenLpwaProvider {
     private String url;
     private String apiKey;
     private AsyncRestTemplate asyncRestTemplate;
+    @Autowired(required = false)
+    private ResilientCaller resilientCaller;
 
     public OpenLpwaProvider() {
         asyncRestTemplate = new AsyncRestTemplate();
@@ -59,6 +64,16 @@ public class OpenLpwaProvider {
         this.apiKey = apiKey;
     }
 
+    /**
+     * Send the requests through the shared connection pool
+     *
+     * @param httpTransport Pooled Http transport
+     */
+    @Autowired(required = false)
+    public void setHttpTransport(PooledHttpTransport httpTransport) {
+        asyncRestTemplate.setAsyncRequestFactory(httpTransport.getRequestFactory());
+    }
+
     public String getApiKey() {
         return apiKey;
     }
@@ -141,13 +156,19 @@ public class OpenLpwaProvider {
      */
     private <T, U> ListenableFuture<T> request(HttpMethod method, String url, U body, Class<T> responseType) {
         HttpEntity<U> requestEntity = new HttpEntity<>(body, getHttpHeaders(body != null));
-        ListenableFuture<ResponseEntity<T>> future = asyncRestTemplate.exchange(url, method, requestEntity, responseType);
-        return new ListenableFutureAdapter<T, ResponseEntity<T>>(future) {
-            @Override
-            protected T adapt(ResponseEntity<T> result) throws ExecutionException {
-                return result.getBody();
-            }
+        Supplier<ListenableFuture<T>> request = () -> {
+            ListenableFuture<ResponseEntity<T>> future = asyncRestTemplate.exchange(url, method, requestEntity, responseType);
+            return new ListenableFutureAdapter<T, ResponseEntity<T>>(future) {
+                @Override
+                protected T adapt(ResponseEntity<T> result) throws ExecutionException {
+                    return result.getBody();
+                }
+            };
         };
+        // Transient failures are retried, the circuit breaker covers the whole API. A POST (command registration) is
+        // only sent again when the connection has failed, a duplicated command would be sent twice to the device
+        boolean idempotent = method != HttpMethod.POST && method != HttpMethod.PATCH;
+        return resilientCaller != null ? resilientCaller.call(this.url, request, null, idempotent) : request.get();
     }
 
     /**
@@ -102,14 +102,17 @@ public class DeviceIncomingMessage {
     }
 
     public void setData(String data) {
-        this.value.put("patload", data);
+        if (value == null) {
+            value = new HashMap<>();
+        }
+        value.put("payload", data);
     }
 
     /**
      * Metadata
      */
     @JsonIgnoreProperties(ignoreUnknown = true)
-    public class DeviceIncomingMessageMetadata {
+    public static class DeviceIncomingMessageMetadata {
 
         private String source;
 
@@ -120,13 +123,20 @@ public class DeviceIncomingMessage {
         public void setSource(String source) {
             this.source = source;
         }
+
+        @Override
+        public String toString() {
+            return "DeviceIncomingMessageMetadata{" +
+                    "source='" + source + '\'' +
+                    '}';
+        }
     }
 
     /**
      * Location
      */
     @JsonIgnoreProperties(ignoreUnknown = true)
-    public class DeviceIncomingMessageLocation {
+    public static class DeviceIncomingMessageLocation {
 
         private Float lat;
         private Float lon;
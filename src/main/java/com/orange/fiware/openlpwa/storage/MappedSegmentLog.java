@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of records stored in memory-mapped segment files.
+ * Each record is written as its length, the CRC32C of its content and its content. A torn or corrupted record
+ * ends the replay of its segment.
+ * Every appended record is live until it is released by the owner of the log. The oldest segments are deleted
+ * as soon as all their records are released, segments are never deleted out of order so that a replay always
+ * sees the records in the order they have been appended.
+ */
+public class MappedSegmentLog implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(MappedSegmentLog.class);
+    private final static String segmentSuffix = ".seg";
+    private final static int recordHeaderSize = 8;
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean forceOnWrite;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32C crc = new CRC32C();
+    private Segment activeSegment;
+    // Identifiers are never reused, even once the log has been cleared
+    private long nextSegmentId = 0;
+    private boolean opened = false;
+
+    /**
+     * Constructor
+     * @param directory Directory of the segment files, created if needed
+     * @param segmentSize Size of a segment file, a record bigger than a segment gets its own segment
+     * @param forceOnWrite Flush each record to the storage device, otherwise the records are written back by the
+     *                     operating system and only lost if the host crashes
+     */
+    public MappedSegmentLog(Path directory, int segmentSize, boolean forceOnWrite) {
+        if (segmentSize <= recordHeaderSize) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.forceOnWrite = forceOnWrite;
+    }
+
+    /**
+     * Open the log and replay its records in append order, the records stay live until they are released
+     * @param visitor Called for each valid record
+     * @throws IOException Unable to read or create the segment files
+     */
+    public synchronized void open(RecordVisitor visitor) throws IOException {
+        if (opened) {
+            throw new IllegalStateException("Log already opened");
+        }
+        Files.createDirectories(directory);
+        for (Path path : listSegmentFiles()) {
+            Segment segment = new Segment(path, segmentId(path), map(path, 0));
+            segments.put(segment.id, segment);
+            replay(segment, visitor);
+        }
+        opened = true;
+        // The last segment may end by a torn record: the appends go to a new segment
+        roll(segmentSize);
+    }
+
+    /**
+     * Append a record
+     * @param record Content of the record
+     * @return Identifier of the segment containing the record, to give back when the record is released
+     * @throws IOException Unable to create a new segment
+     */
+    public long append(byte[] record) throws IOException {
+        return append(record, 0, record.length);
+    }
+
+    /**
+     * Append a record
+     * @param record Buffer containing the record
+     * @param offset Offset of the record in the buffer
+     * @param length Length of the record
+     * @return Identifier of the segment containing the record, to give back when the record is released
+     * @throws IOException Unable to create a new segment
+     */
+    public synchronized long append(byte[] record, int offset, int length) throws IOException {
+        checkOpened();
+        if (length <= 0) {
+            throw new IllegalArgumentException("Empty records are not supported");
+        }
+        MappedByteBuffer buffer = activeSegment.buffer;
+        if (buffer.remaining() < recordHeaderSize + length) {
+            roll(recordHeaderSize + length);
+            buffer = activeSegment.buffer;
+        }
+        crc.reset();
+        crc.update(record, offset, length);
+        int position = buffer.position();
+        // The length is written last so that a partially written record is never replayed
+        buffer.position(position + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record, offset, length);
+        buffer.putInt(position, length);
+        if (forceOnWrite) {
+            buffer.force();
+        }
+        activeSegment.live++;
+        return activeSegment.id;
+    }
+
+    /**
+     * Release a record, the segments whose records are all released are deleted
+     * @param segmentId Segment identifier returned when the record has been appended or replayed
+     */
+    public synchronized void release(long segmentId) {
+        Segment segment = segments.get(segmentId);
+        if (segment == null || segment.live == 0) {
+            throw new IllegalStateException("No live record in segment " + segmentId);
+        }
+        segment.live--;
+        // During the replay the segments are only deleted once all of them have been read
+        if (opened) {
+            deleteReleasedSegments();
+        }
+    }
+
+    /**
+     * Delete all the records
+     * @throws IOException Unable to delete a segment file or to create a new segment
+     */
+    public synchronized void clear() throws IOException {
+        checkOpened();
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            delete(segment);
+        }
+        roll(segmentSize);
+    }
+
+    /**
+     * Create a cursor reading the records in append order, starting at the oldest segment
+     * @return A new cursor
+     */
+    public synchronized RecordCursor cursor() {
+        checkOpened();
+        return new RecordCursor(segments.firstKey());
+    }
+
+    /**
+     * @return Number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return Identifier of the oldest segment
+     */
+    public synchronized long getOldestSegmentId() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return Number of records not yet released
+     */
+    public synchronized long getLiveRecordCount() {
+        long count = 0;
+        for (Segment segment : segments.values()) {
+            count += segment.live;
+        }
+        return count;
+    }
+
+    /**
+     * @return Size of the segment files in bytes
+     */
+    public synchronized long getDiskUsage() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (activeSegment != null) {
+            activeSegment.buffer.force();
+        }
+        segments.clear();
+        activeSegment = null;
+        opened = false;
+    }
+
+    private void checkOpened() {
+        if (!opened) {
+            throw new IllegalStateException("Log not opened");
+        }
+    }
+
+    private void replay(Segment segment, RecordVisitor visitor) throws IOException {
+        int position = 0;
+        ByteBuffer record;
+        while ((record = readRecord(segment, position)) != null) {
+            segment.live++;
+            position += recordHeaderSize + record.remaining();
+            visitor.visit(segment.id, record);
+        }
+    }
+
+    /**
+     * Read the record at a given position of a segment
+     * @param segment Segment
+     * @param position Position of the record header
+     * @return Read-only content of the record, null at the end of the written records or if the record is corrupted
+     */
+    private ByteBuffer readRecord(Segment segment, int position) {
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer.capacity() - position < recordHeaderSize) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        int checksum = buffer.getInt(position + 4);
+        if (length <= 0 || length > buffer.capacity() - position - recordHeaderSize) {
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.limit(position + recordHeaderSize + length).position(position + recordHeaderSize);
+        record = record.slice();
+        crc.reset();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            logger.warn("Corrupted record at {} in {}, end of the segment ignored", position, segment.path);
+            return null;
+        }
+        return record.asReadOnlyBuffer();
+    }
+
+    private void roll(int minimumSize) throws IOException {
+        if (activeSegment != null) {
+            activeSegment.buffer.force();
+        }
+        long id = segments.isEmpty() ? nextSegmentId : Math.max(nextSegmentId, segments.lastKey() + 1);
+        nextSegmentId = id + 1;
+        Path path = directory.resolve(String.format("%020d%s", id, segmentSuffix));
+        Segment segment = new Segment(path, id, map(path, Math.max(segmentSize, minimumSize)));
+        segments.put(id, segment);
+        activeSegment = segment;
+        // The previous active segment may have been released while it was still receiving records
+        deleteReleasedSegments();
+    }
+
+    private void deleteReleasedSegments() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment || oldest.live > 0) {
+                return;
+            }
+            try {
+                delete(oldest);
+            } catch (IOException e) {
+                logger.warn("Unable to delete segment {}", oldest.path, e);
+                return;
+            }
+        }
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        if (segment == activeSegment) {
+            activeSegment = null;
+        }
+        // The mapping is released by the garbage collector, the file can be deleted meanwhile
+        Files.deleteIfExists(segment.path);
+    }
+
+    private List<Path> listSegmentFiles() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + segmentSuffix)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        // Identifiers are zero padded: the lexical order is the append order
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static long segmentId(Path path) {
+        String fileName = path.getFileName().toString();
+        return Long.parseLong(fileName.substring(0, fileName.length() - segmentSuffix.length()));
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long mappedSize = size > 0 ? size : channel.size();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+        }
+    }
+
+    /**
+     * Receives the records of the log during its replay
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * @param segmentId Identifier of the segment containing the record
+         * @param record Read-only content of the record, only valid during the call
+         * @throws IOException The record can't be decoded
+         */
+        void visit(long segmentId, ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Reads the records of the log in append order, including the ones appended after the creation of the cursor.
+     * Reading a record does not release it.
+     */
+    public class RecordCursor {
+
+        private long segmentId;
+        private int position;
+
+        private RecordCursor(long segmentId) {
+            this.segmentId = segmentId;
+        }
+
+        /**
+         * @return Identifier of the segment of the last record read
+         */
+        public long getSegmentId() {
+            synchronized (MappedSegmentLog.this) {
+                return segmentId;
+            }
+        }
+
+        /**
+         * @return Position following the last record read in its segment
+         */
+        public int getPosition() {
+            synchronized (MappedSegmentLog.this) {
+                return position;
+            }
+        }
+
+        /**
+         * Read the next record
+         * @param visitor Called with the record
+         * @return <code>false</code> if there is no record to read yet
+         * @throws IOException The record can't be decoded
+         */
+        public boolean next(RecordVisitor visitor) throws IOException {
+            synchronized (MappedSegmentLog.this) {
+                checkOpened();
+                while (true) {
+                    Map.Entry<Long, Segment> entry = segments.ceilingEntry(segmentId);
+                    if (entry == null) {
+                        return false;
+                    }
+                    if (entry.getKey() != segmentId) {
+                        // The segment has been deleted or cleared
+                        segmentId = entry.getKey();
+                        position = 0;
+                    }
+                    Segment segment = entry.getValue();
+                    ByteBuffer record = readRecord(segment, position);
+                    if (record != null) {
+                        position += recordHeaderSize + record.remaining();
+                        visitor.visit(segmentId, record);
+                        return true;
+                    }
+                    if (segment == activeSegment) {
+                        return false;
+                    }
+                    // End of a segment which is not written anymore
+                    segmentId++;
+                    position = 0;
+                }
+            }
+        }
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final long id;
+        private final MappedByteBuffer buffer;
+        private int live;
+
+        Segment(Path path, long id, MappedByteBuffer buffer) {
+            this.path = path;
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.orange.fiware.openlpwa.iotagent.BinaryNgsiConverter;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LayoutNgsiConverter unit tests
+ */
+public class LayoutNgsiConverterTest {
+
+    private final static String layouts = "{\"sensorV1\": [" +
+            "{\"name\": \"temperature\", \"type\": \"float\", \"bitOffset\": 0, \"bitLength\": 16, \"signed\": true, \"scale\": 0.1}," +
+            "{\"name\": \"door\", \"type\": \"boolean\", \"bitOffset\": 16, \"bitLength\": 1}]," +
+            "\"counterV2\": [{\"name\": \"count\", \"type\": \"integer\", \"bitOffset\": 0, \"bitLength\": 32, \"littleEndian\": true}]}";
+
+    @Test
+    public void testPayloadsAreDecodedWithTheLayoutOfTheirModel() throws IOException {
+        LayoutNgsiConverter converter = new LayoutNgsiConverter(LayoutNgsiConverter.readLayouts(json(layouts)), null);
+
+        List<ContextAttribute> attributes = converter.decodeData("device1", "00d780", message("sensorV1"));
+        assertEquals(2, attributes.size());
+        assertEquals(21.5, attributes.get(0).getValue());
+        assertEquals(true, attributes.get(1).getValue());
+        assertEquals(1L, converter.decodeData("device2", "01000000", message("counterV2")).get(0).getValue());
+        assertNull(converter.decodeData("device3", "01", message("unknown")));
+        assertNotNull(converter.getDecoder("sensorV1"));
+    }
+
+    @Test
+    public void testFallbackConverter() throws IOException {
+        BinaryNgsiConverter fallbackConverter = new BinaryNgsiConverter() {
+            @Override
+            public List<ContextAttribute> decodeData(String deviceID, ByteBuffer payload, DeviceIncomingMessage incomingMessage) {
+                return Collections.singletonList(new ContextAttribute("size", "integer", payload.remaining()));
+            }
+
+            @Override
+            public ByteBuffer encodeCommand(String deviceID, String commandName, ContextAttribute attribute) {
+                return ByteBuffer.wrap(new byte[]{(byte) 0xc0});
+            }
+        };
+        LayoutNgsiConverter converter = new LayoutNgsiConverter(LayoutNgsiConverter.readLayouts(json(layouts)), fallbackConverter);
+        assertEquals(2, converter.decodeData("device3", "0102", message("unknown")).get(0).getValue());
+        assertEquals("c0", converter.encodeDataForCommand("device3", "command", null));
+    }
+
+    @Test
+    public void testCommandsWithoutFallback() {
+        LayoutNgsiConverter converter = new LayoutNgsiConverter(Collections.emptyList(), null);
+        assertNull(converter.encodeCommand("device1", "command", null));
+        assertNull(converter.encodeDataForCommand("device1", "command", null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownFieldProperty() throws IOException {
+        LayoutNgsiConverter.readLayouts(json("{\"sensorV1\": [{\"name\": \"temperature\", \"bitOfset\": 0, \"bitLength\": 16}]}"));
+    }
+
+    private static DeviceIncomingMessage message(String model) {
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+        incomingMessage.setModel(model);
+        return incomingMessage;
+    }
+
+    private static ByteArrayInputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
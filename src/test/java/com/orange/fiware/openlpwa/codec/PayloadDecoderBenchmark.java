@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.orange.fiware.openlpwa.iotagent.HexCodec;
+import com.orange.ngsi.model.ContextAttribute;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decoding of an 8 fields payload by the interpreted walk of its layout, by the compiled decoder and
+ * by a hand-written converter.
+ * Run the main method: the "gc.alloc.rate.norm" metric gives the bytes allocated per payload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadDecoderBenchmark {
+
+    private PayloadLayout layout;
+    private PayloadDecoder decoder;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setup() {
+        PayloadField temperature = PayloadDecoderTest.field("temperature", "float", 0, 16, true, false);
+        temperature.setScale(0.1);
+        PayloadField humidity = PayloadDecoderTest.field("humidity", "float", 16, 8, false, false);
+        humidity.setScale(0.5);
+        PayloadField pressure = PayloadDecoderTest.field("pressure", "float", 80, 8, false, false);
+        pressure.setScale(2);
+        pressure.setValueOffset(900);
+        layout = new PayloadLayout("sensor", Arrays.asList(temperature, humidity,
+                PayloadDecoderTest.field("battery", "integer", 24, 16, false, true),
+                PayloadDecoderTest.field("door", PayloadField.BOOLEAN_TYPE, 40, 1, false, false),
+                PayloadDecoderTest.field("mode", "integer", 41, 3, false, false),
+                PayloadDecoderTest.field("offset", "integer", 44, 4, true, false),
+                PayloadDecoderTest.field("counter", "integer", 48, 32, false, false),
+                pressure));
+        decoder = layout.compile();
+        payload = HexCodec.decode("ff2961100edeee6b28003e");
+    }
+
+    @Benchmark
+    public List<ContextAttribute> interpretedLayout() {
+        return layout.interpret(payload);
+    }
+
+    @Benchmark
+    public List<ContextAttribute> compiledLayout() {
+        return decoder.decode(payload);
+    }
+
+    @Benchmark
+    public List<ContextAttribute> handWritten() {
+        List<ContextAttribute> attributes = new ArrayList<>(8);
+        attributes.add(new ContextAttribute("temperature", "float", payload.getShort(0) / 10.0));
+        attributes.add(new ContextAttribute("humidity", "float", (payload.get(2) & 0xFF) * 0.5));
+        attributes.add(new ContextAttribute("battery", "integer", (long) ((payload.get(3) & 0xFF) | ((payload.get(4) & 0xFF) << 8))));
+        attributes.add(new ContextAttribute("door", PayloadField.BOOLEAN_TYPE, (payload.get(5) & 0x80) != 0));
+        attributes.add(new ContextAttribute("mode", "integer", (long) ((payload.get(5) >>> 4) & 0x7)));
+        attributes.add(new ContextAttribute("offset", "integer", (long) ((payload.get(5) << 28) >> 28)));
+        attributes.add(new ContextAttribute("counter", "integer", payload.getInt(6) & 0xFFFFFFFFL));
+        attributes.add(new ContextAttribute("pressure", "float", (payload.get(10) & 0xFF) * 2 + 900.0));
+        return attributes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PayloadDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.codec;
+
+import com.orange.fiware.openlpwa.iotagent.HexCodec;
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PayloadDecoder and PayloadLayout unit tests
+ */
+public class PayloadDecoderTest {
+
+    @Test
+    public void testFieldsAreDecoded() {
+        PayloadLayout layout = new PayloadLayout("sensor", Arrays.asList(
+                scaled(field("temperature", "float", 0, 16, true, false), 0.1, 0),
+                scaled(field("humidity", "float", 16, 8, false, false), 0.5, 0),
+                field("battery", "integer", 24, 16, false, true),
+                field("door", PayloadField.BOOLEAN_TYPE, 40, 1, false, false),
+                field("mode", "integer", 41, 3, false, false),
+                field("offset", "integer", 44, 4, true, false),
+                field("counter", "integer", 48, 32, false, false),
+                scaled(field("pressure", "float", 80, 8, false, false), 2, 900)));
+        // -21.5, 48.5, 3600 little endian, door open, mode 5, offset -2, counter 4000000000, 1024
+        ByteBuffer payload = HexCodec.decode("ff29" + "61" + "100e" + "de" + "ee6b2800" + "3e");
+
+        List<ContextAttribute> attributes = layout.compile().decode(payload);
+        assertValues(attributes, -21.5, 48.5, 3600L, true, 5L, -2L, 4000000000L, 1024.0);
+        assertEquals("temperature", attributes.get(0).getName());
+        assertEquals("float", attributes.get(0).getType());
+        assertValues(layout.interpret(payload), -21.5, 48.5, 3600L, true, 5L, -2L, 4000000000L, 1024.0);
+        assertEquals(0, payload.position());
+        assertEquals(11, layout.getMinLength());
+    }
+
+    @Test
+    public void testPayloadIsReadFromItsPosition() {
+        PayloadLayout layout = new PayloadLayout("sensor", Collections.singletonList(field("value", "integer", 0, 16, false, false)));
+        ByteBuffer payload = HexCodec.decode("ff0102");
+        payload.position(1);
+        assertValues(layout.compile().decode(payload), 258L);
+    }
+
+    @Test
+    public void testCompiledAndInterpretedDecodersAgree() {
+        Random random = new Random(42);
+        for (int test = 0; test < 200; test++) {
+            int bitLength = 1 + random.nextInt(57);
+            int bitOffset = random.nextInt(40);
+            boolean aligned = random.nextBoolean();
+            if (aligned) {
+                bitOffset &= ~7;
+                bitLength = 8 * (1 + random.nextInt(8));
+            }
+            PayloadField field = field("value", "integer", bitOffset, bitLength, random.nextBoolean(), aligned && random.nextBoolean());
+            if (random.nextBoolean()) {
+                scaled(field, random.nextBoolean() ? 0.01 : 1.5, random.nextInt(100));
+            }
+            PayloadLayout layout = new PayloadLayout("model", Collections.singletonList(field));
+            byte[] bytes = new byte[layout.getMinLength()];
+            random.nextBytes(bytes);
+            ByteBuffer payload = ByteBuffer.wrap(bytes);
+            assertEquals(field.toString(), layout.interpret(payload).get(0).getValue(), layout.compile().decode(payload).get(0).getValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPayloadTooShort() {
+        new PayloadLayout("sensor", Collections.singletonList(field("value", "integer", 4, 16, false, false))).compile().decode(HexCodec.decode("0102"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnalignedLittleEndianField() {
+        new PayloadLayout("sensor", Collections.singletonList(field("value", "integer", 4, 16, false, true)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFieldTooLong() {
+        new PayloadLayout("sensor", Collections.singletonList(field("value", "integer", 4, 64, false, false)));
+    }
+
+    static PayloadField field(String name, String type, int bitOffset, int bitLength, boolean signed, boolean littleEndian) {
+        PayloadField field = new PayloadField(name, type, bitOffset, bitLength);
+        field.setSigned(signed);
+        field.setLittleEndian(littleEndian);
+        return field;
+    }
+
+    private static PayloadField scaled(PayloadField field, double scale, double valueOffset) {
+        field.setScale(scale);
+        field.setValueOffset(valueOffset);
+        return field;
+    }
+
+    private static void assertValues(List<ContextAttribute> attributes, Object... values) {
+        assertEquals(values.length, attributes.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(attributes.get(i).getName(), values[i], attributes.get(i).getValue());
+        }
+    }
+}
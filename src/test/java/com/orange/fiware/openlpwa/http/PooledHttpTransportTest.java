@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.http;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * PooledHttpTransport unit tests with a local Http server
+ */
+public class PooledHttpTransportTest {
+
+    private HttpServer server;
+    private HttpServer stalledServer;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private PooledHttpTransport transport;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        stalledServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stalledServer.createContext("/", exchange -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        stalledServer.setExecutor(Executors.newCachedThreadPool());
+        stalledServer.start();
+
+        transport = new PooledHttpTransport();
+        ReflectionTestUtils.setField(transport, "maxTotalConnections", 10);
+        ReflectionTestUtils.setField(transport, "maxConnectionsPerRoute", 2);
+        ReflectionTestUtils.setField(transport, "connectTimeout", 1000);
+        ReflectionTestUtils.setField(transport, "readTimeout", 1000);
+        ReflectionTestUtils.setField(transport, "poolTimeout", 1000);
+        ReflectionTestUtils.setField(transport, "keepAlive", 30000L);
+    }
+
+    @After
+    public void teardown() {
+        release.countDown();
+        transport.shutdown();
+        server.stop(0);
+        stalledServer.stop(0);
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate(transport.getRequestFactory());
+        String url = "http://localhost:" + server.getAddress().getPort() + "/test";
+        for (int i = 0; i < 5; i++) {
+            ResponseEntity<String> response = asyncRestTemplate.getForEntity(url, String.class).get(5, TimeUnit.SECONDS);
+            assertEquals("ok", response.getBody());
+        }
+
+        // Sequential requests use a single keep-alive connection
+        assertEquals(1, clientPorts.size());
+        assertEquals(5, transport.getLeaseCount());
+        assertEquals(0, transport.getLeaseFailureCount());
+        assertTrue(transport.getMaxWaitTime() >= transport.getAverageWaitTime());
+        PoolStats poolStats = transport.getPoolStats();
+        assertEquals(0, poolStats.getLeased());
+        assertEquals(1, poolStats.getAvailable());
+        assertEquals(10, poolStats.getMax());
+    }
+
+    @Test
+    public void testStatisticsBeforeFirstRequest() {
+        assertEquals(0, transport.getLeaseCount());
+        assertEquals(0, transport.getAverageWaitTime(), 0);
+        assertEquals(0, transport.getPoolStats().getLeased());
+    }
+
+    @Test
+    public void testPoolGrowsWithEachReservedServer() {
+        // Shards on different ports of the same host
+        transport.reserveConnections("http://localhost:1026/v1");
+        transport.reserveConnections("http://localhost:1027/v1");
+        transport.reserveConnections("http://localhost:1028/v1");
+        // Same server as the first shard
+        transport.reserveConnections("http://localhost:1026/v2");
+        assertEquals(10 + 3 * 2, transport.getMaxTotalConnections());
+        transport.getHttpClient();
+        assertEquals(16, transport.getPoolStats().getMax());
+        transport.reserveConnections("http://localhost:1029/v1");
+        assertEquals(18, transport.getPoolStats().getMax());
+    }
+
+    @Test
+    public void testStalledServerDoesNotTakeTheConnectionsOfTheOthers() throws Exception {
+        ReflectionTestUtils.setField(transport, "maxTotalConnections", 0);
+        String stalledUrl = "http://localhost:" + stalledServer.getAddress().getPort() + "/test";
+        String url = "http://localhost:" + server.getAddress().getPort() + "/test";
+        transport.reserveConnections(stalledUrl);
+        transport.reserveConnections(url);
+        assertEquals(4, transport.getMaxTotalConnections());
+
+        // All the connections of the stalled server are leased
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate(transport.getRequestFactory());
+        for (int i = 0; i < 3; i++) {
+            asyncRestTemplate.getForEntity(stalledUrl, String.class);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getPoolStats(stalledUrl).getLeased() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, transport.getPoolStats(stalledUrl).getLeased());
+
+        long start = System.currentTimeMillis();
+        ResponseEntity<String> response = asyncRestTemplate.getForEntity(url, String.class).get(5, TimeUnit.SECONDS);
+        assertEquals("ok", response.getBody());
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(0, transport.getLeaseFailureCount());
+    }
+}
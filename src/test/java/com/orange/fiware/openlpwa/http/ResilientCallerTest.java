@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.http;
+
+import com.orange.fiware.openlpwa.exception.CircuitOpenException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.net.ConnectException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * ResilientCaller and CircuitBreaker unit tests
+ */
+public class ResilientCallerTest {
+
+    private final static String endpoint = "http://localhost:8082";
+    private ResilientCaller caller;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        caller = new ResilientCaller();
+        ReflectionTestUtils.setField(caller, "maxAttempts", 3);
+        ReflectionTestUtils.setField(caller, "initialDelay", 1L);
+        ReflectionTestUtils.setField(caller, "maxDelay", 10L);
+        ReflectionTestUtils.setField(caller, "multiplier", 2.0);
+        ReflectionTestUtils.setField(caller, "failureThreshold", 5);
+        ReflectionTestUtils.setField(caller, "openDuration", 60000L);
+    }
+
+    @After
+    public void teardown() {
+        caller.shutdown();
+    }
+
+    @Test
+    public void testRetryEnabled() {
+        assertTrue(caller.isRetryEnabled());
+        ReflectionTestUtils.setField(caller, "maxAttempts", 1);
+        assertFalse(caller.isRetryEnabled());
+    }
+
+    @Test
+    public void testTransientFailureIsRetried() throws Exception {
+        ListenableFuture<String> future = caller.call(endpoint, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                return failed(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+            }
+            return succeeded("ok");
+        });
+        assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(2, caller.getRetryCount());
+        assertEquals(CircuitBreaker.State.CLOSED, caller.circuitBreaker(endpoint).getState());
+    }
+
+    @Test
+    public void testNotIdempotentRequestIsOnlyRetriedWhenNotSent() throws Exception {
+        ListenableFuture<String> future = caller.call(endpoint, () -> {
+            attempts.incrementAndGet();
+            return failed(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+        }, null, false);
+        assertFailure(future, HttpServerErrorException.class);
+        assertEquals(1, attempts.get());
+
+        attempts.set(0);
+        future = caller.call(endpoint, () -> {
+            if (attempts.incrementAndGet() < 2) {
+                return failed(new ResourceAccessException("Connection refused", new ConnectException("Connection refused")));
+            }
+            return succeeded("ok");
+        }, null, false);
+        assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() throws Exception {
+        ListenableFuture<String> future = caller.call(endpoint, () -> {
+            attempts.incrementAndGet();
+            return failed(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        });
+        assertFailure(future, HttpClientErrorException.class);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testUnauthorizedRequestIsSentWithNewToken() throws Exception {
+        AtomicInteger tokenRequests = new AtomicInteger();
+        ListenableFuture<String> future = caller.call(endpoint,
+                () -> attempts.incrementAndGet() == 1 ? failed(new HttpClientErrorException(HttpStatus.UNAUTHORIZED)) : succeeded("ok"),
+                () -> succeeded("token" + tokenRequests.incrementAndGet()));
+        assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, tokenRequests.get());
+    }
+
+    @Test
+    public void testOpenCircuitRejectsRequests() throws Exception {
+        ReflectionTestUtils.setField(caller, "maxAttempts", 1);
+        for (int i = 0; i < 5; i++) {
+            assertFailure(caller.call(endpoint, () -> {
+                attempts.incrementAndGet();
+                return failed(new ResourceAccessException("Connection refused"));
+            }), ResourceAccessException.class);
+        }
+        CircuitBreaker circuitBreaker = caller.circuitBreaker(endpoint);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertFailure(caller.call(endpoint, () -> {
+            attempts.incrementAndGet();
+            return succeeded("ok");
+        }), CircuitOpenException.class);
+        assertEquals(5, attempts.get());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+        // Other endpoints are not concerned
+        assertEquals("ok", caller.call("http://other", () -> succeeded("ok")).get());
+    }
+
+    @Test
+    public void testCircuitClosesAfterSuccessfulTrial() {
+        AtomicLong clock = new AtomicLong();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(endpoint, 2, 1000, clock::get);
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.tryAcquire());
+
+        clock.set(1000);
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        // Only one trial request at a time
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        clock.set(2000);
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getOpenCount());
+    }
+
+    @Test
+    public void testFailureClassification() {
+        assertEquals(ResilientCaller.FailureType.UNAUTHORIZED, ResilientCaller.classify(new HttpClientErrorException(HttpStatus.UNAUTHORIZED)));
+        assertEquals(ResilientCaller.FailureType.TRANSIENT, ResilientCaller.classify(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS)));
+        assertEquals(ResilientCaller.FailureType.TRANSIENT, ResilientCaller.classify(new ExecutionException(new ResourceAccessException("timeout"))));
+        assertEquals(ResilientCaller.FailureType.PERMANENT, ResilientCaller.classify(new HttpClientErrorException(HttpStatus.NOT_FOUND)));
+        assertEquals(ResilientCaller.FailureType.PERMANENT, ResilientCaller.classify(new IllegalArgumentException()));
+    }
+
+    @Test
+    public void testPendingRetryIsSentAfterShutdown() throws Exception {
+        ReflectionTestUtils.setField(caller, "initialDelay", 200L);
+        ReflectionTestUtils.setField(caller, "maxDelay", 200L);
+        ListenableFuture<String> future = caller.call(endpoint, () -> {
+            if (attempts.incrementAndGet() < 2) {
+                return failed(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+            }
+            return succeeded("ok");
+        });
+        caller.shutdown();
+        assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    private static <T> ListenableFuture<T> succeeded(T value) {
+        SettableListenableFuture<T> future = new SettableListenableFuture<>();
+        future.set(value);
+        return future;
+    }
+
+    private static <T> ListenableFuture<T> failed(Throwable ex) {
+        SettableListenableFuture<T> future = new SettableListenableFuture<>();
+        future.setException(ex);
+        return future;
+    }
+
+    private static void assertFailure(ListenableFuture<?> future, Class<? extends Throwable> exceptionClass) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(exceptionClass.isInstance(e.getCause()));
+        }
+    }
+}
@@ -18,13 +18,14 @@
 
 package com.orange.fiware.openlpwa.iotagent;
 
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.springframework.test.util.ReflectionTestUtils;
 
-import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -41,46 +42,86 @@ public class AgentMqttClientCallbackTest {
     private AgentConnectionLostCallback lostCallback;
     @Mock
     private OpenLpwaNgsiConverter converter;
+    private AgentLifecycle lifecycle;
 
     @Before
     public void setup() {
         initMocks(this);
+        lifecycle = new AgentLifecycle();
+        lifecycle.setReconnectionPolicy(10, 10, 2, 2);
+        lifecycle.transition(AgentState.STOPPED, AgentState.CONNECTING);
+        lifecycle.transition(AgentState.CONNECTING, AgentState.CONNECTED);
         callback = agent.new AgentMqttProviderCallback();
-        ReflectionTestUtils.setField(callback, "reconnectingDelay", 10);
+        ReflectionTestUtils.setField(agent, "lifecycle", lifecycle);
         ReflectionTestUtils.setField(agent, "connectionLostCallback", lostCallback);
         ReflectionTestUtils.setField(agent, "converter", converter);
     }
 
     @Test
     public void testConnectionLostOk() {
-        assertFalse((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
         ArgumentCaptor<AgentSuccessCallback> successCallback = ArgumentCaptor.forClass(AgentSuccessCallback.class);
         callback.connectionLost(new Exception());
-        assertTrue((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
-        verify(agent, times(1)).start(any(OpenLpwaNgsiConverter.class), successCallback.capture(), any(AgentFailureCallback.class));
+        assertEquals(AgentState.RECONNECTING, lifecycle.getState());
+        verify(agent, timeout(1000).times(1)).connectAndSubscribe(successCallback.capture(), any(AgentFailureCallback.class));
         successCallback.getValue().onSuccess();
-        assertFalse((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
+        assertEquals(AgentState.CONNECTED, lifecycle.getState());
+        assertTrue(lifecycle.getLastRecoveryTime() >= 0);
     }
 
     @Test
-    public void testConnectionLostStartFailed() {
-        assertFalse((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
+    public void testConnectionLostReconnectionFailed() {
         ArgumentCaptor<AgentFailureCallback> failure = ArgumentCaptor.forClass(AgentFailureCallback.class);
         callback.connectionLost(new Exception());
-        assertTrue((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
-        verify(agent, times(1)).start(any(OpenLpwaNgsiConverter.class), any(AgentSuccessCallback.class), failure.capture());
+        verify(agent, timeout(1000).times(1)).connectAndSubscribe(any(AgentSuccessCallback.class), failure.capture());
         failure.getValue().onFailure(new Exception());
-        assertFalse((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
+        assertEquals(AgentState.RECONNECTING, lifecycle.getState());
+        verify(lostCallback, never()).onConnectionLost();
+        verify(agent, never()).releaseStartResources();
+
+        // Second and last attempt
+        verify(agent, timeout(1000).times(2)).connectAndSubscribe(any(AgentSuccessCallback.class), failure.capture());
+        failure.getValue().onFailure(new Exception());
+        assertEquals(AgentState.STOPPED, lifecycle.getState());
         verify(lostCallback, times(1)).onConnectionLost();
+        verify(agent).releaseStartResources();
+        assertEquals(2, lifecycle.getReconnectionAttempts());
     }
 
     @Test
-    public void testConnectionLostAlreadyConnecting() {
-        assertFalse((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
+    public void testConnectionLostAlreadyReconnecting() {
         callback.connectionLost(new Exception());
-        assertTrue((boolean) ReflectionTestUtils.getField(agent, "reconnecting"));
+        assertEquals(AgentState.RECONNECTING, lifecycle.getState());
         callback.connectionLost(new Exception());
-        verify(agent, times(1)).start(any(OpenLpwaNgsiConverter.class), any(AgentSuccessCallback.class), any(AgentFailureCallback.class));
+        verify(agent, timeout(1000).times(1)).connectAndSubscribe(any(AgentSuccessCallback.class), any(AgentFailureCallback.class));
+        verify(agent, after(100).times(1)).connectAndSubscribe(any(AgentSuccessCallback.class), any(AgentFailureCallback.class));
+    }
+
+    @Test
+    public void testConnectionLostWhenStopped() {
+        lifecycle.stop();
+        callback.connectionLost(new Exception());
+        assertEquals(AgentState.STOPPED, lifecycle.getState());
+        verify(agent, after(100).never()).connectAndSubscribe(any(AgentSuccessCallback.class), any(AgentFailureCallback.class));
     }
-}
 
+    @Test
+    public void testMessageRejectedWhenStoppedIsAcknowledged() {
+        StripedExecutor executor = new StripedExecutor("test-worker", 1, 1);
+        executor.shutdown();
+        ReflectionTestUtils.setField(agent, "messageExecutor", executor);
+        Runnable acknowledgement = mock(Runnable.class);
+        callback.newMessageArrived("device", new DeviceIncomingMessage(), acknowledgement);
+        verify(acknowledgement).run();
+    }
+
+    @Test
+    public void testReconnectionDelay() {
+        lifecycle.setReconnectionPolicy(100, 1000, 2, 0);
+        for (int i = 0; i < 100; i++) {
+            long delay = lifecycle.reconnectionDelay(2);
+            assertTrue(delay >= 0 && delay <= 400);
+            delay = lifecycle.reconnectionDelay(10);
+            assertTrue(delay >= 0 && delay <= 1000);
+        }
+    }
+}
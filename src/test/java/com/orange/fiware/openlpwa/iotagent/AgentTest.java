@@ -20,9 +20,11 @@ package com.orange.fiware.openlpwa.iotagent;
 
 import com.orange.fiware.openlpwa.exception.AgentException;
 import com.orange.fiware.openlpwa.exception.ConfigurationException;
+import com.orange.fiware.openlpwa.ngsi.NgsiManager;
 import com.orange.fiware.openlpwa.provider.OpenLpwaMqttProvider;
 import com.orange.fiware.openlpwa.provider.OpenLpwaProvider;
 import com.orange.fiware.openlpwa.provider.model.DeviceCommand;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
 import com.orange.fiware.openlpwa.provider.model.DeviceInfo;
 import com.orange.fiware.openlpwa.provider.model.RegisterDeviceCommandParameter;
 import com.orange.ngsi.model.*;
@@ -37,9 +39,11 @@ import org.mockito.Mock;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.util.concurrent.FailureCallback;
 import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.util.concurrent.SuccessCallback;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -63,6 +67,10 @@ public class AgentTest {
     @Mock
     private OpenLpwaMqttProvider mockOpenLpwaMqttProvider;
     @Mock
+    private NgsiManager mockNgsiManager;
+    @Mock
+    private OpenLpwaNgsiConverter mockConverter;
+    @Mock
     private SuccessCallback<Boolean> resultCallback;
     private Device device;
     private ContextAttribute commandAttribute;
@@ -87,7 +95,7 @@ public class AgentTest {
 
     @After
     public void teardown() {
-        reset(mockLpwaProvider, mockOpenLpwaMqttProvider, resultCallback);
+        reset(mockLpwaProvider, mockOpenLpwaMqttProvider, mockNgsiManager, mockConverter, resultCallback);
     }
 
     @Test
@@ -136,6 +144,49 @@ public class AgentTest {
         verify(resultCallback).onSuccess(false);
     }
 
+    @Test
+    public void testStartAgentAfterConnectionFailureIsolatesTheNewConverter() {
+        ReflectionTestUtils.setField(agent, "converterThreads", 1);
+        ReflectionTestUtils.setField(agent, "converterQueueCapacity", 1);
+        ReflectionTestUtils.setField(agent, "converterTimeout", 1000L);
+        simulateMqttConnectionFailure();
+        agent.start(new OpenLpwaNgsiConverterTest(false), () -> fail("Success callback unexpected call"), null);
+        // The threads of the failed start are stopped
+        assertNull(agent.getIsolatedConverter());
+
+        reset(mockOpenLpwaMqttProvider);
+        simulateMqttConnectionSuccess();
+        simulateMqttSubscriptionSuccess();
+        agent.start(mockConverter, () -> resultCallback.onSuccess(true), exception -> fail("Failed callback unexpected call"));
+        verify(resultCallback).onSuccess(true);
+
+        IsolatedConverter isolatedConverter = agent.getIsolatedConverter();
+        assertNotNull(isolatedConverter);
+        assertSame(isolatedConverter, ReflectionTestUtils.getField(agent, "converter"));
+        isolatedConverter.decodeData("testDevEUI", "0a", null);
+        verify(mockConverter).decodeData("testDevEUI", "0a", null);
+        isolatedConverter.shutdown();
+    }
+
+    @Test
+    public void testStartRunningAgentKeepsTheIsolatedConverter() {
+        ReflectionTestUtils.setField(agent, "converterThreads", 1);
+        ReflectionTestUtils.setField(agent, "converterQueueCapacity", 1);
+        ReflectionTestUtils.setField(agent, "converterTimeout", 1000L);
+        simulateMqttConnectionSuccess();
+        simulateMqttSubscriptionSuccess();
+        agent.start(mockConverter, () -> resultCallback.onSuccess(true), exception -> fail("Failed callback unexpected call"));
+        IsolatedConverter isolatedConverter = agent.getIsolatedConverter();
+
+        agent.start(new OpenLpwaNgsiConverterTest(false), () -> fail("Success callback unexpected call"),
+                exception -> resultCallback.onSuccess(false));
+        verify(resultCallback).onSuccess(false);
+        assertSame(isolatedConverter, agent.getIsolatedConverter());
+        assertSame(isolatedConverter, ReflectionTestUtils.getField(agent, "converter"));
+        assertSame(mockConverter, isolatedConverter.getConverter());
+        isolatedConverter.shutdown();
+    }
+
     @Test
     public void testStartAgentWithSubscriptionFailure() {
         simulateMqttConnectionSuccess();
@@ -179,6 +230,94 @@ public class AgentTest {
         verify(resultCallback).onSuccess(false);
     }
 
+    @Test
+    public void testMessageAcknowledgedOnceTheUpdateIsCompleted() throws Exception {
+        SettableListenableFuture<UpdateContextResponse> update = new SettableListenableFuture<>();
+        when(mockNgsiManager.updateDeviceAttributes(eq("testDevEUI"), anyList())).thenReturn(update);
+        when(mockConverter.decodeData(eq("testDevEUI"), eq("0a"), any(DeviceIncomingMessage.class))).thenAnswer(invocation -> attributes());
+        Runnable acknowledgement = mock(Runnable.class);
+
+        messageCallback().newMessageArrived("testDevEUI", incomingMessage("0a"), acknowledgement);
+        verify(mockNgsiManager).updateDeviceAttributes(eq("testDevEUI"), anyList());
+        verify(acknowledgement, never()).run();
+
+        update.set(new UpdateContextResponse());
+        verify(acknowledgement).run();
+    }
+
+    @Test
+    public void testMessageWithoutAttributeIsAcknowledged() throws Exception {
+        when(mockConverter.decodeData(eq("testDevEUI"), eq("0a"), any(DeviceIncomingMessage.class))).thenReturn(null);
+        Runnable acknowledgement = mock(Runnable.class);
+
+        messageCallback().newMessageArrived("testDevEUI", incomingMessage("0a"), acknowledgement);
+        verify(acknowledgement).run();
+        verify(mockNgsiManager, never()).updateDeviceAttributes(anyString(), anyList());
+    }
+
+    @Test
+    public void testMessageWithUnchangedValuesIsAcknowledged() throws Exception {
+        SettableListenableFuture<UpdateContextResponse> update = new SettableListenableFuture<>();
+        update.set(new UpdateContextResponse());
+        when(mockNgsiManager.updateDeviceAttributes(eq("testDevEUI"), anyList())).thenReturn(update);
+        when(mockConverter.decodeData(eq("testDevEUI"), eq("0a"), any(DeviceIncomingMessage.class))).thenAnswer(invocation -> attributes());
+        ReflectionTestUtils.setField(agent, "changeDetectionCache", new ChangeDetectionCache(1000, 0, Collections.emptyMap(), 0));
+        Agent.AgentMqttProviderCallback callback = messageCallback();
+        Runnable firstAcknowledgement = mock(Runnable.class);
+        Runnable secondAcknowledgement = mock(Runnable.class);
+
+        callback.newMessageArrived("testDevEUI", incomingMessage("0a"), firstAcknowledgement);
+        callback.newMessageArrived("testDevEUI", incomingMessage("0a"), secondAcknowledgement);
+        verify(firstAcknowledgement).run();
+        verify(secondAcknowledgement).run();
+        verify(mockNgsiManager, times(1)).updateDeviceAttributes(eq("testDevEUI"), anyList());
+    }
+
+    @Test
+    public void testDecodingCacheKeepsTheConverterOfTheStream() throws Exception {
+        SettableListenableFuture<UpdateContextResponse> update = new SettableListenableFuture<>();
+        update.set(new UpdateContextResponse());
+        when(mockNgsiManager.updateDeviceAttributes(anyString(), anyList())).thenReturn(update);
+        when(mockConverter.decodeData(anyString(), eq("0a"), any(DeviceIncomingMessage.class))).thenAnswer(invocation -> attributes());
+        OpenLpwaNgsiConverter doorConverter = mock(OpenLpwaNgsiConverter.class);
+        when(doorConverter.decodeData(anyString(), eq("0a"), any(DeviceIncomingMessage.class)))
+                .thenReturn(Collections.singletonList(new ContextAttribute("open", "boolean", "true")));
+        ConverterRegistry registry = new ConverterRegistry(mockConverter);
+        registry.register(ConverterRegistry.KeyType.STREAM_PREFIX, "urn:lo:nsid:door:", doorConverter);
+        Agent.AgentMqttProviderCallback callback = messageCallback();
+        ReflectionTestUtils.setField(agent, "converter", registry);
+        ReflectionTestUtils.setField(agent, "decodingCache", new DecodingCache(1600));
+
+        DeviceIncomingMessage doorMessage = incomingMessage("0a");
+        doorMessage.setStreamId("urn:lo:nsid:door:1");
+        callback.newMessageArrived("device1", incomingMessage("0a"));
+        callback.newMessageArrived("device2", doorMessage);
+        callback.newMessageArrived("device3", incomingMessage("0a"));
+        verify(mockConverter, times(1)).decodeData(anyString(), eq("0a"), any(DeviceIncomingMessage.class));
+        verify(doorConverter, times(1)).decodeData(anyString(), eq("0a"), any(DeviceIncomingMessage.class));
+        ArgumentCaptor<List> attributes = ArgumentCaptor.forClass(List.class);
+        verify(mockNgsiManager).updateDeviceAttributes(eq("device2"), attributes.capture());
+        assertEquals("open", ((ContextAttribute) attributes.getValue().get(0)).getName());
+    }
+
+    private Agent.AgentMqttProviderCallback messageCallback() {
+        ReflectionTestUtils.setField(agent, "converter", mockConverter);
+        return agent.new AgentMqttProviderCallback();
+    }
+
+    private DeviceIncomingMessage incomingMessage(String payload) {
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+        incomingMessage.setModel("testModel");
+        incomingMessage.setData(payload);
+        return incomingMessage;
+    }
+
+    private List<ContextAttribute> attributes() {
+        List<ContextAttribute> attributes = new ArrayList<>();
+        attributes.add(new ContextAttribute("temperature", "float", "21.5"));
+        return attributes;
+    }
+
     private void simulateMqttConnectionSuccess() {
         doAnswer(invocationOnMock -> {
             SuccessCallback<String> originalArgument = invocationOnMock.getArgument(0, SuccessCallback.class);
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * BinaryNgsiConverter and HexNgsiConverterAdapter unit tests
+ */
+public class BinaryNgsiConverterTest {
+
+    /**
+     * Decodes a temperature in tenths of degrees on two bytes
+     */
+    private static class TemperatureConverter implements BinaryNgsiConverter {
+
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, ByteBuffer payload, DeviceIncomingMessage incomingMessage) {
+            return Collections.singletonList(new ContextAttribute("temperature", "float", payload.getShort(0) / 10.0));
+        }
+
+        @Override
+        public ByteBuffer encodeCommand(String deviceID, String commandName, ContextAttribute attribute) {
+            return ByteBuffer.wrap(new byte[]{0x01, Byte.parseByte(attribute.getValue().toString())});
+        }
+    }
+
+    @Test
+    public void testHexadecimalMethodsUseTheBinaryOnes() {
+        BinaryNgsiConverter converter = new TemperatureConverter();
+        List<ContextAttribute> attributes = converter.decodeData("device1", "00d7", new DeviceIncomingMessage());
+        assertEquals(21.5, attributes.get(0).getValue());
+        assertEquals(21.5, converter.decodeData("device1", "00d7").get(0).getValue());
+        assertEquals("010a", converter.encodeDataForCommand("device1", "period", new ContextAttribute("period", "int", 10)));
+        assertSame(converter, BinaryNgsiConverter.of(converter));
+    }
+
+    @Test
+    public void testAdapterOfHexadecimalConverter() {
+        OpenLpwaNgsiConverter hexConverter = new OpenLpwaNgsiConverterTest(false);
+        BinaryNgsiConverter converter = BinaryNgsiConverter.of(hexConverter);
+        assertTrue(converter instanceof HexNgsiConverterAdapter);
+        assertSame(hexConverter, ((HexNgsiConverterAdapter) converter).getConverter());
+
+        assertEquals("testValue", converter.decodeData("device1", "c0ffee").get(0).getValue());
+        assertEquals("Oxc0ffee", converter.encodeDataForCommand("device1", "command", null));
+    }
+
+    @Test
+    public void testAdapterEncodesCommands() {
+        OpenLpwaNgsiConverter hexConverter = new OpenLpwaNgsiConverter() {
+            @Override
+            public List<ContextAttribute> decodeData(String deviceID, String data) {
+                return null;
+            }
+
+            @Override
+            public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+                return Collections.singletonList(new ContextAttribute("data", "string", data));
+            }
+
+            @Override
+            public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+                return "C0FFEE";
+            }
+        };
+        BinaryNgsiConverter converter = BinaryNgsiConverter.of(hexConverter);
+        assertEquals(HexCodec.decode("c0ffee"), converter.encodeCommand("device1", "command", null));
+        assertEquals("C0FFEE", converter.encodeDataForCommand("device1", "command", null));
+        // The payload received as hexadecimal is delegated as is
+        assertEquals("0A0b", converter.decodeData("device1", "0A0b", null).get(0).getValue());
+        assertEquals("0a0b", converter.decodeData("device1", HexCodec.decode("0A0b"), null).get(0).getValue());
+    }
+
+    @Test
+    public void testPayloadDecodedOnceThroughTheWrappers() {
+        ConverterRegistry registry = new ConverterRegistry(new TemperatureConverter());
+        registry.register(ConverterRegistry.KeyType.MODEL, "hex", new OpenLpwaNgsiConverter() {
+            @Override
+            public List<ContextAttribute> decodeData(String deviceID, String data) {
+                return decodeData(deviceID, data, null);
+            }
+
+            @Override
+            public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+                return Collections.singletonList(new ContextAttribute("data", "string", data));
+            }
+
+            @Override
+            public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+                return null;
+            }
+        });
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+
+        UplinkPayload payload = new UplinkPayload("00d7");
+        byte[] bytes = payload.bytes();
+        assertArrayEquals(new byte[]{0x00, (byte) 0xd7}, bytes);
+        // Decoded once, the bytes being reused by the next calls
+        assertSame(bytes, payload.bytes());
+        assertEquals(21.5, UplinkPayload.decode(registry, "device1", payload, incomingMessage).get(0).getValue());
+
+        // The hexadecimal converters get the payload as received
+        String data = new String("0a0b");
+        incomingMessage.setModel("hex");
+        OpenLpwaNgsiConverter isolatedRegistry = new IsolatedConverter(registry, 1, 1, 1000, 1000, 1, 1000, null);
+        assertSame(data, UplinkPayload.decode(isolatedRegistry, "device1", new UplinkPayload(data), incomingMessage).get(0).getValue());
+
+        // Not hexadecimal payloads fail in the converter
+        assertNull(new UplinkPayload("0xff").bytes());
+        incomingMessage.setModel(null);
+        try {
+            UplinkPayload.decode(registry, "device1", new UplinkPayload("0xff"), incomingMessage);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
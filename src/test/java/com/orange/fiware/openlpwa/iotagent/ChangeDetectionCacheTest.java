@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChangeDetectionCache unit tests
+ */
+public class ChangeDetectionCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private ChangeDetectionCache cache;
+
+    @Before
+    public void setup() {
+        cache = new ChangeDetectionCache(1000, 60000, Collections.singletonMap("temperature", 0.5), 0, now::get);
+    }
+
+    @Test
+    public void testOnlyChangedAttributesAreSent() {
+        assertEquals(2, cache.filter("device1", attributes(20.0, "open")).size());
+
+        assertTrue(cache.filter("device1", attributes(20.0, "open")).isEmpty());
+        List<ContextAttribute> changedAttributes = cache.filter("device1", attributes(20.0, "closed"));
+        assertEquals(1, changedAttributes.size());
+        assertEquals("door", changedAttributes.get(0).getName());
+        // Other devices are not affected
+        assertEquals(2, cache.filter("device2", attributes(20.0, "closed")).size());
+
+        assertEquals(5, cache.getForwardedCount());
+        assertEquals(3, cache.getSuppressedCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testNumericChangesWithinDeadbandAreSuppressed() {
+        cache.filter("device1", attributes(20.0, "open"));
+
+        assertTrue(cache.filter("device1", attributes(20.4, "open")).isEmpty());
+        // Compared to the last sent value, the small changes don't accumulate
+        assertTrue(cache.filter("device1", attributes(19.6, "open")).isEmpty());
+        assertEquals(1, cache.filter("device1", attributes(20.6, "open")).size());
+        assertTrue(cache.filter("device1", attributes("20.9", "open")).isEmpty());
+
+        // Default deadband for the other attributes
+        assertEquals(1, cache.filter("device1", Collections.singletonList(new ContextAttribute("battery", "float", 90))).size());
+        assertTrue(cache.filter("device1", Collections.singletonList(new ContextAttribute("battery", "float", 90.0))).isEmpty());
+        assertEquals(1, cache.filter("device1", Collections.singletonList(new ContextAttribute("battery", "float", 89.9))).size());
+    }
+
+    @Test
+    public void testHeartbeatSendsAllAttributes() {
+        cache.filter("device1", attributes(20.0, "open"));
+        now.addAndGet(59999);
+        assertTrue(cache.filter("device1", attributes(20.0, "open")).isEmpty());
+        now.addAndGet(1);
+        assertEquals(2, cache.filter("device1", attributes(20.0, "open")).size());
+        assertTrue(cache.filter("device1", attributes(20.0, "open")).isEmpty());
+        assertEquals(1, cache.getHeartbeatCount());
+    }
+
+    @Test
+    public void testInvalidatedDeviceIsSentAgain() {
+        cache.filter("device1", attributes(20.0, "open"));
+        cache.invalidate("device1");
+        assertEquals(2, cache.filter("device1", attributes(20.0, "open")).size());
+    }
+
+    @Test
+    public void testLeastRecentlyUpdatedDevicesAreEvicted() {
+        cache = new ChangeDetectionCache(16, 0, Collections.emptyMap(), 0, now::get);
+        for (int i = 0; i < 200; i++) {
+            cache.filter("device" + i, attributes(20.0, "open"));
+        }
+        assertTrue(cache.size() <= 16);
+        assertEquals(200 - cache.size(), cache.getEvictionCount());
+        assertEquals(2, cache.filter("device0", attributes(20.0, "open")).size());
+    }
+
+    @Test
+    public void testParseDeadbands() {
+        Map<String, Double> deadbands = ChangeDetectionCache.parseDeadbands(" temperature:0.5, humidity:2");
+        assertEquals(2, deadbands.size());
+        assertEquals(0.5, deadbands.get("temperature"), 0);
+        assertEquals(2, deadbands.get("humidity"), 0);
+        assertTrue(ChangeDetectionCache.parseDeadbands("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidDeadbands() {
+        ChangeDetectionCache.parseDeadbands("temperature");
+    }
+
+    private List<ContextAttribute> attributes(Object temperature, String door) {
+        return Arrays.asList(new ContextAttribute("temperature", "float", temperature), new ContextAttribute("door", "string", door));
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConverterRegistry unit tests
+ */
+public class ConverterRegistryTest {
+
+    private final OpenLpwaNgsiConverter defaultConverter = new NamedConverter("default");
+    private final OpenLpwaNgsiConverter modelConverter = new NamedConverter("model");
+    private final OpenLpwaNgsiConverter shortPrefixConverter = new NamedConverter("shortPrefix");
+    private final OpenLpwaNgsiConverter longPrefixConverter = new NamedConverter("longPrefix");
+    private final OpenLpwaNgsiConverter tagConverter = new NamedConverter("tag");
+
+    /**
+     * Converter returning its name as attribute
+     */
+    private static class NamedConverter implements OpenLpwaNgsiConverter {
+
+        private final String name;
+
+        NamedConverter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data) {
+            return decodeData(deviceID, data, null);
+        }
+
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+            return Collections.singletonList(new ContextAttribute("converter", "string", name));
+        }
+
+        @Override
+        public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+            return name;
+        }
+    }
+
+    @Test
+    public void testMessagesAreDispatchedByModelThenStreamThenTag() {
+        ConverterRegistry registry = new ConverterRegistry(defaultConverter);
+        registry.register(ConverterRegistry.KeyType.MODEL, "sensorV1", modelConverter);
+        registry.register(ConverterRegistry.KeyType.STREAM_PREFIX, "urn:lo:nsid:lora:", shortPrefixConverter);
+        registry.register(ConverterRegistry.KeyType.STREAM_PREFIX, "urn:lo:nsid:lora:0018B2", longPrefixConverter);
+        registry.register(ConverterRegistry.KeyType.TAG, "door", tagConverter);
+
+        assertSame(modelConverter, registry.converterFor(message("sensorV1", "urn:lo:nsid:lora:0018B20001", "door")));
+        assertSame(longPrefixConverter, registry.converterFor(message("other", "urn:lo:nsid:lora:0018B20001", "door")));
+        assertSame(shortPrefixConverter, registry.converterFor(message(null, "urn:lo:nsid:lora:0018B30001", "door")));
+        assertSame(tagConverter, registry.converterFor(message(null, "urn:lo:nsid:sigfox:1", "door")));
+        assertSame(defaultConverter, registry.converterFor(message(null, "urn:lo:nsid:sigfox:1")));
+        assertSame(defaultConverter, registry.converterFor(null));
+        // The stream resolution is remembered
+        assertSame(tagConverter, registry.converterFor(message(null, "urn:lo:nsid:sigfox:1", "door")));
+
+        assertEquals("model", registry.decodeData("device1", "00", message("sensorV1", null)).get(0).getValue());
+        assertEquals("model", registry.encodeDataForCommand("device1", "command", null));
+    }
+
+    @Test
+    public void testConvertersAreReplacedAtRuntime() {
+        ConverterRegistry registry = new ConverterRegistry(null);
+        DeviceIncomingMessage incomingMessage = message("sensorV1", "urn:lo:nsid:lora:0018B20001");
+        assertNull(registry.decodeData("device1", "00", incomingMessage));
+        assertEquals(1, registry.getUnmatchedCount());
+
+        registry.register(ConverterRegistry.KeyType.STREAM_PREFIX, "urn:lo:nsid:lora:", shortPrefixConverter);
+        assertSame(shortPrefixConverter, registry.converterFor(incomingMessage));
+        assertNull(registry.register(ConverterRegistry.KeyType.MODEL, "sensorV1", modelConverter));
+        assertSame(modelConverter, registry.converterFor(incomingMessage));
+        assertSame(modelConverter, registry.register(ConverterRegistry.KeyType.MODEL, "sensorV1", tagConverter));
+        assertSame(tagConverter, registry.converterFor(incomingMessage));
+
+        assertSame(tagConverter, registry.unregister(ConverterRegistry.KeyType.MODEL, "sensorV1"));
+        assertNull(registry.unregister(ConverterRegistry.KeyType.MODEL, "sensorV1"));
+        assertSame(shortPrefixConverter, registry.converterFor(incomingMessage));
+        registry.unregister(ConverterRegistry.KeyType.STREAM_PREFIX, "urn:lo:nsid:lora:");
+        assertNull(registry.converterFor(incomingMessage));
+
+        registry.setDefaultConverter(defaultConverter);
+        assertSame(defaultConverter, registry.converterFor(incomingMessage));
+        assertTrue(registry.getConverters(ConverterRegistry.KeyType.MODEL).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRegisteredConvertersAreImmutable() {
+        ConverterRegistry registry = new ConverterRegistry(null);
+        registry.getConverters(ConverterRegistry.KeyType.TAG).put("tag", tagConverter);
+    }
+
+    @Test
+    public void testCommandsWithoutDefaultConverter() {
+        assertNull(new ConverterRegistry(null).encodeDataForCommand("device1", "command", null));
+    }
+
+    @Test
+    public void testCommandsAreEncodedByTheConverterOfTheDevice() {
+        ConverterRegistry registry = new ConverterRegistry(defaultConverter);
+        registry.register(ConverterRegistry.KeyType.MODEL, "sensorV1", modelConverter);
+        assertEquals("default", registry.encodeDataForCommand("device1", "command", null));
+
+        registry.decodeData("device1", "00", message("sensorV1", "urn:lo:nsid:lora:0018B20001"));
+        assertEquals("model", registry.encodeDataForCommand("device1", "command", null));
+        assertEquals("default", registry.encodeDataForCommand("device2", "command", null));
+
+        // The current converter of the model is used
+        registry.register(ConverterRegistry.KeyType.MODEL, "sensorV1", tagConverter);
+        assertEquals("tag", registry.encodeDataForCommand("device1", "command", null));
+
+        // The device is handled by the default converter again
+        registry.decodeData("device1", "00", message("other", "urn:lo:nsid:lora:0018B20001"));
+        assertEquals("default", registry.encodeDataForCommand("device1", "command", null));
+    }
+
+    private static DeviceIncomingMessage message(String model, String streamId, String... tags) {
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+        incomingMessage.setModel(model);
+        incomingMessage.setStreamId(streamId);
+        incomingMessage.setTags(Arrays.asList(tags));
+        return incomingMessage;
+    }
+}
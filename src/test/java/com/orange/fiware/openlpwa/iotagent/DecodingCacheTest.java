@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * DecodingCache unit tests
+ */
+public class DecodingCacheTest {
+
+    private final AtomicInteger decodeCount = new AtomicInteger();
+    private DecodingCache cache;
+
+    @Before
+    public void setup() {
+        cache = new DecodingCache(1600);
+    }
+
+    @Test
+    public void testRepeatedPayloadIsDecodedOnce() {
+        List<ContextAttribute> attributes = cache.decode("sensor", "0aff", decoder("0aff"));
+        assertEquals("0aff", attributes.get(0).getValue());
+        // Same bytes whatever the case of the hexadecimal string
+        assertSame(attributes, cache.decode("sensor", "0AFF", decoder("0AFF")));
+        assertEquals(1, decodeCount.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Other models decode the same bytes differently
+        assertEquals("0aff", cache.decode("sensorV2", "0aff", decoder("0aff")).get(0).getValue());
+        assertEquals(2, decodeCount.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDecodedPayloadsAreRememberedByConverter() {
+        OpenLpwaNgsiConverter converter = new OpenLpwaNgsiConverterTest(false);
+        List<ContextAttribute> attributes = cache.decode(converter, "sensor", new byte[]{0x0a, (byte) 0xff}, decoder("0aff"));
+        assertSame(attributes, cache.decode(converter, "sensor", new byte[]{0x0a, (byte) 0xff}, decoder("0aff")));
+        assertEquals(1, decodeCount.get());
+
+        // Same model and bytes selecting another converter, by stream or tag
+        OpenLpwaNgsiConverter otherConverter = new OpenLpwaNgsiConverterTest(false);
+        assertNotSame(attributes, cache.decode(otherConverter, "sensor", new byte[]{0x0a, (byte) 0xff}, decoder("0aff")));
+        assertEquals(2, decodeCount.get());
+
+        assertNotNull(cache.decode(converter, "sensor", null, decoder("")));
+        assertNotNull(cache.decode(converter, "sensor", new byte[257], decoder("")));
+        assertNotNull(cache.decode(converter, null, new byte[]{0x00}, decoder("00")));
+        assertNotNull(cache.decode(converter, null, new byte[]{0x00}, decoder("00")));
+        assertEquals(4, cache.getBypassCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDecodedAttributesCantBeModified() {
+        cache.decode("sensor", "0aff", decoder("0aff")).add(new ContextAttribute("other", "string", "value"));
+    }
+
+    @Test
+    public void testUncacheablePayloadsAreDecoded() {
+        assertNotNull(cache.decode("sensor", "0xff", decoder("0xff")));
+        assertNotNull(cache.decode("sensor", "0xff", decoder("0xff")));
+        assertEquals(2, decodeCount.get());
+        assertEquals(2, cache.getBypassCount());
+
+        // Failed decodings are not remembered
+        assertNull(cache.decode("sensor", "00", () -> null));
+        assertNotNull(cache.decode("sensor", "00", decoder("00")));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testFrequentPayloadsSurviveOneOffPayloads() {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                cache.decode("sensor", String.format("%04x", i), decoder("frequent"));
+            }
+        }
+        int frequentDecodeCount = decodeCount.get();
+        assertEquals(100, frequentDecodeCount);
+        for (int i = 0; i < 10000; i++) {
+            cache.decode("sensor", String.format("%08x", 0x10000 + i), decoder("oneOff"));
+        }
+        assertTrue(cache.size() <= 1600);
+        assertTrue(cache.getEvictionCount() > 0);
+
+        // The one-off payloads have not replaced the frequent ones
+        int oneOffDecodeCount = decodeCount.get();
+        for (int i = 0; i < 100; i++) {
+            cache.decode("sensor", String.format("%04x", i), decoder("frequent"));
+        }
+        assertEquals(oneOffDecodeCount, decodeCount.get());
+    }
+
+    @Test
+    public void testClear() {
+        cache.decode("sensor", "0aff", decoder("0aff"));
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.decode("sensor", "0aff", decoder("0aff"));
+        assertEquals(2, decodeCount.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmallCache() {
+        new DecodingCache(8);
+    }
+
+    private Supplier<List<ContextAttribute>> decoder(String value) {
+        return () -> {
+            decodeCount.incrementAndGet();
+            return new ArrayList<>(Collections.singletonList(new ContextAttribute("data", "string", value)));
+        };
+    }
+}
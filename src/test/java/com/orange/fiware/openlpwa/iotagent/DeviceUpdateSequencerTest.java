@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * DeviceUpdateSequencer unit tests
+ */
+public class DeviceUpdateSequencerTest {
+
+    private final List<String> sentDevices = new ArrayList<>();
+    private final List<List<ContextAttribute>> sentAttributes = new ArrayList<>();
+    private final List<SettableListenableFuture<UpdateContextResponse>> responses = new ArrayList<>();
+    private final DeviceUpdateSequencer sequencer = new DeviceUpdateSequencer((deviceID, attributes) -> {
+        sentDevices.add(deviceID);
+        sentAttributes.add(attributes);
+        SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+        responses.add(response);
+        return response;
+    });
+
+    @Test
+    public void testUpdatesOfDifferentDevicesAreSentAtOnce() {
+        sequencer.submit("device1", attributes("temperature", "20"));
+        sequencer.submit("device2", attributes("temperature", "21"));
+        assertEquals(Arrays.asList("device1", "device2"), sentDevices);
+        assertEquals(0, sequencer.getHeldBackCount());
+    }
+
+    @Test
+    public void testUpdateWaitsForThePreviousOneOfItsDevice() throws Exception {
+        sequencer.submit("device1", attributes("temperature", "20"));
+        ListenableFuture<UpdateContextResponse> future1 = sequencer.submit("device1", attributes("temperature", "21"));
+        ListenableFuture<UpdateContextResponse> future2 = sequencer.submit("device1", attributes("humidity", "50"));
+        assertEquals(1, sentDevices.size());
+        assertEquals(2, sequencer.getHeldBackCount());
+
+        // A failed update is completed (retried, spooled) before the next one is sent
+        responses.get(0).setException(new RuntimeException("failure"));
+        assertEquals(2, sentDevices.size());
+        List<ContextAttribute> merged = sentAttributes.get(1);
+        assertEquals(2, merged.size());
+        assertEquals("21", merged.get(0).getValue());
+        assertEquals("50", merged.get(1).getValue());
+
+        UpdateContextResponse response = new UpdateContextResponse();
+        responses.get(1).set(response);
+        assertSame(response, future1.get());
+        assertSame(response, future2.get());
+        assertEquals(0, sequencer.getDeviceCount());
+    }
+
+    @Test
+    public void testLatestValueIsKept() {
+        sequencer.submit("device1", attributes("temperature", "20"));
+        sequencer.submit("device1", attributes("temperature", "21"));
+        sequencer.submit("device1", attributes("temperature", "22"));
+        responses.get(0).set(new UpdateContextResponse());
+        assertEquals(1, sentAttributes.get(1).size());
+        assertEquals("22", sentAttributes.get(1).get(0).getValue());
+        assertEquals(1, sequencer.getReplacedValueCount());
+    }
+
+    @Test
+    public void testDeviceIsForgottenOnceItsUpdatesAreCompleted() {
+        sequencer.submit("device1", attributes("temperature", "20"));
+        assertEquals(1, sequencer.getDeviceCount());
+        responses.get(0).set(new UpdateContextResponse());
+        assertEquals(0, sequencer.getDeviceCount());
+        sequencer.submit("device1", attributes("temperature", "21"));
+        assertEquals(2, sentDevices.size());
+    }
+
+    private static List<ContextAttribute> attributes(String name, String value) {
+        return Collections.singletonList(new ContextAttribute(name, "string", value));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * DuplicateMessageFilter unit tests
+ */
+public class DuplicateMessageFilterTest {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private DuplicateMessageFilter filter;
+
+    @Before
+    public void setup() {
+        filter = new DuplicateMessageFilter(4000, 100, now::get);
+    }
+
+    @Test
+    public void testDuplicateIsDetected() {
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        assertTrue(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        assertFalse(filter.isDuplicate(message("device2", 1000, "ae2109000cf3")));
+        assertFalse(filter.isDuplicate(message("device1", 1001, "ae2109000cf3")));
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf4")));
+
+        assertEquals(1, filter.getHitCount());
+        assertEquals(4, filter.getMissCount());
+        assertEquals(0.2, filter.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testDuplicateIsDetectedDuringTheWindow() {
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        now.addAndGet(2500);
+        assertTrue(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+    }
+
+    @Test
+    public void testMessageIsForgottenAfterTheWindow() {
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        now.addAndGet(4000);
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void testForgottenMessageIsNotDuplicate() {
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        now.addAndGet(2500);
+        // Processing failed, the redelivery has to be processed
+        filter.forget(message("device1", 1000, "ae2109000cf3"));
+        assertFalse(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+        assertTrue(filter.isDuplicate(message("device1", 1000, "ae2109000cf3")));
+    }
+
+    @Test
+    public void testNullMessageIsNotDuplicate() {
+        assertFalse(filter.isDuplicate(null));
+        assertFalse(filter.isDuplicate(null));
+        filter.forget(null);
+        assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(filter.isDuplicate(message("device1", i, "ae2109000cf3")));
+        }
+        assertTrue(filter.size() <= 100);
+        assertTrue(filter.getEarlyRotationCount() > 0);
+        // The most recent messages are still remembered
+        assertTrue(filter.isDuplicate(message("device1", 999, "ae2109000cf3")));
+    }
+
+    @Test
+    public void testMessageWithoutTimestampIsNotFiltered() {
+        DeviceIncomingMessage incomingMessage = message("device1", 1000, "ae2109000cf3");
+        incomingMessage.setDate(null);
+        assertFalse(filter.isDuplicate(incomingMessage));
+        assertFalse(filter.isDuplicate(incomingMessage));
+    }
+
+    private static DeviceIncomingMessage message(String source, long timestamp, String payload) {
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+        DeviceIncomingMessage.DeviceIncomingMessageMetadata metadata = new DeviceIncomingMessage.DeviceIncomingMessageMetadata();
+        metadata.setSource(source);
+        incomingMessage.setMetadata(metadata);
+        incomingMessage.setDate(new Date(timestamp));
+        incomingMessage.setData(payload);
+        return incomingMessage;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the usual decoding of a 51 bytes LoRa payload (substring and Integer.parseInt for each byte) with the
+ * table driven codec, and the encoding with String.format and with the codec.
+ * Run the main method: the "gc.alloc.rate.norm" metric gives the bytes allocated per payload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HexCodecBenchmark {
+
+    private final static int payloadSize = 51;
+    private String hex;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            bytes[i] = (byte) (i * 37);
+        }
+        hex = HexCodec.encode(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] parseIntDecoding() {
+        byte[] decoded = new byte[hex.length() / 2];
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public ByteBuffer codecDecoding() {
+        return HexCodec.decode(hex);
+    }
+
+    @Benchmark
+    public ByteBuffer codecTransientDecoding() {
+        return HexCodec.decodeTransient(hex);
+    }
+
+    @Benchmark
+    public String formatEncoding() {
+        StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte value : bytes) {
+            builder.append(String.format("%02x", value));
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public String codecEncoding() {
+        return HexCodec.encode(bytes, 0, bytes.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HexCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+/**
+ * HexCodec unit tests
+ */
+public class HexCodecTest {
+
+    @Test
+    public void testAllBytesRoundTrip() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        String hex = HexCodec.encode(bytes, 0, bytes.length);
+        assertEquals(512, hex.length());
+        assertTrue(hex.startsWith("000102"));
+        assertTrue(hex.endsWith("fdfeff"));
+        ByteBuffer decoded = HexCodec.decode(hex);
+        assertEquals(ByteBuffer.wrap(bytes), decoded);
+        assertEquals(ByteBuffer.wrap(bytes), HexCodec.decode(hex.toUpperCase()));
+    }
+
+    @Test
+    public void testEncodeBetweenPositionAndLimit() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0x01, (byte) 0xc0, (byte) 0xff, (byte) 0xee, 0x02});
+        buffer.position(1).limit(4);
+        assertEquals("c0ffee", HexCodec.encode(buffer));
+        assertEquals(1, buffer.position());
+        assertEquals("", HexCodec.encode(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void testDecodeIntoArray() {
+        byte[] destination = new byte[5];
+        assertEquals(3, HexCodec.decode("C0fFeE", destination, 2));
+        assertArrayEquals(new byte[]{0, 0, (byte) 0xc0, (byte) 0xff, (byte) 0xee}, destination);
+    }
+
+    @Test
+    public void testTransientBufferIsReused() {
+        ByteBuffer first = HexCodec.decodeTransient("c0ffee");
+        assertEquals(3, first.remaining());
+        assertEquals((byte) 0xc0, first.get(0));
+        ByteBuffer second = HexCodec.decodeTransient("0102");
+        assertEquals(2, second.remaining());
+        assertEquals(0x01, second.get(0));
+        // Large payloads get their own buffer
+        assertEquals(5000, HexCodec.decodeTransient(new String(new char[10000]).replace('\0', 'a')).remaining());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testDecodedBufferIsReadOnly() {
+        HexCodec.decode("c0ffee").put(0, (byte) 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddLength() {
+        HexCodec.decode("c0f");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCharacter() {
+        HexCodec.decode("c0fg");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonAsciiCharacter() {
+        HexCodec.decode("c0ée");
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testDestinationTooSmall() {
+        HexCodec.decode("c0ffee", new byte[3], 1);
+    }
+}
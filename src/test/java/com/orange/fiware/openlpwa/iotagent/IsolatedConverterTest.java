@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import com.orange.ngsi.model.ContextAttribute;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * IsolatedConverter unit tests
+ */
+public class IsolatedConverterTest {
+
+    private final List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private IsolatedConverter isolatedConverter;
+
+    private final OpenLpwaNgsiConverter converter = new OpenLpwaNgsiConverter() {
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data) {
+            return decodeData(deviceID, data, null);
+        }
+
+        @Override
+        public List<ContextAttribute> decodeData(String deviceID, String data, DeviceIncomingMessage incomingMessage) {
+            switch (incomingMessage.getModel()) {
+                case "slow":
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case "stuck":
+                    // Keeps the thread busy even after the timeout
+                    started.countDown();
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            // Ignored until released
+                        }
+                    }
+                    break;
+                case "hung":
+                    // Never returns and ignores the interruptions until the end of the test
+                    while (release.getCount() > 0) {
+                        Thread.onSpinWait();
+                    }
+                    break;
+                case "failing":
+                    throw new IllegalStateException("Invalid payload");
+            }
+            return Collections.singletonList(new ContextAttribute("data", "string", data));
+        }
+
+        @Override
+        public String encodeDataForCommand(String deviceID, String commandName, ContextAttribute attribute) {
+            return "00";
+        }
+    };
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (isolatedConverter != null) {
+            isolatedConverter.shutdown();
+        }
+    }
+
+    @Test
+    public void testConvertedMessage() {
+        isolatedConverter = isolate(2, 10, 1000);
+        List<ContextAttribute> attributes = isolatedConverter.decodeData("device1", "0a", message("sensor"));
+        assertEquals(1, attributes.size());
+        assertEquals("0a", attributes.get(0).getValue());
+        assertEquals("00", isolatedConverter.encodeDataForCommand("device1", "command", null));
+        assertEquals(1, isolatedConverter.getStatistics("sensor").getCallCount());
+        assertTrue(deadLetters.isEmpty());
+    }
+
+    @Test
+    public void testTimeoutGoesToDeadLetters() {
+        isolatedConverter = isolate(2, 10, 50);
+        assertNull(isolatedConverter.decodeData("device1", "0a", message("slow")));
+        assertEquals(1, isolatedConverter.getStatistics("slow").getTimeoutCount());
+        assertEquals(1, isolatedConverter.getStatistics("slow").getDeadLetterCount());
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0).startsWith("device1:conversion timed out"));
+    }
+
+    @Test
+    public void testQueuedTimeoutIsNotRecorded() throws InterruptedException {
+        isolatedConverter = isolate(1, 10, 50);
+        Thread first = new Thread(() -> isolatedConverter.decodeData("device1", "0a", message("stuck")));
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Times out in the queue behind the stuck call: the latency of the model is not affected
+        assertNull(isolatedConverter.decodeData("device2", "0b", message("sensor")));
+        IsolatedConverter.ModelStatistics statistics = isolatedConverter.getStatistics("sensor");
+        assertEquals(1, statistics.getTimeoutCount());
+        assertEquals(0, statistics.getLatencyPercentile99());
+        assertEquals(0, statistics.getFailureRate(), 0);
+        release.countDown();
+        first.join(5000);
+    }
+
+    @Test
+    public void testHungModelIsQuarantinedWhenItHoldsHalfOfTheThreads() {
+        isolatedConverter = isolate(4, 10, 50);
+        assertNull(isolatedConverter.decodeData("device1", "0a", message("hung")));
+        IsolatedConverter.ModelStatistics statistics = isolatedConverter.getStatistics("hung");
+        assertEquals(0, statistics.getQuarantineCount());
+
+        assertNull(isolatedConverter.decodeData("device1", "0b", message("hung")));
+        assertEquals(2, statistics.getTimeoutCount());
+        assertEquals(1, statistics.getQuarantineCount());
+        assertTrue(statistics.isQuarantined(System.currentTimeMillis()));
+
+        // The threads left convert the other models
+        assertNull(isolatedConverter.decodeData("device1", "0c", message("hung")));
+        assertEquals("device1:model quarantined", deadLetters.get(2));
+        assertNotNull(isolatedConverter.decodeData("device2", "0d", message("sensor")));
+    }
+
+    @Test
+    public void testFailingModelIsQuarantined() {
+        isolatedConverter = isolate(2, 10, 1000);
+        for (int i = 0; i < 20; i++) {
+            assertNull(isolatedConverter.decodeData("device1", "0a", message("failing")));
+        }
+        IsolatedConverter.ModelStatistics statistics = isolatedConverter.getStatistics("failing");
+        assertEquals(1, statistics.getQuarantineCount());
+        assertTrue(statistics.isQuarantined(System.currentTimeMillis()));
+
+        // Not converted anymore while quarantined, the other models keep flowing
+        assertNull(isolatedConverter.decodeData("device1", "0a", message("failing")));
+        assertEquals(20, statistics.getCallCount());
+        assertEquals(21, statistics.getDeadLetterCount());
+        assertEquals("device1:model quarantined", deadLetters.get(20));
+        assertNotNull(isolatedConverter.decodeData("device2", "0b", message("sensor")));
+    }
+
+    @Test
+    public void testSlowModelIsQuarantinedAbove99thPercentile() {
+        IsolatedConverter.ModelStatistics statistics = new IsolatedConverter.ModelStatistics("sensor");
+        long fast = TimeUnit.MILLISECONDS.toNanos(1);
+        long slow = TimeUnit.MILLISECONDS.toNanos(600);
+        for (int i = 0; i < 198; i++) {
+            assertNull(statistics.record(fast, false, 500, 0.5));
+        }
+        assertNull(statistics.record(slow, false, 500, 0.5));
+        assertNull(statistics.record(slow, false, 500, 0.5));
+        assertEquals(1, statistics.getLatencyPercentile99());
+
+        // Third slow call among the last 200 ones
+        assertEquals("99th percentile latency 600 ms", statistics.record(slow, false, 500, 0.5));
+    }
+
+    @Test
+    public void testSaturatedPoolRejectsMessages() throws InterruptedException {
+        isolatedConverter = isolate(1, 1, 5000);
+        Thread first = new Thread(() -> isolatedConverter.decodeData("device1", "0a", message("slow")));
+        Thread second = new Thread(() -> isolatedConverter.decodeData("device2", "0b", message("slow")));
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        second.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (second.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            // Wait for the second message to be queued behind the first one
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        while (isolatedConverter.getRejectedCount() == 0 && System.currentTimeMillis() < deadline) {
+            // The thread and the queue are busy: a third message is rejected
+            isolatedConverter.decodeData("device3", "0c", message("sensor"));
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertTrue(isolatedConverter.getRejectedCount() > 0);
+        assertTrue(deadLetters.contains("device3:too many conversions in progress"));
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+    }
+
+    private IsolatedConverter isolate(int threads, int queueCapacity, long timeout) {
+        return new IsolatedConverter(converter, threads, queueCapacity, timeout, 500, 0.5, 60000,
+                (deviceID, data, incomingMessage, reason) -> deadLetters.add(deviceID + ":" + reason));
+    }
+
+    private static DeviceIncomingMessage message(String model) {
+        DeviceIncomingMessage incomingMessage = new DeviceIncomingMessage();
+        incomingMessage.setModel(model);
+        return incomingMessage;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * StripedExecutor unit tests
+ */
+public class StripedExecutorTest {
+
+    private StripedExecutor executor;
+
+    @Before
+    public void setup() {
+        executor = new StripedExecutor("test-worker", 4, 2);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testOrderIsKeptPerKey() throws Exception {
+        Map<String, List<Integer>> results = new HashMap<>();
+        for (int device = 0; device < 10; device++) {
+            results.put("device" + device, Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            for (Map.Entry<String, List<Integer>> entry : results.entrySet()) {
+                int value = i;
+                executor.execute(entry.getKey(), () -> entry.getValue().add(value));
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        for (List<Integer> values : results.values()) {
+            assertEquals(100, values.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, values.get(i).intValue());
+            }
+        }
+        assertEquals(1000, executor.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testExecuteBlocksWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute("device", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute("device", () -> { });
+        executor.execute("device", () -> { });
+
+        AtomicBoolean submitted = new AtomicBoolean(false);
+        Thread producer = new Thread(() -> {
+            try {
+                executor.execute("device", () -> { });
+                submitted.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertFalse(submitted.get());
+
+        release.countDown();
+        producer.join(1000);
+        assertTrue(submitted.get());
+    }
+
+    @Test
+    public void testShutdownWithFullQueueRunsQueuedTasks() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runCount = new AtomicInteger();
+        executor.execute("device", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute("device", runCount::incrementAndGet);
+        executor.execute("device", runCount::incrementAndGet);
+
+        // Doesn't wait for room in the full queue
+        executor.shutdown();
+        release.countDown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(2, runCount.get());
+        assertEquals(3, executor.getCompletedTaskCount());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testExecuteAfterShutdown() throws Exception {
+        executor.shutdown();
+        executor.execute("device", () -> { });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWorkerCount() {
+        new StripedExecutor("test-worker", 0, 10);
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.iotagent;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * UpdateSpool unit tests
+ */
+public class UpdateSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final List<String> sentUpdates = new CopyOnWriteArrayList<>();
+    private final List<UpdateSpool> spools = new ArrayList<>();
+
+    @After
+    public void teardown() {
+        spools.forEach(UpdateSpool::close);
+    }
+
+    @Test
+    public void testUpdatesAreReplayedInOrderAfterFailure() throws Exception {
+        AtomicInteger failures = new AtomicInteger(1);
+        UpdateSpool spool = open(4096, (deviceID, tenant, attributes) -> {
+            sentUpdates.add(deviceID + "=" + attributes.get(0).getValue());
+            SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+            if (failures.getAndDecrement() > 0) {
+                future.setException(new ResourceAccessException("Connection refused"));
+            } else {
+                future.set(new UpdateContextResponse());
+            }
+            return future;
+        });
+        spool.append("device1", null, attributes("1"));
+        spool.append("device2", null, attributes("2"));
+        spool.append("device1", null, attributes("3"));
+
+        waitFor(spool::isEmpty);
+        assertEquals(4, sentUpdates.size());
+        assertEquals("device1=1", sentUpdates.get(0));
+        assertEquals("device1=1", sentUpdates.get(1));
+        assertEquals("device2=2", sentUpdates.get(2));
+        assertEquals("device1=3", sentUpdates.get(3));
+        assertEquals(3, spool.getReplayedCount());
+        assertEquals(1, spool.getReplayFailureCount());
+        assertEquals(0, spool.getOldestAge());
+    }
+
+    @Test
+    public void testUpdatesAreReplayedAfterRestart() throws Exception {
+        UpdateSpool spool = open(4096, (deviceID, tenant, attributes) -> new SettableListenableFuture<>());
+        spool.append("device1", null, attributes("1"));
+        spool.append("device2", null, attributes("2"));
+        assertEquals(2, spool.getDepth());
+        spool.close();
+
+        UpdateSpool reopenedSpool = open(4096, this::succeed);
+        waitFor(reopenedSpool::isEmpty);
+        assertEquals(2, sentUpdates.size());
+        assertEquals("device1=1", sentUpdates.get(0));
+        assertEquals("device2=2", sentUpdates.get(1));
+    }
+
+    @Test
+    public void testReplayedUpdatesAreNotSentAgainAfterRestart() throws Exception {
+        UpdateSpool spool = open(4096, (deviceID, tenant, attributes) ->
+                deviceID.equals("device3") ? new SettableListenableFuture<>() : succeed(deviceID, tenant, attributes));
+        spool.append("device1", null, attributes("1"));
+        spool.append("device2", null, attributes("2"));
+        spool.append("device3", null, attributes("3"));
+        waitFor(() -> spool.getReplayedCount() == 2);
+        spool.close();
+
+        sentUpdates.clear();
+        UpdateSpool reopenedSpool = open(4096, this::succeed);
+        waitFor(reopenedSpool::isEmpty);
+        assertEquals(1, sentUpdates.size());
+        assertEquals("device3=3", sentUpdates.get(0));
+    }
+
+    @Test
+    public void testTenantIsKeptAfterRestart() throws Exception {
+        UpdateSpool spool = open(4096, (deviceID, tenant, attributes) -> new SettableListenableFuture<>());
+        spool.append("device1", "tenant1", attributes("1"));
+        spool.append("device2", null, attributes("2"));
+        spool.close();
+
+        List<String> tenants = new CopyOnWriteArrayList<>();
+        UpdateSpool reopenedSpool = open(4096, (deviceID, tenant, attributes) -> {
+            tenants.add(deviceID + "@" + tenant);
+            return succeed(deviceID, tenant, attributes);
+        });
+        waitFor(reopenedSpool::isEmpty);
+        assertEquals(2, tenants.size());
+        assertEquals("device1@tenant1", tenants.get(0));
+        assertEquals("device2@null", tenants.get(1));
+    }
+
+    @Test
+    public void testRejectedUpdateIsDropped() throws Exception {
+        UpdateSpool spool = open(4096, (deviceID, tenant, attributes) -> {
+            sentUpdates.add(deviceID + "=" + attributes.get(0).getValue());
+            SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+            if (deviceID.equals("device1")) {
+                future.setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+            } else {
+                future.set(new UpdateContextResponse());
+            }
+            return future;
+        });
+        spool.append("device1", null, attributes("1"));
+        spool.append("device2", null, attributes("2"));
+
+        waitFor(spool::isEmpty);
+        assertEquals(2, sentUpdates.size());
+        assertEquals(1, spool.getDroppedCount());
+        assertEquals(1, spool.getReplayedCount());
+    }
+
+    @Test
+    public void testReplayedSegmentsAreDeleted() throws Exception {
+        UpdateSpool spool = open(256, this::succeed);
+        for (int i = 0; i < 50; i++) {
+            spool.append("device" + i, null, attributes(String.valueOf(i)));
+        }
+        waitFor(spool::isEmpty);
+        assertEquals(50, sentUpdates.size());
+        assertEquals(50, spool.getSpooledCount());
+        assertEquals(1, spool.getSegmentCount());
+    }
+
+    private UpdateSpool open(int segmentSize, UpdateSpool.UpdateSender sender) throws Exception {
+        UpdateSpool spool = new UpdateSpool(folder.getRoot().toPath().resolve("spool"), segmentSize, 0, 10, sender);
+        spool.open();
+        spools.add(spool);
+        return spool;
+    }
+
+    private SettableListenableFuture<UpdateContextResponse> succeed(String deviceID, String tenant, List<ContextAttribute> attributes) {
+        sentUpdates.add(deviceID + "=" + attributes.get(0).getValue());
+        SettableListenableFuture<UpdateContextResponse> future = new SettableListenableFuture<>();
+        future.set(new UpdateContextResponse());
+        return future;
+    }
+
+    private static List<ContextAttribute> attributes(String value) {
+        return Collections.singletonList(new ContextAttribute("temperature", "float", value));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.fiware.openlpwa.exception.AgentException;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * AccessTokenManager unit tests, the authorization server being a local Http server
+ */
+public class AccessTokenManagerTest {
+
+    private HttpServer server;
+    private AccessTokenManager tokenManager;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger tokenCounter = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile String expiresIn = "3600";
+    private volatile int status = 200;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", exchange -> {
+            requests.add(StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int token = tokenCounter.incrementAndGet();
+            byte[] body = ("{\"access_token\":\"token" + token + "\",\"token_type\":\"bearer\",\"expires_in\":\"" + expiresIn
+                    + "\",\"refresh_token\":\"refresh" + token + "\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+
+        tokenManager = new AccessTokenManager();
+        ReflectionTestUtils.setField(tokenManager, "tokenURI", "http://localhost:" + server.getAddress().getPort() + "/token");
+        ReflectionTestUtils.setField(tokenManager, "clientId", "clientId");
+        ReflectionTestUtils.setField(tokenManager, "clientSecret", "clientSecret");
+        ReflectionTestUtils.setField(tokenManager, "userLogin", "login");
+        ReflectionTestUtils.setField(tokenManager, "userPassword", "password");
+        ReflectionTestUtils.setField(tokenManager, "refreshMargin", 60000L);
+    }
+
+    @After
+    public void teardown() {
+        tokenManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConcurrentRefreshesShareTheRequest() throws Exception {
+        release = new CountDownLatch(1);
+        ListenableFuture<String> future1 = tokenManager.refresh();
+        ListenableFuture<String> future2 = tokenManager.refresh();
+        assertNull(tokenManager.getAccessToken());
+        release.countDown();
+
+        assertEquals("token1", future1.get(5, TimeUnit.SECONDS));
+        assertEquals("token1", future2.get(5, TimeUnit.SECONDS));
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).contains("grant_type=password"));
+        assertEquals("token1", tokenManager.getAccessToken());
+        assertEquals(1, tokenManager.getRefreshCount());
+    }
+
+    @Test
+    public void testRequestNotSentEndsTheRefresh() throws Exception {
+        CloseableHttpAsyncClient closedClient = HttpAsyncClients.createDefault();
+        closedClient.start();
+        closedClient.close();
+        ReflectionTestUtils.setField(tokenManager, "httpClient", closedClient);
+        try {
+            tokenManager.refresh().get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, tokenManager.getRefreshFailureCount());
+
+        // The next refresh doesn't join the failed one
+        ReflectionTestUtils.setField(tokenManager, "httpClient", null);
+        assertEquals("token1", tokenManager.refresh().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRefreshTokenGrantIsUsed() throws Exception {
+        assertEquals("token1", tokenManager.refresh().get(5, TimeUnit.SECONDS));
+        assertEquals("token2", tokenManager.refresh().get(5, TimeUnit.SECONDS));
+        assertTrue(requests.get(1).contains("grant_type=refresh_token"));
+        assertTrue(requests.get(1).contains("refresh_token=refresh1"));
+    }
+
+    @Test
+    public void testTokenIsRefreshedBeforeExpiration() throws Exception {
+        // Short-lived token: refreshed at half of its lifetime
+        expiresIn = "1";
+        assertEquals("token1", tokenManager.refresh().get(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tokenManager.getRefreshCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(tokenManager.getRefreshCount() >= 2);
+    }
+
+    @Test
+    public void testConfiguredTokenIsUsedFirst() {
+        ReflectionTestUtils.setField(tokenManager, "configuredToken", "configured");
+        assertEquals("configured", tokenManager.getAccessToken());
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void testRejectedCredentialsStopTheRefreshes() throws Exception {
+        status = 401;
+        try {
+            tokenManager.refresh().get(5, TimeUnit.SECONDS);
+            fail("The refresh should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AgentException);
+        }
+        assertTrue(tokenManager.isCredentialsRejected());
+        assertNull(tokenManager.getAccessToken());
+        try {
+            tokenManager.refresh().get(5, TimeUnit.SECONDS);
+            fail("The refresh should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AgentException);
+        }
+        assertEquals(1, requests.size());
+        assertEquals(1, tokenManager.getRefreshFailureCount());
+    }
+
+    @Test
+    public void testRetryDelayBacksOff() {
+        assertEquals(10000, AccessTokenManager.retryDelay(1));
+        assertEquals(20000, AccessTokenManager.retryDelay(2));
+        assertEquals(40000, AccessTokenManager.retryDelay(3));
+        assertEquals(600000, AccessTokenManager.retryDelay(7));
+        assertEquals(600000, AccessTokenManager.retryDelay(100));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdaptiveConcurrencyLimiter unit tests
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    private final List<SettableListenableFuture<String>> sentRequests = new ArrayList<>();
+
+    @Test
+    public void testRequestsAboveTheLimitAreQueued() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 60000, 10);
+        List<ListenableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(limiter.submit(this::send));
+        }
+        assertEquals(2, sentRequests.size());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getQueueSize());
+
+        sentRequests.get(0).set("response0");
+        assertEquals("response0", futures.get(0).get());
+        // The queued request is sent as soon as a request completes
+        assertEquals(3, sentRequests.size());
+        assertEquals(0, limiter.getQueueSize());
+        sentRequests.get(1).set("response1");
+        sentRequests.get(2).set("response2");
+        assertEquals("response2", futures.get(2).get());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(1, limiter.getQueuedCount());
+    }
+
+    @Test
+    public void testLimitIncreasesWhileRequestsAreFast() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 60000, 10);
+        for (int i = 0; i < 20; i++) {
+            limiter.submit(this::send);
+            limiter.submit(this::send);
+            sentRequests.forEach(request -> request.set("ok"));
+            sentRequests.clear();
+        }
+        assertTrue(limiter.getLimit() > 2);
+        assertEquals(0, limiter.getOverloadCount());
+    }
+
+    @Test
+    public void testLimitDecreasesOnTransientFailures() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 10, 60000, 10);
+        for (int i = 0; i < 20; i++) {
+            limiter.submit(this::send);
+            sentRequests.get(0).setException(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+            sentRequests.clear();
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(20, limiter.getOverloadCount());
+
+        // A rejected request does not mean the context broker is overloaded
+        limiter.submit(this::send);
+        sentRequests.get(0).setException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+        assertEquals(20, limiter.getOverloadCount());
+    }
+
+    @Test
+    public void testProducerWaitsForQueueCapacity() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 60000, 1);
+        limiter.submit(this::send);
+        limiter.submit(this::send);
+        assertEquals(1, limiter.getQueueSize());
+
+        CountDownLatch released = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                limiter.awaitCapacity();
+                released.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse(released.await(100, TimeUnit.MILLISECONDS));
+        synchronized (sentRequests) {
+            sentRequests.get(0).set("ok");
+        }
+        assertTrue(released.await(1, TimeUnit.SECONDS));
+    }
+
+    private ListenableFuture<String> send() {
+        SettableListenableFuture<String> future = new SettableListenableFuture<>();
+        synchronized (sentRequests) {
+            sentRequests.add(future);
+        }
+        return future;
+    }
+}
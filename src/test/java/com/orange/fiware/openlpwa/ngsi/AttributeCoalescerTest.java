@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.UpdateContextResponse;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * AttributeCoalescer and TimerWheel unit tests, the timer wheel being advanced by the tests
+ */
+public class AttributeCoalescerTest {
+
+    private final List<String> sentDevices = new ArrayList<>();
+    private final List<List<ContextAttribute>> sentAttributes = new ArrayList<>();
+    private final List<SettableListenableFuture<UpdateContextResponse>> responses = new ArrayList<>();
+    // Interval of 3 ticks
+    private final AttributeCoalescer coalescer = new AttributeCoalescer((deviceID, attributes) -> {
+        sentDevices.add(deviceID);
+        sentAttributes.add(attributes);
+        SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+        responses.add(response);
+        return response;
+    }, 300, 100, false);
+
+    @Test
+    public void testFirstUpdateIsSentImmediately() {
+        coalescer.submit("device1", attributes("temperature", "20"));
+        coalescer.submit("device2", attributes("temperature", "21"));
+        assertEquals(Arrays.asList("device1", "device2"), sentDevices);
+        assertEquals(2, coalescer.getEntityCount());
+    }
+
+    @Test
+    public void testUpdatesAreMergedUntilTheEndOfTheInterval() throws Exception {
+        coalescer.submit("device1", attributes("temperature", "20"));
+        ListenableFuture<UpdateContextResponse> future1 = coalescer.submit("device1", attributes("temperature", "21"));
+        ListenableFuture<UpdateContextResponse> future2 = coalescer.submit("device1", attributes("humidity", "50"));
+        ListenableFuture<UpdateContextResponse> future3 = coalescer.submit("device1", attributes("temperature", "22"));
+        assertEquals(1, sentDevices.size());
+
+        advance(2);
+        assertEquals(1, sentDevices.size());
+        advance(1);
+        assertEquals(2, sentDevices.size());
+        List<ContextAttribute> merged = sentAttributes.get(1);
+        assertEquals(2, merged.size());
+        assertEquals("temperature", merged.get(0).getName());
+        assertEquals("22", merged.get(0).getValue());
+        assertEquals("50", merged.get(1).getValue());
+        assertEquals(1, coalescer.getReplacedValueCount());
+
+        UpdateContextResponse response = new UpdateContextResponse();
+        responses.get(1).set(response);
+        assertSame(response, future1.get());
+        assertSame(response, future2.get());
+        assertSame(response, future3.get());
+        assertEquals(4, coalescer.getSubmittedCount());
+        assertEquals(2, coalescer.getSentCount());
+    }
+
+    @Test
+    public void testIdleEntityIsForgotten() {
+        coalescer.submit("device1", attributes("temperature", "20"));
+        advance(3);
+        assertEquals(0, coalescer.getEntityCount());
+        assertEquals(0, coalescer.getTimerWheel().size());
+
+        // A new update is sent at once
+        coalescer.submit("device1", attributes("temperature", "21"));
+        assertEquals(2, sentDevices.size());
+    }
+
+    @Test
+    public void testShutdownSendsThePendingAttributes() throws Exception {
+        coalescer.submit("device1", attributes("temperature", "20"));
+        ListenableFuture<UpdateContextResponse> future = coalescer.submit("device1", attributes("temperature", "21"));
+        coalescer.shutdown();
+        assertEquals(2, sentDevices.size());
+        assertEquals("21", sentAttributes.get(1).get(0).getValue());
+        assertEquals(0, coalescer.getEntityCount());
+        UpdateContextResponse response = new UpdateContextResponse();
+        responses.get(1).set(response);
+        assertSame(response, future.get());
+
+        // The next updates are not throttled anymore
+        coalescer.submit("device1", attributes("temperature", "22"));
+        coalescer.submit("device1", attributes("temperature", "23"));
+        assertEquals(4, sentDevices.size());
+    }
+
+    @Test
+    public void testTimeoutsLongerThanTheWheel() {
+        List<String> expired = new ArrayList<>();
+        TimerWheel<String> timerWheel = new TimerWheel<>(10, 4, expired::add);
+        timerWheel.schedule("long", 100);
+        timerWheel.schedule("short", 20);
+        for (int i = 0; i < 9; i++) {
+            timerWheel.advance();
+        }
+        assertEquals(Collections.singletonList("short"), expired);
+        timerWheel.advance();
+        assertEquals(Arrays.asList("short", "long"), expired);
+        assertEquals(0, timerWheel.size());
+    }
+
+    private void advance(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            coalescer.getTimerWheel().advance();
+        }
+    }
+
+    private static List<ContextAttribute> attributes(String name, String value) {
+        return Collections.singletonList(new ContextAttribute(name, "string", value));
+    }
+}
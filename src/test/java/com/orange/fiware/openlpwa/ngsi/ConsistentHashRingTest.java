@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConsistentHashRing unit tests
+ */
+public class ConsistentHashRingTest {
+
+    private final static int keyCount = 20000;
+
+    @Test
+    public void testKeysAreEvenlyDistributed() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("http://orion1", "http://orion2", "http://orion3", "http://orion4"), Function.identity(), 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            counts.merge(ring.get("device" + i), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced shard: " + count, Math.abs(count - keyCount / 4) < keyCount / 4 * 0.2);
+        }
+    }
+
+    @Test
+    public void testMappingOnlyDependsOnTheNodes() {
+        List<String> nodes = Arrays.asList("http://orion1", "http://orion2", "http://orion3");
+        ConsistentHashRing<String> ring1 = new ConsistentHashRing<>(nodes, Function.identity(), 160);
+        ConsistentHashRing<String> ring2 = new ConsistentHashRing<>(Arrays.asList("http://orion3", "http://orion1", "http://orion2"), Function.identity(), 160);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring1.get("device" + i), ring2.get("device" + i));
+        }
+        assertEquals(nodes, ring1.getNodes());
+    }
+
+    @Test
+    public void testAddedNodeOnlyTakesItsShareOfKeys() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("http://orion1", "http://orion2", "http://orion3"), Function.identity(), 160);
+        ConsistentHashRing<String> grownRing = new ConsistentHashRing<>(Arrays.asList("http://orion1", "http://orion2", "http://orion3", "http://orion4"), Function.identity(), 160);
+        int movedCount = 0;
+        for (int i = 0; i < keyCount; i++) {
+            String node = ring.get("device" + i);
+            String newNode = grownRing.get("device" + i);
+            if (!node.equals(newNode)) {
+                assertEquals("http://orion4", newNode);
+                movedCount++;
+            }
+        }
+        // About a quarter of the keys move, all of them to the new node
+        assertTrue("Moved keys: " + movedCount, Math.abs(movedCount - keyCount / 4) < keyCount / 4 * 0.2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRingWithoutNodes() {
+        new ConsistentHashRing<String>(Arrays.asList(), Function.identity(), 160);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.fiware.openlpwa.http.CircuitBreaker;
+import com.orange.ngsi.model.*;
+import org.junit.Test;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FanOutTarget unit tests
+ */
+public class FanOutTargetTest {
+
+    private final List<SettableListenableFuture<UpdateContextResponse>> slowResponses = new ArrayList<>();
+    private final List<UpdateContext> fastRequests = new ArrayList<>();
+
+    @Test
+    public void testSlowTargetDropsUpdatesWithoutAffectingOthers() {
+        FanOutTarget slowTarget = new FanOutTarget("http://slow", updateContext -> {
+            SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+            slowResponses.add(response);
+            return response;
+        }, null, 2, 1, 0);
+        FanOutTarget fastTarget = new FanOutTarget("http://fast", updateContext -> {
+            fastRequests.add(updateContext);
+            SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+            response.set(new UpdateContextResponse());
+            return response;
+        }, null, 2, 1, 0);
+
+        for (int i = 0; i < 5; i++) {
+            ContextElement element = element("device" + i);
+            boolean accepted = slowTarget.submit(element);
+            assertEquals(i < 2, accepted);
+            assertTrue(fastTarget.submit(element));
+        }
+
+        assertEquals(2, slowTarget.getPendingCount());
+        assertEquals(3, slowTarget.getDroppedCount());
+        assertEquals(5, fastRequests.size());
+        assertEquals(5, fastTarget.getSentCount());
+        assertEquals(0, fastTarget.getPendingCount());
+        assertTrue(fastTarget.getLastSuccessTime() > 0);
+
+        // Capacity is available again once the broker has answered
+        slowResponses.get(0).set(new UpdateContextResponse());
+        slowResponses.get(1).setException(new ResourceAccessException("Connection refused"));
+        assertEquals(0, slowTarget.getPendingCount());
+        assertEquals(1, slowTarget.getSentCount());
+        assertEquals(1, slowTarget.getFailedCount());
+        assertTrue(slowTarget.submit(element("device5")));
+    }
+
+    @Test
+    public void testSenderFailureIsCounted() {
+        FanOutTarget target = new FanOutTarget("http://broken", updateContext -> {
+            throw new IllegalStateException("Unable to send");
+        }, null, 2, 1, 0);
+        assertTrue(target.submit(element("device1")));
+        assertEquals(1, target.getFailedCount());
+        assertEquals(0, target.getPendingCount());
+    }
+
+    @Test
+    public void testAvailabilityFollowsCircuitBreaker() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://broker", 1, 60000);
+        FanOutTarget target = new FanOutTarget("http://broker", updateContext -> null, circuitBreaker, 2, 1, 0);
+        assertTrue(target.isAvailable());
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onFailure();
+        assertFalse(target.isAvailable());
+    }
+
+    private static ContextElement element(String deviceID) {
+        ContextElement element = new ContextElement();
+        element.setEntityId(new EntityId(deviceID, "", false));
+        element.setContextAttributeList(Collections.singletonList(new ContextAttribute("temperature", "float", 21.5)));
+        return element;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi.model.UpdateContextResponse;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * NgsiLdOutputAdapter unit tests with a local Http server
+ */
+public class NgsiLdOutputAdapterTest {
+
+    private HttpServer server;
+    private HttpComponentsAsyncClientHttpRequestFactory requestFactory;
+    private NgsiLdOutputAdapter adapter;
+    private volatile int status = 204;
+    private volatile String responseBody;
+    private volatile String requestUri;
+    private volatile HttpHeaders requestHeaders;
+    private volatile JsonNode requestBody;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requestUri = exchange.getRequestURI().toString();
+            requestHeaders = new HttpHeaders();
+            exchange.getRequestHeaders().forEach(requestHeaders::addAll);
+            try (InputStream inputStream = exchange.getRequestBody()) {
+                requestBody = new ObjectMapper().readTree(inputStream);
+            }
+            if (responseBody == null) {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        requestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+        adapter = new NgsiLdOutputAdapter("http://localhost:" + server.getAddress().getPort(), requestFactory,
+                "https://example.org/context.jsonld", "Device");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        requestFactory.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testUpdateIsUpserted() throws Exception {
+        UpdateContextResponse response = adapter.updateContext(headers(), NgsiV2OutputAdapterTest.updateContext()).get(5, TimeUnit.SECONDS);
+
+        assertEquals("/ngsi-ld/v1/entityOperations/upsert?options=update", requestUri);
+        assertEquals("service", requestHeaders.getFirst("NGSILD-Tenant"));
+        assertEquals("<https://example.org/context.jsonld>; rel=\"http://www.w3.org/ns/json-ld#context\"; type=\"application/ld+json\"",
+                requestHeaders.getFirst("Link"));
+        assertTrue(requestBody.isArray());
+        assertEquals(2, requestBody.size());
+        assertEquals("urn:ngsi-ld:Device:device1", requestBody.get(0).get("id").asText());
+        assertEquals("Device", requestBody.get(0).get("type").asText());
+        assertEquals("Property", requestBody.get(0).get("temperature").get("type").asText());
+        assertEquals(21.5, requestBody.get(0).get("temperature").get("value").asDouble(), 0);
+        assertEquals("2016-06-28T10:00:00Z", requestBody.get(0).get("temperature").get("timestamp").get("value").asText());
+        assertEquals("urn:ngsi-ld:Sensor:device2", requestBody.get(1).get("id").asText());
+
+        assertEquals(2, response.getContextElementResponses().size());
+        assertEquals("200", response.getContextElementResponses().get(0).getStatusCode().getCode());
+    }
+
+    @Test
+    public void testMultiStatusResponseGivesStatusOfEachEntity() throws Exception {
+        status = 207;
+        responseBody = "{\"success\":[\"urn:ngsi-ld:Device:device1\"],\"errors\":[{\"entityId\":\"urn:ngsi-ld:Sensor:device2\","
+                + "\"error\":{\"type\":\"https://uri.etsi.org/ngsi-ld/errors/BadRequestData\",\"title\":\"Bad request\",\"detail\":\"Invalid attribute\",\"status\":400}}]}";
+
+        UpdateContextResponse response = adapter.updateContext(headers(), NgsiV2OutputAdapterTest.updateContext()).get(5, TimeUnit.SECONDS);
+
+        assertEquals("200", response.getContextElementResponses().get(0).getStatusCode().getCode());
+        assertEquals("400", response.getContextElementResponses().get(1).getStatusCode().getCode());
+        assertEquals("Invalid attribute", response.getContextElementResponses().get(1).getStatusCode().getDetail());
+    }
+
+    @Test
+    public void testEntityUri() {
+        assertEquals("urn:ngsi-ld:Device:device1", NgsiLdOutputAdapter.entityUri("device1", "Device"));
+        assertEquals("urn:ngsi-ld:Device:device1", NgsiLdOutputAdapter.entityUri("urn:ngsi-ld:Device:device1", "Device"));
+    }
+
+    private static HttpHeaders headers() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Fiware-Service", "service");
+        headers.set("Content-Type", "application/json");
+        return headers;
+    }
+}
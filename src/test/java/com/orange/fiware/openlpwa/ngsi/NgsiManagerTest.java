@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.ContextAttribute;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * NgsiManager unit tests, the context brokers being a local Http server
+ */
+public class NgsiManagerTest {
+
+    private final static String responseBody = "{\"contextResponses\":[]}";
+    private HttpServer server;
+    private NgsiManager ngsiManager;
+    // Host, Fiware-Service header and body of the received requests
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            requests.add(host.substring(0, host.indexOf(':')) + " " + exchange.getRequestHeaders().getFirst("Fiware-Service") + " "
+                    + StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+
+        NgsiClient ngsiClient = new NgsiClient();
+        ngsiClient.asyncRestTemplate = new AsyncRestTemplate();
+        ngsiManager = new NgsiManager();
+        ReflectionTestUtils.setField(ngsiManager, "ngsiClient", ngsiClient);
+        ReflectionTestUtils.setField(ngsiManager, "accessTokenManager", new AccessTokenManager());
+        ReflectionTestUtils.setField(ngsiManager, "contextBrokerRemoteUrl", "http://localhost:" + server.getAddress().getPort());
+        ReflectionTestUtils.setField(ngsiManager, "outputFormat", "v1");
+        ReflectionTestUtils.setField(ngsiManager, "batchSize", 1);
+        // The fan-out broker is the same server, reached through another host name
+        ReflectionTestUtils.setField(ngsiManager, "fanOutUrls", "http://127.0.0.1:" + server.getAddress().getPort());
+        ReflectionTestUtils.setField(ngsiManager, "fanOutQueueCapacity", 10);
+    }
+
+    @After
+    public void teardown() {
+        ngsiManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testFanOutCopiesKeepTheTenantOfTheDevice() throws Exception {
+        Tenant defaultTenant = new Tenant("default", null, "service", "/path", null);
+        Tenant tenantA = new Tenant("a", null, "serviceA", "/pathA", null);
+        ReflectionTestUtils.setField(ngsiManager, "tenantRouter",
+                new TenantRouter(defaultTenant, Collections.singletonMap("device1", tenantA), Collections.emptyMap()));
+        List<ContextAttribute> attributes = Collections.singletonList(new ContextAttribute("temperature", "float", "21.5"));
+
+        ngsiManager.updateDeviceAttributes("device1", attributes).get(5, TimeUnit.SECONDS);
+        ngsiManager.updateDeviceAttributes("device2", attributes).get(5, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(4, requests.size());
+        assertEquals(2, ngsiManager.fanOutTargets().size());
+        assertEquals(1, ngsiManager.fanOutTargets(tenantA).size());
+        assertTrue(hasRequest("127.0.0.1 serviceA", "device1"));
+        assertTrue(hasRequest("127.0.0.1 service", "device2"));
+        assertFalse(hasRequest("127.0.0.1 service", "device1"));
+        assertTrue(hasRequest("localhost serviceA", "device1"));
+        assertTrue(hasRequest("localhost service", "device2"));
+    }
+
+    private boolean hasRequest(String prefix, String deviceID) {
+        return requests.stream().anyMatch(request -> request.startsWith(prefix + " ") && request.contains("\"" + deviceID + "\""));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi.ConvertersConfiguration;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of an updateContext request of 50 devices by the NgsiClient mapper and by the
+ * streaming serializer of the NGSI v1 adapter.
+ * Run the main method: the "gc.alloc.rate.norm" metric gives the bytes allocated per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NgsiV1OutputAdapterBenchmark {
+
+    private final static int deviceCount = 50;
+    private UpdateContext updateContext;
+    private ObjectMapper ngsiClientMapper;
+    private NgsiV1OutputAdapter adapter;
+    private ByteArrayOutputStream buffer;
+
+    @Setup
+    public void setup() {
+        List<ContextElement> contextElements = new ArrayList<>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            ContextElement contextElement = new ContextElement();
+            contextElement.setEntityId(new EntityId("urn:lo:nsid:lora:0018B2000000" + (1000 + i), "", false));
+            contextElement.setContextAttributeList(Arrays.asList(
+                    new ContextAttribute("temperature", "float", 21.5 + i),
+                    new ContextAttribute("humidity", "float", 48),
+                    new ContextAttribute("door", "string", "open")));
+            contextElements.add(contextElement);
+        }
+        updateContext = new UpdateContext(UpdateAction.APPEND);
+        updateContext.setContextElements(contextElements);
+        ngsiClientMapper = new ConvertersConfiguration().jsonV1Converter(new ObjectMapper()).getObjectMapper();
+        adapter = new NgsiV1OutputAdapter("http://localhost:1026", new HttpComponentsAsyncClientHttpRequestFactory());
+        buffer = new ByteArrayOutputStream(16384);
+    }
+
+    @Benchmark
+    public byte[] ngsiClientMapper() throws IOException {
+        return ngsiClientMapper.writeValueAsBytes(updateContext);
+    }
+
+    @Benchmark
+    public int streamingSerializer() throws IOException {
+        buffer.reset();
+        adapter.write(updateContext, buffer);
+        return buffer.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(NgsiV1OutputAdapterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.orange.ngsi.ConvertersConfiguration;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * NgsiV1OutputAdapter unit tests with a local Http server
+ */
+public class NgsiV1OutputAdapterTest {
+
+    private final static String responseBody = "{\"contextResponses\":[{\"contextElement\":{\"type\":\"\",\"isPattern\":\"false\",\"id\":\"device1\","
+            + "\"attributes\":[{\"name\":\"temperature\",\"type\":\"float\",\"value\":\"\"}]},\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}]}";
+    private HttpServer server;
+    private HttpComponentsAsyncClientHttpRequestFactory requestFactory;
+    private NgsiV1OutputAdapter adapter;
+    private volatile String requestPath;
+    private volatile JsonNode requestBody;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requestPath = exchange.getRequestURI().getPath();
+            try (InputStream inputStream = exchange.getRequestBody()) {
+                requestBody = new ObjectMapper().readTree(inputStream);
+            }
+            byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        requestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+        adapter = new NgsiV1OutputAdapter("http://localhost:" + server.getAddress().getPort(), requestFactory);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        requestFactory.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testUpdateIsSent() throws Exception {
+        UpdateContextResponse response = adapter.updateContext(new HttpHeaders(), NgsiV2OutputAdapterTest.updateContext()).get(5, TimeUnit.SECONDS);
+
+        assertEquals("/ngsi10/updateContext", requestPath);
+        assertEquals("APPEND", requestBody.get("updateAction").asText());
+        assertEquals("device2", requestBody.get("contextElements").get(1).get("id").asText());
+        assertEquals(1, response.getContextElementResponses().size());
+        assertEquals("device1", response.getContextElementResponses().get(0).getContextElement().getEntityId().getId());
+        assertEquals("200", response.getContextElementResponses().get(0).getStatusCode().getCode());
+    }
+
+    @Test
+    public void testBodyIsTheNgsiClientFormat() throws Exception {
+        UpdateContext updateContext = NgsiV2OutputAdapterTest.updateContext();
+        updateContext.getContextElements().get(0).setEntityId(new EntityId("device \"1\"", "", false));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        adapter.write(updateContext, outputStream);
+
+        ObjectMapper ngsiClientMapper = new ConvertersConfiguration().jsonV1Converter(new ObjectMapper()).getObjectMapper();
+        JsonNode expected = ngsiClientMapper.readTree(ngsiClientMapper.writeValueAsBytes(updateContext));
+        JsonNode body = new ObjectMapper().readTree(outputStream.toByteArray());
+        // The NgsiClient writes empty metadata lists
+        ((ObjectNode) expected.get("contextElements").get(1).get("attributes").get(0)).remove("metadatas");
+        assertEquals(expected, body);
+        assertEquals("21.5", body.get("contextElements").get(0).get("attributes").get(0).get("value").asText());
+    }
+
+    @Test
+    public void testEntityPrefixesAreCached() {
+        EntityId entityId = new EntityId("device1", "", false);
+        assertSame(adapter.entityPrefix(entityId), adapter.entityPrefix(new EntityId("device1", "", false)));
+        assertNotSame(adapter.entityPrefix(entityId), adapter.entityPrefix(new EntityId("device1", "Sensor", false)));
+        assertEquals("\"type\":\"\",\"isPattern\":\"false\",\"id\":\"device1\",", adapter.entityPrefix(entityId).getValue());
+        assertEquals(2, adapter.getCachedPrefixCount());
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import com.orange.ngsi.model.UpdateContextResponse;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * NgsiV2OutputAdapter unit tests with a local Http server
+ */
+public class NgsiV2OutputAdapterTest {
+
+    private HttpServer server;
+    private HttpComponentsAsyncClientHttpRequestFactory requestFactory;
+    private NgsiV2OutputAdapter adapter;
+    private volatile int status = 204;
+    private volatile String requestPath;
+    private volatile String requestService;
+    private volatile JsonNode requestBody;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requestPath = exchange.getRequestURI().getPath();
+            requestService = exchange.getRequestHeaders().getFirst("Fiware-Service");
+            try (InputStream inputStream = exchange.getRequestBody()) {
+                requestBody = new ObjectMapper().readTree(inputStream);
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        requestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+        adapter = new NgsiV2OutputAdapter("http://localhost:" + server.getAddress().getPort() + "/", requestFactory);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        requestFactory.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testUpdateIsSentInBatch() throws Exception {
+        UpdateContextResponse response = adapter.updateContext(headers(), updateContext()).get(5, TimeUnit.SECONDS);
+
+        assertEquals("/v2/op/update", requestPath);
+        assertEquals("service", requestService);
+        assertEquals("append", requestBody.get("actionType").asText());
+        JsonNode entities = requestBody.get("entities");
+        assertEquals(2, entities.size());
+        assertEquals("device1", entities.get(0).get("id").asText());
+        assertNull(entities.get(0).get("type"));
+        assertEquals("float", entities.get(0).get("temperature").get("type").asText());
+        assertEquals(21.5, entities.get(0).get("temperature").get("value").asDouble(), 0);
+        assertEquals("ISO8601", entities.get(0).get("temperature").get("metadata").get("timestamp").get("type").asText());
+        assertEquals("Sensor", entities.get(1).get("type").asText());
+        assertEquals("open", entities.get(1).get("door").get("value").asText());
+
+        assertEquals(2, response.getContextElementResponses().size());
+        assertEquals("device2", response.getContextElementResponses().get(1).getContextElement().getEntityId().getId());
+        assertEquals("200", response.getContextElementResponses().get(1).getStatusCode().getCode());
+    }
+
+    @Test
+    public void testRejectedUpdateFailsWithStatus() throws Exception {
+        status = 400;
+        try {
+            adapter.updateContext(headers(), updateContext()).get(5, TimeUnit.SECONDS);
+            fail("Update should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpClientErrorException);
+        }
+
+        status = 503;
+        try {
+            adapter.updateContext(headers(), updateContext()).get(5, TimeUnit.SECONDS);
+            fail("Update should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpServerErrorException);
+        }
+    }
+
+    private static HttpHeaders headers() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Fiware-Service", "service");
+        headers.set("Content-Type", "application/json");
+        return headers;
+    }
+
+    static UpdateContext updateContext() {
+        ContextAttribute temperature = new ContextAttribute("temperature", "float", 21.5);
+        temperature.addMetadata(new ContextMetadata("timestamp", "ISO8601", "2016-06-28T10:00:00Z"));
+        ContextElement element1 = new ContextElement();
+        element1.setEntityId(new EntityId("device1", "", false));
+        element1.setContextAttributeList(Collections.singletonList(temperature));
+        ContextElement element2 = new ContextElement();
+        element2.setEntityId(new EntityId("device2", "Sensor", false));
+        element2.setContextAttributeList(Collections.singletonList(new ContextAttribute("door", "string", "open")));
+        UpdateContext updateContext = new UpdateContext(UpdateAction.APPEND);
+        updateContext.setContextElements(Arrays.asList(element1, element2));
+        return updateContext;
+    }
+}
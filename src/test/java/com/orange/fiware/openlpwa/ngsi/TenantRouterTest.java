@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.http.HttpHeaders;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * TenantRouter and Tenant unit tests
+ */
+public class TenantRouterTest {
+
+    private final Tenant defaultTenant = new Tenant("default", null, "service", "/path", null);
+
+    @Test
+    public void testDevicesAreRoutedByIdentifierThenModel() {
+        Tenant tenantA = new Tenant("a", "http://orion-a", "serviceA", null, null);
+        Tenant tenantB = new Tenant("b", null, "serviceB", null, null);
+        TenantRouter router = new TenantRouter(defaultTenant, Collections.singletonMap("device1", tenantA), Collections.singletonMap("modelB", tenantB));
+
+        assertSame(tenantA, router.route("device1", "modelB"));
+        assertSame(tenantB, router.route("device2", "modelB"));
+        assertSame(defaultTenant, router.route("device3", "other"));
+        assertSame(defaultTenant, router.route("device4", null));
+
+        // The tenant found from the model is kept for the next updates of the device
+        assertSame(tenantA, router.tenant("device1"));
+        assertSame(tenantB, router.tenant("device2"));
+        assertSame(defaultTenant, router.tenant("device3"));
+        router.route("device2", "other");
+        assertSame(defaultTenant, router.tenant("device2"));
+
+        assertEquals(3, router.getTenants().size());
+        assertSame(defaultTenant, router.getTenants().get(0));
+        assertTrue(router.isMultiTenant());
+        // Tenant of a stored update
+        assertSame(tenantB, router.getTenant("b"));
+        assertSame(defaultTenant, router.getTenant(defaultTenant.getName()));
+        assertNull(router.getTenant("removed"));
+    }
+
+    @Test
+    public void testHeadersAreBuiltOncePerToken() {
+        HttpHeaders headers = defaultTenant.headers(null);
+        assertSame(headers, defaultTenant.headers(""));
+        assertEquals("service", headers.getFirst("Fiware-Service"));
+        assertEquals("/path", headers.getFirst("Fiware-ServicePath"));
+        assertNull(headers.getFirst("X-Auth-Token"));
+
+        HttpHeaders tokenHeaders = defaultTenant.headers("token1");
+        assertEquals("token1", tokenHeaders.getFirst("X-Auth-Token"));
+        assertSame(tokenHeaders, defaultTenant.headers(new String("token1")));
+        HttpHeaders newTokenHeaders = defaultTenant.headers("token2");
+        assertEquals("token2", newTokenHeaders.getFirst("X-Auth-Token"));
+        assertEquals("service", newTokenHeaders.getFirst("Fiware-Service"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testHeadersAreReadOnly() {
+        defaultTenant.headers("token").set("Fiware-Service", "other");
+    }
+
+    @Test
+    public void testTenantTokenReplacesTheSharedToken() {
+        Tenant tenant = new Tenant("a", null, "serviceA", "", "tenantToken");
+        assertTrue(tenant.hasAuthToken());
+        assertNull(tenant.getFiwareServicePath());
+        assertEquals("tenantToken", tenant.headers("sharedToken").getFirst("X-Auth-Token"));
+        assertFalse(tenant.headers("sharedToken").containsKey("Fiware-ServicePath"));
+    }
+
+    @Test
+    public void testRouterFromProperties() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("contextBroker.tenant.acme.fiwareService", "acme");
+        properties.put("contextBroker.tenant.acme.url", "http://orion-acme");
+        properties.put("contextBroker.tenant.acme.devices", "device1, device2");
+        properties.put("contextBroker.tenant.globex.fiwareService", "globex");
+        properties.put("contextBroker.tenant.globex.models", "model1");
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("tenants", properties));
+
+        TenantRouter router = TenantRouter.fromProperties(defaultTenant, "acme, globex", environment);
+        Tenant acme = router.route("device2", "model1");
+        assertEquals("acme", acme.getName());
+        assertEquals("http://orion-acme", acme.getUrl());
+        Tenant globex = router.route("device3", "model1");
+        assertEquals("globex", globex.getFiwareService());
+        assertNull(globex.getUrl());
+        assertSame(defaultTenant, router.route("device4", "model2"));
+
+        assertFalse(TenantRouter.fromProperties(defaultTenant, "", environment).isMultiTenant());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeviceListedByTwoTenants() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("contextBroker.tenant.acme.devices", "device1");
+        properties.put("contextBroker.tenant.globex.devices", "device1");
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("tenants", properties));
+        TenantRouter.fromProperties(defaultTenant, "acme,globex", environment);
+    }
+}
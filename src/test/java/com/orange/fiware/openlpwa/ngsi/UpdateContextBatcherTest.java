@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.ngsi;
+
+import com.orange.ngsi.model.*;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * UpdateContextBatcher unit tests
+ */
+public class UpdateContextBatcherTest {
+
+    private final List<UpdateContext> sentRequests = new ArrayList<>();
+    private final List<SettableListenableFuture<UpdateContextResponse>> responses = new ArrayList<>();
+    private final UpdateContextBatcher.UpdateContextSender sender = updateContext -> {
+        SettableListenableFuture<UpdateContextResponse> response = new SettableListenableFuture<>();
+        synchronized (sentRequests) {
+            sentRequests.add(updateContext);
+            responses.add(response);
+        }
+        return response;
+    };
+
+    @Test
+    public void testBatchIsSentWhenFull() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 3, 60000);
+        ListenableFuture<UpdateContextResponse> future1 = batcher.submit(element("device1"));
+        ListenableFuture<UpdateContextResponse> future2 = batcher.submit(element("device2"));
+        assertTrue(sentRequests.isEmpty());
+        ListenableFuture<UpdateContextResponse> future3 = batcher.submit(element("device3"));
+
+        assertEquals(1, sentRequests.size());
+        assertEquals(UpdateAction.APPEND, sentRequests.get(0).getUpdateAction());
+        assertEquals(3, sentRequests.get(0).getContextElements().size());
+
+        responses.get(0).set(response("device1", "device2", "device3"));
+        assertEquals("device1", entityId(future1.get()));
+        assertEquals("device2", entityId(future2.get()));
+        assertEquals("device3", entityId(future3.get()));
+        assertEquals(1, batcher.getSentBatchCount());
+        assertEquals(3, batcher.getSentElementCount());
+    }
+
+    @Test
+    public void testBatchIsSentAfterLinger() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 10, 10);
+        ListenableFuture<UpdateContextResponse> future = batcher.submit(element("device1"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (sentRequests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, sentRequests.size());
+
+        responses.get(0).set(response("device1"));
+        assertEquals("device1", entityId(future.get(1, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testBatchIsSplitWhenTooLarge() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 4, 60000);
+        List<ListenableFuture<UpdateContextResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(batcher.submit(element("device" + i)));
+        }
+        responses.get(0).setException(new HttpClientErrorException(HttpStatus.PAYLOAD_TOO_LARGE));
+
+        // The second half is sent once the first one is completed
+        assertEquals(2, sentRequests.size());
+        assertEquals(2, sentRequests.get(1).getContextElements().size());
+        assertEquals(1, batcher.getSplitBatchCount());
+        responses.get(1).set(response("device0", "device1"));
+        assertEquals(3, sentRequests.size());
+        assertEquals(2, sentRequests.get(2).getContextElements().size());
+        responses.get(2).set(response("device2", "device3"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("device" + i, entityId(futures.get(i).get()));
+        }
+    }
+
+    @Test
+    public void testEntityIsInOneBatchInFlightAtMost() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 2, 60000);
+        ListenableFuture<UpdateContextResponse> future1 = batcher.submit(element("device1"));
+        batcher.submit(element("device2"));
+        assertEquals(1, sentRequests.size());
+
+        // device1 is in flight: its next update waits for the first batch
+        ListenableFuture<UpdateContextResponse> future3 = batcher.submit(element("device1"));
+        batcher.submit(element("device3"));
+        ListenableFuture<UpdateContextResponse> future5 = batcher.submit(element("device4"));
+        assertEquals(2, sentRequests.size());
+        assertEquals("device3", sentRequests.get(1).getContextElements().get(0).getEntityId().getId());
+        assertEquals("device4", sentRequests.get(1).getContextElements().get(1).getEntityId().getId());
+        assertEquals(1, batcher.getHeldBackCount());
+
+        responses.get(0).set(response("device1", "device2"));
+        assertEquals("device1", entityId(future1.get()));
+        assertEquals(0, batcher.getHeldBackCount());
+        batcher.flush();
+        assertEquals(3, sentRequests.size());
+        assertEquals("device1", sentRequests.get(2).getContextElements().get(0).getEntityId().getId());
+        responses.get(1).set(response("device3", "device4"));
+        responses.get(2).set(response("device1"));
+        assertEquals("device4", entityId(future5.get()));
+        assertEquals("device1", entityId(future3.get()));
+    }
+
+    @Test
+    public void testResponsesOfSameEntityAreMatchedByOccurrence() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 3, 60000);
+        ListenableFuture<UpdateContextResponse> future1 = batcher.submit(element("device1"));
+        ListenableFuture<UpdateContextResponse> future2 = batcher.submit(element("device1"));
+        ListenableFuture<UpdateContextResponse> future3 = batcher.submit(element("device2"));
+
+        // device2 failed and is missing from the response
+        UpdateContextResponse updateContextResponse = response("device1", "device1");
+        updateContextResponse.getContextElementResponses().get(1).setStatusCode(new StatusCode(CodeEnum.CODE_500));
+        responses.get(0).set(updateContextResponse);
+        assertEquals(CodeEnum.CODE_200.getLabel(), future1.get().getContextElementResponses().get(0).getStatusCode().getCode());
+        assertEquals(CodeEnum.CODE_500.getLabel(), future2.get().getContextElementResponses().get(0).getStatusCode().getCode());
+        assertTrue(future3.get().getContextElementResponses().isEmpty());
+    }
+
+    @Test
+    public void testShutdownSendsThePendingElements() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 2, 60000);
+        batcher.submit(element("device1"));
+        batcher.submit(element("device2"));
+        batcher.submit(element("device3"));
+        assertEquals(1, sentRequests.size());
+
+        batcher.shutdown();
+        assertEquals(2, sentRequests.size());
+        assertEquals(1, sentRequests.get(1).getContextElements().size());
+    }
+
+    @Test
+    public void testLateResponseAfterShutdownStartsNoThread() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 2, 60000);
+        batcher.submit(element("device1"));
+        batcher.submit(element("device2"));
+        // Held back while the first batch is in flight
+        ListenableFuture<UpdateContextResponse> future = batcher.submit(element("device1"));
+        batcher.shutdown();
+        assertEquals(1, sentRequests.size());
+
+        responses.get(0).set(response("device1", "device2"));
+        assertEquals(2, sentRequests.size());
+        assertNull(ReflectionTestUtils.getField(batcher, "scheduler"));
+        responses.get(1).set(response("device1"));
+        assertEquals("device1", entityId(future.get(1, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testEachCallerFailsWithTheBatch() throws Exception {
+        UpdateContextBatcher batcher = new UpdateContextBatcher(sender, 2, 60000);
+        ListenableFuture<UpdateContextResponse> future1 = batcher.submit(element("device1"));
+        ListenableFuture<UpdateContextResponse> future2 = batcher.submit(element("device2"));
+        responses.get(0).setException(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+
+        for (ListenableFuture<UpdateContextResponse> future : Arrays.asList(future1, future2)) {
+            try {
+                future.get();
+                fail("Exception expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof HttpClientErrorException);
+            }
+        }
+    }
+
+    private static ContextElement element(String deviceID) {
+        ContextElement element = new ContextElement();
+        element.setEntityId(new EntityId(deviceID, "", false));
+        return element;
+    }
+
+    private static UpdateContextResponse response(String... deviceIDs) {
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>();
+        for (String deviceID : deviceIDs) {
+            contextElementResponses.add(new ContextElementResponse(element(deviceID), new StatusCode(CodeEnum.CODE_200)));
+        }
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(contextElementResponses);
+        return updateContextResponse;
+    }
+
+    private static String entityId(UpdateContextResponse updateContextResponse) {
+        assertEquals(1, updateContextResponse.getContextElementResponses().size());
+        return updateContextResponse.getContextElementResponses().get(0).getContextElement().getEntityId().getId();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Mqtt message decoding paths.
+ * Run the main method: the "gc.alloc.rate.norm" metric gives the bytes allocated per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceIncomingMessageDecoderBenchmark {
+
+    private final static String jsonPayload = "{\"streamId\":\"urn:lo:nsid:lora:0018B20000000165!uplink\",\"timestamp\":\"2016-05-23T13:05:18.307Z\"," +
+            "\"location\":{\"lat\":45.76,\"lon\":4.83,\"alt\":0,\"accuracy\":10,\"provider\":\"lora\"},\"model\":\"lora_v0\"," +
+            "\"value\":{\"port\":1,\"fcnt\":8,\"signalLevel\":2,\"payload\":\"ae2109000cf3\"},\"tags\":[\"Lyon\",\"Test\"]," +
+            "\"extra\":{\"name\":\"sensor\"},\"metadata\":{\"source\":\"urn:lo:nsid:lora:0018B20000000165\",\"encoding\":\"lora_v0\"," +
+            "\"network\":{\"lora\":{\"devEUI\":\"0018B20000000165\",\"port\":1,\"fcnt\":8,\"rssi\":-60.0,\"snr\":9.25,\"sf\":12," +
+            "\"signalLevel\":2,\"gatewayCnt\":3}}},\"created\":\"2016-05-23T13:05:18.391Z\"}";
+    private byte[] payload;
+    private ObjectMapper sharedObjectMapper;
+    private DeviceIncomingMessageDecoder decoder;
+
+    @Setup
+    public void setup() {
+        payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
+        sharedObjectMapper = new ObjectMapper();
+        decoder = new DeviceIncomingMessageDecoder();
+    }
+
+    @Benchmark
+    public DeviceIncomingMessage objectMapperPerMessage() throws IOException {
+        return new ObjectMapper().readValue(payload, DeviceIncomingMessage.class);
+    }
+
+    @Benchmark
+    public DeviceIncomingMessage sharedObjectMapper() throws IOException {
+        return sharedObjectMapper.readValue(payload, DeviceIncomingMessage.class);
+    }
+
+    @Benchmark
+    public DeviceIncomingMessage decoder() throws IOException {
+        return decoder.decode(payload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DeviceIncomingMessageDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
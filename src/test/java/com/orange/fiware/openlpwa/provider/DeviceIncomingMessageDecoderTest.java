@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.orange.fiware.openlpwa.provider.model.DeviceIncomingMessage;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * DeviceIncomingMessageDecoder unit tests
+ */
+public class DeviceIncomingMessageDecoderTest {
+
+    private final static String jsonPayload = "{\"streamId\":\"testMQTTdevice!uplink\",\"timestamp\":\"2016-05-23T13:05:18.307Z\",\"model\":\"lora_v0\"," +
+            "\"location\":{\"lat\":45.76,\"lon\":4.83,\"alt\":0,\"accuracy\":10,\"provider\":\"lora\"}," +
+            "\"value\":{\"port\":1,\"fcnt\":8,\"signalLevel\":2,\"payload\":\"ae2109000cf3\"}," +
+            "\"tags\":[\"Lyon\",\"Test\"],\"metadata\":{\"source\":\"testMQTTdevice\",\"network\":{\"lora\":{\"port\":1,\"rssi\":-60}}}}";
+    private final DeviceIncomingMessageDecoder decoder = new DeviceIncomingMessageDecoder();
+
+    @Test
+    public void testDecodeMessage() throws Exception {
+        DeviceIncomingMessage incomingMessage = decoder.decode(jsonPayload.getBytes());
+
+        assertEquals("testMQTTdevice!uplink", incomingMessage.getStreamId());
+        assertEquals(1464008718307L, incomingMessage.getDate().getTime());
+        assertEquals("lora_v0", incomingMessage.getModel());
+        assertEquals(Arrays.asList("Lyon", "Test"), incomingMessage.getTags());
+        assertEquals("testMQTTdevice", incomingMessage.getMetadata().getSource());
+        assertEquals("ae2109000cf3", incomingMessage.getData());
+        assertNull(incomingMessage.getLocation());
+    }
+
+    @Test
+    public void testDecodeMessageWithEpochTimestamp() throws Exception {
+        DeviceIncomingMessage incomingMessage = decoder.decode("{\"timestamp\":1464008718307}".getBytes());
+        assertEquals(1464008718307L, incomingMessage.getDate().getTime());
+    }
+
+    @Test
+    public void testDecodeMessageWithOffsetTimestamp() throws Exception {
+        DeviceIncomingMessage incomingMessage = decoder.decode("{\"timestamp\":\"2016-05-23T15:05:18.307+02:00\"}".getBytes());
+        assertEquals(1464008718307L, incomingMessage.getDate().getTime());
+    }
+
+    @Test
+    public void testDecodeMessageWithOffsetWithoutColon() throws Exception {
+        DeviceIncomingMessage incomingMessage = decoder.decode("{\"timestamp\":\"2016-05-23T14:05:18.307+0100\"}".getBytes());
+        assertEquals(1464008718307L, incomingMessage.getDate().getTime());
+    }
+
+    @Test
+    public void testDecodeMessageWithUnknownFields() throws Exception {
+        DeviceIncomingMessage incomingMessage = decoder.decode("{\"badf00d\":\"yes\",\"other\":[{\"a\":1}]}".getBytes());
+        assertNull(incomingMessage.getMetadata());
+        assertNull(incomingMessage.getValue());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testDecodeMessageWithInvalidTimestamp() throws Exception {
+        decoder.decode("{\"timestamp\":\"yesterday\"}".getBytes());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testDecodeInvalidPayload() throws Exception {
+        decoder.decode("[\"badf00d\"]".getBytes());
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2016 Orange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.fiware.openlpwa.provider;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * MappedSegmentPersistence unit tests
+ */
+public class MappedSegmentPersistenceTest {
+
+    private final static String clientId = "testClientId";
+    private final static String serverUri = "tcp://localhost:1883";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private MappedSegmentPersistence persistence;
+
+    @Before
+    public void setup() throws Exception {
+        persistence = new MappedSegmentPersistence(folder.getRoot().getPath(), 256, false);
+        persistence.open(clientId, serverUri);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        try {
+            persistence.close();
+        } catch (MqttPersistenceException e) {
+            // Already closed by the test
+        }
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        persistence.put("s-1", data("s-1", new byte[]{1, 2}, new byte[]{3}));
+        assertTrue(persistence.containsKey("s-1"));
+        MqttPersistable persistable = persistence.get("s-1");
+        assertArrayEquals(new byte[]{1, 2}, persistable.getHeaderBytes());
+        assertArrayEquals(new byte[]{3}, persistable.getPayloadBytes());
+
+        persistence.remove("s-1");
+        assertFalse(persistence.containsKey("s-1"));
+        assertNull(persistence.get("s-1"));
+    }
+
+    @Test
+    public void testMessagesAreRestoredWhenReopened() throws Exception {
+        persistence.put("s-1", data("s-1", new byte[]{1}, new byte[]{1}));
+        persistence.put("s-2", data("s-2", new byte[]{2}, new byte[]{2}));
+        persistence.put("s-1", data("s-1", new byte[]{3}, null));
+        persistence.remove("s-2");
+        persistence.close();
+
+        persistence.open(clientId, serverUri);
+        assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+        assertArrayEquals(new byte[]{3}, persistence.get("s-1").getHeaderBytes());
+        assertEquals(0, persistence.get("s-1").getPayloadLength());
+    }
+
+    @Test
+    public void testSegmentsAreCompacted() throws Exception {
+        persistence.put("long", data("long", new byte[]{1}, new byte[]{1}));
+        for (int i = 0; i < 500; i++) {
+            persistence.put("s-" + i, data("s-" + i, new byte[4], new byte[64]));
+            persistence.remove("s-" + i);
+        }
+        // The old message has been relocated so that the released segments can be deleted
+        assertTrue(persistence.getSegmentCount() <= 5);
+        assertArrayEquals(new byte[]{1}, persistence.get("long").getPayloadBytes());
+        persistence.close();
+
+        persistence.open(clientId, serverUri);
+        assertEquals(Collections.singletonList("long"), Collections.list(persistence.keys()));
+    }
+
+    @Test
+    public void testCorruptedRecordIsIgnored() throws Exception {
+        persistence.put("s-1", data("s-1", new byte[]{1}, new byte[]{1}));
+        persistence.put("s-2", data("s-2", new byte[]{2}, new byte[]{2}));
+        persistence.close();
+
+        Path segment;
+        try (Stream<Path> clientDirectories = Files.list(folder.getRoot().toPath());
+             Stream<Path> segments = Files.list(clientDirectories.findFirst().get())) {
+            segment = segments.sorted().findFirst().get();
+        }
+        // Corrupt a byte of the second record
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int firstRecordLength = file.readInt();
+            file.seek(8 + firstRecordLength + 8 + 3 + 4);
+            file.write(42);
+        }
+
+        persistence.open(clientId, serverUri);
+        assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+    }
+
+    @Test(expected = MqttPersistenceException.class)
+    public void testOpenTwice() throws Exception {
+        persistence.open(clientId, serverUri);
+    }
+
+    private static MqttPersistable data(String key, byte[] header, byte[] payload) {
+        return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload != null ? payload.length : 0);
+    }
+}
@@ -27,11 +27,13 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.FailureCallback;
 
 import java.util.Arrays;
 import java.util.List;
@@ -137,6 +139,16 @@ public class OpenLpwaMqttProviderTest {
                 });
     }
 
+    @Test
+    public void testMqttConnectWithPersistentSession() throws Exception {
+        ReflectionTestUtils.setField(mqttClient, "persistentSession", true);
+        ArgumentCaptor<MqttConnectOptions> connectOptions = ArgumentCaptor.forClass(MqttConnectOptions.class);
+
+        mqttClient.connect(null, null);
+        verify(mockMqttAsyncClient).connect(connectOptions.capture(), anyObject(), any(IMqttActionListener.class));
+        assertFalse(connectOptions.getValue().isCleanSession());
+    }
+
     @Test
     public void testMqttDisconnectWithSuccess() throws Exception {
         doAnswer(new Answer<Void>() {
@@ -351,4 +363,105 @@ public class OpenLpwaMqttProviderTest {
         mqttClient.messageArrived("router/~event/v1/data/new/urn/lora/#", new MqttMessage(jsonPayload.getBytes()));
         verify(clientCallback, never()).newMessageArrived(anyString(), any(DeviceIncomingMessage.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMqttNewMessageArrivedWithManualAck() throws Exception {
+        String jsonPayload = "{\"streamId\":\"testMQTTdevice!uplink\",\"timestamp\":\"2016-05-23T13:05:18.307Z\",\"model\":\"lora_v0\",\"value\":{\"port\":1,\"fcnt\":8,\"signalLevel\":2,\"payload\":\"ae2109000cf3\"},\"tags\":[\"Lyon\",\"Test\"],\"metadata\":{\"source\":\"testMQTTdevice\"}}";
+        ReflectionTestUtils.setField(mqttClient, "manualAcks", true);
+        ReflectionTestUtils.setField(mqttClient, "maxUnackedMessages", 1);
+        mqttClient.connect(null, null);
+        verify(mockMqttAsyncClient).setManualAcks(true);
+
+        MqttMessage mqttMessage = new MqttMessage(jsonPayload.getBytes());
+        mqttMessage.setId(42);
+        mqttMessage.setQos(1);
+        mqttClient.messageArrived(topicPath, mqttMessage);
+
+        ArgumentCaptor<Runnable> acknowledgement = ArgumentCaptor.forClass(Runnable.class);
+        verify(clientCallback).newMessageArrived(eq(deviceEUI), any(DeviceIncomingMessage.class), acknowledgement.capture());
+        verify(mockMqttAsyncClient, never()).messageArrivedComplete(anyInt(), anyInt());
+
+        acknowledgement.getValue().run();
+        acknowledgement.getValue().run();
+        verify(mockMqttAsyncClient, times(1)).messageArrivedComplete(42, 1);
+    }
+
+    @Test
+    public void testMqttConnectWithManualAckAndNoUnackedMessages() throws Exception {
+        ReflectionTestUtils.setField(mqttClient, "manualAcks", true);
+        ReflectionTestUtils.setField(mqttClient, "maxUnackedMessages", 0);
+        FailureCallback failureCallback = mock(FailureCallback.class);
+        mqttClient.connect(clientId -> fail("Success callback unexpected call"), failureCallback);
+
+        verify(failureCallback).onFailure(any(ConfigurationException.class));
+        verify(mockMqttAsyncClient, never()).connect(any(MqttConnectOptions.class), anyObject(), any(IMqttActionListener.class));
+    }
+
+    @Test
+    public void testMqttNewMessageArrivedWithManualAckAndInvalidPayload() throws Exception {
+        ReflectionTestUtils.setField(mqttClient, "manualAcks", true);
+        ReflectionTestUtils.setField(mqttClient, "maxUnackedMessages", 1);
+        mqttClient.connect(null, null);
+
+        MqttMessage mqttMessage = new MqttMessage("{\"badf00d\":\"yes\"}".getBytes());
+        mqttMessage.setId(43);
+        mqttMessage.setQos(1);
+        mqttClient.messageArrived(topicPath, mqttMessage);
+
+        verify(clientCallback, never()).newMessageArrived(anyString(), any(DeviceIncomingMessage.class), any(Runnable.class));
+        verify(mockMqttAsyncClient).messageArrivedComplete(43, 1);
+    }
+
+    @Test
+    public void testMqttConnectionStatistics() throws Exception {
+        String jsonPayload = "{\"value\":{\"payload\":\"ae2109000cf3\"},\"metadata\":{\"source\":\"testMQTTdevice\"}}";
+        ReflectionTestUtils.setField(mqttClient, "clientFactory",
+                (OpenLpwaMqttProvider.ClientFactory) (uri, id, persistence) -> mock(MqttAsyncClient.class));
+        ReflectionTestUtils.setField(mqttClient, "connectionCount", 3);
+        mqttClient.connect(null, null);
+
+        List<MqttConnectionStatistics> statistics = mqttClient.getConnectionStatistics();
+        assertEquals(3, statistics.size());
+        assertEquals(clientId, statistics.get(0).getClientId());
+        assertEquals(clientId + "-1", statistics.get(1).getClientId());
+        assertEquals(clientId + "-2", statistics.get(2).getClientId());
+
+        mqttClient.messageArrived(topicPath, new MqttMessage(jsonPayload.getBytes()));
+        assertEquals(1, statistics.get(0).getReceivedMessages());
+        assertEquals(jsonPayload.getBytes().length, statistics.get(0).getReceivedBytes());
+        assertEquals(0, statistics.get(1).getReceivedMessages());
+        verify(clientCallback).newMessageArrived(eq(deviceEUI), any(DeviceIncomingMessage.class));
+    }
+
+    @Test
+    public void testManualAckAfterReconnectionOfAnotherConnection() throws Exception {
+        String jsonPayload = "{\"value\":{\"payload\":\"ae2109000cf3\"},\"metadata\":{\"source\":\"testMQTTdevice\"}}";
+        MqttAsyncClient additionalClient = mock(MqttAsyncClient.class);
+        ReflectionTestUtils.setField(mqttClient, "clientFactory",
+                (OpenLpwaMqttProvider.ClientFactory) (uri, id, persistence) -> additionalClient);
+        ReflectionTestUtils.setField(mqttClient, "connectionCount", 2);
+        ReflectionTestUtils.setField(mqttClient, "manualAcks", true);
+        ReflectionTestUtils.setField(mqttClient, "maxUnackedMessages", 2);
+        mqttClient.connect(null, null);
+        ArgumentCaptor<MqttCallback> additionalCallback = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(additionalClient).setCallback(additionalCallback.capture());
+
+        MqttMessage mainMessage = new MqttMessage(jsonPayload.getBytes());
+        mainMessage.setId(44);
+        mainMessage.setQos(1);
+        mqttClient.messageArrived(topicPath, mainMessage);
+        MqttMessage additionalMessage = new MqttMessage(jsonPayload.getBytes());
+        additionalMessage.setId(45);
+        additionalMessage.setQos(1);
+        additionalCallback.getValue().messageArrived(topicPath, additionalMessage);
+        ArgumentCaptor<Runnable> acknowledgements = ArgumentCaptor.forClass(Runnable.class);
+        verify(clientCallback, times(2)).newMessageArrived(eq(deviceEUI), any(DeviceIncomingMessage.class), acknowledgements.capture());
+
+        // Only the main connection has been lost and is reopened
+        when(additionalClient.isConnected()).thenReturn(true);
+        mqttClient.connect(null, null);
+        acknowledgements.getAllValues().forEach(Runnable::run);
+        verify(mockMqttAsyncClient, never()).messageArrivedComplete(anyInt(), anyInt());
+        verify(additionalClient).messageArrivedComplete(45, 1);
+    }
+}